@@ -17,13 +17,32 @@
  */
 package org.sakaiproject.nakamura.api.lite;
 
+import org.sakaiproject.nakamura.api.lite.util.Weighted;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Map.Entry;
+
+public class CacheHolder implements Weighted {
 
-public class CacheHolder {
+    // rough sizes of objects on a 64 bit JVM, only intended to make the weights
+    // of rows comparable with each other.
+    private static final long OBJECT_OVERHEAD = 16;
+    private static final long HOLDER_OVERHEAD = 40;
+    private static final long MAP_OVERHEAD = 48;
+    private static final long MAP_ENTRY_OVERHEAD = 48;
+    private static final long STRING_OVERHEAD = 40;
+    private static final long ARRAY_OVERHEAD = 16;
+    private static final long REFERENCE = 8;
+    private static final long DEFAULT_VALUE = 32;
+    private static final long CALENDAR_VALUE = 400;
 
     private Map<String, Object> o;
     private long locker;
     private long ttl;
+    private long weight = -1;
+    private volatile boolean stale;
 
     public CacheHolder(Map<String, Object> o) {
         this.o = o;
@@ -50,4 +69,67 @@ public class CacheHolder {
         return (locker == managerId);
     }
 
+    /**
+     * Mark the holder as stale. A stale holder may still be served to readers
+     * while one of them reloads the object from storage. Only this copy of the
+     * holder is marked, so in a replicated cache other servers are not
+     * affected.
+     */
+    public void markStale() {
+        stale = true;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return the estimated number of bytes used by the holder and the map it
+     *         holds, calculated the first time it is needed.
+     */
+    public long getWeight() {
+        if (weight < 0) {
+            weight = HOLDER_OVERHEAD + estimate(o);
+        }
+        return weight;
+    }
+
+    private static long estimate(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Weighted) {
+            return ((Weighted) value).getWeight();
+        } else if (value instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) value).length();
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return OBJECT_OVERHEAD + 8;
+        } else if (value instanceof java.util.Calendar) {
+            return CALENDAR_VALUE;
+        } else if (value instanceof byte[]) {
+            return ARRAY_OVERHEAD + ((byte[]) value).length;
+        } else if (value instanceof Map) {
+            long size = MAP_OVERHEAD;
+            for (Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                size += MAP_ENTRY_OVERHEAD + estimate(e.getKey()) + estimate(e.getValue());
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            long size = MAP_OVERHEAD;
+            for (Object v : (Collection<?>) value) {
+                size += REFERENCE + estimate(v);
+            }
+            return size;
+        } else if (value.getClass().isArray()) {
+            int n = Array.getLength(value);
+            long size = ARRAY_OVERHEAD + n * REFERENCE;
+            if (!value.getClass().getComponentType().isPrimitive()) {
+                for (int i = 0; i < n; i++) {
+                    size += estimate(Array.get(value, i));
+                }
+            }
+            return size;
+        }
+        return DEFAULT_VALUE;
+    }
+
 }
@@ -73,4 +73,20 @@ public interface Configuration {
      */
     String[] getIndexColumnTypes();
 
+    /**
+     * @param cacheName
+     *            the name of a shared cache, normally a column family.
+     * @return the maximum estimated number of bytes the shared cache may hold.
+     */
+    long getCacheBudget(String cacheName);
+
+    /**
+     * @param mimeType
+     *            the mime type of a body, may be null.
+     * @return the content encoding bodies of the mime type are compressed with
+     *         when stored, gzip or deflate, or null if they are stored as they
+     *         are written.
+     */
+    String getBodyCompression(String mimeType);
+
 }
@@ -35,6 +35,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.Type1UUID;
+import org.sakaiproject.nakamura.lite.storage.spi.types.LazyRowMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -253,7 +254,9 @@ public class StorageClientUtils {
 
     /**
      * Converts to an Immutable map, with keys that are in the filter not
-     * transfered. Nested maps are also transfered.
+     * transfered. Nested maps are also transfered. A map with nothing to
+     * filter or modify that is already unmodifiable, including a lazily
+     * decoded {@link LazyRowMap}, is returned as it is.
      * 
      * @param <K> the type of the key
      * @param <V> the type of the value
@@ -266,7 +269,7 @@ public class StorageClientUtils {
     @SuppressWarnings("unchecked")
     public static <K, V> Map<K, V> getFilterMap(Map<K, V> source, Map<K, V> modified, Set<K> include, Set<K> exclude, boolean includingRemoveProperties ) {
        if ((modified == null || modified.size() == 0) && (include == null) && ( exclude == null || exclude.size() == 0)) {
-           if ( source instanceof ImmutableMap ) {
+           if ( source instanceof ImmutableMap || source instanceof LazyRowMap ) {
                return source;
            } else {
                return ImmutableMap.copyOf(source);
@@ -27,6 +27,18 @@ public class StorageConstants {
      */
     public static final String SORT = "_sort";
 
+    /**
+     * Page by continuation rather than by page number. Set to an empty string
+     * for the first page and to the continuation of the previous page, from
+     * {@link org.sakaiproject.nakamura.api.lite.util.ContinuableIterator}, for
+     * each page after. Each page seeks to the row after the last one of the
+     * previous page, so pages cost the same however deep they are. Results
+     * are ordered by the first property in {@link #SORT}, if any, and then by
+     * row, and rows without a value for the sort property are not returned.
+     * {@link #PAGE} is ignored.
+     */
+    public static final String CONTINUATION = "_continuation";
+
     /**
      * If present Raw Results will be returned as string values for each record.
      */
@@ -22,6 +22,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.accesscontrol.PropertyAcl;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -125,6 +126,25 @@ public interface AccessControlManager {
     boolean can(Authorizable authorizable, String objectType, String objectPath,
             Permission permission);
 
+    /**
+     * Check a permission for the current user on many objects at once, such as
+     * a page of search results or children. ACLs are loaded from storage
+     * together, and ACLs on parents shared by the objects are only compiled
+     * once.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to the objects
+     * @param permission
+     *            the permission (may be aggregated) to check.
+     * @return for each path, in the order of the collection, true if the
+     *         current user has the permission.
+     * @throws StorageClientException
+     */
+    boolean[] canAll(String objectType, Collection<String> objectPaths, Permission permission)
+            throws StorageClientException;
+
     /**
      * Get the aggregate permissions for the object for the current user.
      * 
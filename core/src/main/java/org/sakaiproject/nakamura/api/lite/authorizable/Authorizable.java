@@ -59,6 +59,12 @@ public class Authorizable {
      */
     public static final String MEMBERS_FIELD = "members";
 
+    /**
+     * The number of pages holding the members of a large group, in place of
+     * {@link #MEMBERS_FIELD}.
+     */
+    public static final String MEMBER_PAGES_FIELD = "memberPages";
+
     /**
      * The ID of the authorizable.
      */
@@ -395,6 +401,7 @@ public class Authorizable {
     public Iterator<Group> memberOf(final AuthorizableManager authorizableManager) {
         final List<String> memberIds = new ArrayList<String>();
         Collections.addAll(memberIds, getPrincipals());
+        final Set<String> seen = Sets.newHashSet(memberIds);
         return new PreemptiveIterator<Group>() {
 
             private int p;
@@ -410,7 +417,7 @@ public class Authorizable {
                         if (a instanceof Group) {
                             group = (Group) a;
                             for (String pid : a.getPrincipals()) {
-                                if (!memberIds.contains(pid)) {
+                                if (seen.add(pid)) {
                                     memberIds.add(pid);
                                 }
                             }
@@ -145,5 +145,15 @@ public interface AuthorizableManager {
      */
     void triggerRefreshAll() throws StorageClientException;
 
+    /**
+     * @param authorizableId
+     * @return the ids of all the groups the authorizable is a member of,
+     *         directly or through nested groups, excluding everyone.
+     * @throws AccessDeniedException
+     *             if the current user cant read the authorizable.
+     * @throws StorageClientException
+     */
+    String[] getEffectivePrincipals(String authorizableId) throws AccessDeniedException, StorageClientException;
+
 
 }
@@ -17,23 +17,31 @@
  */
 package org.sakaiproject.nakamura.api.lite.authorizable;
 
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.util.Iterables;
 import org.sakaiproject.nakamura.lite.authorizable.GroupInternal;
+import org.sakaiproject.nakamura.lite.authorizable.GroupMemberPages;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * A group has a list of members that is maintained in the group. This is
  * reflected as principals in each member, managed by the AuthorizableManager,
- * only updated on save.
+ * only updated on save. The members of large groups are held in pages outside
+ * the group and only loaded as needed, so {@link #getMemberIterator()} should be
+ * preferred to {@link #getMembers()}.
  * 
  * @author ieb
  * 
@@ -45,7 +53,12 @@ public class Group extends Authorizable {
      */
     public static final String EVERYONE = "everyone";
     public static final Group EVERYONE_GROUP = getEveryone();
+    /**
+     * The members, or null if the members are paged and have not been loaded.
+     */
     private Set<String> members;
+    private int memberPages;
+    private GroupMemberPages memberPageStore;
     private Set<String> membersAdded;
     private Set<String> membersRemoved;
     private boolean membersModified;
@@ -56,8 +69,7 @@ public class Group extends Authorizable {
 
     public Group(Map<String, Object> groupMap, Session session) throws StorageClientException, AccessDeniedException {
         super(groupMap, session);
-        this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+        initMembers();
         this.membersAdded = Sets.newHashSet();
         this.membersRemoved = Sets.newHashSet();
         membersModified = true;
@@ -87,7 +99,7 @@ public class Group extends Authorizable {
      */
     @Override
     public Map<String, Object> getPropertiesForUpdate() {
-        if (!readOnly && membersModified) {
+        if (!readOnly && membersModified && memberPages == 0) {
             modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
         }
         Map<String, Object> propertiesForUpdate = super.getPropertiesForUpdate();
@@ -100,7 +112,7 @@ public class Group extends Authorizable {
     @Override
     // TODO: Unit test
     public Map<String, Object> getSafeProperties() {
-        if (!readOnly && membersModified) {
+        if (!readOnly && membersModified && memberPages == 0) {
             modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
         }
         return super.getSafeProperties();
@@ -115,33 +127,117 @@ public class Group extends Authorizable {
         return !readOnly && (membersModified || super.isModified());
     }
 
+    /**
+     * @return all the members of the group. For a large group this loads every
+     *         page of members.
+     */
     public String[] getMembers() {
+        loadMembers();
         return members.toArray(new String[members.size()]);
     }
 
+    /**
+     * @return an iterator over the members of the group, including unsaved
+     *         changes. For a large group pages of members are loaded as the
+     *         iterator reaches them.
+     */
+    public Iterator<String> getMemberIterator() {
+        if (members != null) {
+            return ImmutableList.copyOf(members).iterator();
+        }
+        if (memberPageStore == null) {
+            loadMembers();
+            return ImmutableList.copyOf(members).iterator();
+        }
+        Set<String> changed = Sets.union(membersAdded, membersRemoved).immutableCopy();
+        return Iterators.concat(
+                Iterators.filter(memberPageStore.iterator(getId(), memberPages), Predicates.not(Predicates.in(changed))),
+                ImmutableList.copyOf(membersAdded).iterator());
+    }
+
+    /**
+     * @return the number of pages holding the members of this group, or 0 if
+     *         the members are held in the group.
+     */
+    public int getMemberPages() {
+        return memberPages;
+    }
+
+    /**
+     * @param memberPageStore
+     *            where the pages of members of a large group are loaded from.
+     */
+    protected void setMemberPageStore(GroupMemberPages memberPageStore) {
+        this.memberPageStore = memberPageStore;
+    }
+
+    private void initMembers() {
+        memberPages = StorageClientUtils.toInt(authorizableMap.get(MEMBER_PAGES_FIELD));
+        if (memberPages > 0) {
+            members = null;
+        } else {
+            members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split((String) authorizableMap.get(MEMBERS_FIELD),
+                    ';')));
+        }
+    }
+
+    private void loadMembers() {
+        if (members == null) {
+            Set<String> loaded = Sets.newLinkedHashSet();
+            if (memberPageStore == null) {
+                LOGGER.warn("Members of {} are paged, but there is nowhere to load them from ", getId());
+            } else {
+                Iterators.addAll(loaded, memberPageStore.iterator(getId(), memberPages));
+            }
+            loaded.removeAll(membersRemoved);
+            loaded.addAll(membersAdded);
+            members = loaded;
+        }
+    }
+
+    private boolean hasMember(String member) {
+        if (members != null) {
+            return members.contains(member);
+        }
+        if (membersAdded.contains(member)) {
+            return true;
+        }
+        if (membersRemoved.contains(member) || memberPageStore == null) {
+            return false;
+        }
+        try {
+            return memberPageStore.isMember(getId(), memberPages, member);
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to check membership of {} in {}: {} ", new Object[] { member, getId(), e.getMessage() });
+            return false;
+        }
+    }
+
     public void addMember(String member) {
-        if (!readOnly && !members.contains(member)) {
-            LOGGER.debug(" {} adding Member {} to {} ", new Object[] { this, member, members });
-            members.add(member);
+        if (!readOnly && !hasMember(member)) {
+            LOGGER.debug(" {} adding Member {} ", new Object[] { this, member });
+            if (members != null) {
+                members.add(member);
+            }
             membersAdded.add(member);
             membersRemoved.remove(member);
             membersModified = true;
         } else {
-            LOGGER.debug("{} Member {} already present in {} ", new Object[] { this, member,
-                    members });
+            LOGGER.debug("{} Member {} already present ", new Object[] { this, member });
         }
     }
 
     public void removeMember(String member) {
-        if (!readOnly && members.contains(member)) {
-            LOGGER.debug(" {} removing Member {} to {} ", new Object[] { this, member, members });
-            members.remove(member);
+        if (!readOnly && hasMember(member)) {
+            LOGGER.debug(" {} removing Member {} ", new Object[] { this, member });
+            if (members != null) {
+                members.remove(member);
+            }
             membersAdded.remove(member);
             membersRemoved.add(member);
             membersModified = true;
         } else {
-            LOGGER.debug("{} Member {} already not present in {} ", new Object[] { this, member,
-                    members });
+            LOGGER.debug("{} Member {} already not present ", new Object[] { this, member });
         }
     }
 
@@ -157,8 +253,7 @@ public class Group extends Authorizable {
         if (!readOnly) {
             super.reset(newMap);
             LOGGER.debug("{} reset ", new Object[] { this });
-            this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                    (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+            initMembers();
             membersAdded.clear();
             membersRemoved.clear();
             membersModified = false;
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.api.lite.content;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalTokenResolver;
+import org.sakaiproject.nakamura.api.lite.util.ContinuableIterator;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,7 +53,12 @@ public interface ContentManager {
      * Perform a search for content matching the given properties
      * 
      * @param searchProperties a Map of property names and values. All the properties must match to give a result
-     * @return an Iterable of Content items in no guaranteed order
+     * @return an Iterable of Content items in no guaranteed order. If the
+     *         properties include
+     *         {@link org.sakaiproject.nakamura.api.lite.StorageConstants#CONTINUATION}
+     *         the iterators are
+     *         {@link org.sakaiproject.nakamura.api.lite.util.ContinuableIterator}s
+     *         giving the continuation of the next page once iterated.
      * @throws StorageClientException
      * @throws AccessDeniedException
      */
@@ -67,6 +73,17 @@ public interface ContentManager {
      */
     int count(Map<String, Object> countSearch) throws StorageClientException;
 
+    /**
+     * Counts the maximum number of results a find operation could return for
+     * each value of a property, ignoring access control, as
+     * {@link #count(Map)}. Results without a value for the property are not
+     * counted.
+     * @param countSearch Map the same as the finder
+     * @param property an indexed property that is not an array.
+     * @return the maximum number of results a find could return, keyed by the value of the property.
+     */
+    Map<String, Long> countBy(Map<String, Object> countSearch, String property) throws StorageClientException;
+
     /**
      * Save the current version of the content object including metadata and
      * file bodies as a read only snapshot
@@ -145,7 +162,10 @@ public interface ContentManager {
      * 
      * @param path
      *            the path to the content object.
-     * @return an Input Stream ready to read the body from.
+     * @return an Input Stream ready to read the body from. Bodies stored in
+     *         files should be sent with
+     *         {@link org.sakaiproject.nakamura.api.lite.util.BodyStreams} so
+     *         they are not copied through the heap.
      * @throws StorageClientException
      *             if there was a problem with the operation.
      * @throws AccessDeniedException
@@ -206,6 +226,133 @@ public interface ContentManager {
     InputStream getInputStream(String path, String streamId) throws StorageClientException,
             AccessDeniedException, IOException;
 
+    /**
+     * Get a body as it is stored. Bodies of the mime types configured for
+     * compression are stored compressed, and
+     * {@link #getInputStream(String, String)} decompresses them; this does
+     * not, so that a compressed body can be sent as it is to a client that
+     * accepts its encoding, given by the
+     * {@link Content#BODY_CONTENT_ENCODING_FIELD} property of the stream.
+     * 
+     * @param path
+     *            the path to the content object.
+     * @param streamId
+     *            the name of the alternative stream, null for the body.
+     * @return an Input Stream ready to read the stored bytes from.
+     * @throws StorageClientException
+     *             if there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to read the body of the object at the
+     *             path.
+     * @throws IOException
+     *             if there was a problem creating the stream.
+     */
+    InputStream getRawInputStream(String path, String streamId) throws StorageClientException,
+            AccessDeniedException, IOException;
+
+    /**
+     * Begin an upload of a body that will arrive in chunks, possibly over
+     * several requests or sessions, so that a large upload can be resumed
+     * after a failure and its chunks sent in parallel. Chunks are stored as
+     * they arrive and become the body of the content item when the upload is
+     * committed.
+     * 
+     * @param path
+     *            the path to the content object.
+     * @param streamId
+     *            the name of the alternative stream, null for the body.
+     * @return the id of the upload.
+     * @throws StorageClientException
+     *             if there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the body of the object at the
+     *             path.
+     */
+    String beginUpload(String path, String streamId) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * Store a chunk of an upload. Chunks may be sent to any offset, in any
+     * order; the body is made of the chunks that follow on from each other
+     * from 0, taking the last chunk sent to each offset, which replaces those
+     * sent there before. Chunks that don't join the chain are kept until the
+     * upload is committed, cancelled or expires, then removed. If the stream
+     * fails the chunk is not stored and has to be sent again. An upload
+     * expires if it is not added to for a day.
+     * 
+     * @param uploadId
+     *            the id from {@link #beginUpload(String, String)}.
+     * @param offset
+     *            the position of the chunk in the body.
+     * @param in
+     *            the bytes of the chunk.
+     * @return the length received, as {@link #getUploadLength(String)}.
+     * @throws StorageClientException
+     *             if there is no such upload or there was a problem with the
+     *             operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the body of the object the
+     *             upload is for.
+     * @throws IOException
+     *             if there was a problem reading from the stream or writing to
+     *             the underlying store.
+     */
+    long appendUpload(String uploadId, long offset, InputStream in) throws StorageClientException,
+            AccessDeniedException, IOException;
+
+    /**
+     * @param uploadId
+     *            the id from {@link #beginUpload(String, String)}.
+     * @return the number of bytes received without a gap from the start of the
+     *         body, the offset to resume the upload from.
+     * @throws StorageClientException
+     *             if there is no such upload or there was a problem with the
+     *             operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the body of the object the
+     *             upload is for.
+     */
+    long getUploadLength(String uploadId) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * Write the chunks of an upload, in order, as the body of the content item
+     * and remove them. If this fails the upload is left as it was and may be
+     * committed again.
+     * 
+     * @param uploadId
+     *            the id from {@link #beginUpload(String, String)}.
+     * @param length
+     *            the length of the whole body, to check every chunk was
+     *            received.
+     * @return the size of the body after writing was completed.
+     * @throws StorageClientException
+     *             if there is no such upload, fewer than length bytes have
+     *             been received, or there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the body of the object the
+     *             upload is for.
+     * @throws IOException
+     *             if there was a problem reading or writing the underlying
+     *             store.
+     */
+    long commitUpload(String uploadId, long length) throws StorageClientException, AccessDeniedException,
+            IOException;
+
+    /**
+     * Abandon an upload and remove the chunks received.
+     * 
+     * @param uploadId
+     *            the id from {@link #beginUpload(String, String)}.
+     * @throws StorageClientException
+     *             if there is no such upload or there was a problem with the
+     *             operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the body of the object the
+     *             upload is for.
+     * @throws IOException
+     *             if there was a problem removing the chunks from the store.
+     */
+    void cancelUpload(String uploadId) throws StorageClientException, AccessDeniedException, IOException;
+
     /**
      * @param path
      * @return true if the path exists
@@ -343,6 +490,27 @@ public interface ContentManager {
      */
     Iterator<Content> listChildren(String path) throws StorageClientException;
 
+    /**
+     * Get a page of child content objects. Each page seeks past the last child
+     * of the previous page, as a find by
+     * {@link org.sakaiproject.nakamura.api.lite.StorageConstants#CONTINUATION}
+     * does, so deep pages of a large folder cost the same as the first.
+     * Children are in row order, not path order.
+     * 
+     * @param path
+     * @param continuation
+     *            an empty string for the first page, otherwise the
+     *            continuation of the previous page.
+     * @param items
+     *            the most children in a page. Children the user can't read
+     *            are left out, so a page may have fewer.
+     * @return the page, giving the continuation of the next page once
+     *         iterated, null after the last page.
+     * @throws StorageClientException
+     */
+    ContinuableIterator<Content> listChildren(String path, String continuation, long items)
+            throws StorageClientException;
+
     /**
      * @param path the path of the content node
      * @param streamId the stream id, null for the default stream
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Utility class to send the bodies returned by
+ * {@link org.sakaiproject.nakamura.api.lite.content.ContentManager#getInputStream(String, String)}
+ * . Bodies stored in files are sent from their {@link FileChannel} with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, reading
+ * at the requested position rather than skipping to it, which lets the
+ * operating system move the bytes where the target allows. Other bodies are
+ * skipped and copied through a buffer. {@link #getRange(String, long)} reads
+ * the single byte range a request asks for.
+ */
+public class BodyStreams {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private BodyStreams() {
+    }
+
+    /**
+     * @param in
+     *            a body.
+     * @return the channel of the file the body is read from, or null if it is
+     *         not read from a file.
+     */
+    public static FileChannel getChannel(InputStream in) {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
+        }
+        return null;
+    }
+
+    /**
+     * @param in
+     *            a body.
+     * @return the length of the body, or -1 if it is not known without reading
+     *         it.
+     * @throws IOException
+     */
+    public static long length(InputStream in) throws IOException {
+        FileChannel channel = getChannel(in);
+        if (channel != null) {
+            return channel.size();
+        }
+        return -1;
+    }
+
+    /**
+     * @param header
+     *            the Range header of a request.
+     * @param length
+     *            the length of the body.
+     * @return the first and last byte of a single byte range, an empty array
+     *         if the range can't be satisfied, or null if the whole body should
+     *         be sent.
+     */
+    public static long[] getRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end = length - 1;
+            if (first.length() == 0) {
+                // the last n bytes.
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+            } else {
+                start = Long.parseLong(first);
+                if (last.length() > 0) {
+                    end = Math.min(end, Long.parseLong(last));
+                    if (end < start && start < length) {
+                        return null;
+                    }
+                }
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Send all of a body.
+     *
+     * @param in
+     * @param out
+     * @return the number of bytes sent.
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return copyRange(in, 0, -1, out);
+    }
+
+    /**
+     * Send part of a body, the stream is left open.
+     *
+     * @param in
+     *            the body, positioned at its start.
+     * @param position
+     *            the first byte to send.
+     * @param count
+     *            the most bytes to send, -1 for all to the end of the body.
+     * @param out
+     * @return the number of bytes sent, less than count if the body ends
+     *         first.
+     * @throws IOException
+     */
+    public static long copyRange(InputStream in, long position, long count, OutputStream out) throws IOException {
+        FileChannel channel = getChannel(in);
+        if (channel != null) {
+            long end = channel.size();
+            if (count >= 0) {
+                end = Math.min(end, position + count);
+            }
+            WritableByteChannel target = Channels.newChannel(out);
+            long p = position;
+            while (p < end) {
+                long n = channel.transferTo(p, end - p, target);
+                if (n <= 0) {
+                    break;
+                }
+                p += n;
+            }
+            return Math.max(0, p - position);
+        }
+        long skipped = 0;
+        while (skipped < position) {
+            long n = in.skip(position - skipped);
+            if (n <= 0) {
+                // skip may stop short of the end, read to be certain.
+                if (in.read() < 0) {
+                    return 0;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long sent = 0;
+        while (count < 0 || sent < count) {
+            int toRead = count < 0 ? buffer.length : (int) Math.min(buffer.length, count - sent);
+            int nr = in.read(buffer, 0, toRead);
+            if (nr < 0) {
+                break;
+            }
+            out.write(buffer, 0, nr);
+            sent += nr;
+        }
+        return sent;
+    }
+}
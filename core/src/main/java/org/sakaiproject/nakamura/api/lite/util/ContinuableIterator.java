@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite.util;
+
+import java.util.Iterator;
+
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+
+/**
+ * An iterator over a page of results found with
+ * {@link StorageConstants#CONTINUATION} that can say where the next page
+ * starts.
+ *
+ * @param <T>
+ */
+public interface ContinuableIterator<T> extends Iterator<T> {
+
+    /**
+     * @return the continuation to find the next page with, once this page has
+     *         been read, or null if this page was the last. Storage that can't
+     *         page by continuation returns all the results in one page.
+     */
+    String getContinuation();
+}
@@ -0,0 +1,13 @@
+package org.sakaiproject.nakamura.api.lite.util;
+
+/**
+ * Implemented by objects that know their approximate size in memory, so that
+ * caches can bound themselves by size rather than by number of entries.
+ */
+public interface Weighted {
+
+    /**
+     * @return the approximate number of bytes of heap used by the object.
+     */
+    long getWeight();
+}
@@ -0,0 +1,96 @@
+package org.sakaiproject.nakamura.lite;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * In memory caches bounded by the estimated size of the rows they hold rather
+ * than by the number of rows, so a few very large rows can't push out many
+ * small ones. Each cache gets the byte budget given by
+ * {@link Configuration#getCacheBudget(String)} and, if a
+ * {@link StatsServiceFactory} is given, is registered with it so its hits,
+ * misses and evictions are reported.
+ * <p>
+ * The caches are local to the server, so the component only starts once it
+ * has been configured, and pools with a mandatory StorageCacheManager
+ * reference can not bind it before a cluster invalidated StorageCacheManager,
+ * such as the ehcache one, registers. When configured it is still ranked below
+ * those, unless its ranking is configured higher.
+ */
+@Component(immediate = true, metatype = true, policy = ConfigurationPolicy.REQUIRE)
+@Service(value = StorageCacheManager.class)
+@Property(name = "service.ranking", intValue = -100)
+public class BoundedCacheManager implements StorageCacheManager {
+
+    private static final ConcurrentLRUMap.Weigher<String, CacheHolder> CACHE_HOLDER_WEIGHER = new ConcurrentLRUMap.Weigher<String, CacheHolder>() {
+        public long weigh(String key, CacheHolder value) {
+            long weight = 40 + 2L * key.length();
+            if (value != null) {
+                weight += value.getWeight();
+            }
+            return weight;
+        }
+    };
+
+    @Reference
+    protected Configuration configuration;
+
+    @Reference
+    protected StatsServiceFactory statsServiceFactory;
+
+    private ConcurrentMap<String, Map<String, CacheHolder>> caches = Maps.newConcurrentMap();
+
+    public BoundedCacheManager() {
+    }
+
+    public BoundedCacheManager(Configuration configuration, StatsServiceFactory statsServiceFactory) {
+        this.configuration = configuration;
+        this.statsServiceFactory = statsServiceFactory;
+    }
+
+    @Override
+    public Map<String, CacheHolder> getAccessControlCache() {
+        return getCache(configuration.getAclColumnFamily());
+    }
+
+    @Override
+    public Map<String, CacheHolder> getAuthorizableCache() {
+        return getCache(configuration.getAuthorizableColumnFamily());
+    }
+
+    @Override
+    public Map<String, CacheHolder> getContentCache() {
+        return getCache(configuration.getContentColumnFamily());
+    }
+
+    @Override
+    public Map<String, CacheHolder> getCache(String cacheName) {
+        Map<String, CacheHolder> cache = caches.get(cacheName);
+        if (cache == null) {
+            ConcurrentLRUMap<String, CacheHolder> newCache = new ConcurrentLRUMap<String, CacheHolder>(
+                    configuration.getCacheBudget(cacheName), CACHE_HOLDER_WEIGHER);
+            cache = caches.putIfAbsent(cacheName, newCache);
+            if (cache == null) {
+                cache = newCache;
+                if (statsServiceFactory != null) {
+                    newCache.register(statsServiceFactory, cacheName);
+                }
+            }
+        }
+        return cache;
+    }
+
+}
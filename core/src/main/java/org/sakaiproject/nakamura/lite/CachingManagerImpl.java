@@ -28,8 +28,16 @@ import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Maps;
+
 import java.security.SecureRandom;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Extend this class to add caching to a Manager class.
@@ -42,6 +50,17 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
     private long managerId;
     private static SecureRandom secureRandom = new SecureRandom(); // need to assume that the secure random will be reasonably quick to start up
     protected StatsService statsService;
+    /**
+     * Loads from storage currently in progress, shared by all managers so that
+     * concurrent misses on the same row in the same cache only go to storage
+     * once.
+     */
+    private static final ConcurrentMap<InFlightKey, InFlightLoad> inFlight = new ConcurrentHashMap<InFlightKey, InFlightLoad>();
+    /**
+     * The longest a reader will wait for another thread loading the same row
+     * before loading it itself.
+     */
+    private static final long IN_FLIGHT_WAIT = 10000L;
 
     /**
      * Create a new {@link CachingManagerImpl}
@@ -81,25 +100,145 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
      */
     protected Map<String, Object> getCached(String keySpace, String columnFamily, String key) throws StorageClientException {
         Map<String, Object> m = null;
+        Map<String, Object> stale = null;
         String cacheKey = getCacheKey(keySpace, columnFamily, key);
 
         CacheHolder cacheHolder = getFromCacheInternal(cacheKey);
         if (cacheHolder != null) {
             m = cacheHolder.get();
             if (m != null) {
-                LOGGER.debug("Cache Hit {} {} {} ", new Object[] { cacheKey, cacheHolder, m });
+                if (!cacheHolder.isStale()) {
+                    LOGGER.debug("Cache Hit {} {} {} ", new Object[] { cacheKey, cacheHolder, m });
+                    return m;
+                }
+                stale = m;
             }
         }
-        if (m == null) {
+        if (sharedCache == null) {
+            return client.get(keySpace, columnFamily, key);
+        }
+        // only one thread loads a missing row, others wait for it, or if the
+        // row was marked stale, carry on with the stale copy.
+        InFlightKey inFlightKey = new InFlightKey(sharedCache, cacheKey);
+        InFlightLoad load = new InFlightLoad();
+        InFlightLoad leader = inFlight.putIfAbsent(inFlightKey, load);
+        if (leader != null) {
+            long t = System.currentTimeMillis();
+            if (stale != null) {
+                // a write removes the stale copy from the cache before
+                // superseding the load, so this is never older than a write
+                // that completed before the read started.
+                LOGGER.debug("Cache Stale, Reloading elsewhere {} ", cacheKey);
+                recordStat(columnFamily, "stale-get", t);
+                return stale;
+            }
+            if (leader.await()) {
+                LOGGER.debug("Cache Miss, Coalesced {} ", cacheKey);
+                recordStat(columnFamily, "coalesced-get", t);
+                return leader.get();
+            }
+            // the other load failed, is taking too long, or was overtaken by a
+            // write, do it here.
+            m = client.get(keySpace, columnFamily, key);
+            putToCacheInternal(cacheKey, new CacheHolder(m), true);
+            return m;
+        }
+        try {
             m = client.get(keySpace, columnFamily, key);
             if (m != null) {
                 LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
             }
-            putToCacheInternal(cacheKey, new CacheHolder(m), true);
+            load.set(cacheKey, m);
+        } finally {
+            inFlight.remove(inFlightKey, load);
+            load.done();
         }
         return m;
     }
 
+    private void recordStat(String columnFamily, String type, long t) {
+        if (statsService != null) {
+            statsService.storageOp(columnFamily, type, System.currentTimeMillis() - t);
+        }
+    }
+
+    /**
+     * Mark an object in the cache as stale. The next reader reloads it from
+     * storage, while readers arriving during that reload are given the stale
+     * copy rather than waiting for it. Only for objects where a slightly old
+     * copy is acceptable; writes always remove the object from the cache.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @throws StorageClientException
+     */
+    protected void markStaleCached(String keySpace, String columnFamily, String key) throws StorageClientException {
+        if (sharedCache != null) {
+            CacheHolder cacheHolder = getFromCacheInternal(getCacheKey(keySpace, columnFamily, key));
+            if (cacheHolder != null) {
+                cacheHolder.markStale();
+            }
+        }
+    }
+
+    /**
+     * Load a number of objects into the cache in as few storage operations as
+     * possible, so that following calls to
+     * {@link #getCached(String, String, String)} for those objects don't each
+     * go to storage. Objects already in the cache are not reloaded.
+     * 
+     * @param keySpace
+     *            the key space we're operating in.
+     * @param columnFamily
+     *            the column family for the objects
+     * @param keys
+     *            the object keys
+     * @throws StorageClientException
+     */
+    protected void prefetchCached(String keySpace, String columnFamily, Collection<String> keys) throws StorageClientException {
+        if (sharedCache == null) {
+            return;
+        }
+        Map<String, String> missing = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            if (getFromCacheInternal(cacheKey) == null) {
+                missing.put(key, cacheKey);
+            }
+        }
+        if (missing.size() > 1) {
+            // each row is loaded as getCached loads it, so readers of the row
+            // wait for the prefetch, and a write during the prefetch stops the
+            // row it read from being cached. Rows another thread is already
+            // loading are left to it.
+            Map<String, InFlightLoad> loads = Maps.newLinkedHashMap();
+            for (Entry<String, String> e : missing.entrySet()) {
+                InFlightLoad load = new InFlightLoad();
+                if (inFlight.putIfAbsent(new InFlightKey(sharedCache, e.getValue()), load) == null) {
+                    loads.put(e.getKey(), load);
+                }
+            }
+            try {
+                if (loads.size() > 0) {
+                    Map<String, Map<String, Object>> rows = client.getMany(keySpace, columnFamily, loads.keySet());
+                    for (Entry<String, InFlightLoad> e : loads.entrySet()) {
+                        Map<String, Object> m = rows.get(e.getKey());
+                        if (m != null) {
+                            e.getValue().set(missing.get(e.getKey()), m);
+                        }
+                    }
+                    LOGGER.debug("Prefetched {} ", loads.keySet());
+                }
+            } finally {
+                for (Entry<String, InFlightLoad> e : loads.entrySet()) {
+                    inFlight.remove(new InFlightKey(sharedCache, missing.get(e.getKey())), e.getValue());
+                    e.getValue().done();
+                }
+            }
+        }
+    }
+
     public void putToCache(String cacheKey, CacheHolder cacheHolder) {
         putToCache(cacheKey, cacheHolder, false);
     }
@@ -112,7 +251,9 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
 
     private void putToCacheInternal(String cacheKey, CacheHolder cacheHolder, boolean respectDeletes) {
         if (sharedCache != null) {
-            if (respectDeletes) {
+            // checked with containsKey first, so that a put after a miss is
+            // not counted as a second miss.
+            if (respectDeletes && sharedCache.containsKey(cacheKey)) {
                 CacheHolder ch = sharedCache.get(cacheKey);
                 if (ch != null && ch.get() == null) {
                     // item is deleted, dont update it
@@ -131,7 +272,8 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
     }
 
     private CacheHolder getFromCacheInternal(String cacheKey) {
-        if (sharedCache != null && sharedCache.containsKey(cacheKey)) {
+        // a single get, so that the cache counts the miss when there is one.
+        if (sharedCache != null) {
             return sharedCache.get(cacheKey);
         }
         return null;
@@ -199,7 +341,7 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
             }
         }
         client.remove(keySpace, columnFamily, key);
-
+        supersedeLoad(keySpace, columnFamily, key);
     }
 
     /**
@@ -216,6 +358,27 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
      */
     protected void putCached(String keySpace, String columnFamily, String key, Map<String, Object> encodedProperties,
             boolean probablyNew) throws StorageClientException {
+        putCached(keySpace, columnFamily, key, encodedProperties, probablyNew, null);
+    }
+
+    /**
+     * Put an object in the cache, where the caller already holds the full
+     * current state of the object, normally from {@link #getCached(String, String, String)}.
+     * The storage client may use that state to avoid re-reading the row.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @param encodedProperties
+     *            the object to be stored
+     * @param probablyNew
+     *            whether or not this object is new.
+     * @param currentProperties
+     *            the current state of the object, or null if not known.
+     * @throws StorageClientException
+     */
+    protected void putCached(String keySpace, String columnFamily, String key, Map<String, Object> encodedProperties,
+            boolean probablyNew, Map<String, Object> currentProperties) throws StorageClientException {
         String cacheKey = null;
         if (sharedCache != null) {
             cacheKey = getCacheKey(keySpace, columnFamily, key);
@@ -261,12 +424,107 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
             }
         }
         LOGGER.debug("Saving {} {} {} {} ", new Object[] { keySpace, columnFamily, key, encodedProperties });
-        client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew);
+        client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew, currentProperties);
         if (sharedCache != null) {
+            // a load that started before the insert must not cache what it
+            // read, and must be superseded before the key is removed so that
+            // it can not cache it afterwards.
+            supersedeLoad(keySpace, columnFamily, key);
             // if we just added a value in, remove the key so that any stale
             // state (including a previously deleted object is removed)
             sharedCache.remove(cacheKey);
         }
     }
 
+    /**
+     * Stop a load of the object in progress from caching what it read, and
+     * readers from joining it, since it may have read the object before a
+     * write.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @throws StorageClientException
+     */
+    private void supersedeLoad(String keySpace, String columnFamily, String key) throws StorageClientException {
+        if (sharedCache != null) {
+            InFlightLoad load = inFlight.remove(new InFlightKey(sharedCache, getCacheKey(keySpace, columnFamily, key)));
+            if (load != null) {
+                load.supersede();
+            }
+        }
+    }
+
+    /**
+     * Identifies a row being loaded into a particular cache.
+     */
+    private static final class InFlightKey {
+        private final Map<String, CacheHolder> cache;
+        private final String cacheKey;
+
+        InFlightKey(Map<String, CacheHolder> cache, String cacheKey) {
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(cache) * 31 + cacheKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey other = (InFlightKey) obj;
+            return cache == other.cache && cacheKey.equals(other.cacheKey);
+        }
+    }
+
+    /**
+     * A load from storage that other readers can wait on.
+     */
+    private final class InFlightLoad {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean loaded;
+        private volatile Map<String, Object> result;
+        private boolean superseded;
+
+        /**
+         * Cache the result, unless a write has superseded the load.
+         */
+        synchronized void set(String cacheKey, Map<String, Object> result) {
+            if (!superseded) {
+                putToCacheInternal(cacheKey, new CacheHolder(result), true);
+                this.result = result;
+                this.loaded = true;
+            }
+        }
+
+        synchronized void supersede() {
+            superseded = true;
+        }
+
+        void done() {
+            latch.countDown();
+        }
+
+        /**
+         * @return true if the load completed successfully within the wait time.
+         */
+        boolean await() {
+            try {
+                return latch.await(IN_FLIGHT_WAIT, TimeUnit.MILLISECONDS) && loaded;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        Map<String, Object> get() {
+            return result;
+        }
+    }
+
 }
@@ -32,10 +32,12 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.content.BodyCompression;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Maps;
 
 @Component(immediate = true, metatype = true)
@@ -67,6 +69,25 @@ public class ConfigurationImpl implements Configuration {
     protected static final String INDEX_COLUMN_TYPES = "index-column-types";
 
 
+    protected static final String DEFAULT_CACHE_BUDGETS = "ac=8388608,au=16777216,cn=67108864";
+
+    /**
+     * Byte budgets for shared caches as name=bytes pairs, caches not listed get
+     * DEFAULT_CACHE_BUDGET.
+     */
+    @Property(value=DEFAULT_CACHE_BUDGETS)
+    protected static final String CACHE_BUDGETS = "cache-budgets";
+
+    private static final long DEFAULT_CACHE_BUDGET = 16777216L;
+
+    /**
+     * Mime types whose bodies are compressed when stored, as
+     * mimetype=encoding pairs where the encoding is gzip or deflate, and
+     * type/* matches every subtype not listed. None by default.
+     */
+    @Property(value="")
+    protected static final String BODY_COMPRESSION = "body-compression";
+
     private static final String SHAREDCONFIGPATH = "org/sakaiproject/nakamura/lite/shared.properties";
 
     protected static final String SHAREDCONFIGPROPERTY = "sparseconfig";
@@ -81,6 +102,8 @@ public class ConfigurationImpl implements Configuration {
     private String[] indexColumnNames;
     private Map<String, String> sharedProperties;
     private String[] indexColumnTypes;
+    private Map<String, Long> cacheBudgets;
+    private Map<String, String> bodyCompression;
 
     @SuppressWarnings("unchecked")
     @Activate
@@ -121,6 +144,28 @@ public class ConfigurationImpl implements Configuration {
         indexColumnNames = StringUtils.split(getProperty(INDEX_COLUMN_NAMES,DEFAULT_INDEX_COLUMN_NAMES, sharedProperties, properties),',');
         LOGGER.info("Using Configuration for Index Column Names as              {}", Arrays.toString(indexColumnNames));
         indexColumnTypes = StringUtils.split(getProperty(INDEX_COLUMN_TYPES,DEFAULT_INDEX_COLUMN_TYPES, sharedProperties, properties),',');
+        Builder<String, Long> budgets = ImmutableMap.builder();
+        for (String budget : StringUtils.split(getProperty(CACHE_BUDGETS, DEFAULT_CACHE_BUDGETS, sharedProperties, properties), ',')) {
+            String[] nv = StringUtils.split(budget, '=');
+            if (nv.length == 2) {
+                budgets.put(nv[0].trim(), Long.parseLong(nv[1].trim()));
+            } else {
+                LOGGER.warn("Ignoring cache budget {}, expected name=bytes ", budget);
+            }
+        }
+        cacheBudgets = budgets.build();
+        LOGGER.info("Using Configuration for Cache Budgets as                   {}", cacheBudgets);
+        Map<String, String> compression = Maps.newHashMap();
+        for (String mimeType : StringUtils.split(getProperty(BODY_COMPRESSION, "", sharedProperties, properties), ',')) {
+            String[] nv = StringUtils.split(mimeType, '=');
+            if (nv.length == 2 && BodyCompression.isSupported(nv[1].trim())) {
+                compression.put(nv[0].trim().toLowerCase(), nv[1].trim());
+            } else {
+                LOGGER.warn("Ignoring body compression {}, expected mimetype=gzip or mimetype=deflate ", mimeType);
+            }
+        }
+        bodyCompression = ImmutableMap.copyOf(compression);
+        LOGGER.info("Using Configuration for Body Compression as                {}", bodyCompression);
 
                 
 
@@ -175,4 +220,24 @@ public class ConfigurationImpl implements Configuration {
         return indexColumnTypes;
     }
 
+    public long getCacheBudget(String cacheName) {
+        Long budget = cacheBudgets.get(cacheName);
+        if (budget == null) {
+            return DEFAULT_CACHE_BUDGET;
+        }
+        return budget;
+    }
+
+    public String getBodyCompression(String mimeType) {
+        if (mimeType == null || bodyCompression.isEmpty()) {
+            return null;
+        }
+        String type = StringUtils.substringBefore(mimeType, ";").trim().toLowerCase();
+        String encoding = bodyCompression.get(type);
+        if (encoding == null) {
+            encoding = bodyCompression.get(StringUtils.substringBefore(type, "/") + "/*");
+        }
+        return encoding;
+    }
+
 }
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.lite;
 
 import java.util.Map;
+import java.util.Timer;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -36,7 +37,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.content.UploadExpiry;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
 import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
@@ -65,6 +68,16 @@ public class RepositoryImpl implements Repository {
     @Reference
     protected StatsServiceFactory stats;
 
+    /**
+     * Hits and misses of the compiled permissions shared by all sessions.
+     */
+    private CompiledPermissionCache.Statistics compiledPermissionStatistics = new CompiledPermissionCache.Statistics();
+
+    /**
+     * Runs the removal of expired uploads.
+     */
+    private Timer timer;
+
     public RepositoryImpl() {
     }
 
@@ -78,6 +91,7 @@ public class RepositoryImpl implements Repository {
 
     @Activate
     public void activate(Map<String, Object> properties) throws ClientPoolException, StorageClientException, AccessDeniedException {
+        stats.registerCache(CompiledPermissionCache.CACHE_NAME, compiledPermissionStatistics);
         StorageClient client = null;
         try {
             client = clientPool.getClient();
@@ -90,10 +104,16 @@ public class RepositoryImpl implements Repository {
                 LOGGER.error("Failed to actvate repository, probably failed to create default users");
             }
         }
+        timer = new Timer("Upload Expiry", true);
+        timer.schedule(new UploadExpiry(this), UploadExpiry.INTERVAL, UploadExpiry.INTERVAL);
     }
 
     @Deactivate
     public void deactivate(Map<String, Object> properties) throws ClientPoolException {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
     }
 
     public Session login(String username, String password) throws ClientPoolException, StorageClientException,
@@ -132,7 +152,7 @@ public class RepositoryImpl implements Repository {
                 throw new StorageClientException("User " + username + " cant login with password");
             }
             Session session = new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(),
-                    storeListener, principalValidatorResolver, sessionStatsService);
+                    storeListener, principalValidatorResolver, sessionStatsService, compiledPermissionStatistics);
             sessionStatsService.sessionLogin();
             return session;
         } catch (ClientPoolException e) {
@@ -175,7 +195,7 @@ public class RepositoryImpl implements Repository {
                 throw new StorageClientException("User " + username + " does not exist, cant login administratively as this user");
             }
             Session session = new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(),
-                    storeListener, principalValidatorResolver, sessionStatsService);
+                    storeListener, principalValidatorResolver, sessionStatsService, compiledPermissionStatistics);
             sessionStatsService.sessionLogin();
             return session;
         } catch (ClientPoolException e) {
@@ -211,7 +231,7 @@ public class RepositoryImpl implements Repository {
                 throw new StorageClientException("User " + username + " does not exist, cant login administratively as this user");
             }
             Session session = new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(),
-                    storeListener, principalValidatorResolver, sessionStatsService);
+                    storeListener, principalValidatorResolver, sessionStatsService, compiledPermissionStatistics);
             sessionStatsService.sessionLogin();
             return session;
         } catch (ClientPoolException e) {
@@ -33,8 +33,10 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Authenticator;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.authorizable.PrincipalClosureIndex;
 import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
 import org.sakaiproject.nakamura.lite.lock.LockManagerImpl;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -65,7 +67,8 @@ public class SessionImpl implements Session {
 
     public SessionImpl(Repository repository, User currentUser, StorageClient client, Configuration configuration,
             StorageCacheManager storageCacheManager, StoreListener storeListener,
-            PrincipalValidatorResolver principalValidatorResolver, StatsService statsService) throws ClientPoolException,
+            PrincipalValidatorResolver principalValidatorResolver, StatsService statsService,
+            CompiledPermissionCache.Statistics compiledPermissionStatistics) throws ClientPoolException,
             StorageClientException, AccessDeniedException {
         this.statsService = statsService;
         this.currentUser = currentUser;
@@ -83,9 +86,12 @@ public class SessionImpl implements Session {
         }
         accessControlManager = new AccessControlManagerImpl(client, currentUser, configuration,
                 getCache(configuration.getAclColumnFamily()), storeListener, principalValidatorResolver, statsService);
+        accessControlManager.setCompiledPermissionCache(getCache(CompiledPermissionCache.CACHE_NAME),
+                compiledPermissionStatistics);
         Map<String, CacheHolder> authorizableCache = getCache(configuration.getAuthorizableColumnFamily());
         authorizableManager = new AuthorizableManagerImpl(currentUser, this, client, configuration, accessControlManager,
                 authorizableCache, storeListener, statsService);
+        authorizableManager.setPrincipalClosureCache(getCache(PrincipalClosureIndex.CACHE_NAME));
 
         contentManager = new ContentManagerImpl(client, accessControlManager, configuration,
                 getCache(configuration.getContentColumnFamily()), storeListener, statsService);
@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.lite.accesscontrol;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -82,6 +85,9 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
     private Map<String, String[]> principalCache = new ConcurrentHashMap<String, String[]>();
     private ThreadLocal<String> principalRecursionLock = new ThreadLocal<String>();
     private ThreadBoundStackReferenceCounter compilingPermissions = new ThreadBoundStackReferenceCounter();
+    private CompiledPermissionCache compiledPermissionCache;
+    private Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+    private Map<String, CompiledAcl.PrincipalSet> principalSets = new ConcurrentHashMap<String, CompiledAcl.PrincipalSet>();
 
     public AccessControlManagerImpl(StorageClient client, User currentUser, Configuration config,
             Map<String, CacheHolder> sharedCache, StoreListener storeListener,
@@ -303,6 +309,10 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             for (String k : keys) {
                 cache.remove(k);
             }
+            // and the compiled cache shared with other sessions.
+            if (compiledPermissionCache != null) {
+                compiledPermissionCache.invalidate(key);
+            }
         } finally {
             statsService.apiCall(AccessControlManagerImpl.class.getName(), "setAcl", System.currentTimeMillis() - t);
         }
@@ -358,10 +368,75 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         }
     }
 
+    public boolean[] canAll(String objectType, Collection<String> objectPaths, Permission permission)
+            throws StorageClientException {
+        long t = System.currentTimeMillis();
+        try {
+            boolean[] can = new boolean[objectPaths.size()];
+            if (user.isAdmin() || compilingPermissions.isSet()) {
+                Arrays.fill(can, true);
+                return can;
+            }
+            prefetchAcls(objectType, objectPaths);
+            int i = 0;
+            for (String objectPath : objectPaths) {
+                // users can always operate on their own user object.
+                if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
+                    can[i] = true;
+                } else {
+                    int[] privileges = compilePermission(user, objectType, objectPath, 0);
+                    can[i] = (permission.getPermission() & privileges[0]) == permission.getPermission();
+                }
+                i++;
+            }
+            return can;
+        } finally {
+            statsService.apiCall(AccessControlManagerImpl.class.getName(), "canAll", System.currentTimeMillis() - t);
+        }
+    }
+
+    /**
+     * Load the ACLs of the objects and their parents that have not already
+     * been compiled in this session, in one read.
+     */
+    private void prefetchAcls(String objectType, Collection<String> objectPaths) throws StorageClientException {
+        Set<String> keys = Sets.newLinkedHashSet();
+        for (String objectPath : objectPaths) {
+            String path = objectPath;
+            // the same depth limit as compilePermission
+            for (int depth = 0; depth <= 20; depth++) {
+                String key = getAclKey(objectType, path);
+                if (cache.containsKey(key) || !keys.add(key) || StorageClientUtils.isRoot(path)) {
+                    // the parents are compiled or already listed.
+                    break;
+                }
+                path = StorageClientUtils.getParentObjectPath(path);
+            }
+        }
+        prefetchCached(keySpace, aclColumnFamily, keys);
+    }
+
     private String getAclKey(String objectType, String objectPath) {
         return objectType + ";" + objectPath;
     }
 
+    /**
+     * @return the ACL key of the object followed by those of its parents, as
+     *         far as compilePermission looks.
+     */
+    private List<String> getAclKeys(String objectType, String objectPath) {
+        List<String> keys = Lists.newArrayList();
+        String path = objectPath;
+        for (int depth = 0; depth <= 20; depth++) {
+            keys.add(getAclKey(objectType, path));
+            if (StorageClientUtils.isRoot(path)) {
+                break;
+            }
+            path = StorageClientUtils.getParentObjectPath(path);
+        }
+        return keys;
+    }
+
     public void setRequestPrincipalResolver(PrincipalTokenResolver principalTokenResolver) {
         this.principalTokenResolver = principalTokenResolver;
     }
@@ -382,6 +457,21 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             // we need to allow the permissions compile to bypass access control
             // as it needs to see everything.
             compilingPermissions.inc();
+            // permissions compiled from dynamic principals depend on the
+            // request, so are never shared.
+            String fingerprint = null;
+            String version = null;
+            if (compiledPermissionCache != null && principalTokenResolver == null) {
+                fingerprint = getFingerprint(authorizable);
+                version = compiledPermissionCache.version(getAclKeys(objectType, objectPath));
+                int[] compiled = compiledPermissionCache.get(fingerprint, key, version);
+                if (compiled != null) {
+                    if (user.getId().equals(authorizable.getId())) {
+                        cache.put(key, compiled);
+                    }
+                    return compiled;
+                }
+            }
             Map<String, Object> acl = getCached(keySpace, aclColumnFamily, key);
             LOGGER.debug("ACL on {} is {} ", key, acl);
 
@@ -389,18 +479,17 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             int denies = 0;
             if (acl != null) {
 
-                {
-                    String principal = authorizable.getId();
-                    if (principal.startsWith("_")) {
-                        throw new StorageClientException("Princials may not start with _ ");
-                    }
-                    int tg = toInt(acl.get(principal + AclModification.GRANTED_MARKER));
-                    int td = toInt(acl.get(principal + AclModification.DENIED_MARKER));
-                    grants = grants | tg;
-                    denies = denies | td;
-                    LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}", new Object[] { principal, tg, td, grants, denies });
+                /*
+                 * The authorizable and its static principals, against the
+                 * compiled ACL.
+                 */
+                CompiledAcl compiledAcl = CompiledAcl.get(acl);
+                CompiledAcl.PrincipalSet principalSet = getPrincipalSet(authorizable);
+                grants = compiledAcl.getGranted(principalSet);
+                denies = compiledAcl.getDenied(principalSet);
+                LOGGER.debug("Added Permissions for {} and principals => g{} d{}", new Object[] { authorizable.getId(),
+                        grants, denies });
 
-                }
                 /*
                  * Deal with any proxy principals, these override groups
                  */
@@ -457,18 +546,6 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
                 } else {
                     LOGGER.debug("No principalToken Resolver");
                 }
-                // then deal with static principals
-                for (String principal : getPrincipals(authorizable)) {
-                    if (principal.startsWith("_")) {
-                        throw new StorageClientException("Princials may not start with _ ");
-                    }
-                    int tg = toInt(acl.get(principal + AclModification.GRANTED_MARKER));
-                    int td = toInt(acl.get(principal + AclModification.DENIED_MARKER));
-                    grants = grants | tg;
-                    denies = denies | td;
-                    LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}", new Object[] { principal, tg, td, grants, denies });
-                }
-
                 // Everyone must be the last principal to be applied
                 if (!User.ANON_USER.equals(authorizable.getId())) {
                     // all users except anon are in the group everyone, by
@@ -476,8 +553,8 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
                     // but only if not already denied or granted by a more
                     // specific
                     // permission.
-                    int tg = (toInt(acl.get(Group.EVERYONE + AclModification.GRANTED_MARKER)) & ~denies);
-                    int td = (toInt(acl.get(Group.EVERYONE + AclModification.DENIED_MARKER)) & ~grants);
+                    int tg = (compiledAcl.getEveryoneGranted() & ~denies);
+                    int td = (compiledAcl.getEveryoneDenied() & ~grants);
                     grants = grants | tg;
                     denies = denies | td;
                     LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}", new Object[] { Group.EVERYONE, tg, td, grants,
@@ -528,10 +605,14 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
                 /*
                  * Keep a cached copy
                  */
+                int[] compiled = new int[] { granted, denied };
                 if (user.getId().equals(authorizable.getId())) {
-                    cache.put(key, new int[] { granted, denied });
+                    cache.put(key, compiled);
+                }
+                if (fingerprint != null) {
+                    compiledPermissionCache.put(fingerprint, key, version, compiled);
                 }
-                return new int[] { granted, denied };
+                return compiled;
 
             }
             if (Security.ZONE_AUTHORIZABLES.equals(objectType) || Security.ZONE_CONTENT.equals(objectType)) {
@@ -557,9 +638,16 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             if (principalRecursionLock.get() == null) {
                 principalRecursionLock.set("l");
                 try {
-                    for (Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext();) {
-                        memberOfSet.add(gi.next().getId());
-                    }
+                    Collections.addAll(memberOfSet, authorizableManager.getEffectivePrincipals(authorizable.getId()));
+                } catch (AccessDeniedException e) {
+                    LOGGER.debug(e.getMessage(), e);
+                    addMemberOf(authorizable, memberOfSet);
+                } catch (StorageClientException e) {
+                    // without the closure the groups must still be found, or
+                    // their permissions would be lost.
+                    LOGGER.warn("Unable to resolve principals of {} from the closure index: {} ",
+                            authorizable.getId(), e.getMessage());
+                    addMemberOf(authorizable, memberOfSet);
                 } finally {
                     principalRecursionLock.set(null);
                 }
@@ -571,12 +659,46 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         return m;
     }
 
+    private void addMemberOf(Authorizable authorizable, Set<String> memberOfSet) {
+        for (Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext();) {
+            memberOfSet.add(gi.next().getId());
+        }
+    }
+
+    private CompiledAcl.PrincipalSet getPrincipalSet(Authorizable authorizable) throws StorageClientException {
+        String k = authorizable.getId();
+        CompiledAcl.PrincipalSet principalSet = principalSets.get(k);
+        if (principalSet == null) {
+            String[] principals = getPrincipals(authorizable);
+            String[] all = new String[principals.length + 1];
+            all[0] = k;
+            System.arraycopy(principals, 0, all, 1, principals.length);
+            for (String principal : all) {
+                if (principal.startsWith("_")) {
+                    throw new StorageClientException("Princials may not start with _ ");
+                }
+            }
+            principalSet = CompiledAcl.toPrincipalSet(all);
+            principalSets.put(k, principalSet);
+        }
+        return principalSet;
+    }
+
+    private String getFingerprint(Authorizable authorizable) {
+        String k = authorizable.getId();
+        String fingerprint = fingerprints.get(k);
+        if (fingerprint == null) {
+            fingerprint = CompiledPermissionCache.fingerprint(k, getPrincipals(authorizable));
+            fingerprints.put(k, fingerprint);
+        }
+        return fingerprint;
+    }
+
     private int toInt(Object object) {
-        if (object instanceof Integer) {
-            return ((Integer) object).intValue();
+        if (object == null) {
+            LOGGER.debug("Bitmap Not Present");
         }
-        LOGGER.debug("Bitmap Not Present");
-        return 0;
+        return CompiledAcl.toBitmap(object);
     }
 
     public String getCurrentUserId() {
@@ -739,6 +861,22 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         return LOGGER;
     }
 
+    /**
+     * @param compiledPermissionCache
+     *            a cache of compiled permissions shared with other sessions,
+     *            or null to only cache them in this session.
+     * @param statistics
+     *            the hits and misses of the shared cache, may be null.
+     */
+    public void setCompiledPermissionCache(Map<String, CacheHolder> compiledPermissionCache,
+            CompiledPermissionCache.Statistics statistics) {
+        if (compiledPermissionCache == null) {
+            this.compiledPermissionCache = null;
+        } else {
+            this.compiledPermissionCache = new CompiledPermissionCache(compiledPermissionCache, statistics);
+        }
+    }
+
     public void setAuthorizableManager(AuthorizableManager authorizableManager) {
         this.authorizableManager = authorizableManager;
     }
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * An ACL compiled for evaluation against a set of principals. The ACL becomes
+ * arrays of the principals it names, their hashes, and the permissions
+ * granted and denied to each, and the principals of a user become a
+ * {@link PrincipalSet}, sorted by hash. Evaluating the ACL is then a binary
+ * search of the user's hashes per entry in the ACL, with a string comparison
+ * only where the hashes match, and no allocation. Compiled ACLs are held
+ * against the identity of the ACL map they were compiled from, for as long as
+ * that map is live, with a copy of the entries they were compiled from. Some
+ * storage clients update a row map in place, so an ACL is recompiled whenever
+ * its map no longer holds the entries it was compiled from.
+ */
+public class CompiledAcl {
+
+    private static final ConcurrentMap<Map<String, Object>, CompiledAcl> COMPILED = new MapMaker().weakKeys().makeMap();
+    private final Map<String, Object> source;
+    private final String[] principals;
+    private final int[] hashes;
+    private final int[] granted;
+    private final int[] denied;
+    private final int everyoneGranted;
+    private final int everyoneDenied;
+
+    /**
+     * The principals of a user, sorted by hash.
+     */
+    public static final class PrincipalSet {
+        private final int[] hashes;
+        private final String[] principals;
+
+        private PrincipalSet(String[] principals) {
+            String[] sorted = Arrays.copyOf(principals, principals.length);
+            Arrays.sort(sorted, new Comparator<String>() {
+                public int compare(String o1, String o2) {
+                    int h1 = o1.hashCode();
+                    int h2 = o2.hashCode();
+                    return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+                }
+            });
+            this.principals = sorted;
+            this.hashes = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                hashes[i] = sorted[i].hashCode();
+            }
+        }
+
+        boolean contains(int hash, String principal) {
+            int i = Arrays.binarySearch(hashes, hash);
+            if (i < 0) {
+                return false;
+            }
+            // principals with the same hash are next to each other.
+            while (i > 0 && hashes[i - 1] == hash) {
+                i--;
+            }
+            for (; i < hashes.length && hashes[i] == hash; i++) {
+                if (principals[i].equals(principal)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param value
+     * @return the bitmap of an ACL entry, 0 if the entry is absent or is not
+     *         an Integer.
+     */
+    static int toBitmap(Object value) {
+        if (value instanceof Integer) {
+            return ((Integer) value).intValue();
+        }
+        return 0;
+    }
+
+    private CompiledAcl(Map<String, Object> acl) {
+        source = Collections.unmodifiableMap(Maps.newHashMap(acl));
+        Map<String, int[]> entries = Maps.newHashMap();
+        int eg = 0;
+        int ed = 0;
+        for (Entry<String, Object> e : source.entrySet()) {
+            String k = e.getKey();
+            // system properties, dynamic and property principals all start
+            // with _
+            if (k.startsWith("_")) {
+                continue;
+            }
+            boolean grant = AclModification.isGrant(k);
+            if (!grant && !AclModification.isDeny(k)) {
+                continue;
+            }
+            int bitmap = toBitmap(e.getValue());
+            String principal = AclModification.getPrincipal(k);
+            if (Group.EVERYONE.equals(principal)) {
+                if (grant) {
+                    eg = bitmap;
+                } else {
+                    ed = bitmap;
+                }
+                continue;
+            }
+            int[] gd = entries.get(principal);
+            if (gd == null) {
+                gd = new int[2];
+                entries.put(principal, gd);
+            }
+            gd[grant ? 0 : 1] = bitmap;
+        }
+        principals = entries.keySet().toArray(new String[entries.size()]);
+        hashes = new int[principals.length];
+        granted = new int[principals.length];
+        denied = new int[principals.length];
+        for (int i = 0; i < principals.length; i++) {
+            int[] gd = entries.get(principals[i]);
+            hashes[i] = principals[i].hashCode();
+            granted[i] = gd[0];
+            denied[i] = gd[1];
+        }
+        everyoneGranted = eg;
+        everyoneDenied = ed;
+    }
+
+    /**
+     * @param acl
+     *            an ACL as stored.
+     * @return the ACL compiled.
+     */
+    public static CompiledAcl get(Map<String, Object> acl) {
+        CompiledAcl compiled = COMPILED.get(acl);
+        if (compiled == null || !compiled.source.equals(acl)) {
+            compiled = new CompiledAcl(acl);
+            COMPILED.put(acl, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @param principals
+     * @return the principals, ready to evaluate ACLs against.
+     */
+    public static PrincipalSet toPrincipalSet(String... principals) {
+        return new PrincipalSet(principals);
+    }
+
+    /**
+     * @param principalSet
+     *            principals from {@link #toPrincipalSet(String...)}
+     * @return the permissions granted to any of the principals, excluding
+     *         everyone.
+     */
+    public int getGranted(PrincipalSet principalSet) {
+        int g = 0;
+        for (int i = 0; i < principals.length; i++) {
+            if (principalSet.contains(hashes[i], principals[i])) {
+                g = g | granted[i];
+            }
+        }
+        return g;
+    }
+
+    /**
+     * @param principalSet
+     *            principals from {@link #toPrincipalSet(String...)}
+     * @return the permissions denied to any of the principals, excluding
+     *         everyone.
+     */
+    public int getDenied(PrincipalSet principalSet) {
+        int d = 0;
+        for (int i = 0; i < principals.length; i++) {
+            if (principalSet.contains(hashes[i], principals[i])) {
+                d = d | denied[i];
+            }
+        }
+        return d;
+    }
+
+    public int getEveryoneGranted() {
+        return everyoneGranted;
+    }
+
+    public int getEveryoneDenied() {
+        return everyoneDenied;
+    }
+
+}
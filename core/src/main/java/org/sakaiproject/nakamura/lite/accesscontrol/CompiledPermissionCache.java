@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compiled permissions shared by all sessions, held in a cache from the
+ * StorageCacheManager. An entry is keyed by the ACL key of the object, a
+ * fingerprint of the principals the permissions were compiled for, so
+ * sessions for users with the same principals share entries, and a version
+ * made from the versions of the ACL of the object and of each of its parents.
+ * Compiled permissions include the ACLs of every parent, so changing an ACL
+ * starts a new version of that ACL only, which leaves the entries of the
+ * object and of every object below it unreachable until the cache evicts
+ * them, and leaves all other entries in place. The caches from the
+ * StorageCacheManager can not be scanned for the entries below a path, hence
+ * versions rather than removing entries. The versions are held in the same
+ * cache, so all servers sharing the cache see them.
+ */
+public class CompiledPermissionCache {
+
+    /**
+     * The name of the cache in the StorageCacheManager.
+     */
+    public static final String CACHE_NAME = "acc";
+    private static final String VERSION_KEY_PREFIX = ";version:";
+    private static final String VERSION = "n";
+    private static final String GRANTED = "g";
+    private static final String DENIED = "d";
+    private Map<String, CacheHolder> cache;
+    private Statistics statistics;
+
+    /**
+     * Hits and misses of the compiled permissions, shared by the sessions of a
+     * repository. The entries are in a cache that can not be scanned, so the
+     * size, weight and evictions are not known.
+     */
+    public static class Statistics implements CacheStatistics {
+        private AtomicLong hits = new AtomicLong();
+        private AtomicLong misses = new AtomicLong();
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getEvictionCount() {
+            return 0;
+        }
+
+        public long getWeight() {
+            return 0;
+        }
+
+        public long getMaxWeight() {
+            return 0;
+        }
+
+        public int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * @param cache
+     * @param statistics
+     *            shared by all sessions, if null the cache has its own.
+     */
+    public CompiledPermissionCache(Map<String, CacheHolder> cache, Statistics statistics) {
+        this.cache = cache;
+        this.statistics = statistics == null ? new Statistics() : statistics;
+    }
+
+    /**
+     * @param principalId
+     *            the authorizable the permissions are compiled for
+     * @param principals
+     *            the principals of the authorizable
+     * @return a fingerprint that is the same for any authorizable with the same
+     *         id and principals.
+     */
+    public static String fingerprint(String principalId, String[] principals) {
+        String[] sorted = Arrays.copyOf(principals, principals.length);
+        Arrays.sort(sorted);
+        StringBuilder sb = new StringBuilder(principalId);
+        for (String p : sorted) {
+            sb.append(';').append(p);
+        }
+        return StorageClientUtils.insecureHash(sb.toString());
+    }
+
+    /**
+     * @param aclKeys
+     *            the ACL key of the object followed by the ACL keys of its
+     *            parents.
+     * @return the current version of the ACLs, read before permissions are
+     *         looked up or compiled, and passed to
+     *         {@link #get(String, String, String)} and
+     *         {@link #put(String, String, String, int[])}.
+     */
+    public String version(List<String> aclKeys) {
+        StringBuilder sb = new StringBuilder();
+        for (String aclKey : aclKeys) {
+            sb.append(getVersion(aclKey)).append(';');
+        }
+        return StorageClientUtils.insecureHash(sb.toString());
+    }
+
+    /**
+     * @param fingerprint
+     * @param aclKey
+     * @param version
+     * @return {granted, denied} or null if not cached.
+     */
+    public int[] get(String fingerprint, String aclKey, String version) {
+        CacheHolder ch = cache.get(getKey(fingerprint, aclKey, version));
+        if (ch != null) {
+            Map<String, Object> m = ch.get();
+            if (m != null) {
+                statistics.hits.incrementAndGet();
+                return new int[] { (Integer) m.get(GRANTED), (Integer) m.get(DENIED) };
+            }
+        }
+        statistics.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache compiled permissions under the version that was current when the
+     * compile started. If an ACL changed while compiling, that version is no
+     * longer read, so permissions compiled from the old ACL are never seen.
+     * 
+     * @param fingerprint
+     * @param aclKey
+     * @param version
+     *            the version when the compile started.
+     * @param compiled
+     */
+    public void put(String fingerprint, String aclKey, String version, int[] compiled) {
+        cache.put(getKey(fingerprint, aclKey, version),
+                new CacheHolder(ImmutableMap.of(GRANTED, (Object) compiled[0], DENIED, compiled[1])));
+    }
+
+    /**
+     * Drop the compiled permissions of an object and of every object below it,
+     * after its ACL has changed.
+     * 
+     * @param aclKey
+     *            the ACL key of the object.
+     */
+    public void invalidate(String aclKey) {
+        nextVersion(aclKey);
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    private String getVersion(String aclKey) {
+        CacheHolder ch = cache.get(VERSION_KEY_PREFIX + aclKey);
+        if (ch != null && ch.get() != null) {
+            return (String) ch.get().get(VERSION);
+        }
+        // never changed, or evicted, in which case a new version is needed as
+        // entries for the old version may still be in the cache.
+        return nextVersion(aclKey);
+    }
+
+    private String nextVersion(String aclKey) {
+        // a unique value rather than a counter, so two servers sharing the
+        // cache can not start the same version.
+        String version = StorageClientUtils.getUuid();
+        cache.put(VERSION_KEY_PREFIX + aclKey, new CacheHolder(ImmutableMap.of(VERSION, (Object) version)));
+        return version;
+    }
+
+    private String getKey(String fingerprint, String aclKey, String version) {
+        return aclKey + "#" + fingerprint + "@" + version;
+    }
+
+}
@@ -17,13 +17,17 @@
  */
 package org.sakaiproject.nakamura.lite.authorizable;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -41,6 +45,7 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.authorizable.PrincipalClosureIndex.PrincipalSource;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -65,11 +70,13 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
 
     private static final String DISABLED_PASSWORD_HASH = "--disabled--";
     private static final Set<String> FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD,
-            Authorizable.LOGIN_ENABLED_PERIOD_FIELD);
+            Authorizable.LOGIN_ENABLED_PERIOD_FIELD, Authorizable.MEMBER_PAGES_FIELD);
     private static final Set<String> FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD,
-            Authorizable.LOGIN_ENABLED_PERIOD_FIELD);
-    private static final Set<String> ADMIN_FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD);
-    private static final Set<String> ADMIN_FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD);
+            Authorizable.LOGIN_ENABLED_PERIOD_FIELD, Authorizable.MEMBER_PAGES_FIELD);
+    private static final Set<String> ADMIN_FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD,
+            Authorizable.MEMBER_PAGES_FIELD);
+    private static final Set<String> ADMIN_FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD, Authorizable.PASSWORD_FIELD,
+            Authorizable.MEMBER_PAGES_FIELD);
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableManagerImpl.class);
     private String currentUserId;
     private StorageClient client;
@@ -83,6 +90,18 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
     private Session session;
     private Set<String> filterOnUpdate;
     private Set<String> filterOnCreate;
+    private PrincipalClosureIndex principalClosureIndex;
+    private GroupMemberPages memberPageStore;
+    private PrincipalSource principalSource = new PrincipalSource() {
+
+        public String[] getPrincipals(String authorizableId) throws StorageClientException {
+            return getStoredPrincipals(authorizableId, false);
+        }
+
+        public String[] getGroupPrincipals(String authorizableId) throws StorageClientException {
+            return getStoredPrincipals(authorizableId, true);
+        }
+    };
 
     public AuthorizableManagerImpl(User currentUser, Session session, StorageClient client, Configuration configuration,
             AccessControlManagerImpl accessControlManager, Map<String, CacheHolder> sharedCache, StoreListener storeListener,
@@ -106,15 +125,51 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         this.keySpace = configuration.getKeySpace();
         this.authorizableColumnFamily = configuration.getAuthorizableColumnFamily();
         this.authenticator = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        this.memberPageStore = new GroupMemberPages(client, configuration, sharedCache, statsService);
         this.closed = false;
         this.storeListener = storeListener;
+        this.principalClosureIndex = new PrincipalClosureIndex(new ConcurrentHashMap<String, CacheHolder>());
         accessControlManager.setAuthorizableManager(this);
     }
 
+    /**
+     * @param principalClosureCache
+     *            a cache to hold group membership closures shared with other
+     *            sessions, or null to only hold them in this session.
+     */
+    public void setPrincipalClosureCache(Map<String, CacheHolder> principalClosureCache) {
+        if (principalClosureCache == null) {
+            principalClosureCache = new ConcurrentHashMap<String, CacheHolder>();
+        }
+        this.principalClosureIndex = new PrincipalClosureIndex(principalClosureCache);
+    }
+
     public User getUser() {
         return thisUser;
     }
 
+    public String[] getEffectivePrincipals(String authorizableId) throws AccessDeniedException, StorageClientException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            if (!this.currentUserId.equals(authorizableId)) {
+                accessControlManager.check(Security.ZONE_AUTHORIZABLES, authorizableId, Permissions.CAN_READ);
+            }
+            Set<String> closure = principalClosureIndex.getClosure(authorizableId, principalSource);
+            return closure.toArray(new String[closure.size()]);
+        } finally {
+            statsService.apiCall(AuthorizableManagerImpl.class.getName(), "getEffectivePrincipals", System.currentTimeMillis() - t);
+        }
+    }
+
+    private String[] getStoredPrincipals(String authorizableId, boolean groupsOnly) throws StorageClientException {
+        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily, authorizableId);
+        if (authorizableMap == null || authorizableMap.isEmpty() || (groupsOnly && !isAGroup(authorizableMap))) {
+            return null;
+        }
+        return StringUtils.split((String) authorizableMap.get(Authorizable.PRINCIPALS_FIELD), ';');
+    }
+
     public Authorizable findAuthorizable(final String authorizableId) throws AccessDeniedException, StorageClientException {
         long t = System.currentTimeMillis();
         try {
@@ -133,7 +188,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
             if (isAUser(authorizableMap)) {
                 return new UserInternal(authorizableMap, session, false);
             } else if (isAGroup(authorizableMap)) {
-                return new GroupInternal(authorizableMap, session, false);
+                return new GroupInternal(authorizableMap, session, false, memberPageStore);
             }
             return null;
         } finally {
@@ -191,6 +246,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
             List<String> attributes = Lists.newArrayList();
             String[] membersAdded = null;
             String[] membersRemoved = null;
+            List<String> principalAdded = Lists.newArrayList();
 
             if (authorizable instanceof Group) {
                 type = "type:group";
@@ -257,6 +313,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                             LOGGER.debug("Updated {} with principal {} {} ", new Object[] { newMember.getId(), group.getId(),
                                     encodedProperties });
                             findAuthorizable(newMember.getId());
+                            principalAdded.add(newMember.getId());
                             changes++;
                         } else {
                             LOGGER.debug("New Member {} already had group principal {} ", newMember.getId(), authorizable.getId());
@@ -299,10 +356,16 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
 
             Map<String, Object> encodedProperties = StorageClientUtils.getFilteredAndEcodedMap(
                     authorizable.getPropertiesForUpdate(), filterOnUpdate);
+            boolean principalsChanged = !StringUtils.equals(
+                    (String) beforeUpdateProperties.get(Authorizable.PRINCIPALS_FIELD),
+                    (String) encodedProperties.get(Authorizable.PRINCIPALS_FIELD));
             if (withTouch) {
                 encodedProperties.put(Authorizable.LASTMODIFIED_FIELD, System.currentTimeMillis());
                 encodedProperties.put(Authorizable.LASTMODIFIED_BY_FIELD, accessControlManager.getCurrentUserId());
             }
+            if (authorizable instanceof Group) {
+                storeMemberPages((Group) authorizable, encodedProperties);
+            }
             encodedProperties.put(Authorizable.ID_FIELD, id); // make certain
             // the ID
             // is always
@@ -311,6 +374,15 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
 
             authorizable.reset(getCached(keySpace, authorizableColumnFamily, id));
 
+            // bring the group membership closures up to date.
+            if (principalsChanged) {
+                principalClosureIndex.invalidate(id);
+            }
+            if (membersRemoved != null) {
+                principalClosureIndex.invalidate(membersRemoved);
+            }
+            principalClosureIndex.invalidate(principalAdded.toArray(new String[principalAdded.size()]));
+
             String[] attrs = attributes.toArray(new String[attributes.size()]);
             storeListener.onUpdate(Security.ZONE_AUTHORIZABLES, id, type, accessControlManager.getCurrentUserId(), wasNew,
                     beforeUpdateProperties, attrs);
@@ -437,6 +509,10 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
             Authorizable authorizable = findAuthorizable(authorizableId);
             if (authorizable != null) {
                 removeCached(keySpace, authorizableColumnFamily, authorizableId);
+                if (authorizable instanceof Group) {
+                    memberPageStore.delete(authorizableId, ((Group) authorizable).getMemberPages());
+                }
+                principalClosureIndex.invalidate(authorizableId);
                 storeListener.onDelete(Security.ZONE_AUTHORIZABLES, authorizableId, accessControlManager.getCurrentUserId(),
                         getType(authorizable), authorizable.getOriginalProperties());
             }
@@ -550,7 +626,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                                     authorizable = new UserInternal(authMap, session, false);
                                     return true;
                                 } else if (isAGroup(authMap)) {
-                                    authorizable = new GroupInternal(authMap, session, false);
+                                    authorizable = new GroupInternal(authMap, session, false, memberPageStore);
                                     return true;
                                 }
                             } catch (AccessDeniedException e) {
@@ -595,11 +671,33 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         return (authProperties != null) && Authorizable.USER_VALUE.equals(authProperties.get(Authorizable.AUTHORIZABLE_TYPE_FIELD));
     }
 
+    /**
+     * Apply membership changes to the pages of a large group, or move the
+     * members of a group that has become large into pages.
+     */
+    private void storeMemberPages(Group group, Map<String, Object> encodedProperties) throws StorageClientException {
+        int pages = group.getMemberPages();
+        if (pages > 0) {
+            int newPages = memberPageStore.update(group.getId(), pages, group.getMembersAdded(), group.getMembersRemoved());
+            if (newPages != pages) {
+                encodedProperties.put(Authorizable.MEMBER_PAGES_FIELD, newPages);
+            }
+        } else {
+            String[] members = group.getMembers();
+            if (members.length > GroupMemberPages.PAGED_THRESHOLD) {
+                LOGGER.info("Moving {} members of {} into pages ", members.length, group.getId());
+                encodedProperties.put(Authorizable.MEMBER_PAGES_FIELD,
+                        memberPageStore.write(group.getId(), Arrays.asList(members)));
+                encodedProperties.put(Authorizable.MEMBERS_FIELD, new RemoveProperty());
+            }
+        }
+    }
+
     private boolean isCyclicMembership(String groupId, Authorizable newMember) {
         if (newMember.isGroup()) {
             Group newGroupMember = (Group) newMember;
-            for (String memberOfNewMember : newGroupMember.getMembers()) {
-                if (groupId.equals(memberOfNewMember)) {
+            for (Iterator<String> members = newGroupMember.getMemberIterator(); members.hasNext();) {
+                if (groupId.equals(members.next())) {
                     return true;
                 }
             }
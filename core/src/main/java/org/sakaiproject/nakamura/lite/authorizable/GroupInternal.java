@@ -17,6 +17,13 @@ public class GroupInternal extends Group {
         setObjectNew(objectIsNew);
     }
 
+    public GroupInternal(Map<String, Object> groupMap, Session session, boolean objectIsNew,
+            GroupMemberPages memberPageStore) throws StorageClientException, AccessDeniedException {
+        super(groupMap, session);
+        setObjectNew(objectIsNew);
+        setMemberPageStore(memberPageStore);
+    }
+
     public GroupInternal(ImmutableMap<String, Object> groupMap, Session session, boolean objectIsNew, boolean readOnly)
             throws StorageClientException, AccessDeniedException {
         super(groupMap, session);
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.util.Iterables;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.CachingManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Members of large groups, held in pages stored as rows of their own in the
+ * authorizable column family rather than as a single property of the group.
+ * Members are assigned to a page by hash, so adding or removing a member
+ * rewrites one page rather than the whole member list. When a page grows past
+ * twice the target size the number of pages is doubled, which splits every
+ * page in two. Page rows have no id property, so they are never seen as
+ * authorizables.
+ */
+public class GroupMemberPages extends CachingManagerImpl {
+
+    /**
+     * The target number of members in a page.
+     */
+    public static final int PAGE_SIZE = 500;
+    /**
+     * Groups with more members than this are moved into pages when saved.
+     */
+    public static final int PAGED_THRESHOLD = 1000;
+    private static final String PAGE_KEY_PREFIX = "_members:";
+    private static final String PAGE_GROUP_FIELD = "memberPageOf";
+    private static final String PAGE_MEMBERS_FIELD = "pageMembers";
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberPages.class);
+    private String keySpace;
+    private String authorizableColumnFamily;
+
+    public GroupMemberPages(StorageClient client, Configuration configuration, Map<String, CacheHolder> sharedCache,
+            StatsService statsService) {
+        super(client, sharedCache, statsService);
+        this.keySpace = configuration.getKeySpace();
+        this.authorizableColumnFamily = configuration.getAuthorizableColumnFamily();
+    }
+
+    /**
+     * @param members
+     * @return the number of pages needed to hold the members, always a power
+     *         of 2.
+     */
+    public static int pagesFor(int members) {
+        int pages = 1;
+        while (members / pages > PAGE_SIZE) {
+            pages = pages * 2;
+        }
+        return pages;
+    }
+
+    /**
+     * @param member
+     * @param pages
+     * @return the page the member belongs in.
+     */
+    public static int getPage(String member, int pages) {
+        return (member.hashCode() & 0x7fffffff) % pages;
+    }
+
+    /**
+     * @param groupId
+     * @param pages
+     * @param member
+     * @return true if the member is stored as a member of the group.
+     * @throws StorageClientException
+     */
+    public boolean isMember(String groupId, int pages, String member) throws StorageClientException {
+        return getMembers(groupId, getPage(member, pages)).contains(member);
+    }
+
+    /**
+     * @param groupId
+     * @param page
+     * @return the members stored in a page.
+     * @throws StorageClientException
+     */
+    public Set<String> getMembers(String groupId, int page) throws StorageClientException {
+        Map<String, Object> pageMap = getCached(keySpace, authorizableColumnFamily, getPageKey(groupId, page));
+        if (pageMap == null) {
+            return Sets.newLinkedHashSet();
+        }
+        return Sets.newLinkedHashSet(Iterables.of(StringUtils.split((String) pageMap.get(PAGE_MEMBERS_FIELD), ';')));
+    }
+
+    /**
+     * @param groupId
+     * @param pages
+     * @return an iterator over all the members of the group, loading one page
+     *         at a time.
+     */
+    public Iterator<String> iterator(final String groupId, final int pages) {
+        return new PreemptiveIterator<String>() {
+
+            private int page;
+            private Iterator<String> current;
+            private String member;
+
+            @Override
+            protected boolean internalHasNext() {
+                while (current == null || !current.hasNext()) {
+                    if (page >= pages) {
+                        close();
+                        return false;
+                    }
+                    try {
+                        current = getMembers(groupId, page).iterator();
+                    } catch (StorageClientException e) {
+                        LOGGER.warn("Unable to load page {} of members of {}: {} ", new Object[] { page, groupId,
+                                e.getMessage() });
+                        current = null;
+                    }
+                    page++;
+                }
+                member = current.next();
+                return true;
+            }
+
+            @Override
+            protected String internalNext() {
+                return member;
+            }
+        };
+    }
+
+    /**
+     * Store all the members of a group in pages.
+     *
+     * @param groupId
+     * @param members
+     * @return the number of pages written.
+     * @throws StorageClientException
+     */
+    public int write(String groupId, Collection<String> members) throws StorageClientException {
+        int pages = pagesFor(members.size());
+        Map<Integer, Set<String>> paged = Maps.newHashMap();
+        for (int i = 0; i < pages; i++) {
+            paged.put(i, Sets.<String> newLinkedHashSet());
+        }
+        for (String member : members) {
+            paged.get(getPage(member, pages)).add(member);
+        }
+        for (Map.Entry<Integer, Set<String>> e : paged.entrySet()) {
+            putPage(groupId, e.getKey(), e.getValue());
+        }
+        return pages;
+    }
+
+    /**
+     * Apply changes in membership to the pages of a group, rewriting only the
+     * pages that change.
+     *
+     * @param groupId
+     * @param pages
+     *            the number of pages the group has.
+     * @param added
+     * @param removed
+     * @return the number of pages the group now has.
+     * @throws StorageClientException
+     */
+    public int update(String groupId, int pages, String[] added, String[] removed) throws StorageClientException {
+        Map<Integer, Set<String>> changed = Maps.newHashMap();
+        for (String member : removed) {
+            getChangedPage(groupId, pages, member, changed).remove(member);
+        }
+        for (String member : added) {
+            getChangedPage(groupId, pages, member, changed).add(member);
+        }
+        boolean split = false;
+        for (Map.Entry<Integer, Set<String>> e : changed.entrySet()) {
+            putPage(groupId, e.getKey(), e.getValue());
+            split = split || e.getValue().size() > 2 * PAGE_SIZE;
+        }
+        if (split) {
+            LOGGER.debug("Splitting {} pages of members of {} ", pages, groupId);
+            for (int page = 0; page < pages; page++) {
+                Set<String> low = Sets.newLinkedHashSet();
+                Set<String> high = Sets.newLinkedHashSet();
+                for (String member : getMembers(groupId, page)) {
+                    if (getPage(member, pages * 2) == page) {
+                        low.add(member);
+                    } else {
+                        high.add(member);
+                    }
+                }
+                putPage(groupId, page, low);
+                putPage(groupId, page + pages, high);
+            }
+            return pages * 2;
+        }
+        return pages;
+    }
+
+    /**
+     * Remove all the pages of a group.
+     *
+     * @param groupId
+     * @param pages
+     * @throws StorageClientException
+     */
+    public void delete(String groupId, int pages) throws StorageClientException {
+        for (int page = 0; page < pages; page++) {
+            removeCached(keySpace, authorizableColumnFamily, getPageKey(groupId, page));
+        }
+    }
+
+    private Set<String> getChangedPage(String groupId, int pages, String member, Map<Integer, Set<String>> changed)
+            throws StorageClientException {
+        int page = getPage(member, pages);
+        Set<String> members = changed.get(page);
+        if (members == null) {
+            members = getMembers(groupId, page);
+            changed.put(page, members);
+        }
+        return members;
+    }
+
+    private void putPage(String groupId, int page, Set<String> members) throws StorageClientException {
+        Map<String, Object> pageMap = Maps.newHashMap();
+        pageMap.put(PAGE_GROUP_FIELD, groupId);
+        pageMap.put(PAGE_MEMBERS_FIELD, StringUtils.join(members, ';'));
+        putCached(keySpace, authorizableColumnFamily, getPageKey(groupId, page), pageMap, false);
+    }
+
+    private String getPageKey(String groupId, int page) {
+        return PAGE_KEY_PREFIX + groupId + ":" + page;
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LOGGER;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.lite.SessionImpl;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Moves the members of existing large groups out of the group and into pages
+ * of members, as saving the group would. Groups are migrated as the
+ * MigrateContentComponent passes over the authorizables. The pages are
+ * written as each group is seen, so a dry run leaves pages behind that are
+ * not used until the group is migrated for real.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = PropertyMigrator.class)
+public class GroupMemberPagesMigrator implements PropertyMigrator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberPagesMigrator.class);
+
+    @Reference
+    private Repository repository;
+
+    @Reference
+    private Configuration configuration;
+
+    @Reference
+    private StatsServiceFactory statsServiceFactory;
+
+    public GroupMemberPagesMigrator() {
+    }
+
+    GroupMemberPagesMigrator(Repository repository, Configuration configuration, StatsServiceFactory statsServiceFactory) {
+        this.repository = repository;
+        this.configuration = configuration;
+        this.statsServiceFactory = statsServiceFactory;
+    }
+
+    public boolean migrate(String rid, Map<String, Object> properties) {
+        if (!Authorizable.GROUP_VALUE.equals(properties.get(Authorizable.AUTHORIZABLE_TYPE_FIELD))
+                || properties.containsKey(Authorizable.MEMBER_PAGES_FIELD)) {
+            return false;
+        }
+        String groupId = (String) properties.get(Authorizable.ID_FIELD);
+        String[] members = StringUtils.split((String) properties.get(Authorizable.MEMBERS_FIELD), ';');
+        if (groupId == null || members == null || members.length <= GroupMemberPages.PAGED_THRESHOLD) {
+            return false;
+        }
+        SessionImpl session = null;
+        try {
+            session = (SessionImpl) repository.loginAdministrative();
+            GroupMemberPages memberPageStore = new GroupMemberPages(session.getClient(), configuration,
+                    session.getCache(configuration.getAuthorizableColumnFamily()), statsServiceFactory.openSession());
+            int pages = memberPageStore.write(groupId, Arrays.asList(members));
+            properties.put(Authorizable.MEMBER_PAGES_FIELD, pages);
+            properties.put(Authorizable.MEMBERS_FIELD, new RemoveProperty());
+            LOGGER.info("Moved {} members of {} into {} pages ", new Object[] { members.length, groupId, pages });
+            return true;
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Unable to move the members of {} into pages: {} ", groupId, e.getMessage());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to move the members of {} into pages: {} ", groupId, e.getMessage());
+        } catch (AccessDeniedException e) {
+            LOGGER.warn("Unable to move the members of {} into pages: {} ", groupId, e.getMessage());
+        } finally {
+            if (session != null) {
+                try {
+                    session.logout();
+                } catch (ClientPoolException e) {
+                    LOGGER.debug(e.getMessage(), e);
+                }
+            }
+        }
+        return false;
+    }
+
+    public String[] getDependencies() {
+        return new String[0];
+    }
+
+    public String getName() {
+        return GroupMemberPagesMigrator.class.getName();
+    }
+
+    public Map<String, String> getOptions() {
+        return ImmutableMap.of();
+    }
+
+}
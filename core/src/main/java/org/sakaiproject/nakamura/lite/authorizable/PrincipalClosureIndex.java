@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The transitive closure of group membership, ie for each authorizable the set
+ * of groups it is a member of directly or through nested groups. Closures are
+ * built on demand, reusing the closures of the groups involved, and kept in a
+ * cache from the StorageCacheManager so all sessions share them.
+ * <p>
+ * Every authorizable a closure was built from has a version in the cache, and
+ * the closure records the versions it saw. A change to the principals of an
+ * authorizable gives it a new version, so only the closures that depend on it
+ * are rebuilt, from the closures of the groups that did not change. The caches
+ * from the StorageCacheManager can not be scanned, so stale closures are
+ * detected when they are read rather than removed when membership changes.
+ */
+public class PrincipalClosureIndex {
+
+    /**
+     * Reads the direct principals of an authorizable.
+     */
+    public interface PrincipalSource {
+        /**
+         * @param authorizableId
+         * @return the direct principals of the group, or null if the
+         *         authorizable is not a group or does not exist.
+         */
+        String[] getGroupPrincipals(String authorizableId) throws StorageClientException;
+
+        /**
+         * @param authorizableId
+         * @return the direct principals of the authorizable, or null if it does
+         *         not exist.
+         */
+        String[] getPrincipals(String authorizableId) throws StorageClientException;
+    }
+
+    /**
+     * The name of the cache in the StorageCacheManager.
+     */
+    public static final String CACHE_NAME = "apc";
+    private static final String KEY_PREFIX = "closure:";
+    private static final String VERSION_PREFIX = "closure;version:";
+    private static final String CLOSURE = "c";
+    private static final String VERSIONS = "v";
+    private static final String VERSION = "n";
+    private Map<String, CacheHolder> cache;
+
+    public PrincipalClosureIndex(Map<String, CacheHolder> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param authorizableId
+     * @param source
+     * @return all the groups the authorizable is a member of, excluding
+     *         everyone.
+     * @throws StorageClientException
+     */
+    public Set<String> getClosure(String authorizableId, PrincipalSource source) throws StorageClientException {
+        Set<String> closure = getSet(get(authorizableId), CLOSURE);
+        if (closure != null) {
+            return closure;
+        }
+        // the version is read before the principals, so a change made while
+        // building leaves the closure stale rather than wrong.
+        Map<String, String> versions = Maps.newHashMap();
+        versions.put(authorizableId, getVersion(authorizableId));
+        String[] principals = source.getPrincipals(authorizableId);
+        if (principals == null) {
+            return ImmutableSet.of();
+        }
+        Set<String> visiting = Sets.newHashSet(authorizableId);
+        closure = build(principals, visiting, Sets.<String> newHashSet(), source, versions);
+        put(authorizableId, closure, versions);
+        return closure;
+    }
+
+    private Set<String> build(String[] principals, Set<String> visiting, Set<String> cycles, PrincipalSource source,
+            Map<String, String> versions) throws StorageClientException {
+        Set<String> closure = Sets.newHashSet();
+        for (String principal : principals) {
+            if (Group.EVERYONE.equals(principal) || !closure.add(principal)) {
+                continue;
+            }
+            if (visiting.contains(principal)) {
+                cycles.add(principal);
+                continue;
+            }
+            Map<String, Object> group = get(principal);
+            Set<String> groupClosure = getSet(group, CLOSURE);
+            if (groupClosure != null) {
+                versions.putAll(getVersions(group));
+            } else {
+                Map<String, String> groupVersions = Maps.newHashMap();
+                groupVersions.put(principal, getVersion(principal));
+                String[] groupPrincipals = source.getGroupPrincipals(principal);
+                if (groupPrincipals == null) {
+                    // not a group now, but it might become one.
+                    versions.putAll(groupVersions);
+                    continue;
+                }
+                visiting.add(principal);
+                try {
+                    groupClosure = build(groupPrincipals, visiting, cycles, source, groupVersions);
+                } finally {
+                    visiting.remove(principal);
+                }
+                // a closure that stopped at a cycle is incomplete.
+                if (cycles.isEmpty()) {
+                    put(principal, groupClosure, groupVersions);
+                }
+                versions.putAll(groupVersions);
+            }
+            closure.addAll(groupClosure);
+        }
+        return ImmutableSet.copyOf(closure);
+    }
+
+    /**
+     * Record that the principals of authorizables have changed, because they
+     * were added to or removed from a group, or changed in some other way. The
+     * closures that depend on them are rebuilt on next use.
+     *
+     * @param authorizableIds
+     */
+    public void invalidate(String... authorizableIds) {
+        for (String authorizableId : authorizableIds) {
+            nextVersion(authorizableId);
+        }
+    }
+
+    /**
+     * @return the closure of the authorizable and the versions it was built
+     *         from, or null if it is not cached or any of those versions has
+     *         changed.
+     */
+    private Map<String, Object> get(String authorizableId) {
+        CacheHolder ch = cache.get(KEY_PREFIX + authorizableId);
+        if (ch == null || ch.get() == null) {
+            return null;
+        }
+        for (Entry<String, String> e : getVersions(ch.get()).entrySet()) {
+            CacheHolder version = cache.get(VERSION_PREFIX + e.getKey());
+            if (version == null || version.get() == null || !e.getValue().equals(version.get().get(VERSION))) {
+                return null;
+            }
+        }
+        return ch.get();
+    }
+
+    private void put(String authorizableId, Set<String> closure, Map<String, String> versions) {
+        cache.put(KEY_PREFIX + authorizableId, new CacheHolder(ImmutableMap.of(CLOSURE,
+                (Object) ImmutableSet.copyOf(closure), VERSIONS, ImmutableMap.copyOf(versions))));
+    }
+
+    private String getVersion(String authorizableId) {
+        CacheHolder ch = cache.get(VERSION_PREFIX + authorizableId);
+        if (ch != null && ch.get() != null) {
+            return (String) ch.get().get(VERSION);
+        }
+        return nextVersion(authorizableId);
+    }
+
+    private String nextVersion(String authorizableId) {
+        // a unique value rather than a counter, so a version that was evicted
+        // and recreated never matches a closure built from the old one.
+        String version = StorageClientUtils.getUuid();
+        cache.put(VERSION_PREFIX + authorizableId, new CacheHolder(ImmutableMap.of(VERSION, (Object) version)));
+        return version;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getVersions(Map<String, Object> m) {
+        return (Map<String, String>) m.get(VERSIONS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> getSet(Map<String, Object> m, String name) {
+        if (m != null) {
+            return (Set<String>) m.get(name);
+        }
+        return null;
+    }
+
+}
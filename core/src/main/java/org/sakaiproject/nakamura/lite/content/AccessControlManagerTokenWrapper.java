@@ -11,6 +11,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.accesscontrol.PropertyAcl;
 
+import java.util.Collection;
 import java.util.Map;
 
 public class AccessControlManagerTokenWrapper implements AccessControlManager {
@@ -73,6 +74,16 @@ public class AccessControlManagerTokenWrapper implements AccessControlManager {
         throw new UnsupportedOperationException();
     }
 
+    public boolean[] canAll(String objectType, Collection<String> objectPaths, Permission permission)
+            throws StorageClientException {
+        try {
+            delegate.setRequestPrincipalResolver(principalTokenResovler);
+            return delegate.canAll(objectType, objectPaths, permission);
+        } finally {
+            delegate.clearRequestPrincipalResolver();
+        }
+    }
+
     public Permission[] getPermissions(String objectType, String objectPath)
             throws StorageClientException {
         try {
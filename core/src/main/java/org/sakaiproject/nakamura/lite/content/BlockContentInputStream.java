@@ -26,7 +26,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Maps;
 
 public class BlockContentInputStream extends InputStream {
 
@@ -43,11 +50,38 @@ public class BlockContentInputStream extends InputStream {
     private String keySpace;
     private String contentColumnFamily;
     private StorageClient client;
+    private ExecutorService executor;
+    private int readAhead;
+    private Map<Integer, Future<Map<String, Object>>> prefetched = Maps.newHashMap();
 
     public BlockContentInputStream(StorageClient client, String keySpace,
             String contentColumnFamily, String blockId, int nBlocks) throws StorageClientException,
             AccessDeniedException {
+        this(client, keySpace, contentColumnFamily, blockId, nBlocks, null, 0);
+    }
+
+    /**
+     * @param client
+     * @param keySpace
+     * @param contentColumnFamily
+     * @param blockId
+     * @param nBlocks
+     *            the number of block sets in the body.
+     * @param executor
+     *            runs the fetches of the block sets ahead of the reader.
+     * @param readAhead
+     *            the number of block sets to fetch ahead of the one being
+     *            read, 0 for none. The client must be safe to use from the
+     *            executor's threads if this is more than 0.
+     * @throws StorageClientException
+     * @throws AccessDeniedException
+     */
+    public BlockContentInputStream(StorageClient client, String keySpace,
+            String contentColumnFamily, String blockId, int nBlocks, ExecutorService executor, int readAhead)
+            throws StorageClientException, AccessDeniedException {
 
+        this.executor = executor;
+        this.readAhead = executor == null ? 0 : readAhead;
         this.blockId = blockId;
         this.nBlocks = nBlocks;
         this.keySpace = keySpace;
@@ -77,6 +111,38 @@ public class BlockContentInputStream extends InputStream {
         return v;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (buffer == null || offset >= buffer.length) {
+            if (!readBuffer()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, buffer.length - offset);
+        System.arraycopy(buffer, offset, b, off, n);
+        offset += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (buffer == null) {
+            return 0;
+        }
+        return buffer.length - offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<Map<String, Object>> f : prefetched.values()) {
+            f.cancel(false);
+        }
+        prefetched.clear();
+    }
+
     private boolean readBuffer() throws IOException {
         currentBlockNumber++;
         if (currentBlockNumber >= blocksInSet) {
@@ -87,12 +153,8 @@ public class BlockContentInputStream extends InputStream {
             }
             currentBlockSet++;
             String blockKey = blockId + ":" + currentBlockSet;
-            try {
-                block = client.get(keySpace, contentColumnFamily, blockKey);
-                LOGGER.debug("New Block Loaded {} {} ", blockKey, block);
-            } catch (StorageClientException e) {
-                throw new IOException(e.getMessage(), e);
-            }
+            block = getBlockSet(currentBlockSet);
+            LOGGER.debug("New Block Loaded {} {} ", blockKey, block);
             currentBlockNumber = 0;
             blocksInSet = toInt(block.get(BlockSetContentHelper.NUMBLOCKS_FIELD));
             LOGGER.debug("Loaded New Block Set {}  containing {} blocks ", currentBlockSet,
@@ -110,6 +172,37 @@ public class BlockContentInputStream extends InputStream {
         return true;
     }
 
+    /**
+     * Get a block set, from its fetch if it was fetched ahead, and start the
+     * fetches of the block sets that follow it.
+     */
+    private Map<String, Object> getBlockSet(int blockSet) throws IOException {
+        Future<Map<String, Object>> fetch = prefetched.remove(blockSet);
+        for (int next = blockSet + 1; next <= blockSet + readAhead && next < nBlocks; next++) {
+            if (!prefetched.containsKey(next)) {
+                final String nextKey = blockId + ":" + next;
+                prefetched.put(next, executor.submit(new Callable<Map<String, Object>>() {
+                    public Map<String, Object> call() throws Exception {
+                        return client.get(keySpace, contentColumnFamily, nextKey);
+                    }
+                }));
+            }
+        }
+        try {
+            if (fetch != null) {
+                return fetch.get();
+            }
+            return client.get(keySpace, contentColumnFamily, blockId + ":" + blockSet);
+        } catch (StorageClientException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching block set " + blockSet);
+        }
+    }
+
     private int toInt(Object object) {
         if (object instanceof Integer) {
             return ((Integer) object).intValue();
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses bodies as they are streamed into the store and decompresses them
+ * as they are read back. The encodings are the HTTP content encodings, so a
+ * stored body can be sent as it is to a client that accepts its encoding.
+ */
+public class BodyCompression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private BodyCompression() {
+    }
+
+    /**
+     * @param encoding
+     * @return true if bodies can be compressed with the encoding.
+     */
+    public static boolean isSupported(String encoding) {
+        return GZIP.equals(encoding) || DEFLATE.equals(encoding);
+    }
+
+    /**
+     * @param in
+     *            the body as written.
+     * @param encoding
+     *            gzip or deflate.
+     * @return a stream of the compressed body, compressing as it is read.
+     */
+    public static CompressingInputStream compress(InputStream in, String encoding) {
+        if (!isSupported(encoding)) {
+            throw new IllegalArgumentException("Unsupported body compression " + encoding);
+        }
+        return new CompressingInputStream(in, GZIP.equals(encoding));
+    }
+
+    /**
+     * @param in
+     *            the body as stored.
+     * @param encoding
+     *            the encoding the body was stored with.
+     * @return a stream of the body as it was written.
+     * @throws IOException
+     */
+    public static InputStream decompress(InputStream in, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPInputStream(in);
+        } else if (DEFLATE.equals(encoding)) {
+            return new InflaterInputStream(in);
+        }
+        throw new IOException("Unsupported body compression " + encoding);
+    }
+
+    /**
+     * Compresses a stream as it is read, with the gzip header and trailer for
+     * gzip, or the zlib wrapper HTTP uses for deflate.
+     */
+    public static class CompressingInputStream extends InputStream {
+
+        private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+                0, 0, (byte) 0xff };
+        private InputStream source;
+        private Deflater deflater;
+        private DeflaterInputStream deflaterIn;
+        private CRC32 crc;
+        private long length;
+        private byte[] header;
+        private byte[] trailer;
+        private int offset;
+        private boolean deflated;
+
+        CompressingInputStream(InputStream in, boolean gzip) {
+            this.source = in;
+            // gzip wraps raw deflate data in a header and trailer of its own.
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            if (gzip) {
+                crc = new CRC32();
+                header = GZIP_HEADER;
+            } else {
+                header = new byte[0];
+            }
+            deflaterIn = new DeflaterInputStream(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    int b = source.read();
+                    if (b >= 0) {
+                        count(new byte[] { (byte) b }, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = source.read(b, off, len);
+                    if (n > 0) {
+                        count(b, off, n);
+                    }
+                    return n;
+                }
+            }, deflater);
+        }
+
+        private void count(byte[] b, int off, int len) {
+            length += len;
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+        }
+
+        /**
+         * @return the number of bytes read from the body as written.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            if (n < 0) {
+                return -1;
+            }
+            return b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (offset < header.length) {
+                int n = Math.min(len, header.length - offset);
+                System.arraycopy(header, offset, b, off, n);
+                offset += n;
+                return n;
+            }
+            while (!deflated) {
+                int n = deflaterIn.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                if (n < 0) {
+                    deflated = true;
+                    end();
+                    trailer = getTrailer();
+                    offset = 0;
+                }
+            }
+            if (offset < trailer.length) {
+                int n = Math.min(len, trailer.length - offset);
+                System.arraycopy(trailer, offset, b, off, n);
+                offset += n;
+                return n;
+            }
+            return -1;
+        }
+
+        private byte[] getTrailer() {
+            if (crc == null) {
+                return new byte[0];
+            }
+            // crc and length modulo 2^32, least significant byte first.
+            long c = crc.getValue();
+            return new byte[] { (byte) c, (byte) (c >> 8), (byte) (c >> 16), (byte) (c >> 24), (byte) length,
+                    (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24) };
+        }
+
+        /**
+         * Free the compressor without closing the body as written, which
+         * belongs to the caller.
+         */
+        public void end() {
+            deflater.end();
+        }
+
+        @Override
+        public void close() throws IOException {
+            end();
+            source.close();
+        }
+    }
+}
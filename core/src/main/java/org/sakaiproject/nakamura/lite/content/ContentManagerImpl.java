@@ -18,8 +18,10 @@
 package org.sakaiproject.nakamura.lite.content;
 
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BLOCKID_FIELD;
+import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_CONTENT_ENCODING_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_CREATED_BY_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_CREATED_FIELD;
+import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_ENCODED_LENGTH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_LAST_MODIFIED_BY_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_LAST_MODIFIED_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.COPIED_DEEP_FIELD;
@@ -32,6 +34,7 @@ import static org.sakaiproject.nakamura.lite.content.InternalContent.LASTMODIFIE
 import static org.sakaiproject.nakamura.lite.content.InternalContent.LASTMODIFIED_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.LENGTH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.LINKED_PATH_FIELD;
+import static org.sakaiproject.nakamura.lite.content.InternalContent.MIMETYPE_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.NEXT_VERSION_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.PATH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.PREVIOUS_BLOCKID_FIELD;
@@ -48,6 +51,7 @@ import java.io.InputStream;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -57,6 +61,7 @@ import com.google.common.collect.Ordering;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
@@ -70,8 +75,10 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.ActionRecord;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.util.ContinuableIterator;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManagerImpl;
+import org.sakaiproject.nakamura.lite.content.BodyCompression.CompressingInputStream;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -79,6 +86,7 @@ import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
@@ -150,6 +158,50 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ContentManagerImpl.class);
 
+    /**
+     * The number of children loaded together when listing children.
+     */
+    private static final int CHILD_PAGE_SIZE = 25;
+
+    /**
+     * The path of the content item an upload is for.
+     */
+    private static final String UPLOAD_PATH_FIELD = Repository.SYSTEM_PROP_PREFIX + "uploadPath";
+
+    /**
+     * The stream an upload is for, absent for the body.
+     */
+    private static final String UPLOAD_STREAM_ID_FIELD = Repository.SYSTEM_PROP_PREFIX + "uploadStreamId";
+
+    /**
+     * The time an upload expires, unless it is added to before then.
+     */
+    private static final String UPLOAD_EXPIRES_FIELD = Repository.SYSTEM_PROP_PREFIX + "uploadExpires";
+
+    /**
+     * The row key of an upload or chunk, kept in the row so that it can be
+     * found again from a listing.
+     */
+    private static final String UPLOAD_KEY_FIELD = Repository.SYSTEM_PROP_PREFIX + "uploadKey";
+
+    /**
+     * The position of a chunk in the body.
+     */
+    private static final String UPLOAD_OFFSET_FIELD = Repository.SYSTEM_PROP_PREFIX + "uploadOffset";
+
+    /**
+     * The parent of every upload row, keyed like a content id rather than a
+     * path. Each upload is a child of this, and each chunk a child of its
+     * upload, so both are found through the parent hash index and no row lists
+     * them.
+     */
+    private static final String UPLOADS_KEY = "uploads+";
+
+    /**
+     * How long an upload is kept after it was begun or last added to, 24 hours.
+     */
+    private static final long DEFAULT_UPLOAD_EXPIRY = 24L * 60L * 60L * 1000L;
+
     private static final Set<String> PROTECTED_FIELDS = ImmutableSet.of(LASTMODIFIED_FIELD, LASTMODIFIED_BY_FIELD, UUID_FIELD,
             PATH_FIELD);
 
@@ -169,9 +221,18 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
      * Column Family for this content.
      */
     private String contentColumnFamily;
+    /**
+     * The configuration, which says which bodies are compressed.
+     */
+    private Configuration config;
 
     private boolean closed;
 
+    /**
+     * How long, in ms, an upload is kept after it was begun or last added to.
+     */
+    private long uploadExpiry = DEFAULT_UPLOAD_EXPIRY;
+
     private StoreListener eventListener;
 
     private PathPrincipalTokenResolver pathPrincipalResolver;
@@ -180,6 +241,7 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             Map<String, CacheHolder> sharedCache, StoreListener eventListener, StatsService statsService) {
         super(client, sharedCache, statsService);
         this.client = client;
+        this.config = config;
         keySpace = config.getKeySpace();
         contentColumnFamily = config.getContentColumnFamily();
         closed = false;
@@ -190,6 +252,10 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         this.accessControlManager = new AccessControlManagerTokenWrapper(accessControlManager, pathPrincipalResolver);
     }
 
+    void setUploadExpiry(long uploadExpiry) {
+        this.uploadExpiry = uploadExpiry;
+    }
+
     public boolean exists(String path) {
         long t = System.currentTimeMillis();
         try {
@@ -238,47 +304,116 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
     public Iterator<Content> listChildren(String path) throws StorageClientException {
         long t = System.currentTimeMillis();
         try {
-            final DisposableIterator<Map<String, Object>> childContent = client.listChildren(keySpace, contentColumnFamily, path,
-                    this);
-            return new PreemptiveIterator<Content>() {
+            return listChildren(client.listChildren(keySpace, contentColumnFamily, path, this));
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "listChildren", System.currentTimeMillis() - t);
+        }
+    }
 
-                private Content content;
+    public ContinuableIterator<Content> listChildren(String path, String continuation, long items)
+            throws StorageClientException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            return listChildren(client.listChildren(keySpace, contentColumnFamily, path, continuation, items, this));
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "listChildren", System.currentTimeMillis() - t);
+        }
+    }
 
-                @Override
-                protected boolean internalHasNext() {
-                    content = null;
-                    while (content == null && childContent.hasNext()) {
-                        try {
-                            Map<String, Object> structureMap = childContent.next();
-                            LOGGER.debug("Loaded Next as {} ", structureMap);
-                            if (exists(structureMap)) {
-                                String path = (String) structureMap.get(PATH_FIELD);
-                                content = get(path);
+    private ContinuableIterator<Content> listChildren(final DisposableIterator<Map<String, Object>> childContent) {
+        class ChildIterator extends PreemptiveIterator<Content> implements ContinuableIterator<Content> {
+
+            private Content content;
+            private List<Map<String, Object>> page = ImmutableList.of();
+            private Set<String> readable = ImmutableSet.of();
+            private int pageIndex;
+
+            @Override
+            protected boolean internalHasNext() {
+                content = null;
+                while (content == null && (pageIndex < page.size() || loadPage())) {
+                    try {
+                        Map<String, Object> structureMap = page.get(pageIndex);
+                        pageIndex++;
+                        LOGGER.debug("Loaded Next as {} ", structureMap);
+                        if (exists(structureMap)) {
+                            String path = (String) structureMap.get(PATH_FIELD);
+                            if (readable != null && !readable.contains(path)) {
+                                continue;
                             }
-                        } catch (AccessDeniedException e) {
-                            LOGGER.debug(e.getMessage(), e);
-                        } catch (StorageClientException e) {
-                            LOGGER.debug(e.getMessage(), e);
+                            content = get(path);
                         }
+                    } catch (AccessDeniedException e) {
+                        LOGGER.debug(e.getMessage(), e);
+                    } catch (StorageClientException e) {
+                        LOGGER.debug(e.getMessage(), e);
                     }
-                    if (content == null) {
-                        // this is over the top as a disposable iterator should
-                        // close auto
-                        childContent.close();
-                        super.close();
-                        return false;
+                }
+                if (content == null) {
+                    // this is over the top as a disposable iterator should
+                    // close auto
+                    childContent.close();
+                    super.close();
+                    return false;
+                }
+                return true;
+            }
+
+            /**
+             * Read the next page of children and load their content
+             * objects together, rather than one at a time.
+             */
+            private boolean loadPage() {
+                List<Map<String, Object>> structures = Lists.newArrayList();
+                List<String> paths = Lists.newArrayList();
+                List<String> pathContentIds = Lists.newArrayList();
+                while (structures.size() < CHILD_PAGE_SIZE && childContent.hasNext()) {
+                    Map<String, Object> structureMap = childContent.next();
+                    structures.add(structureMap);
+                    if (exists(structureMap)) {
+                        paths.add((String) structureMap.get(PATH_FIELD));
+                        pathContentIds.add((String) structureMap.get(STRUCTURE_UUID_FIELD));
                     }
-                    return true;
                 }
+                page = structures;
+                pageIndex = 0;
+                try {
+                    // check the whole page together, children that cant
+                    // be read are not loaded.
+                    boolean[] canRead = accessControlManager.canAll(Security.ZONE_CONTENT, paths, Permissions.CAN_READ);
+                    readable = Sets.newHashSet();
+                    List<String> contentIds = Lists.newArrayList();
+                    for (int i = 0; i < canRead.length; i++) {
+                        if (canRead[i]) {
+                            readable.add(paths.get(i));
+                            if (pathContentIds.get(i) != null) {
+                                contentIds.add(pathContentIds.get(i));
+                            }
+                        }
+                    }
+                    prefetchCached(keySpace, contentColumnFamily, contentIds);
+                } catch (StorageClientException e) {
+                    // check each child as it is loaded.
+                    readable = null;
+                    LOGGER.debug(e.getMessage(), e);
+                }
+                return page.size() > 0;
+            }
 
-                @Override
-                protected Content internalNext() {
-                    return content;
+            @Override
+            protected Content internalNext() {
+                return content;
+            }
+
+            public String getContinuation() {
+                if (childContent instanceof ContinuableIterator<?>) {
+                    return ((ContinuableIterator<?>) childContent).getContinuation();
                 }
-            };
-        } finally {
-            statsService.apiCall(ContentManagerImpl.class.getName(), "listChildren", System.currentTimeMillis() - t);
+                return null;
+            }
         }
+        return new ChildIterator();
     }
 
     public Iterator<String> listChildPaths(final String path) throws StorageClientException {
@@ -332,6 +467,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
     public void triggerRefresh(String path) throws StorageClientException, AccessDeniedException {
         Content c = get(path);
         if (c != null) {
+            // reload the row on the next read, without making readers wait.
+            markStaleCached(keySpace, contentColumnFamily, path);
             eventListener.onUpdate(Security.ZONE_CONTENT, path, accessControlManager.getCurrentUserId(), getResourceType(c), false,
                     null, "op:update");
         }
@@ -480,7 +617,7 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
             }
             // save the content id.
-            putCached(keySpace, contentColumnFamily, id, toSave, isnew);
+            putCached(keySpace, contentColumnFamily, id, toSave, isnew, checkContent);
             LOGGER.debug("Saved {} at {} as {} ", new Object[] { path, id, toSave });
             // reset state to unmodified to take further modifications.
             content.reset(getCached(keySpace, contentColumnFamily, id));
@@ -547,6 +684,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 contentId = (String) structure.get(STRUCTURE_UUID_FIELD);
                 content = getCached(keySpace, contentColumnFamily, contentId);
             }
+            // the body being replaced, as the cached row changes with the write.
+            Map<String, Object> replaced = Maps.newHashMap(content);
             boolean isnew = true;
             String blockIdField = StorageClientUtils.getAltField(BLOCKID_FIELD, streamId);
             if (content.containsKey(blockIdField)) {
@@ -554,8 +693,31 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             }
             String contentBlockId = StorageClientUtils.getInternalUuid();
 
-            Map<String, Object> metadata = client.streamBodyIn(keySpace, contentColumnFamily, contentId, contentBlockId, streamId,
-                    content, in);
+            String encodingField = StorageClientUtils.getAltField(BODY_CONTENT_ENCODING_FIELD, streamId);
+            String encodedLengthField = StorageClientUtils.getAltField(BODY_ENCODED_LENGTH_FIELD, streamId);
+            String lengthFieldName = StorageClientUtils.getAltField(LENGTH_FIELD, streamId);
+            String encoding = config.getBodyCompression((String) content.get(StorageClientUtils.getAltField(
+                    MIMETYPE_FIELD, streamId)));
+            Map<String, Object> metadata;
+            if (encoding != null) {
+                CompressingInputStream compressed = BodyCompression.compress(in, encoding);
+                try {
+                    metadata = client.streamBodyIn(keySpace, contentColumnFamily, contentId, contentBlockId,
+                            streamId, content, compressed);
+                } finally {
+                    compressed.end();
+                }
+                metadata.put(encodingField, encoding);
+                metadata.put(encodedLengthField, metadata.get(lengthFieldName));
+                metadata.put(lengthFieldName, compressed.getLength());
+            } else {
+                metadata = client.streamBodyIn(keySpace, contentColumnFamily, contentId, contentBlockId, streamId,
+                        content, in);
+                if (content.containsKey(encodingField)) {
+                    metadata.put(encodingField, new RemoveProperty());
+                    metadata.put(encodedLengthField, new RemoveProperty());
+                }
+            }
             metadata.put(StorageClientUtils.getAltField(BODY_LAST_MODIFIED_FIELD, streamId), System.currentTimeMillis());
             metadata.put(StorageClientUtils.getAltField(BODY_LAST_MODIFIED_BY_FIELD, streamId),
                     accessControlManager.getCurrentUserId());
@@ -564,9 +726,16 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 metadata.put(StorageClientUtils.getAltField(BODY_CREATED_BY_FIELD, streamId),
                         accessControlManager.getCurrentUserId());
             }
-            putCached(keySpace, contentColumnFamily, contentId, metadata, isnew);
+            boolean saved = false;
+            try {
+                putCached(keySpace, contentColumnFamily, contentId, metadata, isnew);
+                saved = true;
+            } finally {
+                // only give up the old body once nothing refers to it, and the
+                // new one if the item never came to refer to it.
+                releaseBodies(saved ? replaced : metadata, Collections.singletonList(streamId));
+            }
             long length = 0;
-            String lengthFieldName = StorageClientUtils.getAltField(LENGTH_FIELD, streamId);
             if (metadata.containsKey(lengthFieldName)) {
                 length = (Long) metadata.get(lengthFieldName);
             }
@@ -601,14 +770,386 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         }
     }
 
+    public InputStream getRawInputStream(String path, String streamId) throws StorageClientException,
+            AccessDeniedException, IOException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+            Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+            if (!exists(structure)) {
+                return null;
+            }
+            String contentId = (String) structure.get(STRUCTURE_UUID_FIELD);
+            return internalGetInputStream(contentId, streamId, false);
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "getRawInputStream", System.currentTimeMillis() - t);
+        }
+    }
+
     private InputStream internalGetInputStream(String contentId, String streamId) throws StorageClientException,
             AccessDeniedException, IOException {
+        return internalGetInputStream(contentId, streamId, true);
+    }
+
+    private InputStream internalGetInputStream(String contentId, String streamId, boolean decompress)
+            throws StorageClientException, AccessDeniedException, IOException {
         Map<String, Object> content = getCached(keySpace, contentColumnFamily, contentId);
         if (!exists(content)) {
             return null;
         }
         String contentBlockId = (String) content.get(StorageClientUtils.getAltField(BLOCKID_FIELD, streamId));
-        return client.streamBodyOut(keySpace, contentColumnFamily, contentId, contentBlockId, streamId, content);
+        InputStream in = client.streamBodyOut(keySpace, contentColumnFamily, contentId, contentBlockId, streamId,
+                content);
+        String encoding = (String) content.get(StorageClientUtils.getAltField(BODY_CONTENT_ENCODING_FIELD, streamId));
+        if (decompress && in != null && encoding != null) {
+            return BodyCompression.decompress(in, encoding);
+        }
+        return in;
+    }
+
+    public String beginUpload(String path, String streamId) throws StorageClientException, AccessDeniedException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
+            String uploadId = StorageClientUtils.getInternalUuid();
+            String uploadKey = getUploadKey(uploadId);
+            Builder<String, Object> upload = ImmutableMap.builder();
+            upload.put(UPLOAD_KEY_FIELD, uploadKey);
+            upload.put(UPLOAD_PATH_FIELD, path);
+            if (streamId != null) {
+                upload.put(UPLOAD_STREAM_ID_FIELD, streamId);
+            }
+            upload.put(UPLOAD_EXPIRES_FIELD, System.currentTimeMillis() + uploadExpiry);
+            upload.put(CREATED_FIELD, System.currentTimeMillis());
+            upload.put(CREATED_BY_FIELD, accessControlManager.getCurrentUserId());
+            putCached(keySpace, contentColumnFamily, uploadKey, upload.build(), true);
+            return uploadId;
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "beginUpload", System.currentTimeMillis() - t);
+        }
+    }
+
+    public long appendUpload(String uploadId, long offset, InputStream in) throws StorageClientException,
+            AccessDeniedException, IOException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            getUpload(uploadId);
+            if (offset < 0) {
+                throw new StorageClientException("Upload offset " + offset + " is before the start of the body");
+            }
+            touchUpload(uploadId);
+            // each chunk is a row of its own under the upload, so chunks sent
+            // in parallel, even to the same offset, don't update the same row.
+            String chunkKey = StorageClientUtils.newPath(getUploadKey(uploadId),
+                    offset + ":" + StorageClientUtils.getInternalUuid());
+            Map<String, Object> metadata = client.streamBodyIn(keySpace, contentColumnFamily, chunkKey,
+                    StorageClientUtils.getInternalUuid(), null, null, in);
+            if (StorageClientUtils.toLong(metadata.get(LENGTH_FIELD)) > 0) {
+                metadata = Maps.newHashMap(metadata);
+                metadata.put(UPLOAD_KEY_FIELD, chunkKey);
+                metadata.put(UPLOAD_OFFSET_FIELD, offset);
+                // a chunk sent again in the same millisecond must still come
+                // after those it replaces.
+                long created = System.currentTimeMillis();
+                for (Map<String, Object> chunk : getAllUploadChunks(uploadId).values()) {
+                    if (StorageClientUtils.toLong(chunk.get(UPLOAD_OFFSET_FIELD)) == offset) {
+                        created = Math.max(created, StorageClientUtils.toLong(chunk.get(CREATED_FIELD)) + 1);
+                    }
+                }
+                metadata.put(CREATED_FIELD, created);
+                putCached(keySpace, contentColumnFamily, chunkKey, metadata, true);
+                // a chunk sent again replaces those sent to its offset before.
+                for (Entry<String, Map<String, Object>> chunk : getAllUploadChunks(uploadId).entrySet()) {
+                    if (StorageClientUtils.toLong(chunk.getValue().get(UPLOAD_OFFSET_FIELD)) == offset
+                            && isNewer(chunkKey, metadata, chunk.getKey(), chunk.getValue())) {
+                        removeUploadChunk(chunk.getKey(), chunk.getValue());
+                    }
+                }
+            } else {
+                // an empty chunk adds nothing, and would end the chain of
+                // chunks where it starts.
+                client.removeBody(keySpace, contentColumnFamily, chunkKey, (String) metadata.get(BLOCKID_FIELD),
+                        null, metadata);
+            }
+            return getReceivedLength(getUploadChunks(uploadId));
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "appendUpload", System.currentTimeMillis() - t);
+        }
+    }
+
+    public long getUploadLength(String uploadId) throws StorageClientException, AccessDeniedException {
+        checkOpen();
+        getUpload(uploadId);
+        return getReceivedLength(getUploadChunks(uploadId));
+    }
+
+    public long commitUpload(String uploadId, long length) throws StorageClientException, AccessDeniedException,
+            IOException {
+        long t = System.currentTimeMillis();
+        try {
+            checkOpen();
+            Map<String, Object> upload = getUpload(uploadId);
+            LinkedHashMap<String, Map<String, Object>> chunks = getUploadChunks(uploadId);
+            long received = getReceivedLength(chunks);
+            if (received != length) {
+                throw new StorageClientException("Upload " + uploadId + " has received " + received + " of " + length
+                        + " bytes");
+            }
+            UploadInputStream in = new UploadInputStream(chunks);
+            long written;
+            try {
+                written = writeBody((String) upload.get(UPLOAD_PATH_FIELD), in,
+                        (String) upload.get(UPLOAD_STREAM_ID_FIELD));
+            } finally {
+                in.close();
+            }
+            removeUpload(uploadId);
+            return written;
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "commitUpload", System.currentTimeMillis() - t);
+        }
+    }
+
+    public void cancelUpload(String uploadId) throws StorageClientException, AccessDeniedException, IOException {
+        checkOpen();
+        getUpload(uploadId);
+        removeUpload(uploadId);
+    }
+
+    /**
+     * @return the row key of an upload, under the uploads row.
+     */
+    private String getUploadKey(String uploadId) throws StorageClientException {
+        if (uploadId == null || uploadId.length() == 0 || uploadId.indexOf('/') >= 0) {
+            throw new StorageClientException("No upload " + uploadId);
+        }
+        return StorageClientUtils.newPath(UPLOADS_KEY, uploadId);
+    }
+
+    private Map<String, Object> getUpload(String uploadId) throws StorageClientException, AccessDeniedException {
+        Map<String, Object> upload = getCached(keySpace, contentColumnFamily, getUploadKey(uploadId));
+        if (!exists(upload) || !upload.containsKey(UPLOAD_PATH_FIELD)) {
+            throw new StorageClientException("No upload " + uploadId);
+        }
+        accessControlManager.check(Security.ZONE_CONTENT, (String) upload.get(UPLOAD_PATH_FIELD),
+                Permissions.CAN_WRITE);
+        if (StorageClientUtils.toLong(upload.get(UPLOAD_EXPIRES_FIELD)) < System.currentTimeMillis()) {
+            try {
+                removeUpload(uploadId);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to remove expired upload {}: {} ", uploadId, e.getMessage());
+            }
+            throw new StorageClientException("No upload " + uploadId);
+        }
+        return upload;
+    }
+
+    /**
+     * Move the expiry of an upload on, it is in use. Only the expiry is
+     * written, so uploads touched at the same time lose nothing but the
+     * other's expiry, which is as late.
+     */
+    private void touchUpload(String uploadId) throws StorageClientException {
+        String uploadKey = getUploadKey(uploadId);
+        putCached(keySpace, contentColumnFamily, uploadKey, ImmutableMap.of(UPLOAD_KEY_FIELD, (Object) uploadKey,
+                UPLOAD_EXPIRES_FIELD, System.currentTimeMillis() + uploadExpiry), false);
+    }
+
+    /**
+     * Remove the uploads that have been neither committed nor cancelled, and
+     * not added to, for longer than the upload expiry. This lists every
+     * upload, so it is run by {@link UploadExpiry} in the background rather
+     * than when an upload is begun.
+     */
+    void expireUploads() throws StorageClientException {
+        List<String> expired = Lists.newArrayList();
+        long now = System.currentTimeMillis();
+        DisposableIterator<Map<String, Object>> uploads = client.listChildren(keySpace, contentColumnFamily,
+                UPLOADS_KEY, this);
+        try {
+            while (uploads.hasNext()) {
+                Map<String, Object> upload = uploads.next();
+                if (exists(upload) && upload.containsKey(UPLOAD_KEY_FIELD)
+                        && StorageClientUtils.toLong(upload.get(UPLOAD_EXPIRES_FIELD)) < now) {
+                    expired.add(StorageClientUtils.getObjectName((String) upload.get(UPLOAD_KEY_FIELD)));
+                }
+            }
+        } finally {
+            uploads.close();
+        }
+        for (String uploadId : expired) {
+            LOGGER.debug("Removing expired upload {} ", uploadId);
+            try {
+                removeUpload(uploadId);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to remove expired upload {}: {} ", uploadId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return every chunk stored for an upload, by row key.
+     */
+    private Map<String, Map<String, Object>> getAllUploadChunks(String uploadId) throws StorageClientException {
+        Map<String, Map<String, Object>> chunks = Maps.newHashMap();
+        DisposableIterator<Map<String, Object>> children = client.listChildren(keySpace, contentColumnFamily,
+                getUploadKey(uploadId), this);
+        try {
+            while (children.hasNext()) {
+                Map<String, Object> chunk = children.next();
+                if (exists(chunk) && chunk.containsKey(UPLOAD_KEY_FIELD)) {
+                    chunks.put((String) chunk.get(UPLOAD_KEY_FIELD), chunk);
+                }
+            }
+        } finally {
+            children.close();
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the chunks of an upload that follow on from each other from the
+     *         start of the body, in order, taking the last chunk sent to each
+     *         offset.
+     */
+    private LinkedHashMap<String, Map<String, Object>> getUploadChunks(String uploadId)
+            throws StorageClientException {
+        Map<Long, Entry<String, Map<String, Object>>> byOffset = Maps.newHashMap();
+        for (Entry<String, Map<String, Object>> chunk : getAllUploadChunks(uploadId).entrySet()) {
+            Long offset = StorageClientUtils.toLong(chunk.getValue().get(UPLOAD_OFFSET_FIELD));
+            Entry<String, Map<String, Object>> other = byOffset.get(offset);
+            if (other == null
+                    || isNewer(chunk.getKey(), chunk.getValue(), other.getKey(), other.getValue())) {
+                byOffset.put(offset, chunk);
+            }
+        }
+        LinkedHashMap<String, Map<String, Object>> chunks = new LinkedHashMap<String, Map<String, Object>>();
+        long offset = 0;
+        for (;;) {
+            Entry<String, Map<String, Object>> chunk = byOffset.get(offset);
+            if (chunk == null) {
+                return chunks;
+            }
+            long length = StorageClientUtils.toLong(chunk.getValue().get(LENGTH_FIELD));
+            if (length <= 0) {
+                return chunks;
+            }
+            chunks.put(chunk.getKey(), chunk.getValue());
+            offset += length;
+        }
+    }
+
+    /**
+     * @return true if the first chunk was sent after the second, ordering
+     *         chunks sent in the same millisecond by row key.
+     */
+    private boolean isNewer(String chunkKey, Map<String, Object> chunk, String otherKey, Map<String, Object> other) {
+        long created = StorageClientUtils.toLong(chunk.get(CREATED_FIELD));
+        long otherCreated = StorageClientUtils.toLong(other.get(CREATED_FIELD));
+        if (created != otherCreated) {
+            return created > otherCreated;
+        }
+        return chunkKey.compareTo(otherKey) > 0;
+    }
+
+    private long getReceivedLength(Map<String, Map<String, Object>> chunks) {
+        long length = 0;
+        for (Map<String, Object> chunk : chunks.values()) {
+            length += StorageClientUtils.toLong(chunk.get(LENGTH_FIELD));
+        }
+        return length;
+    }
+
+    private void removeUploadChunk(String chunkKey, Map<String, Object> chunk) throws StorageClientException,
+            IOException {
+        client.removeBody(keySpace, contentColumnFamily, chunkKey, (String) chunk.get(BLOCKID_FIELD), null, chunk);
+        removeCached(keySpace, contentColumnFamily, chunkKey);
+    }
+
+    /**
+     * Remove an upload with every chunk stored for it, whether or not the
+     * chunk became part of the body.
+     */
+    private void removeUpload(String uploadId) throws StorageClientException, IOException {
+        for (Entry<String, Map<String, Object>> chunk : getAllUploadChunks(uploadId).entrySet()) {
+            removeUploadChunk(chunk.getKey(), chunk.getValue());
+        }
+        removeCached(keySpace, contentColumnFamily, getUploadKey(uploadId));
+    }
+
+    /**
+     * Reads the chunks of an upload one after another, opening each when it is
+     * reached.
+     */
+    private class UploadInputStream extends InputStream {
+
+        private Iterator<Entry<String, Map<String, Object>>> chunks;
+        private InputStream current;
+
+        UploadInputStream(Map<String, Map<String, Object>> chunks) {
+            this.chunks = chunks.entrySet().iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (current != null || next()) {
+                int b = current.read();
+                if (b >= 0) {
+                    return b;
+                }
+                closeCurrent();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null || next()) {
+                int n = current.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                closeCurrent();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCurrent();
+        }
+
+        private boolean next() throws IOException {
+            if (!chunks.hasNext()) {
+                return false;
+            }
+            Entry<String, Map<String, Object>> chunk = chunks.next();
+            try {
+                current = client.streamBodyOut(keySpace, contentColumnFamily, chunk.getKey(), (String) chunk
+                        .getValue().get(BLOCKID_FIELD), null, chunk.getValue());
+            } catch (StorageClientException e) {
+                throw new IOException(e.getMessage(), e);
+            } catch (AccessDeniedException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (current == null) {
+                throw new IOException("Upload chunk " + chunk.getKey() + " has no body");
+            }
+            return true;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
     }
 
     public void close() {
@@ -642,8 +1183,11 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 throw new StorageClientException(" Source content " + from + "  Has no " + UUID_FIELD);
             }
             Content t = get(to);
+            Map<String, Object> replaced = null;
             if (t != null) {
                 LOGGER.debug("Deleting {} ", to);
+                replaced = ImmutableMap.copyOf(getCached(keySpace, contentColumnFamily,
+                        (String) getCached(keySpace, contentColumnFamily, to).get(STRUCTURE_UUID_FIELD)));
                 delete(to);
             }
             Set<String> streams = Sets.newHashSet();
@@ -667,8 +1211,26 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             copyProperties.put(COPIED_FROM_PATH_FIELD, from);
             copyProperties.put(COPIED_FROM_ID_FIELD, f.getProperty(UUID_FIELD));
             copyProperties.put(COPIED_DEEP_FIELD, withStreams);
-            t = new Content(to, copyProperties);
-            update(t);
+            // a shallow copy refers to the same bodies, so holds a reference
+            // on each of them, as a version does.
+            List<String> sharedStreams = Lists.newArrayList();
+            boolean saved = false;
+            try {
+                if (!withStreams) {
+                    for (String streamId : getStreamIds(f.getProperties())) {
+                        if (client.shareBody(keySpace, contentColumnFamily, streamId, f.getProperties()) != null) {
+                            sharedStreams.add(streamId);
+                        }
+                    }
+                }
+                t = new Content(to, copyProperties);
+                update(t);
+                saved = true;
+            } finally {
+                if (!saved) {
+                    releaseBodies(f.getProperties(), sharedStreams);
+                }
+            }
             LOGGER.debug("Copy Updated {} {} ", to, t);
 
             for (String stream : streams) {
@@ -676,9 +1238,22 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 if (stream.length() > BLOCKID_FIELD.length()) {
                     streamId = stream.substring(BLOCKID_FIELD.length() + 1);
                 }
-                InputStream fromStream = getInputStream(from, streamId);
-                writeBody(to, fromStream);
-                fromStream.close();
+                // share the body where the store can, otherwise copy the bytes.
+                Map<String, Object> sharedBody = client.shareBody(keySpace, contentColumnFamily, streamId,
+                        f.getProperties());
+                if (sharedBody != null) {
+                    String contentId = (String) getCached(keySpace, contentColumnFamily, to).get(STRUCTURE_UUID_FIELD);
+                    putCached(keySpace, contentColumnFamily, contentId, sharedBody, false);
+                } else {
+                    InputStream fromStream = getInputStream(from, streamId);
+                    writeBody(to, fromStream, streamId);
+                    fromStream.close();
+                }
+            }
+            if (replaced != null) {
+                // the copy replaces the bodies the destination shared, now
+                // that the destination no longer refers to them.
+                releaseBodies(replaced, getStreamIds(replaced));
             }
             eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), getResourceType(f), true,
                     null, "op:copy");
@@ -851,6 +1426,24 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             String newVersionId = StorageClientUtils.getInternalUuid();
 
             String saveBlockId = (String) saveVersion.get(BLOCKID_FIELD);
+            // the new version shares the bodies of the saved version.
+            List<String> sharedStreams = Lists.newArrayList();
+            try {
+                for (String field : saveVersion.keySet()) {
+                    String streamId = null;
+                    if (field.startsWith(BLOCKID_FIELD + "/")) {
+                        streamId = field.substring(BLOCKID_FIELD.length() + 1);
+                    } else if (!field.equals(BLOCKID_FIELD)) {
+                        continue;
+                    }
+                    if (client.shareBody(keySpace, contentColumnFamily, streamId, saveVersion) != null) {
+                        sharedStreams.add(streamId);
+                    }
+                }
+            } catch (IOException e) {
+                releaseBodies(saveVersion, sharedStreams);
+                throw new StorageClientException(e.getMessage(), e);
+            }
 
             newVersion.put(UUID_FIELD, newVersionId);
             newVersion.put(PREVIOUS_VERSION_UUID_FIELD, saveVersionId);
@@ -863,10 +1456,21 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             Object versionNumber = System.currentTimeMillis();
             saveVersion.put(VERSION_NUMBER_FIELD, versionNumber);
 
-            putCached(keySpace, contentColumnFamily, saveVersionId, saveVersion, false);
-            putCached(keySpace, contentColumnFamily, newVersionId, newVersion, true);
-            putCached(keySpace, contentColumnFamily, versionHistoryId, ImmutableMap.of(saveVersionId, versionNumber), true);
-            putCached(keySpace, contentColumnFamily, path, ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object) newVersionId), true);
+            boolean saved = false;
+            try {
+                putCached(keySpace, contentColumnFamily, saveVersionId, saveVersion, false);
+                putCached(keySpace, contentColumnFamily, newVersionId, newVersion, true);
+                putCached(keySpace, contentColumnFamily, versionHistoryId, ImmutableMap.of(saveVersionId, versionNumber),
+                        true);
+                putCached(keySpace, contentColumnFamily, path, ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object) newVersionId),
+                        true);
+                saved = true;
+            } finally {
+                if (!saved) {
+                    // the new version was not saved, so it holds no bodies.
+                    releaseBodies(saveVersion, sharedStreams);
+                }
+            }
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Saved Version History  {} {} ", versionHistoryId,
                         getCached(keySpace, contentColumnFamily, versionHistoryId));
@@ -880,6 +1484,34 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         }
     }
 
+    /**
+     * @param content
+     * @return the ids of the streams the content has a body for, null for the
+     *         default stream.
+     */
+    private List<String> getStreamIds(Map<String, Object> content) {
+        List<String> streamIds = Lists.newArrayList();
+        for (String field : content.keySet()) {
+            if (field.equals(BLOCKID_FIELD)) {
+                streamIds.add(null);
+            } else if (field.startsWith(BLOCKID_FIELD + "/")) {
+                streamIds.add(field.substring(BLOCKID_FIELD.length() + 1));
+            }
+        }
+        return streamIds;
+    }
+
+    private void releaseBodies(Map<String, Object> content, List<String> streamIds) {
+        for (String streamId : streamIds) {
+            try {
+                client.releaseBody(keySpace, contentColumnFamily, streamId, content);
+            } catch (Exception e) {
+                LOGGER.warn("Unable to release body of {} stream {}: {} ", new Object[] { content.get(UUID_FIELD),
+                        streamId, e.getMessage() });
+            }
+        }
+    }
+
     public List<String> getVersionHistory(String path) throws AccessDeniedException, StorageClientException {
         long t = System.currentTimeMillis();
         try {
@@ -1006,7 +1638,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                     try {
                         final DisposableIterator<Map<String, Object>> clientSearchKeysIterator = client.find(keySpace,
                                 contentColumnFamily, finalSearchProperties, ContentManagerImpl.this);
-                        contentResultsIterator = new PreemptiveIterator<Content>() {
+                        class ContentResultsIterator extends PreemptiveIterator<Content> implements
+                                ContinuableIterator<Content> {
                             Content contentResult;
 
                             protected boolean internalHasNext() {
@@ -1041,7 +1674,15 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                                 clientSearchKeysIterator.close();
                                 super.close();
                             };
-                        };
+
+                            public String getContinuation() {
+                                if (clientSearchKeysIterator instanceof ContinuableIterator<?>) {
+                                    return ((ContinuableIterator<?>) clientSearchKeysIterator).getContinuation();
+                                }
+                                return null;
+                            }
+                        }
+                        contentResultsIterator = new ContentResultsIterator();
                     } catch (StorageClientException e) {
                         LOGGER.error("Unable to iterate over sparsemap search results.", e);
                     }
@@ -1056,25 +1697,21 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
     public int count(Map<String, Object> countSearch) throws StorageClientException {
         long t = System.currentTimeMillis();
         try {
-            Builder<String, Object> b = ImmutableMap.builder();
-            b.putAll(countSearch);
-            b.put(StorageConstants.CUSTOM_STATEMENT_SET, "countestimate");
-            b.put(StorageConstants.RAWRESULTS, true);
-            DisposableIterator<Map<String, Object>> counts = client.find(keySpace, contentColumnFamily, b.build(),
-                    ContentManagerImpl.this);
-            try {
-                Map<String, Object> count = counts.next();
-                return Integer.parseInt(String.valueOf(count.get("1")));
-            } finally {
-                if (counts != null) {
-                    counts.close();
-                }
-            }
+            return (int) client.count(keySpace, contentColumnFamily, countSearch);
         } finally {
             statsService.apiCall(ContentManagerImpl.class.getName(), "count", System.currentTimeMillis() - t);
         }
     }
 
+    public Map<String, Long> countBy(Map<String, Object> countSearch, String property) throws StorageClientException {
+        long t = System.currentTimeMillis();
+        try {
+            return client.countBy(keySpace, contentColumnFamily, countSearch, property);
+        } finally {
+            statsService.apiCall(ContentManagerImpl.class.getName(), "countBy", System.currentTimeMillis() - t);
+        }
+    }
+
     public boolean hasBody(String path, String streamId) throws StorageClientException, AccessDeniedException {
         Content content = get(path);
         return client.hasBody(content.getProperties(), streamId);
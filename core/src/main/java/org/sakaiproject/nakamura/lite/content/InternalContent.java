@@ -199,6 +199,20 @@ public class InternalContent {
      */
     public static final String ENCODING_FIELD = Repository.SYSTEM_PROP_PREFIX + "encoding";
 
+    /**
+     * The content encoding a body is stored with, gzip or deflate, absent if
+     * the body is stored as it was written.
+     */
+    public static final String BODY_CONTENT_ENCODING_FIELD = Repository.SYSTEM_PROP_PREFIX
+            + "bodyContentEncoding";
+
+    /**
+     * The number of bytes stored for a compressed body, the length field holds
+     * the length of the body as written.
+     */
+    public static final String BODY_ENCODED_LENGTH_FIELD = Repository.SYSTEM_PROP_PREFIX
+            + "bodyEncodedLength";
+
     /**
      * 
      */
@@ -220,7 +234,7 @@ public class InternalContent {
     /**
      * Map of the content object itself.
      */
-    private ImmutableMap<String, Object> content;
+    private Map<String, Object> content;
     /**
      * Path locating this content object within the overall content structure.
      */
@@ -256,7 +270,9 @@ public class InternalContent {
         if (content == null) {
             content = ImmutableMap.of();
         }
-        this.content = ImmutableMap.copyOf(content);
+        // a lazily decoded row is already unmodifiable, copying it would
+        // decode every value.
+        this.content = StorageClientUtils.getFilterMap(content, null, null, null, false);
         this.updatedContent = Maps.newHashMap();
         this.path = path;
         updated = true;
@@ -284,7 +300,7 @@ public class InternalContent {
      */
     public void reset(Map<String, Object> updatedMap) {
         if (!readOnly) {
-            this.content = ImmutableMap.copyOf(updatedMap);
+            this.content = StorageClientUtils.getFilterMap(updatedMap, null, null, null, false);
             updatedContent.clear();
             updated = false;
             LOGGER.debug("Reset to {} ", updatedMap);
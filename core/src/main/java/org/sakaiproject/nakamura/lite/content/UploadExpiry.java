@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.util.TimerTask;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the chunked uploads that have expired, in an administrative session
+ * of its own, so that starting an upload never has to look at the others.
+ */
+public class UploadExpiry extends TimerTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadExpiry.class);
+
+    /**
+     * How often, in ms, expired uploads are removed, hourly.
+     */
+    public static final long INTERVAL = 60L * 60L * 1000L;
+
+    private Repository repository;
+
+    public UploadExpiry(Repository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public void run() {
+        Session session = null;
+        try {
+            session = repository.loginAdministrative();
+            ((ContentManagerImpl) session.getContentManager()).expireUploads();
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to remove expired uploads: {} ", e.getMessage());
+        } catch (AccessDeniedException e) {
+            LOGGER.warn("Unable to remove expired uploads: {} ", e.getMessage());
+        } finally {
+            if (session != null) {
+                try {
+                    session.logout();
+                } catch (ClientPoolException e) {
+                    LOGGER.warn("Unable to close session: {} ", e.getMessage());
+                }
+            }
+        }
+    }
+
+}
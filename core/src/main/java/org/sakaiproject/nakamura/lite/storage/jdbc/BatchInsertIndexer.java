@@ -117,14 +117,14 @@ public class BatchInsertIndexer extends KeyValueIndexer {
         for (PreparedStatement pst : removeSet) {
             long t = System.currentTimeMillis();
             pst.executeBatch();
-            client.checkSlow(columnFamily, Q_BATCH_REMOVE, System.currentTimeMillis() - t, Q_BATCH_REMOVE);
+            client.checkSlow(columnFamily, Q_BATCH_REMOVE, t, Q_BATCH_REMOVE);
         }
 
         LOGGER.debug("Insert set {}", insertSet);
         for (PreparedStatement pst : insertSet) {
             long t = System.currentTimeMillis();
             int[] res = pst.executeBatch();
-            client.checkSlow(columnFamily, Q_BATCH_REMOVE, System.currentTimeMillis() - t, Q_BATCH_REMOVE);
+            client.checkSlow(columnFamily, Q_BATCH_REMOVE, t, Q_BATCH_REMOVE);
             List<Entry<String, Object>> insertSeq = insertSequence.get(pst);
             for (int i = 0; i < res.length; i++) {
                 Entry<String, Object> e = insertSeq.get(i);
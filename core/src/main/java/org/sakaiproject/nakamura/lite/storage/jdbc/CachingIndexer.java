@@ -2,6 +2,8 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.util.Map;
 
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
 /**
  * Caching indexers cache result sets and have a method to allow external
  * classes to invalidate cache rows.
@@ -12,10 +14,24 @@ import java.util.Map;
 public interface CachingIndexer {
 
     /**
-     * Invalidate a cache entry, based on the query properties.
+     * Invalidate the cached queries that a change to a row might affect, ie
+     * those that match or sort by the indexed properties that changed, before
+     * or after the change. Called once the change has been written.
+     * @param keyspace
+     * @param columnFamily
+     * @param key
+     * @param previousValues the values of the changed properties before the change.
+     * @param values the changed properties.
+     * @throws StorageClientException
+     */
+    void invalidate(String keyspace, String columnFamily, String key, Map<String, Object> previousValues,
+            Map<String, Object> values) throws StorageClientException;
+
+    /**
+     * Invalidate all the cached queries of a column family, eg when a row has
+     * been removed without its values being known.
      * @param keyspace
      * @param columnFamily
-     * @param queryProperties
      */
-    void invalidate(String keyspace, String columnFamily, Map<String, Object> queryProperties);
+    void invalidate(String keyspace, String columnFamily);
 }
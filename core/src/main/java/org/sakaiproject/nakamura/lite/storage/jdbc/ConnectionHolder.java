@@ -34,6 +34,7 @@ public class ConnectionHolder {
     private long lastUsed;
     private long lastValidated;
     private JDBCStorageClientPool jdbcStorageClientPool;
+    private StatementCache statementCache;
 
     public ConnectionHolder(Connection connection, JDBCStorageClientPool jdbcStorageClientPool) {
         this.lastUsed = System.currentTimeMillis();
@@ -41,6 +42,8 @@ public class ConnectionHolder {
         // if its new.
         this.connection = connection;
         this.jdbcStorageClientPool = jdbcStorageClientPool;
+        this.statementCache = new StatementCache(jdbcStorageClientPool.getStatementCacheSize(),
+                jdbcStorageClientPool.getStatementCacheStatistics());
     }
 
     public void ping() {
@@ -104,7 +107,15 @@ public class ConnectionHolder {
         return connection;
     }
 
+    /**
+     * @return the cache of prepared statements open on the connection.
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
     public void close() {
+        statementCache.close();
         if (connection != null) {
             try {
                 connection.close();
@@ -18,101 +18,327 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ConnectionManager extends TimerTask {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-    private Map<Thread, ConnectionHolder> threadMap = new ConcurrentHashMap<Thread, ConnectionHolder>();
+/**
+ * A bounded pool of connections. A storage client leases a connection for the
+ * operations or transaction blocks that need it and gives it back afterwards,
+ * so connections are not tied to threads and many sessions can share a few
+ * connections. Every lease is a connection of its own, so one session can't
+ * commit or roll back the work of another. Callers wait in turn for a
+ * connection when all of them are in use. A few connections are held in
+ * reserve for leases made by a thread that already holds one, so a session
+ * nested inside another on the same thread can't wait forever for a
+ * connection the outer session won't give back until the nested one is done.
+ * When run by the timer, idle connections that have expired are closed and
+ * leases held for longer than the leak time are reported. The counters are
+ * exposed through {@link ConnectionManagerMBean}.
+ */
+public class ConnectionManager extends TimerTask implements ConnectionManagerMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionManager.class);
+
+    private static class Lease {
+        private ConnectionHolder holder;
+        private long leased;
+        private String thread;
+        private Exception traceback;
+        private boolean reported;
+        private Semaphore permits;
+        private AtomicInteger held;
+
+        Lease(ConnectionHolder holder, Semaphore permits, AtomicInteger held) {
+            this.holder = holder;
+            this.permits = permits;
+            this.held = held;
+            this.leased = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            // capturing the stack on every lease is too expensive to do all
+            // the time.
+            if (LOGGER.isDebugEnabled()) {
+                this.traceback = new Exception("Connection lease traceback");
+            }
+        }
+    }
+
+    private LinkedBlockingDeque<ConnectionHolder> idle = new LinkedBlockingDeque<ConnectionHolder>();
+    private Map<Connection, Lease> leased = new ConcurrentHashMap<Connection, Lease>();
+    /**
+     * The number of leases the thread holds. The counter goes with the lease,
+     * so it is right whichever thread gives the connection back.
+     */
+    private ThreadLocal<AtomicInteger> heldLeases = new ThreadLocal<AtomicInteger>() {
+        protected AtomicInteger initialValue() {
+            return new AtomicInteger();
+        }
+    };
     private boolean closing = false;
     private JDBCStorageClientPool jdbcStorageClientPool;
-    
+    private Semaphore available;
+    private Semaphore reserve;
+    private int maxConnections;
+    private int reservedConnections;
+    private long maxWait;
+    private long leakTime;
+    private AtomicLong leaseCount = new AtomicLong();
+    private AtomicLong reservedCount = new AtomicLong();
+    private AtomicLong waitCount = new AtomicLong();
+    private AtomicLong waitTime = new AtomicLong();
+    private AtomicLong timeoutCount = new AtomicLong();
+    private AtomicLong createdCount = new AtomicLong();
+    private AtomicLong leakCount = new AtomicLong();
 
-    public ConnectionManager(JDBCStorageClientPool jdbcStorageClientPool) {
+    /**
+     * @param jdbcStorageClientPool
+     * @param maxConnections
+     *            the most connections open at once, not counting the reserve.
+     * @param reservedConnections
+     *            the connections kept for leases by threads that already hold
+     *            one.
+     * @param maxWait
+     *            ms to wait for a connection before giving up.
+     * @param leakTime
+     *            ms after which a lease that has not been returned is
+     *            reported as a leak.
+     */
+    public ConnectionManager(JDBCStorageClientPool jdbcStorageClientPool, int maxConnections, int reservedConnections,
+            long maxWait, long leakTime) {
         this.jdbcStorageClientPool = jdbcStorageClientPool;
+        this.maxConnections = maxConnections;
+        this.reservedConnections = reservedConnections;
+        this.maxWait = maxWait;
+        this.leakTime = leakTime;
+        this.available = new Semaphore(maxConnections, true);
+        this.reserve = new Semaphore(reservedConnections, true);
     }
 
     @Override
     public void run() {
-        cleanThreadMap();
+        closeExpired();
+        checkLeaks();
+        LOGGER.debug(
+                "Connections leased:{} idle:{} max:{} leases:{} reserved:{} waits:{} waitTime:{}ms timeouts:{} created:{} leaks:{} ",
+                new Object[] { leased.size(), idle.size(), maxConnections, leaseCount.get(), reservedCount.get(),
+                        waitCount.get(), waitTime.get(), timeoutCount.get(), createdCount.get(), leakCount.get() });
     }
 
-    public Connection get() {
-        if ( closing ) {
-            return null;
+    /**
+     * Lease a connection, waiting for one to become free if they are all in
+     * use. A thread that already holds a lease takes one from the reserve
+     * instead when they are all in use, and waits for the reserve if that is
+     * in use too. The connection must be given back with
+     * {@link #release(Connection, boolean)}.
+     * 
+     * @return a connection in auto commit mode.
+     * @throws SQLException
+     *             if no connection could be leased.
+     */
+    public Connection lease() throws SQLException {
+        if (closing) {
+            throw new SQLException("ConnectionManager is closing ");
+        }
+        AtomicInteger held = heldLeases.get();
+        Semaphore permits = available;
+        if (!available.tryAcquire()) {
+            if (held.get() > 0) {
+                // the connections this thread holds may be what the others
+                // are waiting for.
+                permits = reserve;
+            }
+            if (!permits.tryAcquire()) {
+                waitCount.incrementAndGet();
+                long t = System.currentTimeMillis();
+                boolean acquired = false;
+                try {
+                    acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                waitTime.addAndGet(System.currentTimeMillis() - t);
+                if (!acquired) {
+                    timeoutCount.incrementAndGet();
+                    throw new SQLException("Timed out after " + maxWait + "ms waiting for one of " + maxConnections
+                            + " connections and " + reservedConnections + " reserved, " + leased.size() + " are leased");
+                }
+            }
         }
-        Thread t = Thread.currentThread();
-        ConnectionHolder ch = threadMap.get(t);
-        if (ch != null) {
-            return ch.get();
+        try {
+            ConnectionHolder holder = null;
+            Connection connection = null;
+            while ((holder = idle.pollFirst()) != null) {
+                connection = holder.get();
+                if (connection != null) {
+                    break;
+                }
+                holder.close();
+            }
+            if (connection == null) {
+                connection = jdbcStorageClientPool.createConnection();
+                createdCount.incrementAndGet();
+                holder = new ConnectionHolder(connection, jdbcStorageClientPool);
+            }
+            leased.put(connection, new Lease(holder, permits, held));
+            held.incrementAndGet();
+            leaseCount.incrementAndGet();
+            if (permits == reserve) {
+                reservedCount.incrementAndGet();
+            }
+            return connection;
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
         }
-        return null;
     }
 
-    public void set(Connection connection) {
-        if ( closing ) {
-            throw new IllegalStateException("ConnectionManager is closing ");
-        }
-        cleanThreadMap();
-        Thread t = Thread.currentThread();
-        ConnectionHolder c = threadMap.get(t);
-        if (c != null) {
-            c.close();
-            threadMap.remove(t);
+    /**
+     * Give back a leased connection.
+     * 
+     * @param connection
+     * @param discard
+     *            true if the connection is broken and should be closed rather
+     *            than reused.
+     */
+    public void release(Connection connection, boolean discard) {
+        Lease lease = leased.remove(connection);
+        if (lease == null) {
+            LOGGER.warn("Released a connection that was not leased {} ", connection);
+            return;
         }
-        ConnectionHolder ch = new ConnectionHolder(connection, jdbcStorageClientPool);
-        threadMap.put(t, ch);
-    }
-    
-    public void clean() {
-        Thread t = Thread.currentThread();
-        threadMap.get(t);
-        ConnectionHolder c = threadMap.get(t);
-        if (c != null) {
-            c.close();
-            threadMap.remove(t);
+        lease.held.decrementAndGet();
+        try {
+            if (!discard && !closing) {
+                try {
+                    if (!connection.getAutoCommit()) {
+                        LOGGER.warn("Connection released part way through a transaction, rolling back ");
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    lease.holder.ping();
+                    idle.offerFirst(lease.holder);
+                    return;
+                } catch (SQLException e) {
+                    LOGGER.debug("Failed to reset connection, closing it {} ", e.getMessage());
+                }
+            }
+            lease.holder.close();
+        } finally {
+            lease.permits.release();
         }
     }
 
-    private void cleanThreadMap() {
-        if ( closing ) {
+    private void closeExpired() {
+        if (closing) {
             return;
         }
-        Thread[] copy = threadMap.keySet().toArray(new Thread[threadMap.size()]);
-        for (Thread t : copy) {
-            if (!t.isAlive()) {
-                ConnectionHolder ch = threadMap.remove(t);
-                if (ch != null) {
+        ConnectionHolder[] copy = idle.toArray(new ConnectionHolder[0]);
+        for (ConnectionHolder ch : copy) {
+            // only check connections nobody else has taken meanwhile.
+            if (idle.remove(ch)) {
+                if (ch.hasExpired()) {
                     ch.close();
+                } else {
+                    idle.offerLast(ch);
                 }
-            } else {
-                ConnectionHolder ch = threadMap.get(t);
-                if (ch != null && ch.hasExpired()) {
-                    ch = threadMap.remove(t);
-                    if (ch != null) {
-                        ch.close();
-                    }
+            }
+        }
+    }
 
-                }
+    private void checkLeaks() {
+        long now = System.currentTimeMillis();
+        for (Entry<Connection, Lease> e : leased.entrySet()) {
+            Lease lease = e.getValue();
+            if (!lease.reported && now > lease.leased + leakTime) {
+                lease.reported = true;
+                leakCount.incrementAndGet();
+                LOGGER.warn("Connection leased by " + lease.thread + " for " + (now - lease.leased)
+                        + "ms and not returned, it may have leaked. Enable debug logging for a traceback ", lease.traceback);
             }
         }
     }
 
+    /**
+     * @param connection
+     *            a leased connection.
+     * @return the statement cache of the connection, or null if the connection
+     *         is not leased.
+     */
+    public StatementCache getStatementCache(Connection connection) {
+        Lease lease = leased.get(connection);
+        if (lease == null) {
+            return null;
+        }
+        return lease.holder.getStatementCache();
+    }
+
+    public int getLeasedCount() {
+        return leased.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    public int getReservedConnections() {
+        return reservedConnections;
+    }
+
+    public long getReservedCount() {
+        return reservedCount.get();
+    }
+
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getWaitTime() {
+        return waitTime.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
     public void close() {
         closing = true;
-        while (threadMap.size() > 0) {
-            
-            Thread[] copy = threadMap.keySet().toArray(new Thread[threadMap.size()]);
-            for (Thread t : copy) {
-                ConnectionHolder ch = threadMap.remove(t);
-                if (ch != null) {
-                    ch.close();
-                }
-            }
+        ConnectionHolder ch = null;
+        while ((ch = idle.pollFirst()) != null) {
+            ch.close();
+        }
+        for (Lease lease : leased.values()) {
+            lease.holder.close();
         }
-        threadMap.clear();
-        threadMap = null;
+        leased.clear();
     }
 
 }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+/**
+ * The counters of a {@link ConnectionManager}, registered with the platform
+ * MBeanServer by the {@link JDBCStorageClientPool} that owns it.
+ */
+public interface ConnectionManagerMBean {
+
+    /**
+     * @return the connections currently leased.
+     */
+    int getLeasedCount();
+
+    /**
+     * @return the open connections waiting to be leased.
+     */
+    int getIdleCount();
+
+    /**
+     * @return the most connections open at once, not counting the reserve.
+     */
+    int getMaxConnections();
+
+    /**
+     * @return the connections kept for leases by threads that already hold
+     *         one.
+     */
+    int getReservedConnections();
+
+    /**
+     * @return the number of connections leased from the pool.
+     */
+    long getLeaseCount();
+
+    /**
+     * @return the number of leases taken from the reserve.
+     */
+    long getReservedCount();
+
+    /**
+     * @return the number of leases that had to wait for a connection.
+     */
+    long getWaitCount();
+
+    /**
+     * @return the total ms spent waiting for connections.
+     */
+    long getWaitTime();
+
+    /**
+     * @return the number of leases that timed out waiting.
+     */
+    long getTimeoutCount();
+
+    /**
+     * @return the number of connections opened.
+     */
+    long getCreatedCount();
+
+    /**
+     * @return the number of leases reported as leaks.
+     */
+    long getLeakCount();
+}
@@ -0,0 +1,32 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+public interface CountingIndexer {
+
+    /**
+     * Count the rows a find would match, in the database rather than by
+     * iterating the rows. Paging and sorting are ignored.
+     * @param keySpace
+     * @param columnFamily
+     * @param properties the properties of the find.
+     * @return the number of matching rows.
+     * @throws StorageClientException
+     */
+    long count(String keySpace, String columnFamily, Map<String, Object> properties) throws StorageClientException;
+
+    /**
+     * Count the rows a find would match for each value of an indexed
+     * property. Rows without a value for the property are not counted.
+     * @param keySpace
+     * @param columnFamily
+     * @param properties the properties of the find.
+     * @param groupBy the property to group by, must be indexed and not an array.
+     * @return the number of matching rows keyed by the value of the property.
+     * @throws StorageClientException
+     */
+    Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties, String groupBy)
+            throws StorageClientException;
+}
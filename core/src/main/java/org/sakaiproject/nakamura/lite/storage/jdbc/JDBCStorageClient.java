@@ -22,8 +22,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UTFDataFormatException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -32,6 +30,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -43,17 +42,19 @@ import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.DataFormatException;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
-import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.BloomFilter;
+import org.sakaiproject.nakamura.lite.storage.spi.DigestRowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.Murmur3RowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
@@ -81,6 +82,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private static final String OP_SELECT = "select";
     private static final String OP_INSERT = "insert";
     private static final String OP_UPDATE = "update";
+    private static final String OP_FILTERED = "filtered";
 
     public class SlowQueryLogger {
         // only used to define the logger.
@@ -103,16 +105,23 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
     static final String SQL_BLOCK_DELETE_ROW = "block-delete-row";
     static final String SQL_BLOCK_SELECT_ROW = "block-select-row";
+    static final String SQL_BLOCK_SELECT_ROWS = "block-select-rows";
     static final String SQL_BLOCK_INSERT_ROW = "block-insert-row";
     static final String SQL_BLOCK_UPDATE_ROW = "block-update-row";
+    static final String SQL_BLOCK_UPSERT_ROW = "block-upsert-row";
 
     private static final String PROP_HASH_ALG = "rowid-hash";
     private static final String USE_BATCH_INSERTS = "use-batch-inserts";
     private static final String JDBC_SUPPORT_LEVEL = "jdbc-support-level";
     private static final String SQL_STATEMENT_SEQUENCE = "sql-statement-sequence";
     private static final String UPDATE_FIRST_SEQUENCE = "updateFirst";
+    private static final String MERGE_ON_WRITE = "merge-on-write";
+    private static final String ROW_FORMAT = "row-format";
+    private static final String SELECT_ROWS_BATCH_SIZE = "select-rows-batch-size";
     private static final Object SLOW_QUERY_THRESHOLD = "slow-query-time";
     private static final Object VERY_SLOW_QUERY_THRESHOLD = "very-slow-query-time";
+    private static final String SQL_EXPLAIN_PLAN = "explain-plan";
+    private static final String SQL_EXPLAIN_PLAN_RESET = "explain-plan-reset";
     /**
      * A set of columns that are indexed to allow operations within the driver.
      */
@@ -128,7 +137,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private List<Disposable> toDispose = Lists.newArrayList();
     private Exception destroyed;
     private Exception passivate;
-    private String rowidHash;
+    private RowHasher rowHasher;
     private Map<String, AtomicInteger> counters = Maps.newConcurrentMap();
     private Set<String> indexColumns;
     private Indexer indexer;
@@ -140,6 +149,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private int maxNameLength;
     private StatsService statsService;
     private StatsService poolStatsService;
+    private boolean mergeOnWrite;
+    private int rowFormat;
+    private int selectRowsBatchSize;
+    private Map<String, Boolean> shardedStatements = Maps.newHashMap();
+    private RowExistenceFilter rowExistenceFilter;
+    private Connection connection;
+    private int blockDepth;
 
     public JDBCStorageClient(JDBCStorageClientPool jdbcStorageClientConnectionPool, Map<String, Object> properties,
             Map<String, Object> sqlConfig, Set<String> indexColumns, Set<String> indexColumnTypes,
@@ -164,12 +180,22 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
         this.sqlConfig = sqlConfig;
         this.indexColumns = indexColumns;
-        rowidHash = getSql(PROP_HASH_ALG);
+        String rowidHash = getSql(PROP_HASH_ALG);
         if (rowidHash == null) {
             rowidHash = "MD5";
         }
+        if (Murmur3RowHasher.ALGORITHM.equalsIgnoreCase(rowidHash)) {
+            rowHasher = new Murmur3RowHasher();
+        } else {
+            rowHasher = new DigestRowHasher(rowidHash);
+        }
         this.sqlNamePadding = Boolean.parseBoolean(StorageClientUtils.getSetting(getSql(SQL_NAME_PADDING), "false"));
         this.maxNameLength = Integer.parseInt(StorageClientUtils.getSetting(getSql(SQL_MAX_NAME_LENGTH), "50"));
+        this.mergeOnWrite = "1".equals(getSql(MERGE_ON_WRITE));
+        this.rowFormat = Integer.parseInt(StorageClientUtils.getSetting(getSql(ROW_FORMAT),
+                String.valueOf(Types.ROW_FORMAT_V2)));
+        this.selectRowsBatchSize = Integer.parseInt(StorageClientUtils.getSetting(getSql(SELECT_ROWS_BATCH_SIZE), "100"));
+        this.rowExistenceFilter = jdbcStorageClientConnectionPool.getRowExistenceFilter();
         active = true;
         if (indexColumnsNames != null) {
             LOGGER.debug("Using Wide Columns");
@@ -200,12 +226,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     public Map<String, Object> get(String keySpace, String columnFamily, String key) throws StorageClientException {
         checkActive();
         String rid = rowHash(keySpace, columnFamily, key);
-        return internalGet(keySpace, columnFamily, rid, null); // gets through
-                                                               // this route
-                                                               // should have
-                                                               // already
-                                                               // consulted the
-                                                               // cache.
+        try {
+            // gets through this route should have already consulted the
+            // cache.
+            return internalGet(keySpace, columnFamily, rid, null);
+        } finally {
+            releaseIfIdle();
+        }
     }
 
     Map<String, Object> internalGet(String keySpace, String columnFamily, String rid, DirectCacheAccess cachingManager)
@@ -221,8 +248,15 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 return cached;
             }
         }
+        if (!mightExist(keySpace, columnFamily, rid)) {
+            Map<String, Object> result = ImmutableMap.of();
+            if (cachingManager != null) {
+                cachingManager.putToCache(rid, new CacheHolder(result), true);
+            }
+            return result;
+        }
         ResultSet body = null;
-        Map<String, Object> result = Maps.newHashMap();
+        Map<String, Object> result = ImmutableMap.of();
         PreparedStatement selectStringRow = null;
         try {
             boolean hasRetried = false;
@@ -238,7 +272,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     checkSlow(columnFamily, OP_SELECT, t1, getSql(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW));
                     inc("B");
                     if (body.next()) {
-                        Types.loadFromStream(rid, result, body.getBinaryStream(1), columnFamily);
+                        result = Types.loadRow(rid, body.getBinaryStream(1), columnFamily);
                     }
                     break;
                 } catch (SQLException ex) {
@@ -273,38 +307,208 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             close(body, "B");
             close(selectStringRow, "A");
         }
-        result = ImmutableMap.copyOf(result);
         if (cachingManager != null) {
             cachingManager.putToCache(rid, new CacheHolder(result), true);
         }
         return result;
     }
 
-    public String rowHash(String keySpace, String columnFamily, String key) throws StorageClientException {
-        MessageDigest hasher;
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily, Collection<String> keys)
+            throws StorageClientException {
+        checkActive();
+        Map<String, String> ridKeys = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            ridKeys.put(rowHash(keySpace, columnFamily, key), key);
+        }
+        Map<String, Map<String, Object>> rows = null;
         try {
-            hasher = MessageDigest.getInstance(rowidHash);
-        } catch (NoSuchAlgorithmException e1) {
-            throw new StorageClientException("Unable to get hash algorithm " + e1.getMessage(), e1);
+            rows = internalGetMany(keySpace, columnFamily, ridKeys.keySet(), null);
+        } finally {
+            releaseIfIdle();
+        }
+        Map<String, Map<String, Object>> result = Maps.newHashMap();
+        for (Entry<String, String> e : ridKeys.entrySet()) {
+            result.put(e.getValue(), rows.get(e.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Get a number of rows by rid, consulting the cache first and loading the
+     * rest with as few queries as the configuration allows.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param rids
+     * @param cachingManager
+     * @return a map of rid to row, rows that don't exist map to an empty map.
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> internalGetMany(String keySpace, String columnFamily, Collection<String> rids,
+            DirectCacheAccess cachingManager) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newHashMap();
+        Set<String> toLoad = Sets.newLinkedHashSet();
+        for (String rid : rids) {
+            if (cachingManager != null) {
+                CacheHolder ch = cachingManager.getFromCache(rid);
+                if (ch != null) {
+                    Map<String, Object> cached = ch.get();
+                    if (cached == null) {
+                        // the cache was an empty object, we respond with empty.
+                        cached = ImmutableMap.of();
+                    }
+                    result.put(rid, cached);
+                    continue;
+                }
+            }
+            if (!mightExist(keySpace, columnFamily, rid)) {
+                Map<String, Object> row = ImmutableMap.of();
+                result.put(rid, row);
+                if (cachingManager != null) {
+                    cachingManager.putToCache(rid, new CacheHolder(row), true);
+                }
+                continue;
+            }
+            toLoad.add(rid);
+        }
+        if (toLoad.size() == 0) {
+            return result;
+        }
+        if (toLoad.size() == 1 || getSql(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS) == null
+                || isSharded(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW)) {
+            // nothing to gain, no multi row select in this configuration, or
+            // rows are in shards by rowID that a single select can't span.
+            for (String rid : toLoad) {
+                result.put(rid, internalGet(keySpace, columnFamily, rid, cachingManager));
+            }
+            return result;
+        }
+        Map<String, Map<String, Object>> loaded = Maps.newHashMap();
+        for (List<String> batch : Lists.partition(Lists.newArrayList(toLoad), selectRowsBatchSize)) {
+            loadRows(keySpace, columnFamily, batch, loaded);
+        }
+        for (String rid : toLoad) {
+            Map<String, Object> row = loaded.get(rid);
+            if (row == null) {
+                row = ImmutableMap.of();
+            }
+            result.put(rid, row);
+            if (cachingManager != null) {
+                cachingManager.putToCache(rid, new CacheHolder(row), true);
+            }
         }
-        String keystring = keySpace + ":" + columnFamily + ":" + key;
-        byte[] ridkey;
+        return result;
+    }
+
+    /**
+     * @return false if the row certainly does not exist, without going to the
+     *         database.
+     */
+    private boolean mightExist(String keySpace, String columnFamily, String rid) {
+        if (rowExistenceFilter == null || rowExistenceFilter.mightExist(keySpace, columnFamily, rid)) {
+            return true;
+        }
+        statsService.storageOp(columnFamily, OP_FILTERED, 0);
+        return false;
+    }
+
+    /**
+     * @return true if the statement has a version for shards of rowIDs in the
+     *         column family, as found by
+     *         {@link #getStatement(String, String, String, String, Map)}.
+     */
+    private boolean isSharded(String keySpace, String columnFamily, String name) {
+        String k = name + "." + keySpace + "." + columnFamily;
+        Boolean sharded = shardedStatements.get(k);
+        if (sharded == null) {
+            sharded = false;
+            String[] prefixes = new String[] { name + "." + keySpace + "." + columnFamily + "._",
+                    name + "." + columnFamily + "._", name + "." + keySpace + "._", name + "._" };
+            for (String statementKey : sqlConfig.keySet()) {
+                for (String prefix : prefixes) {
+                    if (statementKey.startsWith(prefix)) {
+                        sharded = true;
+                    }
+                }
+            }
+            shardedStatements.put(k, sharded);
+        }
+        return sharded;
+    }
+
+    private void loadRows(String keySpace, String columnFamily, List<String> rids, Map<String, Map<String, Object>> loaded)
+            throws StorageClientException {
+        String[] placeholders = new String[rids.size()];
+        Arrays.fill(placeholders, "?");
+        String sql = MessageFormat.format(getSql(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS),
+                StringUtils.join(placeholders, ", "));
+        ResultSet body = null;
+        PreparedStatement selectRows = null;
         try {
-            ridkey = keystring.getBytes("UTF8");
-        } catch (UnsupportedEncodingException e) {
-            ridkey = keystring.getBytes();
+            boolean hasRetried = false;
+            for (;;) {
+                try {
+                    selectRows = connection().prepareStatement(sql);
+                    inc("selectRows");
+                    int i = 1;
+                    for (String rid : rids) {
+                        selectRows.setString(i, rid);
+                        i++;
+                    }
+                    long t1 = System.currentTimeMillis();
+                    body = selectRows.executeQuery();
+                    checkSlow(columnFamily, OP_SELECT, t1, sql);
+                    inc("selectRows r");
+                    while (body.next()) {
+                        String rid = body.getString(1);
+                        loaded.put(rid, Types.loadRow(rid, body.getBinaryStream(2), columnFamily));
+                    }
+                    break;
+                } catch (SQLException ex) {
+                    close(body, "selectRows r");
+                    close(selectRows, "selectRows");
+                    body = null;
+                    selectRows = null;
+                    if (!hasRetried) {
+                        resetConnection(null);
+                        hasRetried = true;
+                    } else {
+                        throw ex;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(body, "selectRows r");
+            close(selectRows, "selectRows");
         }
-        return StorageClientUtils.encode(hasher.digest(ridkey));
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key) throws StorageClientException {
+        return rowHasher.rowHash(keySpace, columnFamily, key);
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
+        insert(keySpace, columnFamily, key, values, probablyNew, null);
+    }
+
+    public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew,
+            Map<String, Object> currentValues) throws StorageClientException {
         checkActive();
 
         Map<String, PreparedStatement> statementCache = Maps.newHashMap();
         boolean autoCommit = true;
+        boolean inBlock = false;
+        boolean failed = false;
         try {
             autoCommit = startBlock();
+            inBlock = true;
             String rid = rowHash(keySpace, columnFamily, key);
             for (Entry<String, Object> e : values.entrySet()) {
                 String k = e.getKey();
@@ -318,10 +522,23 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             // thats done in the Manager itself.
             // If you find that your getting stale objects, then the cache
             // manager isnt evicting correctly.
-            Map<String, Object> updateMap = Maps.newHashMap(get(keySpace, columnFamily, key));
+            // In merge on write mode, if the caller already holds the current
+            // state of the row we merge into that rather than re-reading it.
+            Map<String, Object> updateMap = null;
+            if (mergeOnWrite && currentValues != null) {
+                updateMap = Maps.newHashMap(currentValues);
+            } else {
+                updateMap = Maps.newHashMap(get(keySpace, columnFamily, key));
+            }
             if (storageClientListener != null) {
                 storageClientListener.before(keySpace, columnFamily, key, updateMap);
             }
+            // the indexed values a change moves the row away from, so cached
+            // queries that matched them can be invalidated.
+            Map<String, Object> previousValues = Maps.newHashMap();
+            for (String k : values.keySet()) {
+                previousValues.put(k, updateMap.get(k));
+            }
             if (TRUE.equals(updateMap.get(DELETED_FIELD))) {
                 // if the map was previously deleted, delete all content since
                 // we don't want the old map becoming part of the new map.
@@ -341,14 +558,38 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 storageClientListener.after(keySpace, columnFamily, key, updateMap);
             }
             LOGGER.debug("Saving {} {} {} ", new Object[] { key, rid, updateMap });
-            if (probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
+            PreparedStatement upsertBlockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_UPSERT_ROW, rid, statementCache);
+            if (upsertBlockRow != null) {
+                // the dialect can insert or update in one statement, so there
+                // is no need to guess which one will work.
+                upsertBlockRow.clearWarnings();
+                upsertBlockRow.clearParameters();
+                upsertBlockRow.setString(1, rid);
+                InputStream upsertStream = null;
+                try {
+                    upsertStream = Types.storeMapToStream(rid, updateMap, columnFamily, rowFormat);
+                } catch (UTFDataFormatException e) {
+                    throw new DataFormatException(INVALID_DATA_ERROR, e);
+                }
+                if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
+                    upsertBlockRow.setBinaryStream(2, upsertStream, upsertStream.available());
+                } else {
+                    upsertBlockRow.setBinaryStream(2, upsertStream);
+                }
+                long t = System.currentTimeMillis();
+                // some dialects report 0 rows where the row was unchanged, so
+                // the count can't be used to detect failure.
+                upsertBlockRow.executeUpdate();
+                checkSlow(columnFamily, OP_UPDATE, t, getSql(keySpace, columnFamily, SQL_BLOCK_UPSERT_ROW));
+                LOGGER.debug("Upserted {} ", rid);
+            } else if (probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
                 PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_INSERT_ROW, rid, statementCache);
                 insertBlockRow.clearWarnings();
                 insertBlockRow.clearParameters();
                 insertBlockRow.setString(1, rid);
                 InputStream insertStream = null;
                 try {
-                    insertStream = Types.storeMapToStream(rid, updateMap, columnFamily);
+                    insertStream = Types.storeMapToStream(rid, updateMap, columnFamily, rowFormat);
                 } catch (UTFDataFormatException e) {
                     throw new DataFormatException(INVALID_DATA_ERROR, e);
                 }
@@ -372,7 +613,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     updateBlockRow.clearParameters();
                     updateBlockRow.setString(2, rid);
                     try {
-                        insertStream = Types.storeMapToStream(rid, updateMap, columnFamily);
+                        insertStream = Types.storeMapToStream(rid, updateMap, columnFamily, rowFormat);
                     } catch (UTFDataFormatException e) {
                         throw new DataFormatException(INVALID_DATA_ERROR, e);
                     }
@@ -399,7 +640,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 updateBlockRow.setString(2, rid);
                 InputStream updateStream = null;
                 try {
-                    updateStream = Types.storeMapToStream(rid, updateMap, columnFamily);
+                    updateStream = Types.storeMapToStream(rid, updateMap, columnFamily, rowFormat);
                 } catch (UTFDataFormatException e) {
                     throw new DataFormatException(INVALID_DATA_ERROR, e);
                 }
@@ -418,7 +659,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     insertBlockRow.clearParameters();
                     insertBlockRow.setString(1, rid);
                     try {
-                        updateStream = Types.storeMapToStream(rid, updateMap, columnFamily);
+                        updateStream = Types.storeMapToStream(rid, updateMap, columnFamily, rowFormat);
                     } catch (UTFDataFormatException e) {
                         throw new DataFormatException(INVALID_DATA_ERROR, e);
                     }
@@ -446,21 +687,45 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             indexer.index(statementCache, keySpace, columnFamily, key, rid, values);
 
             endBlock(autoCommit);
+            inBlock = false;
+            if (indexer instanceof CachingIndexer) {
+                ((CachingIndexer) indexer).invalidate(keySpace, columnFamily, key, previousValues, values);
+            }
+            if (rowExistenceFilter != null) {
+                rowExistenceFilter.added(keySpace, columnFamily, rid);
+            }
         } catch (SQLException e) {
-            abandonBlock(autoCommit);
-            resetConnection(statementCache);
+            failed = true;
             LOGGER.warn("Failed to perform insert/update operation on {}:{}:{} ", new Object[] { keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
         } catch (IOException e) {
-            abandonBlock(autoCommit);
             LOGGER.warn("Failed to perform insert/update operation on {}:{}:{} ", new Object[] { keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
         } finally {
+            // whatever stopped the block short of its end, roll it back so
+            // the connection is not left part way through a transaction.
+            if (inBlock) {
+                abandonBlock(autoCommit);
+            }
+            if (failed) {
+                resetConnection(statementCache);
+            }
             closeStatementCache(statementCache);
+            releaseIfIdle();
         }
     }
 
-    void checkSlow(String columnFamily, String type, long t, String sql) {
+    /**
+     * Record the time of an operation, logging it if it was slow.
+     *
+     * @param columnFamily
+     * @param type
+     * @param t
+     *            when the operation started.
+     * @param sql
+     * @return ms the operation took.
+     */
+    long checkSlow(String columnFamily, String type, long t, String sql) {
         t = System.currentTimeMillis() - t;
         if (t > slowQueryThreshold && t < verySlowQueryThreshold) {
             SQL_LOGGER.warn("Slow Query {}ms {}", new Object[] { t, sql });
@@ -471,7 +736,98 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         } else {
             statsService.storageOp(columnFamily, type, t);
         }
+        return t;
+    }
+
+    /**
+     * Capture the plan the database uses for a statement with the explain-plan
+     * statements of the config. These are separated by ; and run in order, {0}
+     * in a statement being replaced by the sql, which then has the parameters
+     * bound. The plan is the rows of the last statement that returns any. The
+     * explain-plan-reset statements, also separated by ;, are then run even if
+     * capturing the plan failed, so the connection is left as it was.
+     *
+     * @param sql
+     * @param parameters
+     * @return the plan, a line per row, or null if there are no explain-plan
+     *         statements for this database.
+     * @throws StorageClientException
+     */
+    public String explain(String sql, List<Object> parameters) throws StorageClientException {
+        String explain = getSql(SQL_EXPLAIN_PLAN);
+        if (explain == null) {
+            return null;
+        }
+        String plan = null;
+        String statementSql = null;
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
+            for (String part : StringUtils.split(explain, ';')) {
+                statementSql = part.contains("{0}") ? StringUtils.replace(part, "{0}", sql) : part;
+                pst = connection().prepareStatement(statementSql);
+                inc("explain");
+                if (part.contains("{0}")) {
+                    int i = 1;
+                    for (Object param : parameters) {
+                        pst.setObject(i, param);
+                        i++;
+                    }
+                }
+                if (pst.execute()) {
+                    rs = pst.getResultSet();
+                    inc("explain r");
+                    int columns = rs.getMetaData().getColumnCount();
+                    StringBuilder rows = new StringBuilder();
+                    while (rs.next()) {
+                        for (int c = 1; c <= columns; c++) {
+                            if (c > 1) {
+                                rows.append(" | ");
+                            }
+                            rows.append(rs.getString(c));
+                        }
+                        rows.append("\n");
+                    }
+                    plan = rows.toString();
+                    close(rs, "explain r");
+                    rs = null;
+                }
+                close(pst, "explain");
+                pst = null;
+            }
+            return plan;
+        } catch (SQLException e) {
+            LOGGER.debug(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + statementSql, e);
+        } finally {
+            close(rs, "explain r");
+            close(pst, "explain");
+            resetExplain();
+        }
+    }
 
+    /**
+     * Run the explain-plan-reset statements. A failure is only logged, so that
+     * it does not hide the outcome of the explain.
+     */
+    private void resetExplain() {
+        String reset = getSql(SQL_EXPLAIN_PLAN_RESET);
+        if (reset == null) {
+            return;
+        }
+        for (String part : StringUtils.split(reset, ';')) {
+            PreparedStatement pst = null;
+            try {
+                pst = connection().prepareStatement(part);
+                inc("explain reset");
+                pst.execute();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to reset after explain with {}, {}", part, e.getMessage());
+                LOGGER.debug(e.getMessage(), e);
+            } finally {
+                close(pst, "explain reset");
+            }
+        }
     }
 
     String getSql(String keySpace, String columnFamily, String name) {
@@ -479,9 +835,10 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     }
 
     private void abandonBlock(boolean autoCommit) {
+        blockDepth--;
         if (autoCommit) {
             try {
-                Connection connection = jdbcStorageClientConnection.getConnection();
+                Connection connection = connection();
                 connection.rollback();
                 connection.setAutoCommit(autoCommit);
                 if (storageClientListener != null) {
@@ -493,21 +850,33 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
+    /**
+     * End a block started with {@link #startBlock()}, committing it if it was
+     * the outermost. If this throws the block is still open and must be
+     * abandoned.
+     */
     private void endBlock(boolean autoCommit) throws SQLException {
         if (autoCommit) {
-            Connection connection = jdbcStorageClientConnection.getConnection();
+            Connection connection = connection();
             connection.commit();
             connection.setAutoCommit(autoCommit);
             if (storageClientListener != null) {
                 storageClientListener.commit();
             }
         }
+        blockDepth--;
     }
 
+    /**
+     * Start a transaction block, which holds the leased connection until it is
+     * ended with {@link #endBlock(boolean)} or {@link #abandonBlock(boolean)}.
+     * If this throws no block was started.
+     */
     private boolean startBlock() throws SQLException {
-        Connection connection = jdbcStorageClientConnection.getConnection();
+        Connection connection = connection();
         boolean autoCommit = connection.getAutoCommit();
         connection.setAutoCommit(false);
+        blockDepth++;
         if (storageClientListener != null) {
             storageClientListener.begin();
         }
@@ -524,8 +893,11 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         PreparedStatement deleteBlockRow = null;
         String rid = rowHash(keySpace, columnFamily, key);
         boolean autoCommit = false;
+        boolean inBlock = false;
+        boolean failed = false;
         try {
             autoCommit = startBlock();
+            inBlock = true;
             if (storageClientListener != null) {
                 storageClientListener.delete(keySpace, columnFamily, key);
             }
@@ -547,14 +919,24 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             deleteBlockRow.executeUpdate();
             checkSlow(columnFamily, OP_DELETE, t1, getSql(keySpace, columnFamily, SQL_BLOCK_DELETE_ROW));
             endBlock(autoCommit);
+            inBlock = false;
+            if (indexer instanceof CachingIndexer) {
+                ((CachingIndexer) indexer).invalidate(keySpace, columnFamily);
+            }
         } catch (SQLException e) {
-            abandonBlock(autoCommit);
-            resetConnection(null);
+            failed = true;
             LOGGER.warn("Failed to perform delete operation on {}:{}:{} ", new Object[] { keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
         } finally {
+            if (inBlock) {
+                abandonBlock(autoCommit);
+            }
+            if (failed) {
+                resetConnection(null);
+            }
             close(deleteStringRow, "deleteStringRow");
             close(deleteBlockRow, "deleteBlockRow");
+            releaseIfIdle();
         }
     }
 
@@ -564,6 +946,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     }
 
     public void destroy() {
+        releaseConnection(false);
         if (destroyed == null) {
             try {
                 destroyed = new Exception("Connection Closed Traceback");
@@ -616,38 +999,89 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         for (String k : keys) {
             if (sqlConfig.containsKey(k)) {
                 LOGGER.debug("Using Statement {} ", sqlConfig.get(k));
-                if (statementCache != null && statementCache.containsKey(k)) {
-                    return statementCache.get(k);
-                } else {
-
-                    PreparedStatement pst = jdbcStorageClientConnection.getConnection().prepareStatement((String) sqlConfig.get(k));
-                    if (statementCache != null) {
-                        inc("cachedStatement");
-                        statementCache.put(k, pst);
-                    }
-                    return pst;
+                if (statementCache != null) {
+                    return getStatement((String) sqlConfig.get(k), statementCache);
                 }
+                return connection().prepareStatement((String) sqlConfig.get(k));
             }
         }
         return null;
     }
 
+    /**
+     * Get a prepared statement for use within an operation. Statements in the
+     * operation's cache come from and go back to the cache of the connection
+     * with {@link #closeStatementCache(Map)}.
+     * 
+     * @param sql
+     * @param statementCache
+     *            the statements of the operation, keyed by sql, or null if the
+     *            caller will close the statement.
+     * @return
+     * @throws SQLException
+     */
     PreparedStatement getStatement(String sql, Map<String, PreparedStatement> statementCache) throws SQLException {
         PreparedStatement pst = null;
         if (statementCache != null) {
             if (statementCache.containsKey(sql)) {
                 pst = statementCache.get(sql);
             } else {
-                pst = jdbcStorageClientConnection.getConnection().prepareStatement(sql);
+                pst = prepare(sql);
                 inc("cachedStatement");
                 statementCache.put(sql, pst);
             }
         } else {
-            pst = jdbcStorageClientConnection.getConnection().prepareStatement(sql);
+            pst = connection().prepareStatement(sql);
         }
         return pst;
     }
 
+    /**
+     * Prepare a statement on the leased connection, reusing one from the
+     * connection's statement cache if there is one. The statement must be
+     * given back with {@link #release(String, PreparedStatement)} rather than
+     * closed.
+     * 
+     * @param sql
+     * @return the statement.
+     * @throws SQLException
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        Connection c = connection();
+        StatementCache connectionStatements = jdbcStorageClientConnection.getStatementCache(c);
+        if (connectionStatements != null) {
+            PreparedStatement pst = connectionStatements.take(sql);
+            if (pst != null) {
+                pst.clearParameters();
+                return pst;
+            }
+        }
+        return c.prepareStatement(sql);
+    }
+
+    /**
+     * Give back a statement from {@link #prepare(String)}, caching it if its
+     * connection is still leased by this client, otherwise closing it.
+     * 
+     * @param sql
+     * @param pst
+     */
+    void release(String sql, PreparedStatement pst) {
+        try {
+            StatementCache connectionStatements = null;
+            if (connection != null && pst.getConnection() == connection) {
+                connectionStatements = jdbcStorageClientConnection.getStatementCache(connection);
+            }
+            if (connectionStatements != null) {
+                connectionStatements.put(sql, pst);
+            } else {
+                pst.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to release prepared statement, ok to ignore this message ", e);
+        }
+    }
+
     private void disposeDisposables() {
         List<Disposable> dList = null;
         // this shoud not be necessary, but just in case.
@@ -665,6 +1099,8 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         synchronized (desponseLock) {
             toDispose.remove(disposable);
         }
+        // iterators unregister once their result sets are closed.
+        releaseIfIdle();
     }
 
     public <T extends Disposable> T registerDisposable(T disposable) {
@@ -683,7 +1119,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         try {
             // just get a connection, that will be enough to validate.
             // this is not a perfect solution. A better solution would be to handle the failiure in the client code on update.
-            statement = jdbcStorageClientConnection.getConnection().createStatement();
+            statement = connection().createStatement();
             return true;
         } catch (SQLException e) {
             LOGGER.warn("Failed to validate connection ", e);
@@ -694,6 +1130,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             } catch (Throwable e) {
                 LOGGER.debug("Failed to close statement in validate ", e);
             }
+            releaseIfIdle();
         }
     }
 
@@ -716,7 +1153,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         Statement statement = null;
         try {
 
-            statement = jdbcStorageClientConnection.getConnection().createStatement();
+            statement = connection().createStatement();
             try {
                 statement.execute(getSql(SQL_CHECKSCHEMA));
                 inc("schema");
@@ -788,12 +1225,14 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             } catch (Throwable e) {
                 LOGGER.debug("Failed to close statement in validate ", e);
             }
+            releaseIfIdle();
         }
 
     }
 
     public void activate() {
         passivate = null;
+        blockDepth = 0;
         active = true;
     }
 
@@ -802,6 +1241,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             statsService = poolStatsService;
             passivate = new Exception("Passivate Traceback");
             disposeDisposables();
+            if (blockDepth > 0) {
+                // the pool rolls back a connection given back part way
+                // through a transaction.
+                LOGGER.warn("Client passivated with {} transaction blocks open ", blockDepth);
+                blockDepth = 0;
+            }
+            releaseConnection(false);
             active = false;
         }
     }
@@ -827,9 +1273,65 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         return streamedContentHelper.hasStream(content, streamId);
     }
 
+    public Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId,
+            Map<String, Object> content) throws StorageClientException, IOException {
+        checkActive();
+        return streamedContentHelper.shareBody(keySpace, columnFamily, streamId, content);
+    }
+
+    public void removeBody(String keySpace, String columnFamily, String contentId, String contentBlockId,
+            String streamId, Map<String, Object> content) throws StorageClientException, IOException {
+        checkActive();
+        streamedContentHelper.removeBody(keySpace, columnFamily, contentBlockId, streamId, content);
+    }
+
+    public void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws StorageClientException, IOException {
+        checkActive();
+        streamedContentHelper.releaseBody(keySpace, columnFamily, streamId, content);
+    }
+
     protected Connection getConnection() throws StorageClientException, SQLException {
         checkActive();
-        return jdbcStorageClientConnection.getConnection();
+        return connection();
+    }
+
+    /**
+     * @return the connection leased by this client, leasing one if it doesn't
+     *         have one.
+     * @throws SQLException
+     */
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            connection = jdbcStorageClientConnection.getConnection();
+        }
+        return connection;
+    }
+
+    /**
+     * Give the leased connection back to the pool, unless a transaction block
+     * is in progress or an iterator still has a result set open on it.
+     */
+    private void releaseIfIdle() {
+        if (connection == null || blockDepth > 0) {
+            return;
+        }
+        synchronized (desponseLock) {
+            for (Disposable d : toDispose) {
+                if (d instanceof DisposableIterator) {
+                    return;
+                }
+            }
+        }
+        releaseConnection(false);
+    }
+
+    private void releaseConnection(boolean discard) {
+        if (connection != null) {
+            Connection c = connection;
+            connection = null;
+            jdbcStorageClientConnection.releaseConnection(c, discard);
+        }
     }
 
     public DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily, String key,
@@ -841,10 +1343,23 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 StorageConstants.CUSTOM_STATEMENT_SET, "listchildren", StorageConstants.CACHEABLE, true), cachingManager);
     }
 
+    public DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily, String key,
+            String continuation, long items, DirectCacheAccess cachingManager) throws StorageClientException {
+        String hash = rowHash(keySpace, columnFamily, key);
+        LOGGER.debug("Finding page of {}:{}:{} as {} ", new Object[] { keySpace, columnFamily, key, hash });
+        return find(keySpace, columnFamily, ImmutableMap.of(Content.PARENT_HASH_FIELD, (Object) hash,
+                StorageConstants.CONTINUATION, continuation == null ? "" : continuation, StorageConstants.ITEMS, items),
+                cachingManager);
+    }
+
     public DisposableIterator<Map<String, Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties, DirectCacheAccess cachingManager) throws StorageClientException {
         checkActive();
-        return indexer.find(keySpace, columnFamily, properties, cachingManager);
+        try {
+            return indexer.find(keySpace, columnFamily, properties, cachingManager);
+        } finally {
+            releaseIfIdle();
+        }
 
     }
 
@@ -864,13 +1379,12 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         ResultSet trs = null;
         try {
             LOGGER.debug("Preparing {} ", sql);
-            tpst = jdbcStorageClientConnection.getConnection().prepareStatement(sql);
+            tpst = connection().prepareStatement(sql);
             inc("iterator");
             tpst.clearParameters();
 
             long qtime = System.currentTimeMillis();
             trs = tpst.executeQuery();
-            qtime = System.currentTimeMillis() - qtime;
             checkSlow(columnFamily, OP_LISTALL, qtime, sql);
             inc("iterator r");
             LOGGER.debug("Executed ");
@@ -965,6 +1479,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             } catch (SQLException e) {
                 LOGGER.warn(e.getMessage(), e);
             }
+            releaseIfIdle();
         }
 
     }
@@ -1015,23 +1530,36 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     
     void resetConnection(Map<String, PreparedStatement> statementCache) {
         if ( statementCache != null ) {
-            closeStatementCache(statementCache);
+            for (PreparedStatement pst : statementCache.values()) {
+                if (pst != null) {
+                    try {
+                        pst.close();
+                        dec("cachedStatement");
+                    } catch (SQLException e) {
+                        LOGGER.debug(e.getMessage(), e);
+                    }
+                }
+            }
+            statementCache.clear();
         }
-        jdbcStorageClientConnection.resetConnection();
+        releaseConnection(true);
     }
 
 
+    /**
+     * Give back the statements of an operation to the cache of their
+     * connection.
+     * 
+     * @param statementCache
+     */
     public void closeStatementCache(Map<String, PreparedStatement> statementCache) {
-        for (PreparedStatement pst : statementCache.values()) {
-            if (pst != null) {
-                try {
-                    pst.close();
-                    dec("cachedStatement");
-                } catch (SQLException e) {
-                    LOGGER.debug(e.getMessage(), e);
-                }
+        for (Entry<String, PreparedStatement> e : statementCache.entrySet()) {
+            if (e.getValue() != null) {
+                release(e.getKey(), e.getValue());
+                dec("cachedStatement");
             }
         }
+        statementCache.clear();
     }
 
     public Map<String, String> syncIndexColumns() throws StorageClientException, SQLException {
@@ -1049,7 +1577,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         PreparedStatement selectColumnsPst = null;
         PreparedStatement insertColumnsPst = null;
         ResultSet rs = null;
-        Connection connection = jdbcStorageClientConnection.getConnection();
+        Connection connection = connection();
         Statement statement = null;
         try {
             selectColumnsPst = connection.prepareStatement(selectColumns);
@@ -1143,6 +1671,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     LOGGER.debug(e.getMessage(), e);
                 }
             }
+            releaseIfIdle();
         }
     }
 
@@ -1205,7 +1734,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         ResultSet trs = null;
         try {
             LOGGER.debug("Preparing {} ", sql);
-            tpst = jdbcStorageClientConnection.getConnection().prepareStatement(sql);
+            tpst = connection().prepareStatement(sql);
             inc("iterator");
             tpst.clearParameters();
 
@@ -1244,6 +1773,96 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             } catch (SQLException e) {
                 LOGGER.warn(e.getMessage(), e);
             }
+            releaseIfIdle();
+        }
+    }
+
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        checkActive();
+        try {
+            if (indexer instanceof CountingIndexer) {
+                return ((CountingIndexer) indexer).count(keySpace, columnFamily, properties);
+            }
+            // older indexers have a count statement set.
+            Builder<String, Object> b = ImmutableMap.builder();
+            b.putAll(properties);
+            b.put(StorageConstants.CUSTOM_STATEMENT_SET, "countestimate");
+            b.put(StorageConstants.RAWRESULTS, true);
+            DisposableIterator<Map<String, Object>> counts = indexer.find(keySpace, columnFamily, b.build(), null);
+            try {
+                if (!counts.hasNext()) {
+                    return 0;
+                }
+                return Long.parseLong(String.valueOf(counts.next().get("1")));
+            } finally {
+                counts.close();
+            }
+        } finally {
+            releaseIfIdle();
+        }
+    }
+
+    public Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties,
+            String groupBy) throws StorageClientException {
+        checkActive();
+        try {
+            if (indexer instanceof CountingIndexer) {
+                return ((CountingIndexer) indexer).countBy(keySpace, columnFamily, properties, groupBy);
+            }
+            throw new StorageClientException("Counting by " + groupBy + " is not supported by "
+                    + indexer.getClass().getName());
+        } finally {
+            releaseIfIdle();
+        }
+    }
+
+    /**
+     * Add the ids of all the rows in a column family to a filter.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param filter
+     * @return the number of rows added.
+     * @throws StorageClientException
+     */
+    long loadRowIds(String keySpace, String columnFamily, BloomFilter filter) throws StorageClientException {
+        String[] keys = new String[] { "list-all-rids." + keySpace + "." + columnFamily, "list-all-rids." + columnFamily,
+                "list-all-rids", "list-all." + keySpace + "." + columnFamily, "list-all." + columnFamily, "list-all" };
+        String sql = null;
+        for (String statementKey : keys) {
+            sql = getSql(statementKey);
+            if (sql != null) {
+                break;
+            }
+        }
+        if (sql == null) {
+            throw new StorageClientException("Cant find sql statement for one of " + Arrays.toString(keys));
+        }
+        PreparedStatement tpst = null;
+        ResultSet trs = null;
+        try {
+            LOGGER.debug("Preparing {} ", sql);
+            tpst = connection().prepareStatement(sql);
+            inc("iterator");
+            long qtime = System.currentTimeMillis();
+            trs = tpst.executeQuery();
+            checkSlow(columnFamily, OP_LISTALL, qtime, sql);
+            inc("iterator r");
+            long rows = 0;
+            while (trs.next()) {
+                filter.put(trs.getString(1));
+                rows++;
+            }
+            return rows;
+        } catch (SQLException e) {
+            resetConnection(null);
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sql, e);
+        } finally {
+            close(trs, "iterator r");
+            close(tpst, "iterator");
+            releaseIfIdle();
         }
     }
 
@@ -1251,12 +1870,20 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         this.storageClientListener = storageClientListener;
     }
 
-    public Map<String, CacheHolder> getQueryCache() {
-        StorageCacheManager storageCacheManager = this.jdbcStorageClientConnection.getStorageCacheManager();
-        if (storageCacheManager != null) {
-            return storageCacheManager.getCache("sparseQueryCache");
-        }
-        return null;
+    /**
+     * @return the query cache shared by the clients of the pool, or null if
+     *         there is no cache.
+     */
+    public QueryCache getQueryCache() {
+        return jdbcStorageClientConnection.getQueryCache();
+    }
+
+    /**
+     * @return the advisor very slow finds are reported to, or null if slow
+     *         queries are not being explained.
+     */
+    public QueryAdvisor getQueryAdvisor() {
+        return jdbcStorageClientConnection.getQueryAdvisor();
     }
 
     @Override
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -32,6 +33,10 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Timer;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.pool.PoolableObjectFactory;
 import org.apache.felix.scr.annotations.Activate;
@@ -52,6 +57,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.ImmutableSet;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
@@ -77,6 +83,64 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     public static final String USERNAME = "username";
     @Property(value = { "" })
     public static final String PASSWORD = "password";
+    /**
+     * The most database connections open at once, shared by all the clients
+     * of the pool.
+     */
+    @Property(value = { "50" })
+    public static final String MAX_CONNECTIONS = "max-connections";
+    /**
+     * ms a client waits for a connection before failing.
+     */
+    @Property(value = { "10000" })
+    public static final String CONNECTION_WAIT = "connection-wait";
+    /**
+     * Connections beyond the maximum kept for clients on threads that already
+     * hold a connection, so that nested sessions don't wait on the sessions
+     * they are nested in.
+     */
+    @Property(value = { "5" })
+    public static final String RESERVED_CONNECTIONS = "reserved-connections";
+    /**
+     * ms after which a connection that has not been returned is reported.
+     */
+    @Property(value = { "300000" })
+    public static final String CONNECTION_LEAK_TIME = "connection-leak-time";
+
+    /**
+     * The most prepared statements kept open on each connection for reuse, 0
+     * to close statements after each use.
+     */
+    @Property(value = { "100" })
+    public static final String STATEMENT_CACHE_SIZE = "statement-cache-size";
+
+    /**
+     * Column families, as keySpace.columnFamily, that keep a filter of existing
+     * rows so lookups of missing rows don't go to the database. Only safe where
+     * one server writes to the database. Empty to disable.
+     */
+    @Property(value = { "" })
+    public static final String ROW_FILTER = "row-filter";
+    @Property(value = { "0.01" })
+    public static final String ROW_FILTER_FALSE_POSITIVE_RATE = "row-filter-false-positive-rate";
+    @Property(value = { "8388608" })
+    public static final String ROW_FILTER_MAX_BYTES = "row-filter-max-bytes";
+    /**
+     * Seconds between rebuilds of the row filters from the database.
+     */
+    @Property(value = { "3600" })
+    public static final String ROW_FILTER_REBUILD_INTERVAL = "row-filter-rebuild-interval";
+
+    /**
+     * If true the plans of finds slower than the very slow query time of the
+     * database config are captured and the finds are grouped by shape to
+     * suggest index columns, logged as a report every explain-report-interval
+     * seconds.
+     */
+    @Property(boolValue = false)
+    public static final String EXPLAIN_SLOW_QUERIES = "explain-slow-queries";
+    @Property(value = { "600" })
+    public static final String EXPLAIN_REPORT_INTERVAL = "explain-report-interval";
 
     @Reference
     public StatsServiceFactory statsServiceFactroy;
@@ -147,10 +211,22 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
     private ConnectionManager connectionManager;
 
+    private ObjectName connectionManagerName;
+
     private Timer timer;
 
     private Map<String, String> indexColumnsMap;
 
+    private RowExistenceFilter rowExistenceFilter;
+
+    private QueryCache queryCache;
+
+    private QueryAdvisor queryAdvisor;
+
+    private int statementCacheSize;
+
+    private StatementCache.Statistics statementCacheStatistics;
+
     @Override
     @Activate
     @SuppressWarnings(value = { "NP_CLOSING_NULL" }, justification = "Invalid report, if this was the case then nothing would work")
@@ -158,10 +234,41 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         this.properties = properties;
         super.activate(properties);
 
-        connectionManager = new ConnectionManager(this);
+        statementCacheSize = StorageClientUtils.getSetting(properties.get(STATEMENT_CACHE_SIZE), 100);
+        statementCacheStatistics = new StatementCache.Statistics(statementCacheSize);
+        if (statsServiceFactroy != null) {
+            statsServiceFactroy.registerCache(StatementCache.CACHE_NAME, statementCacheStatistics);
+        }
+        connectionManager = new ConnectionManager(this, StorageClientUtils.getSetting(properties.get(MAX_CONNECTIONS), 50),
+                StorageClientUtils.getSetting(properties.get(RESERVED_CONNECTIONS), 5),
+                StorageClientUtils.getSetting(properties.get(CONNECTION_WAIT), 10000L), StorageClientUtils.getSetting(
+                        properties.get(CONNECTION_LEAK_TIME), 300000L));
+        registerConnectionManager();
         timer = new Timer();
         timer.schedule(connectionManager, 30000L, 30000L);
 
+        rowExistenceFilter = null;
+        String[] rowFilter = StringUtils.split(StorageClientUtils.getSetting(properties.get(ROW_FILTER), ""), ", ");
+        if (rowFilter != null && rowFilter.length > 0) {
+            rowExistenceFilter = new RowExistenceFilter(this, ImmutableSet.copyOf(rowFilter), StorageClientUtils.getSetting(
+                    properties.get(ROW_FILTER_FALSE_POSITIVE_RATE), 0.01D), StorageClientUtils.getSetting(
+                    properties.get(ROW_FILTER_MAX_BYTES), 8388608L));
+            long interval = StorageClientUtils.getSetting(properties.get(ROW_FILTER_REBUILD_INTERVAL), 3600L);
+            timer.schedule(rowExistenceFilter, 5000L, interval * 1000L);
+        }
+
+        queryAdvisor = null;
+        if (StorageClientUtils.getSetting(properties.get(EXPLAIN_SLOW_QUERIES), false)) {
+            queryAdvisor = new QueryAdvisor(this, 100);
+            long interval = StorageClientUtils.getSetting(properties.get(EXPLAIN_REPORT_INTERVAL), 600L);
+            timer.schedule(queryAdvisor, interval * 1000L, interval * 1000L);
+        }
+
+        queryCache = null;
+        if (storageManagerCache != null) {
+            queryCache = new QueryCache(storageManagerCache, statsServiceFactroy);
+        }
+
         // this is a default cache used where none has been provided.
         if (LOGGER.isDebugEnabled()) {
             DriverManager.setLogWriter(new PrintWriter(System.err));
@@ -226,6 +333,36 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
     }
 
+    /**
+     * Register the counters of the connection pool with the platform
+     * MBeanServer, replacing those of an earlier pool for the same database.
+     */
+    private void registerConnectionManager() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            connectionManagerName = new ObjectName("org.sakaiproject.nakamura.lite:type=ConnectionPool,name="
+                    + ObjectName.quote(StorageClientUtils.getSetting(properties.get(CONNECTION_URL), "")));
+            if (mbeanServer.isRegistered(connectionManagerName)) {
+                mbeanServer.unregisterMBean(connectionManagerName);
+            }
+            mbeanServer.registerMBean(connectionManager, connectionManagerName);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register the connection pool MBean {} ", e.getMessage());
+            connectionManagerName = null;
+        }
+    }
+
+    private void unregisterConnectionManager() {
+        if (connectionManagerName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(connectionManagerName);
+            } catch (JMException e) {
+                LOGGER.debug("Failed to unregister the connection pool MBean {} ", e.getMessage());
+            }
+            connectionManagerName = null;
+        }
+    }
+
     public Map<String, String> getIndexColumnsNames() {
         return indexColumnsMap;
     }
@@ -236,6 +373,7 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         super.deactivate(properties);
 
         timer.cancel();
+        unregisterConnectionManager();
         connectionManager.close();
 
         String connectionUrl = StorageClientUtils.getSetting(this.properties.get(CONNECTION_URL), "");
@@ -293,9 +431,11 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     public Map<String, Object> getSqlConfig(Connection connection) {
         synchronized (sqlConfigLock) {
             if (sqlConfig == null) {
+                Connection leased = null;
                 try {
                     if (connection == null) {
-                        connection = getConnection();
+                        leased = getConnection();
+                        connection = leased;
                     }
                     for (String clientSQLLocation : getClientConfigLocations(connection)) {
                         String clientConfig = clientSQLLocation + ".sql";
@@ -321,6 +461,10 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
                     }
                 } catch (SQLException e) {
                     LOGGER.error("Failed to locate SQL configuration ", e);
+                } finally {
+                    if (leased != null) {
+                        releaseConnection(leased, false);
+                    }
                 }
             }
         }
@@ -353,27 +497,84 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         return new JCBCStorageClientConnection();
     }
 
+    /**
+     * @return the filter of existing rows, or null if there isn't one.
+     */
+    public RowExistenceFilter getRowExistenceFilter() {
+        return rowExistenceFilter;
+    }
+
+    /**
+     * @return the cache of query results shared by the clients of the pool, or
+     *         null if there is no cache manager.
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return the advisor very slow finds are reported to, or null if slow
+     *         queries are not being explained.
+     */
+    public QueryAdvisor getQueryAdvisor() {
+        return queryAdvisor;
+    }
+
     public StorageCacheManager getStorageCacheManager() {
         return storageManagerCache;
     }
 
+    /**
+     * Lease a connection from the pool, it must be given back with
+     * {@link #releaseConnection(Connection, boolean)}.
+     * 
+     * @return a connection in auto commit mode.
+     * @throws SQLException
+     *             if no connection became free in time.
+     */
     public Connection getConnection() throws SQLException {
-        Connection connection = connectionManager.get();
-        if (connection == null) {
-            if ("".equals(username)) {
-                connection = DriverManager.getConnection(url, connectionProperties);
-            } else {
-                connection = DriverManager.getConnection(url, username, password);
-            }
-            connection.setAutoCommit(true); // KERN-1691
-            connectionManager.set(connection);
+        return connectionManager.lease();
+    }
+
+    /**
+     * Give back a connection leased with {@link #getConnection()}.
+     * 
+     * @param connection
+     * @param discard
+     *            true if the connection is broken and must not be reused.
+     */
+    public void releaseConnection(Connection connection, boolean discard) {
+        connectionManager.release(connection, discard);
+    }
+
+    /**
+     * @param connection
+     *            a connection leased with {@link #getConnection()}.
+     * @return the cache of prepared statements of the connection, or null if it
+     *         is not leased.
+     */
+    public StatementCache getStatementCache(Connection connection) {
+        return connectionManager.getStatementCache(connection);
+    }
+
+    int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    StatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+
+    Connection createConnection() throws SQLException {
+        Connection connection = null;
+        if ("".equals(username)) {
+            connection = DriverManager.getConnection(url, connectionProperties);
+        } else {
+            connection = DriverManager.getConnection(url, username, password);
         }
+        connection.setAutoCommit(true); // KERN-1691
         return connection;
     }
-    
-    public void resetConnection() {
-        connectionManager.clean();
-    }
 
     public String getValidationSql() {
         if (sqlConfig != null) {
@@ -215,7 +215,7 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
 
             long qtime = System.currentTimeMillis();
             trs = tpst.executeQuery();
-            client.checkSlow(columnFamily, "index_select", System.currentTimeMillis() - qtime, sqlStatement);
+            client.checkSlow(columnFamily, "index_select", qtime, sqlStatement);
             client.inc("iterator r");
             LOGGER.debug("Executed ");
 
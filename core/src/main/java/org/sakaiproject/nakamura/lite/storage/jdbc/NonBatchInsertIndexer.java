@@ -41,7 +41,7 @@ public class NonBatchInsertIndexer extends KeyValueIndexer {
                     removeStringColumn.setString(2, k);
                     long t = System.currentTimeMillis();
                     int nrows = removeStringColumn.executeUpdate();
-                    client.checkSlow(columnFamily, Q_INDEX_REMOVE, System.currentTimeMillis() - t,
+                    client.checkSlow(columnFamily, Q_INDEX_REMOVE, t,
                             client.getSql(keySpace, columnFamily, JDBCStorageClient.SQL_REMOVE_STRING_COLUMN));
                     if (nrows == 0) {
                         Map<String, Object> m = client.get(keySpace, columnFamily, key);
@@ -58,7 +58,7 @@ public class NonBatchInsertIndexer extends KeyValueIndexer {
                     removeStringColumn.setString(2, k);
                     long t = System.currentTimeMillis();
                     int nrows = removeStringColumn.executeUpdate();
-                    client.checkSlow(columnFamily, Q_INDEX_REMOVE, System.currentTimeMillis() - t,
+                    client.checkSlow(columnFamily, Q_INDEX_REMOVE, t,
                             client.getSql(keySpace, columnFamily, JDBCStorageClient.SQL_REMOVE_STRING_COLUMN));
                     if (nrows == 0) {
                         Map<String, Object> m = client.get(keySpace, columnFamily, key);
@@ -79,7 +79,7 @@ public class NonBatchInsertIndexer extends KeyValueIndexer {
                         LOGGER.debug("Non Batch Insert Index {} {}", k, v);
                         t = System.currentTimeMillis();
                         nrows = insertStringColumn.executeUpdate();
-                        client.checkSlow(columnFamily, Q_INDEX_INSERT, System.currentTimeMillis() - t,
+                        client.checkSlow(columnFamily, Q_INDEX_INSERT, t,
                                 client.getSql(keySpace, columnFamily, JDBCStorageClient.SQL_INSERT_STRING_COLUMN));
                         if (nrows == 0) {
                             throw new StorageClientException("Failed to save " + rowId + "  column:[" + k + "] ");
@@ -107,7 +107,7 @@ public class NonBatchInsertIndexer extends KeyValueIndexer {
                 removeStringColumn.setString(2, k);
                 long t = System.currentTimeMillis();
                 int nrows = removeStringColumn.executeUpdate();
-                client.checkSlow(columnFamily, Q_INDEX_REMOVE, System.currentTimeMillis() - t,
+                client.checkSlow(columnFamily, Q_INDEX_REMOVE, t,
                         client.getSql(keySpace, columnFamily, JDBCStorageClient.SQL_REMOVE_STRING_COLUMN));
                 if (nrows == 0) {
                     Map<String, Object> m = client.get(keySpace, columnFamily, key);
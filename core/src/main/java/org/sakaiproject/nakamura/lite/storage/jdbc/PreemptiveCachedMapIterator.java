@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.util.ContinuableIterator;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.slf4j.Logger;
@@ -16,11 +17,17 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
-public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String, Object>> {
+public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String, Object>> implements
+        ContinuableIterator<Map<String, Object>> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PreemptiveCachedMapIterator.class);
+    /**
+     * The number of rows loaded together when iterating over row ids.
+     */
+    private static final int PREFETCH_SIZE = 25;
     private Map<String, Object> nextValue = Maps.newHashMap();
     private List<Map<String, Object>> preloadedResults = null;
     private boolean open = true;
@@ -33,7 +40,17 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
     private DirectCacheAccess cachingManager;
     private JDBCStorageClient client;
     private PreparedStatement preparedStatement;
+    private String sql;
     private ResultSetMetaData resultSetMetadata;
+    private boolean resultSetExhausted = false;
+    private List<String> prefetchIds = ImmutableList.of();
+    private Map<String, Map<String, Object>> prefetchedRows;
+    private int prefetchIndex;
+    private List<Object> prefetchSortValues = ImmutableList.of();
+    private long pageSize = -1;
+    private long rows;
+    private Object lastRid;
+    private Object lastSortValue;
 
     /**
      * Construct an iterator from a query response.
@@ -41,12 +58,16 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
      * @param client
      * @param resultSet
      * @param preparedStatement
+     * @param sql
+     *            the sql of the statement, which is given back to the client
+     *            once the results are closed.
      * @param rawResults
      * @param cachingManager
      * @throws SQLException
      */
     public PreemptiveCachedMapIterator(JDBCStorageClient client, String keySpace, String columnFamily, ResultSet resultSet,
-            PreparedStatement preparedStatement, boolean rawResults, DirectCacheAccess cachingManager) throws SQLException {
+            PreparedStatement preparedStatement, String sql, boolean rawResults, DirectCacheAccess cachingManager)
+            throws SQLException {
         this.keySpace = keySpace;
         this.columnFamily = columnFamily;
         this.resultSet = resultSet;
@@ -56,6 +77,7 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
 
         this.resultSetMetadata = resultSet.getMetaData();
         this.preparedStatement = preparedStatement;
+        this.sql = sql;
     }
 
     /**
@@ -78,6 +100,27 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
         this.preloadedResultsIndex = 0;
     }
 
+    /**
+     * Make the iterator continuable, for a find by continuation where each
+     * result is the row id and the value the rows are sorted by.
+     * 
+     * @param pageSize
+     *            the number of rows in a full page.
+     * @return this iterator.
+     */
+    public PreemptiveCachedMapIterator continuable(long pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public String getContinuation() {
+        if (pageSize < 0 || rows < pageSize || lastRid == null) {
+            // not paged by continuation, or the last page.
+            return null;
+        }
+        return WideColumnIndexer.toContinuation(lastRid, lastSortValue);
+    }
+
     @Override
     protected Map<String, Object> internalNext() {
         started = true;
@@ -126,29 +169,36 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
     protected boolean internalHasNext() {
         try {
             started = true;
-            if (open && preloadedResults != null && preloadedResultsIndex < preloadedResults.size()) {
-                if (rawResults) {
+            if (!rawResults) {
+                if (open && prefetchIndex >= prefetchIds.size()) {
+                    prefetch();
+                }
+                if (open && prefetchIndex < prefetchIds.size()) {
+                    nextValue = prefetchedRows.get(prefetchIds.get(prefetchIndex));
+                    if (pageSize >= 0) {
+                        rows++;
+                        lastRid = prefetchIds.get(prefetchIndex);
+                        lastSortValue = prefetchSortValues.get(prefetchIndex);
+                    }
+                    prefetchIndex++;
+                    return true;
+                }
+            } else {
+                if (open && preloadedResults != null && preloadedResultsIndex < preloadedResults.size()) {
                     nextValue = preloadedResults.get(preloadedResultsIndex);
-                } else {
-                    String id = (String) preloadedResults.get(preloadedResultsIndex).get("1");
-                    nextValue = client.internalGet(keySpace, columnFamily, id, cachingManager);
+                    preloadedResultsIndex++;
+                    setLast(nextValue);
+                    return true;
                 }
-                preloadedResultsIndex++;
-                return true;
-            }
-            if (open && resultSet != null && resultSet.next()) {
-                if (rawResults) {
+                if (open && resultSet != null && resultSet.next()) {
                     Builder<String, Object> b = ImmutableMap.builder();
                     for (int i = 1; i <= resultSetMetadata.getColumnCount(); i++) {
                         b.put(String.valueOf(i), resultSet.getObject(i));
                     }
                     nextValue = b.build();
-                } else {
-                    String id = resultSet.getString(1);
-                    nextValue = client.internalGet(keySpace, columnFamily, id, cachingManager);
-                    LOGGER.debug("Got Row ID {} {} ", id, nextValue);
+                    setLast(nextValue);
+                    return true;
                 }
-                return true;
             }
             close();
             nextValue = null;
@@ -167,6 +217,44 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
         }
     }
 
+    /**
+     * Read the next page of row ids and load all of the rows in one go, rather
+     * than one query per row.
+     * 
+     * @throws SQLException
+     * @throws StorageClientException
+     */
+    private void prefetch() throws SQLException, StorageClientException {
+        List<String> ids = Lists.newArrayList();
+        List<Object> sortValues = Lists.newArrayList();
+        while (ids.size() < PREFETCH_SIZE) {
+            if (preloadedResults != null && preloadedResultsIndex < preloadedResults.size()) {
+                ids.add((String) preloadedResults.get(preloadedResultsIndex).get("1"));
+                sortValues.add(preloadedResults.get(preloadedResultsIndex).get("2"));
+                preloadedResultsIndex++;
+            } else if (resultSet != null && !resultSetExhausted && resultSet.next()) {
+                ids.add(resultSet.getString(1));
+                sortValues.add(pageSize >= 0 ? resultSet.getObject(2) : null);
+            } else {
+                resultSetExhausted = true;
+                break;
+            }
+        }
+        prefetchIds = ids;
+        prefetchSortValues = sortValues;
+        prefetchIndex = 0;
+        prefetchedRows = client.internalGetMany(keySpace, columnFamily, ids, cachingManager);
+        LOGGER.debug("Got Rows {} ", ids);
+    }
+
+    private void setLast(Map<String, Object> row) {
+        if (pageSize >= 0) {
+            rows++;
+            lastRid = row.get("1");
+            lastSortValue = row.get("2");
+        }
+    }
+
     @Override
     public void close() {
         if (open) {
@@ -179,13 +267,9 @@ public class PreemptiveCachedMapIterator extends PreemptiveIterator<Map<String,
             } catch (SQLException e) {
                 LOGGER.warn(e.getMessage(), e);
             }
-            try {
-                if (preparedStatement != null) {
-                    preparedStatement.close();
-                    client.dec("iterator");
-                }
-            } catch (SQLException e) {
-                LOGGER.warn(e.getMessage(), e);
+            if (preparedStatement != null) {
+                client.release(sql, preparedStatement);
+                client.dec("iterator");
             }
             super.close();
         }
@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimerTask;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Collects the finds that took longer than the very slow query threshold,
+ * grouped by the shape of their SQL, so that index columns can be tuned from
+ * what is actually slow. The execution plan of each shape is captured once,
+ * when the task runs, with a client of its own so the slow find is not made
+ * slower. Each run logs a report if there have been slow finds since the last.
+ */
+public class QueryAdvisor extends TimerTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryAdvisor.class);
+    private static final Pattern STRING_LITERAL = Pattern.compile("'([^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private JDBCStorageClientPool jdbcStorageClientPool;
+    private int maxShapes;
+    private Map<String, Shape> shapes = Maps.newHashMap();
+    private long changes;
+    private long reported;
+
+    /**
+     * The slow finds of one shape.
+     */
+    public static class Shape {
+        private String columnFamily;
+        private String table;
+        private String sql;
+        private String statement;
+        private List<Object> parameters;
+        private List<String> columns;
+        private String sortColumn;
+        private List<String> unindexed;
+        private String plan;
+        private long count;
+        private long totalTime;
+        private long maxTime;
+
+        public String getColumnFamily() {
+            return columnFamily;
+        }
+
+        /**
+         * @return the wide index table the finds ran against.
+         */
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * @return the normalized SQL of the shape.
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return the indexed columns the finds matched on, in order.
+         */
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return the column the finds sorted on, or null.
+         */
+        public String getSortColumn() {
+            return sortColumn;
+        }
+
+        /**
+         * @return the properties the finds asked for that are not indexed, and
+         *         so were dropped from the where clause.
+         */
+        public List<String> getUnindexed() {
+            return unindexed;
+        }
+
+        /**
+         * @return the execution plan, or null if it has not been captured or
+         *         the database config has no explain-plan statement.
+         */
+        public String getPlan() {
+            return plan;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        public long getMaxTime() {
+            return maxTime;
+        }
+    }
+
+    /**
+     * A change to the index configuration and the time spent in the slow finds
+     * that would have benefited from it.
+     */
+    public static class Advice {
+        private String suggestion;
+        private long count;
+        private long totalTime;
+
+        public Advice(String suggestion) {
+            this.suggestion = suggestion;
+        }
+
+        public String getSuggestion() {
+            return suggestion;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime() {
+            return totalTime;
+        }
+    }
+
+    /**
+     * @param jdbcStorageClientPool
+     *            the pool to take a client from to capture plans.
+     * @param maxShapes
+     *            the most shapes to keep, the shape with the least time is
+     *            dropped to make room for a new one.
+     */
+    public QueryAdvisor(JDBCStorageClientPool jdbcStorageClientPool, int maxShapes) {
+        this.jdbcStorageClientPool = jdbcStorageClientPool;
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @param sql
+     * @return the sql with literals replaced by ? and whitespace collapsed, so
+     *         finds that differ only in their values have the same shape.
+     */
+    public static String normalize(String sql) {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    /**
+     * Record a find that was very slow.
+     *
+     * @param columnFamily
+     * @param table
+     *            the wide index table of the column family.
+     * @param sql
+     *            the statement as executed.
+     * @param parameters
+     *            the parameters bound to the statement, used to capture the
+     *            plan.
+     * @param columns
+     *            the indexed columns matched on.
+     * @param sortColumn
+     *            the column sorted on, or null.
+     * @param unindexed
+     *            the properties asked for that are not indexed.
+     * @param time
+     *            ms the find took.
+     */
+    public synchronized void slowQuery(String columnFamily, String table, String sql, List<Object> parameters,
+            List<String> columns, String sortColumn, List<String> unindexed, long time) {
+        String key = columnFamily + ":" + normalize(sql);
+        Shape shape = shapes.get(key);
+        if (shape == null) {
+            if (shapes.size() >= maxShapes) {
+                evictLeast();
+            }
+            shape = new Shape();
+            shape.columnFamily = columnFamily;
+            shape.table = table;
+            shape.sql = normalize(sql);
+            shape.statement = sql;
+            shape.parameters = ImmutableList.copyOf(parameters);
+            shape.columns = ImmutableList.copyOf(columns);
+            shape.sortColumn = sortColumn;
+            shape.unindexed = ImmutableList.copyOf(unindexed);
+            shapes.put(key, shape);
+        }
+        shape.count++;
+        shape.totalTime += time;
+        shape.maxTime = Math.max(shape.maxTime, time);
+        changes++;
+    }
+
+    private void evictLeast() {
+        Entry<String, Shape> least = null;
+        for (Entry<String, Shape> e : shapes.entrySet()) {
+            if (least == null || e.getValue().totalTime < least.getValue().totalTime) {
+                least = e;
+            }
+        }
+        if (least != null) {
+            shapes.remove(least.getKey());
+        }
+    }
+
+    /**
+     * @return the slow shapes, most total time first.
+     */
+    public synchronized List<Shape> getShapes() {
+        List<Shape> sorted = Lists.newArrayList(shapes.values());
+        Collections.sort(sorted, new Comparator<Shape>() {
+            public int compare(Shape a, Shape b) {
+                return Long.valueOf(b.totalTime).compareTo(a.totalTime);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Suggest index changes from the slow shapes. A property that was asked
+     * for but not indexed should be added to the index column names. A shape
+     * matching several columns, or matching and sorting, gains from a
+     * composite index over them in that order, as the database can only use
+     * one of the single column indexes.
+     *
+     * @return the suggestions, most total time first.
+     */
+    public synchronized List<Advice> getAdvice() {
+        Map<String, Advice> advice = Maps.newLinkedHashMap();
+        for (Shape shape : getShapes()) {
+            for (String property : shape.unindexed) {
+                add(advice, "Add " + shape.columnFamily + ":" + property + " to index-column-names", shape);
+            }
+            List<String> composite = Lists.newArrayList(shape.columns);
+            if (shape.sortColumn != null && !composite.contains(shape.sortColumn)) {
+                composite.add(shape.sortColumn);
+            }
+            if (composite.size() > 1) {
+                add(advice, "Create a composite index on " + shape.table + " ("
+                        + StringUtils.join(composite, ", ") + ")", shape);
+            }
+        }
+        List<Advice> sorted = Lists.newArrayList(advice.values());
+        Collections.sort(sorted, new Comparator<Advice>() {
+            public int compare(Advice a, Advice b) {
+                return Long.valueOf(b.totalTime).compareTo(a.totalTime);
+            }
+        });
+        return sorted;
+    }
+
+    private void add(Map<String, Advice> advice, String suggestion, Shape shape) {
+        Advice a = advice.get(suggestion);
+        if (a == null) {
+            a = new Advice(suggestion);
+            advice.put(suggestion, a);
+        }
+        a.count += shape.count;
+        a.totalTime += shape.totalTime;
+    }
+
+    /**
+     * @return the slow shapes with their plans, and the suggested index
+     *         changes.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        List<Shape> sorted = getShapes();
+        report.append("Very slow find shapes: ").append(sorted.size()).append("\n");
+        for (Shape shape : sorted) {
+            report.append("  ").append(shape.columnFamily).append(" count=").append(shape.count).append(" total=")
+                    .append(shape.totalTime).append("ms max=").append(shape.maxTime).append("ms ").append(shape.sql)
+                    .append("\n");
+            if (shape.plan != null) {
+                for (String line : StringUtils.split(shape.plan, '\n')) {
+                    report.append("      ").append(line).append("\n");
+                }
+            }
+        }
+        report.append("Index advice:\n");
+        for (Advice advice : getAdvice()) {
+            report.append("  ").append(advice.totalTime).append("ms over ").append(advice.count).append(" finds: ")
+                    .append(advice.suggestion).append("\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Forget all the slow shapes.
+     */
+    public synchronized void clear() {
+        shapes.clear();
+        changes++;
+    }
+
+    @Override
+    public void run() {
+        capturePlans();
+        String report = null;
+        synchronized (this) {
+            if (changes != reported && shapes.size() > 0) {
+                reported = changes;
+                report = getReport();
+            }
+        }
+        if (report != null) {
+            LOGGER.info("{}", report);
+        }
+    }
+
+    /**
+     * Capture the plans of the shapes that don't have one yet. A shape whose
+     * plan can't be captured is not tried again.
+     */
+    public void capturePlans() {
+        List<Shape> pending = Lists.newArrayList();
+        synchronized (this) {
+            for (Iterator<Shape> i = shapes.values().iterator(); i.hasNext();) {
+                Shape shape = i.next();
+                if (shape.parameters != null) {
+                    pending.add(shape);
+                }
+            }
+        }
+        if (pending.size() == 0) {
+            return;
+        }
+        JDBCStorageClient client = null;
+        try {
+            client = (JDBCStorageClient) jdbcStorageClientPool.getClient();
+            for (Shape shape : pending) {
+                String plan = null;
+                try {
+                    plan = client.explain(shape.statement, shape.parameters);
+                } catch (StorageClientException e) {
+                    LOGGER.warn("Failed to capture plan of {} {} ", shape.sql, e.getMessage());
+                }
+                synchronized (this) {
+                    shape.plan = plan;
+                    shape.parameters = null;
+                    changes++;
+                }
+            }
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to capture plans {} ", e.getMessage());
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+}
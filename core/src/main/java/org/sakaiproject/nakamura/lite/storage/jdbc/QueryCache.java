@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Caches the results of finds along with what they depend on, the indexed
+ * column values they match and the columns they sort by. Each dependency
+ * hashes to one of a fixed number of versions and a cached result records the
+ * versions of its dependencies as they were when the query was started. Writes
+ * to a row give new versions to the old and new values of the columns that
+ * changed, so a result is used only if none of the values it depends on have
+ * gained or lost a row since it was read. Dependencies that share a version
+ * cause extra misses, never stale results.
+ *
+ * The results themselves are held in the query cache of the
+ * {@link StorageCacheManager}, which bounds their memory. The versions are held
+ * in the same cache, so where it is shared by a cluster, a write on one server
+ * invalidates the results cached by all of them. A version that is missing,
+ * because it was evicted, is replaced by a new one. Hits and misses are
+ * counted for each shape of query, ie the properties it is made from without
+ * their values, and registered with the {@link StatsServiceFactory}.
+ */
+public class QueryCache {
+
+    /**
+     * The name of the cache in the StorageCacheManager.
+     */
+    public static final String CACHE_NAME = "sparseQueryCache";
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCache.class);
+    private static final int VERSIONS = 4096;
+    private static final int MAX_SHAPES = 100;
+    private static final String OTHER_SHAPE = "other";
+    private static final String ROWS = "rows";
+    private static final String DEPENDENCIES = "dependencies";
+    private static final String DEPENDENCY_VERSIONS = "versions";
+    private static final String VERSION_KEY_PREFIX = ";version:";
+    private static final String VERSION = "n";
+    private StorageCacheManager storageCacheManager;
+    private StatsServiceFactory statsServiceFactory;
+    private ConcurrentMap<String, ShapeStatistics> shapes = Maps.newConcurrentMap();
+
+    /**
+     * A query about to be run, with the versions of its dependencies as they
+     * were before it ran.
+     */
+    public static class Query {
+        private String key;
+        private ShapeStatistics shape;
+        private int[] dependencies;
+        private String[] dependencyVersions;
+    }
+
+    /**
+     * Hit and miss counts for one shape of query. Results found to have been
+     * invalidated are counted as evictions.
+     */
+    public static class ShapeStatistics implements CacheStatistics {
+        private AtomicLong hits = new AtomicLong();
+        private AtomicLong misses = new AtomicLong();
+        private AtomicLong invalidated = new AtomicLong();
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getEvictionCount() {
+            return invalidated.get();
+        }
+
+        public long getWeight() {
+            return 0;
+        }
+
+        public long getMaxWeight() {
+            return 0;
+        }
+
+        public int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * @param storageCacheManager
+     *            provides the cache results are held in, if null nothing is
+     *            cached.
+     * @param statsServiceFactory
+     *            if not null, the statistics of each shape of query are
+     *            registered with it.
+     */
+    public QueryCache(StorageCacheManager storageCacheManager, StatsServiceFactory statsServiceFactory) {
+        this.storageCacheManager = storageCacheManager;
+        this.statsServiceFactory = statsServiceFactory;
+    }
+
+    /**
+     * @param keySpace
+     * @param columnFamily
+     * @param column
+     * @return a dependency on every value of a column, eg for a sort.
+     */
+    public static String dependency(String keySpace, String columnFamily, String column) {
+        return keySpace + ":" + columnFamily + ":" + column;
+    }
+
+    /**
+     * @param keySpace
+     * @param columnFamily
+     * @param column
+     * @param value
+     * @return a dependency on the rows with a value in a column. Values are
+     *         compared ignoring case, as some databases do.
+     */
+    public static String dependency(String keySpace, String columnFamily, String column, Object value) {
+        return keySpace + ":" + columnFamily + ":" + column + "=" + String.valueOf(value).toLowerCase();
+    }
+
+    /**
+     * @param keySpace
+     * @param columnFamily
+     * @return a dependency on any row of a column family.
+     */
+    public static String dependency(String keySpace, String columnFamily) {
+        return keySpace + ":" + columnFamily;
+    }
+
+    /**
+     * Start a query, capturing the versions of its dependencies.
+     *
+     * @param key
+     *            the key of the query, unique to its properties.
+     * @param shape
+     *            the shape of the query for statistics.
+     * @param dependencies
+     * @return the query.
+     */
+    public Query start(String key, String shape, Collection<String> dependencies) {
+        Query query = new Query();
+        query.key = key;
+        query.shape = getShape(shape);
+        query.dependencies = new int[dependencies.size()];
+        query.dependencyVersions = new String[dependencies.size()];
+        Map<String, CacheHolder> cache = getCache();
+        if (cache != null) {
+            int i = 0;
+            for (String dependency : dependencies) {
+                query.dependencies[i] = index(dependency);
+                query.dependencyVersions[i] = getVersion(cache, query.dependencies[i]);
+                i++;
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @param query
+     * @return the cached results of the query, or null if there are none or
+     *         they have been invalidated.
+     */
+    public Map<String, Object> get(Query query) {
+        Map<String, CacheHolder> cache = getCache();
+        if (cache == null) {
+            return null;
+        }
+        CacheHolder ch = cache.get(query.key);
+        Map<String, Object> m = (ch == null) ? null : ch.get();
+        if (m != null) {
+            int[] dependencies = (int[]) m.get(DEPENDENCIES);
+            String[] dependencyVersions = (String[]) m.get(DEPENDENCY_VERSIONS);
+            if (isCurrent(cache, dependencies, dependencyVersions)) {
+                query.shape.hits.incrementAndGet();
+                return m;
+            }
+            LOGGER.debug("Cached Query {} has been invalidated ", query.key);
+            query.shape.invalidated.incrementAndGet();
+            cache.remove(query.key);
+        }
+        query.shape.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the results of a query. If anything the query depends on changed
+     * while it ran, the results will be seen as invalid when next used.
+     *
+     * @param query
+     * @param results
+     *            the results, as a map with the list of rows at "rows".
+     */
+    public void put(Query query, Map<String, Object> results) {
+        Map<String, CacheHolder> cache = getCache();
+        if (cache == null || results.get(ROWS) == null) {
+            return;
+        }
+        cache.put(query.key, new CacheHolder(ImmutableMap.of(ROWS, results.get(ROWS), DEPENDENCIES,
+                query.dependencies, DEPENDENCY_VERSIONS, query.dependencyVersions)));
+    }
+
+    /**
+     * Invalidate every cached query that depends on any of the dependencies.
+     *
+     * @param dependencies
+     */
+    public void changed(Collection<String> dependencies) {
+        Map<String, CacheHolder> cache = getCache();
+        if (cache == null) {
+            return;
+        }
+        for (String dependency : dependencies) {
+            nextVersion(cache, index(dependency));
+        }
+    }
+
+    /**
+     * @return the statistics of each shape of query.
+     */
+    public Map<String, ShapeStatistics> getShapeStatistics() {
+        return ImmutableMap.copyOf(shapes);
+    }
+
+    private boolean isCurrent(Map<String, CacheHolder> cache, int[] dependencies, String[] dependencyVersions) {
+        if (dependencies == null || dependencyVersions == null) {
+            return false;
+        }
+        for (int i = 0; i < dependencies.length; i++) {
+            if (!getVersion(cache, dependencies[i]).equals(dependencyVersions[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getVersion(Map<String, CacheHolder> cache, int index) {
+        CacheHolder ch = cache.get(VERSION_KEY_PREFIX + index);
+        if (ch != null && ch.get() != null) {
+            return (String) ch.get().get(VERSION);
+        }
+        return nextVersion(cache, index);
+    }
+
+    private String nextVersion(Map<String, CacheHolder> cache, int index) {
+        // a unique value rather than a counter, so two servers sharing the
+        // cache can not start the same version.
+        String version = StorageClientUtils.getUuid();
+        cache.put(VERSION_KEY_PREFIX + index, new CacheHolder(ImmutableMap.of(VERSION, (Object) version)));
+        return version;
+    }
+
+    private ShapeStatistics getShape(String shape) {
+        ShapeStatistics statistics = shapes.get(shape);
+        if (statistics == null) {
+            if (shapes.size() >= MAX_SHAPES && !OTHER_SHAPE.equals(shape)) {
+                return getShape(OTHER_SHAPE);
+            }
+            ShapeStatistics newStatistics = new ShapeStatistics();
+            statistics = shapes.putIfAbsent(shape, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+                if (statsServiceFactory != null) {
+                    statsServiceFactory.registerCache(CACHE_NAME + ":" + shape, statistics);
+                }
+            }
+        }
+        return statistics;
+    }
+
+    private int index(String dependency) {
+        return (dependency.hashCode() & 0x7fffffff) % VERSIONS;
+    }
+
+    private Map<String, CacheHolder> getCache() {
+        if (storageCacheManager == null) {
+            return null;
+        }
+        return storageCacheManager.getCache(CACHE_NAME);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.spi.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a {@link BloomFilter} of the row ids in each of a set of column
+ * families so that lookups of rows that don't exist can be answered without
+ * going to the database. The filters are built from the database when the task
+ * runs and are kept up to date with rows inserted through this pool in the
+ * meantime. Until the first build of a column family has finished every row in
+ * it is assumed to exist.
+ * 
+ * Rows inserted by other servers sharing the database are not seen until the
+ * next rebuild, so this must only be enabled where a single server writes to
+ * the database.
+ */
+public class RowExistenceFilter extends TimerTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowExistenceFilter.class);
+    private JDBCStorageClientPool jdbcStorageClientPool;
+    private Set<String> columnFamilies;
+    private double falsePositiveRate;
+    private long maxBytes;
+    private ConcurrentMap<String, BloomFilter> ready = new ConcurrentHashMap<String, BloomFilter>();
+    private ConcurrentMap<String, BloomFilter> building = new ConcurrentHashMap<String, BloomFilter>();
+
+    /**
+     * @param jdbcStorageClientPool
+     * @param columnFamilies
+     *            the column families to filter, as keySpace.columnFamily
+     * @param falsePositiveRate
+     *            the target rate of lookups that go to the database for rows
+     *            that don't exist.
+     * @param maxBytes
+     *            the most memory a single column family filter may use.
+     */
+    public RowExistenceFilter(JDBCStorageClientPool jdbcStorageClientPool, Set<String> columnFamilies,
+            double falsePositiveRate, long maxBytes) {
+        this.jdbcStorageClientPool = jdbcStorageClientPool;
+        this.columnFamilies = columnFamilies;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void run() {
+        for (String name : columnFamilies) {
+            String[] parts = name.split("\\.", 2);
+            if (parts.length == 2) {
+                rebuild(parts[0], parts[1]);
+            }
+        }
+    }
+
+    /**
+     * @param keySpace
+     * @param columnFamily
+     * @param rid
+     * @return false if the row certainly does not exist.
+     */
+    public boolean mightExist(String keySpace, String columnFamily, String rid) {
+        BloomFilter filter = ready.get(keySpace + "." + columnFamily);
+        return filter == null || filter.mightContain(rid);
+    }
+
+    /**
+     * Record a row that has been written and committed.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param rid
+     */
+    public void added(String keySpace, String columnFamily, String rid) {
+        String name = keySpace + "." + columnFamily;
+        BloomFilter filter = ready.get(name);
+        if (filter != null) {
+            filter.put(rid);
+        }
+        // a row committed after a rebuild started may have been missed by
+        // the rebuild, so it goes into the new filter as well.
+        filter = building.get(name);
+        if (filter != null) {
+            filter.put(rid);
+        }
+    }
+
+    /**
+     * Build a new filter for a column family from the database and replace
+     * the current one with it.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     */
+    public void rebuild(String keySpace, String columnFamily) {
+        String name = keySpace + "." + columnFamily;
+        if (!columnFamilies.contains(name)) {
+            return;
+        }
+        JDBCStorageClient client = null;
+        BloomFilter filter = null;
+        try {
+            long t = System.currentTimeMillis();
+            client = (JDBCStorageClient) jdbcStorageClientPool.getClient();
+            long expectedRows;
+            try {
+                // allow for the column family to grow before the next rebuild.
+                expectedRows = Math.max(1000L, client.allCount(keySpace, columnFamily) * 2);
+            } catch (StorageClientException e) {
+                // no count statement, fill the budget.
+                expectedRows = (long) (maxBytes * 8 * Math.log(2) * Math.log(2) / -Math.log(falsePositiveRate));
+            }
+            filter = new BloomFilter(expectedRows, falsePositiveRate, maxBytes);
+            building.put(name, filter);
+            long rows = client.loadRowIds(keySpace, columnFamily, filter);
+            ready.put(name, filter);
+            LOGGER.info("Built row filter for {} with {} rows, {} bytes in {} ms ", new Object[] { name, rows,
+                    filter.getSize(), System.currentTimeMillis() - t });
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to build row filter for {} {} ", name, e.getMessage());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to build row filter for {} {} ", name, e.getMessage());
+        } finally {
+            if (filter != null) {
+                building.remove(name, filter);
+            }
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+}
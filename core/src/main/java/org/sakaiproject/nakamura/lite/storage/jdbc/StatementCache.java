@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The prepared statements of one connection, least recently used first, so
+ * statements that are run again are not parsed and planned again by the
+ * database. A statement is taken out of the cache while it is in use and put
+ * back when it is done with, so two users of the same SQL on one connection
+ * never share a statement, or its result set. The statements are closed with
+ * the connection.
+ */
+public class StatementCache {
+
+    /**
+     * The name the statistics of all statement caches are registered under.
+     */
+    public static final String CACHE_NAME = "sparseStatementCache";
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private final int maxSize;
+    private final Statistics statistics;
+
+    /**
+     * Hits and misses of the statement caches of all the connections of a
+     * pool.
+     */
+    public static class Statistics implements CacheStatistics {
+        private AtomicLong hits = new AtomicLong();
+        private AtomicLong misses = new AtomicLong();
+        private AtomicLong evictions = new AtomicLong();
+        private AtomicInteger size = new AtomicInteger();
+        private int maxSize;
+
+        public Statistics(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getEvictionCount() {
+            return evictions.get();
+        }
+
+        public long getWeight() {
+            return size.get();
+        }
+
+        /**
+         * @return the most statements cached for each connection.
+         */
+        public long getMaxWeight() {
+            return maxSize;
+        }
+
+        public int size() {
+            return size.get();
+        }
+    }
+
+    /**
+     * @param maxSize
+     *            the most statements to keep open on the connection.
+     * @param statistics
+     *            shared by the caches of a pool, if null the cache has its
+     *            own.
+     */
+    public StatementCache(int maxSize, Statistics statistics) {
+        this.maxSize = maxSize;
+        this.statistics = statistics == null ? new Statistics(maxSize) : statistics;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75F, true);
+    }
+
+    /**
+     * @param sql
+     * @return a cached statement for the sql, which is no longer in the cache
+     *         until it is put back, or null if there is none.
+     */
+    public synchronized PreparedStatement take(String sql) {
+        PreparedStatement pst = statements.remove(sql);
+        if (pst == null) {
+            statistics.misses.incrementAndGet();
+        } else {
+            statistics.hits.incrementAndGet();
+            statistics.size.decrementAndGet();
+        }
+        return pst;
+    }
+
+    /**
+     * Put a statement back once done with, closing the least recently used
+     * statement if the cache is full. If the cache already has a statement for
+     * the sql, the statement is closed.
+     *
+     * @param sql
+     * @param pst
+     */
+    public synchronized void put(String sql, PreparedStatement pst) {
+        if (maxSize <= 0 || statements.containsKey(sql)) {
+            close(pst);
+            return;
+        }
+        statements.put(sql, pst);
+        statistics.size.incrementAndGet();
+        if (statements.size() > maxSize) {
+            Iterator<PreparedStatement> eldest = statements.values().iterator();
+            close(eldest.next());
+            eldest.remove();
+            statistics.size.decrementAndGet();
+            statistics.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Close all the cached statements.
+     */
+    public synchronized void close() {
+        for (Map.Entry<String, PreparedStatement> e : statements.entrySet()) {
+            close(e.getValue());
+            statistics.size.decrementAndGet();
+        }
+        statements.clear();
+    }
+
+    private void close(PreparedStatement pst) {
+        try {
+            pst.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to close cached statement {} ", e.getMessage());
+        }
+    }
+
+}
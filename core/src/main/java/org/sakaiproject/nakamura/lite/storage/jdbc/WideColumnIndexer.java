@@ -1,5 +1,6 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
+import java.io.UnsupportedEncodingException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -12,9 +13,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
-import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -35,7 +38,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer {
+public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer, CountingIndexer {
 
     private static final String Q_INDEX_UPDATE = "index_update";
     private static final String Q_INDEX_DELETE = "index_delete";
@@ -51,6 +54,14 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
     private static final int SQL_WHERE_ARRAY_WHERE_PART = 3;
     private static final int SQL_SORT_CLAUSE_PART = 4;
     private static final int SQL_SORT_LIST_PART = 5;
+    private static final int SQL_KEYSET_SEEK_PART = 6;
+    private static final int SQL_KEYSET_RID_SEEK_PART = 7;
+    private static final int SQL_KEYSET_NOT_NULL_PART = 8;
+    /**
+     * A number argument of a statement template, or the sum of two.
+     */
+    private static final Pattern NUMBER_ARGUMENT = Pattern
+            .compile("\\{(\\d+),number[^}]*\\}(\\s*\\+\\s*\\{(\\d+),number[^}]*\\})?");
 
     private static final Logger LOGGER = LoggerFactory.getLogger(WideColumnIndexer.class);
     /**
@@ -58,12 +69,6 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
      */
     private static final Set<String> EXCLUDE_CACHE_KEYS = ImmutableSet.of(StorageConstants.CACHEABLE);
 
-    /**
-     * Set of keys in query properties that cant be cached, normally because
-     * invalidation is too hard.
-     */
-    private static final Set<String> DONT_CACHE_KEYS = ImmutableSet.of(StorageConstants.ITEMS, StorageConstants.PAGE,
-            StorageConstants.SORT);
     private JDBCStorageClient client;
     private Map<String, String> indexColumnsNames;
     private Map<String, String> indexColumnsTypes;
@@ -119,8 +124,6 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
                 String hash = client.rowHash(keySpace, columnFamily, parent);
                 LOGGER.debug("Hash of {}:{}:{} is {} ", new Object[] { keySpace, columnFamily, parent, hash });
                 updateColumns.put(Content.PARENT_HASH_FIELD, hash);
-                invalidate(keySpace, columnFamily, ImmutableMap.of(Content.PARENT_HASH_FIELD, (Object) hash,
-                        StorageConstants.CUSTOM_STATEMENT_SET, "listchildren", StorageConstants.CACHEABLE, true));
             }
 
             LOGGER.debug("Removing Array {} ", removeArrayColumns);
@@ -290,15 +293,41 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
             Map<String, Object> properties, final DirectCacheAccess cachingManager) throws StorageClientException {
 
         final boolean rawResults = properties != null && properties.containsKey(StorageConstants.RAWRESULTS);
+        final boolean keyset = properties != null && properties.containsKey(StorageConstants.CONTINUATION);
 
-        DisposableIterator<Map<String, Object>> cachedIterator = cachedFind(keySpace, columnFamily, properties, rawResults,
-                cachingManager);
-        if (cachedIterator != null) {
-            return cachedIterator;
+        // collect information on paging
+        long page = 0;
+        long items = 25;
+        String sortProp = null;
+        if (properties != null) {
+            if (properties.containsKey(StorageConstants.PAGE)) {
+                page = Long.valueOf(String.valueOf(properties.get(StorageConstants.PAGE)));
+            }
+            if (properties.containsKey(StorageConstants.ITEMS)) {
+                items = Long.valueOf(String.valueOf(properties.get(StorageConstants.ITEMS)));
+            }
+            sortProp = (String) properties.get(StorageConstants.SORT);
+        }
+        long offset = page * items;
+
+        QueryCache.Query query = startQuery(keySpace, columnFamily, properties);
+        if (query != null) {
+            Map<String, Object> cachedResults = client.getQueryCache().get(query);
+            if (cachedResults != null) {
+                LOGGER.debug("Got Cached Query {} ", properties);
+                PreemptiveCachedMapIterator cached = new PreemptiveCachedMapIterator(client, keySpace, columnFamily,
+                        cachedResults, rawResults, cachingManager);
+                return keyset ? cached.continuable(items) : cached;
+            }
         }
 
         String[] keys = null;
-        if (properties != null && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
+        if (keyset) {
+            // a find by continuation seeks past the last row of the previous
+            // page, so has its own statements.
+            keys = new String[] { "wide-keyset-find." + keySpace + "." + columnFamily, "wide-keyset-find." + columnFamily,
+                    "wide-keyset-find" };
+        } else if (properties != null && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
             String customStatement = (String) properties.get(StorageConstants.CUSTOM_STATEMENT_SET);
             keys = new String[] { "wide-" + customStatement + "." + keySpace + "." + columnFamily,
                     "wide-" + customStatement + "." + columnFamily, "wide-" + customStatement,
@@ -313,21 +342,6 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
             throw new StorageClientException("Failed to locate SQL statement for any of  " + Arrays.toString(keys));
         }
 
-        // collect information on paging
-        long page = 0;
-        long items = 25;
-        String sortProp = null;
-        if (properties != null) {
-            if (properties.containsKey(StorageConstants.PAGE)) {
-                page = Long.valueOf(String.valueOf(properties.get(StorageConstants.PAGE)));
-            }
-            if (properties.containsKey(StorageConstants.ITEMS)) {
-                items = Long.valueOf(String.valueOf(properties.get(StorageConstants.ITEMS)));
-            }
-            sortProp = (String) properties.get(StorageConstants.SORT);
-        }
-        long offset = page * items;
-
         // collect information on sorting
         List<String> sortingList = Lists.newArrayList();
         if (sortProp != null) {
@@ -359,11 +373,99 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
          * the table alias eg {0}.cid = ? and {0}.v = ? Part 3 sort clause {0}
          * is the list to sort by eg sort by {0} Part 4 sort elements, {0} is
          * the column, {1} is the order eg {0} {1} Dont include , AND or OR, the
-         * code will add those as appropriate.
+         * code will add those as appropriate. The keyset statements have the
+         * row id and sort value in the template, {0} being the where clause,
+         * {1} the order by, {2} the number of rows and {3} the sort column,
+         * and three more parts: Part 6 the seek past a sorted row {0} is the
+         * sort column {1} the comparison eg ( {0} > ? or ( {0} = ? and a.rid >
+         * ? ) ) Part 7 the seek past a row by row id alone eg a.rid {0} ?
+         * Part 8 the sort column having a value eg {0} is not null
          */
 
         StringBuilder whereClause = new StringBuilder();
         List<Object> parameters = Lists.newArrayList();
+        appendWhereClause(statementParts, keySpace, columnFamily, properties, sorts, whereClause, parameters);
+        // there was no where clause generated
+        // to avoid returneing everything, we wont return anything.
+        if (whereClause.length() == 0) {
+            return cacheResults(query, new PreemptiveCachedMapIterator(client, keySpace, columnFamily,
+                    ImmutableMap.of("rows", (Object) ImmutableList.of()), rawResults, cachingManager));
+        }
+
+        final String sqlStatement;
+        if (keyset) {
+            sqlStatement = getKeysetStatement(statementParts, keySpace, columnFamily, sortProp,
+                    (String) properties.get(StorageConstants.CONTINUATION), items, whereClause, parameters);
+        } else {
+            sqlStatement = getBlockStatement(statementParts, keySpace, columnFamily, sorts, items, offset, whereClause,
+                    parameters);
+        }
+
+        PreparedStatement tpst = null;
+        ResultSet trs = null;
+        try {
+
+            LOGGER.debug("Preparing {} ", sqlStatement);
+            tpst = client.prepare(sqlStatement);
+            client.inc("iterator");
+            tpst.clearParameters();
+            int i = 1;
+            for (Object params : parameters) {
+                tpst.setObject(i, params);
+                LOGGER.debug("Setting {} ", params);
+                i++;
+            }
+
+            long qtime = System.currentTimeMillis();
+            trs = tpst.executeQuery();
+            qtime = client.checkSlow(columnFamily, "index_find", qtime, sqlStatement);
+            adviseSlow(keySpace, columnFamily, properties, getSortColumn(keySpace, columnFamily, sortProp),
+                    sqlStatement, parameters, qtime);
+            client.inc("iterator r");
+            LOGGER.debug("Executed ");
+
+            // pass control to the iterator.
+            PreparedStatement pst = tpst;
+            ResultSet rs = trs;
+            tpst = null;
+            trs = null;
+            PreemptiveCachedMapIterator iterator = new PreemptiveCachedMapIterator(client, keySpace, columnFamily, rs, pst,
+                    sqlStatement, rawResults, cachingManager);
+            if (keyset) {
+                iterator.continuable(items);
+            }
+            return client.registerDisposable(cacheResults(query, iterator));
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            client.resetConnection(null);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement, e);
+        } finally {
+            // trs and tpst will only be non null if control has not been passed
+            // to the iterator.
+            try {
+                if (trs != null) {
+                    trs.close();
+                    client.dec("iterator r");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            try {
+                if (tpst != null) {
+                    tpst.close();
+                    client.dec("iterator");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Appends the terms of a find to a where clause, adding their parameters.
+     */
+    private void appendWhereClause(String[] statementParts, String keySpace, String columnFamily,
+            Map<String, Object> properties, String[] sorts, StringBuilder whereClause, List<Object> parameters) {
         int set = 0;
         for (Entry<String, Object> e : properties.entrySet()) {
             Object v = e.getValue();
@@ -413,13 +515,70 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
                 }
             }
         }
-        // there was no where clause generated
-        // to avoid returneing everything, we wont return anything.
-        if (whereClause.length() == 0) {
-            return cacheResults(keySpace, columnFamily, properties, new PreemptiveCachedMapIterator(client, keySpace, columnFamily,
-                    ImmutableMap.of("rows", (Object) ImmutableList.of()), rawResults, cachingManager));
+    }
+
+    /**
+     * Report a very slow find to the query advisor, if there is one, with the
+     * indexed columns it matched on and the properties it asked for that are
+     * not indexed, and so were dropped from the where clause.
+     */
+    private void adviseSlow(String keySpace, String columnFamily, Map<String, Object> properties, String sortColumn,
+            String sqlStatement, List<Object> parameters, long time) {
+        QueryAdvisor queryAdvisor = client.getQueryAdvisor();
+        if (queryAdvisor == null || time <= client.getVerySlowQueryThreshold()) {
+            return;
+        }
+        List<String> columns = Lists.newArrayList();
+        List<String> unindexed = Lists.newArrayList();
+        for (Entry<String, Object> e : properties.entrySet()) {
+            String k = e.getKey();
+            if (e.getValue() instanceof Map) {
+                for (Object subk : ((Map<?, ?>) e.getValue()).keySet()) {
+                    if (!shouldFind(keySpace, columnFamily, String.valueOf(subk))) {
+                        unindexed.add(String.valueOf(subk));
+                    }
+                }
+            } else if (shouldFind(keySpace, columnFamily, k)) {
+                String columnName = getColumnName(keySpace, columnFamily, k);
+                if (e.getValue() != null && columnName != null && !isColumnArray(keySpace, columnFamily, k)
+                        && !columns.contains(columnName)) {
+                    columns.add(columnName);
+                }
+            } else if (!k.startsWith("_")) {
+                unindexed.add(k);
+            }
         }
+        queryAdvisor.slowQuery(columnFamily, getWideTable(keySpace, columnFamily), sqlStatement, parameters, columns,
+                sortColumn, unindexed, time);
+    }
 
+    /**
+     * @return the wide index table of a column family, its own if the config
+     *         has statements for it, otherwise the table shared by the rest.
+     */
+    private String getWideTable(String keySpace, String columnFamily) {
+        if (client.getSql(new String[] { SQL_EXISTS_WIDESTRING_ROW + "." + keySpace + "." + columnFamily,
+                SQL_EXISTS_WIDESTRING_ROW + "." + columnFamily }) != null) {
+            return columnFamily + "_css_w";
+        }
+        return "css_w";
+    }
+
+    /**
+     * @return the column of the first sort property, if it is indexed and not
+     *         an array, otherwise null.
+     */
+    private String getSortColumn(String keySpace, String columnFamily, String sortProp) {
+        String[] sorts = StringUtils.split(sortProp);
+        if (sorts != null && sorts.length > 0 && shouldIndex(keySpace, columnFamily, sorts[0])
+                && !isColumnArray(keySpace, columnFamily, sorts[0])) {
+            return getColumnName(keySpace, columnFamily, sorts[0]);
+        }
+        return null;
+    }
+
+    private String getBlockStatement(String[] statementParts, String keySpace, String columnFamily, String[] sorts,
+            long items, long offset, StringBuilder whereClause, List<Object> parameters) {
         StringBuilder sortClause = new StringBuilder();
         if (statementParts.length > SQL_SORT_CLAUSE_PART) {
             StringBuilder sortList = new StringBuilder();
@@ -433,56 +592,213 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
             }
         }
 
-        final String sqlStatement = MessageFormat.format(statementParts[SQL_QUERY_TEMPLATE_PART], whereClause.toString(),
+        return format(statementParts[SQL_QUERY_TEMPLATE_PART], parameters, whereClause.toString(),
                 sortClause.toString(), items, offset);
+    }
 
-        PreparedStatement tpst = null;
-        ResultSet trs = null;
+    /**
+     * Builds a find that seeks past the last row of the previous page rather
+     * than counting rows to an offset. Rows are ordered by the first sort
+     * property, if it is indexed and not an array, and then by row id, so the
+     * order is total and no row is repeated or skipped between pages.
+     */
+    private String getKeysetStatement(String[] statementParts, String keySpace, String columnFamily, String sortProp,
+            String continuation, long items, StringBuilder whereClause, List<Object> parameters)
+            throws StorageClientException {
+        String sortColumn = getSortColumn(keySpace, columnFamily, sortProp);
+        if (sortColumn != null) {
+            sortColumn = "a." + sortColumn;
+        }
+        String direction = "asc";
+        String[] sorts = StringUtils.split(sortProp);
+        if (sorts != null && sorts.length > 1 && "desc".equalsIgnoreCase(sorts[1])) {
+            direction = "desc";
+        }
+        String compare = "desc".equals(direction) ? "<" : ">";
+        String[] last = fromContinuation(continuation);
+        StringBuilder order = new StringBuilder();
+        if (sortColumn != null) {
+            join(whereClause, " AND ").append(MessageFormat.format(statementParts[SQL_KEYSET_NOT_NULL_PART], sortColumn));
+            if (last != null) {
+                if (last[1] == null) {
+                    throw new StorageClientException("Invalid continuation " + continuation);
+                }
+                join(whereClause, " AND ").append(
+                        MessageFormat.format(statementParts[SQL_KEYSET_SEEK_PART], sortColumn, compare));
+                parameters.add(last[1]);
+                parameters.add(last[1]);
+                parameters.add(last[0]);
+            }
+            order.append(MessageFormat.format(statementParts[SQL_SORT_LIST_PART], sortColumn, direction)).append(", ");
+        } else if (last != null) {
+            join(whereClause, " AND ").append(MessageFormat.format(statementParts[SQL_KEYSET_RID_SEEK_PART], compare));
+            parameters.add(last[0]);
+        }
+        order.append(MessageFormat.format(statementParts[SQL_SORT_LIST_PART], "a.rid", direction));
+        return format(statementParts[SQL_QUERY_TEMPLATE_PART], parameters, whereClause.toString(),
+                MessageFormat.format(statementParts[SQL_SORT_CLAUSE_PART], order.toString()), items,
+                sortColumn == null ? "a.rid" : sortColumn);
+    }
+
+    /**
+     * Formats a statement template, binding its number arguments as
+     * parameters rather than writing them into the SQL, so finds that differ
+     * only in their page share a prepared statement. A sum of two number
+     * arguments is bound as one parameter. Number arguments must come after
+     * the where clause in the template.
+     */
+    private String format(String template, List<Object> parameters, Object... arguments) {
+        Matcher m = NUMBER_ARGUMENT.matcher(template);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            long value = ((Number) arguments[Integer.parseInt(m.group(1))]).longValue();
+            if (m.group(3) != null) {
+                value += ((Number) arguments[Integer.parseInt(m.group(3))]).longValue();
+            }
+            parameters.add(value);
+            m.appendReplacement(sb, "?");
+        }
+        m.appendTail(sb);
+        return MessageFormat.format(sb.toString(), arguments);
+    }
+
+    /**
+     * @param rid
+     *            the row id of the last row of a page.
+     * @param sortValue
+     *            the value the last row was sorted by, may be null.
+     * @return an opaque token to continue from the row.
+     */
+    static String toContinuation(Object rid, Object sortValue) {
+        String token = String.valueOf(rid);
+        if (sortValue != null) {
+            token = token + "\n" + sortValue;
+        }
+        try {
+            return Base64.encodeBase64URLSafeString(token.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param continuation
+     * @return the row id and sort value, the sort value being null if the row
+     *         was not sorted by value, or null for the first page.
+     * @throws StorageClientException
+     *             if the continuation is not one this indexer made.
+     */
+    static String[] fromContinuation(String continuation) throws StorageClientException {
+        if (continuation == null || continuation.length() == 0) {
+            return null;
+        }
         try {
+            String token = new String(Base64.decodeBase64(continuation.getBytes("UTF-8")), "UTF-8");
+            int i = token.indexOf('\n');
+            if (i < 0) {
+                return new String[] { token, null };
+            }
+            return new String[] { token.substring(0, i), token.substring(i + 1) };
+        } catch (UnsupportedEncodingException e) {
+            throw new StorageClientException("Invalid continuation " + continuation, e);
+        }
+    }
+
+    // Counts
+    // -----------------------------------------------------------------------------------
+
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        String[] keys = new String[] { "wide-countestimate." + keySpace + "." + columnFamily,
+                "wide-countestimate." + columnFamily, "wide-countestimate" };
+        List<Object[]> rows = aggregate(keySpace, columnFamily, properties, keys, null);
+        if (rows.size() == 0) {
+            return 0;
+        }
+        return ((Number) rows.get(0)[0]).longValue();
+    }
+
+    public Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties,
+            String groupBy) throws StorageClientException {
+        if (!shouldIndex(keySpace, columnFamily, groupBy) || isColumnArray(keySpace, columnFamily, groupBy)) {
+            throw new StorageClientException("Unable to count by " + groupBy + ", it is not an indexed single value");
+        }
+        String[] keys = new String[] { "wide-count-by." + keySpace + "." + columnFamily, "wide-count-by." + columnFamily,
+                "wide-count-by" };
+        Map<String, Long> counts = Maps.newLinkedHashMap();
+        for (Object[] row : aggregate(keySpace, columnFamily, properties, keys,
+                "a." + getColumnName(keySpace, columnFamily, groupBy))) {
+            if (row[0] != null) {
+                counts.put(String.valueOf(row[0]), ((Number) row[1]).longValue());
+            }
+        }
+        return counts;
+    }
 
+    /**
+     * Runs an aggregate over the rows a find would match. Part 0 of the
+     * statement is the template, {0} being the where clause and {1} the group
+     * by column, the other parts being those of wide-block-find. A find with no
+     * where clause matches nothing, so has no aggregate rows.
+     */
+    private List<Object[]> aggregate(String keySpace, String columnFamily, Map<String, Object> properties,
+            String[] keys, String groupColumn) throws StorageClientException {
+        String sql = client.getSql(keys);
+        if (sql == null) {
+            throw new StorageClientException("Failed to locate SQL statement for any of  " + Arrays.toString(keys));
+        }
+        String[] statementParts = StringUtils.split(sql, ';');
+        StringBuilder whereClause = new StringBuilder();
+        List<Object> parameters = Lists.newArrayList();
+        appendWhereClause(statementParts, keySpace, columnFamily, properties, new String[0], whereClause, parameters);
+        List<Object[]> rows = Lists.newArrayList();
+        if (whereClause.length() == 0) {
+            return rows;
+        }
+        String sqlStatement = MessageFormat.format(statementParts[SQL_QUERY_TEMPLATE_PART], whereClause.toString(),
+                groupColumn == null ? "" : groupColumn);
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
             LOGGER.debug("Preparing {} ", sqlStatement);
-            tpst = client.getConnection().prepareStatement(sqlStatement);
-            client.inc("iterator");
-            tpst.clearParameters();
+            pst = client.prepare(sqlStatement);
             int i = 1;
             for (Object params : parameters) {
-                tpst.setObject(i, params);
-                LOGGER.debug("Setting {} ", params);
+                pst.setObject(i, params);
                 i++;
             }
-
             long qtime = System.currentTimeMillis();
-            trs = tpst.executeQuery();
-            client.checkSlow(columnFamily, "index_find", System.currentTimeMillis() - qtime, sqlStatement);
-            client.inc("iterator r");
-            LOGGER.debug("Executed ");
-
-            // pass control to the iterator.
-            PreparedStatement pst = tpst;
-            ResultSet rs = trs;
-            tpst = null;
-            trs = null;
-            return client.registerDisposable(cacheResults(keySpace, columnFamily, properties, new PreemptiveCachedMapIterator(
-                    client, keySpace, columnFamily, rs, pst, rawResults, cachingManager)));
+            rs = pst.executeQuery();
+            qtime = client.checkSlow(columnFamily, "index_count", qtime, sqlStatement);
+            adviseSlow(keySpace, columnFamily, properties, null, sqlStatement, parameters, qtime);
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                Object[] row = new Object[columns];
+                for (int c = 0; c < columns; c++) {
+                    row[c] = rs.getObject(c + 1);
+                }
+                rows.add(row);
+            }
+            rs.close();
+            rs = null;
+            client.release(sqlStatement, pst);
+            pst = null;
+            return rows;
         } catch (SQLException e) {
             LOGGER.error(e.getMessage(), e);
             client.resetConnection(null);
             throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement, e);
         } finally {
-            // trs and tpst will only be non null if control has not been passed
-            // to the iterator.
             try {
-                if (trs != null) {
-                    trs.close();
-                    client.dec("iterator r");
+                if (rs != null) {
+                    rs.close();
                 }
             } catch (SQLException e) {
                 LOGGER.warn(e.getMessage(), e);
             }
             try {
-                if (tpst != null) {
-                    tpst.close();
-                    client.dec("iterator");
+                if (pst != null) {
+                    pst.close();
                 }
             } catch (SQLException e) {
                 LOGGER.warn(e.getMessage(), e);
@@ -561,49 +877,55 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
     // -----------------------------------------------------------------------------------
 
     @Override
-    public void invalidate(String keySpace, String columnFamily, Map<String, Object> queryProperties) {
-        Map<String, CacheHolder> queryCache = client.getQueryCache();
+    public void invalidate(String keySpace, String columnFamily, String key, Map<String, Object> previousValues,
+            Map<String, Object> values) throws StorageClientException {
+        QueryCache queryCache = client.getQueryCache();
         if (queryCache == null) {
             return;
         }
-        String cacheKey = getCacheKey(keySpace, columnFamily, queryProperties);
-        if (cacheKey != null) {
-            LOGGER.debug("Removing Cached Query {} ",cacheKey);
-            queryCache.remove(cacheKey);
+        Set<String> dependencies = Sets.newHashSet();
+        addChanged(keySpace, columnFamily, previousValues, dependencies);
+        addChanged(keySpace, columnFamily, values, dependencies);
+        if (!StorageClientUtils.isRoot(key) && getColumnName(keySpace, columnFamily, Content.PARENT_HASH_FIELD) != null) {
+            String hash = client.rowHash(keySpace, columnFamily, StorageClientUtils.getParentObjectPath(key));
+            dependencies.add(QueryCache.dependency(keySpace, columnFamily, Content.PARENT_HASH_FIELD, hash));
         }
+        LOGGER.debug("Invalidating Cached Queries depending on {} ", dependencies);
+        queryCache.changed(dependencies);
     }
 
-    private String getCacheKey(String keySpace, String columnFamily, Map<String, Object> queryProperties) {
-        if (Boolean.parseBoolean(String.valueOf(queryProperties.get(StorageConstants.CACHEABLE)))) {
-            List<String> keys = Lists.newArrayList(queryProperties.keySet());
-            Collections.sort(keys);
-            StringBuilder sb = new StringBuilder();
-            sb.append(keySpace).append(";").append(columnFamily);
-            boolean hasKey = false;
-            for (String key : keys) {
-                if (DONT_CACHE_KEYS.contains(key)) {
-                    hasKey = false;
-                    LOGGER.debug("Query cant be cached becuase it contains {} ", key);
-                    break;
-                }
-                if (!EXCLUDE_CACHE_KEYS.contains(key)) {
-                    sb.append(key).append(":").append(queryProperties.get(key)).append(";");
-                    hasKey = true;
-                }
+    private void addChanged(String keySpace, String columnFamily, Map<String, Object> values, Set<String> dependencies) {
+        for (Entry<String, Object> e : values.entrySet()) {
+            String k = e.getKey();
+            if (!shouldIndex(keySpace, columnFamily, k)) {
+                continue;
             }
-            if (hasKey) {
-                // we might want to hash this to prevent the key getting
-                // massive.
-                LOGGER.debug("Cached Query Key is {} ", sb.toString());
-                return sb.toString();
+            dependencies.add(QueryCache.dependency(keySpace, columnFamily, k));
+            Object o = e.getValue();
+            if (o instanceof Object[]) {
+                for (Object v : (Object[]) o) {
+                    dependencies.add(QueryCache.dependency(keySpace, columnFamily, k, v));
+                }
+            } else if (o != null && !(o instanceof RemoveProperty)) {
+                dependencies.add(QueryCache.dependency(keySpace, columnFamily, k, o));
             }
         }
-        return null;
     }
 
-    private DisposableIterator<Map<String, Object>> cachedFind(String keySpace, String columnFamily,
-            Map<String, Object> queryProperties, boolean rawResults, DirectCacheAccess cachingManager) {
-        Map<String, CacheHolder> queryCache = client.getQueryCache();
+    @Override
+    public void invalidate(String keySpace, String columnFamily) {
+        QueryCache queryCache = client.getQueryCache();
+        if (queryCache != null) {
+            queryCache.changed(ImmutableList.of(QueryCache.dependency(keySpace, columnFamily)));
+        }
+    }
+
+    /**
+     * @return the query to look up in the cache, or null if the query can't be
+     *         cached.
+     */
+    private QueryCache.Query startQuery(String keySpace, String columnFamily, Map<String, Object> queryProperties) {
+        QueryCache queryCache = client.getQueryCache();
         if (queryCache == null) {
             gets++;
             if (gets % 1000 == 0) {
@@ -611,33 +933,66 @@ public class WideColumnIndexer extends AbstractIndexer implements CachingIndexer
             }
             return null;
         }
-        String cacheKey = getCacheKey(keySpace, columnFamily, queryProperties);
-        if (cacheKey != null) {
-            CacheHolder ch = queryCache.get(cacheKey);
-            if (ch != null) {
-                Map<String, Object> m = ch.get();
-                if (m != null) {
-                    LOGGER.debug("Got Cached Query at {} ",cacheKey);
-                    return new PreemptiveCachedMapIterator(client, keySpace, columnFamily, m, rawResults, cachingManager);
+        if (queryProperties == null
+                || !Boolean.parseBoolean(String.valueOf(queryProperties.get(StorageConstants.CACHEABLE)))) {
+            return null;
+        }
+        List<String> keys = Lists.newArrayList(queryProperties.keySet());
+        Collections.sort(keys);
+        StringBuilder cacheKey = new StringBuilder();
+        StringBuilder shape = new StringBuilder();
+        cacheKey.append(keySpace).append(";").append(columnFamily);
+        shape.append(keySpace).append(";").append(columnFamily);
+        Set<String> dependencies = Sets.newHashSet(QueryCache.dependency(keySpace, columnFamily));
+        for (String key : keys) {
+            if (EXCLUDE_CACHE_KEYS.contains(key)) {
+                continue;
+            }
+            Object v = queryProperties.get(key);
+            cacheKey.append(key).append(":").append(v).append(";");
+            shape.append(";").append(key);
+            if (StorageConstants.CUSTOM_STATEMENT_SET.equals(key)) {
+                shape.append("=").append(v);
+            } else if (StorageConstants.SORT.equals(key)) {
+                String[] sorts = StringUtils.split(String.valueOf(v));
+                for (int i = 0; i < sorts.length; i += 2) {
+                    dependencies.add(QueryCache.dependency(keySpace, columnFamily, sorts[i]));
                 }
+            } else if (v instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> subterms = (Map<String, Object>) v;
+                for (Entry<String, Object> subterm : subterms.entrySet()) {
+                    addDependencies(keySpace, columnFamily, subterm.getKey(), subterm.getValue(), dependencies);
+                }
+            } else {
+                addDependencies(keySpace, columnFamily, key, v, dependencies);
             }
         }
-        LOGGER.debug("No Cached Query at {} ",cacheKey);
-        return null;
+        // the rows of the query can only change where one of the column
+        // values it matches gains or loses a row, or where a column it sorts
+        // by changes.
+        return queryCache.start(cacheKey.toString(), shape.toString(), dependencies);
     }
 
-    private DisposableIterator<Map<String, Object>> cacheResults(String keySpace, String columnFamily,
-            Map<String, Object> queryProperties, CachableDisposableIterator<Map<String, Object>> disposableIterator) {
-        Map<String, CacheHolder> queryCache = client.getQueryCache();
-        if (queryCache == null) {
-            return disposableIterator;
+    private void addDependencies(String keySpace, String columnFamily, String key, Object value, Set<String> dependencies) {
+        if (!shouldFind(keySpace, columnFamily, key) || value == null) {
+            return;
         }
-        String cacheKey = getCacheKey(keySpace, columnFamily, queryProperties);
-        if (cacheKey != null) {
+        if (value instanceof Iterable<?>) {
+            for (Object v : (Iterable<?>) value) {
+                dependencies.add(QueryCache.dependency(keySpace, columnFamily, key, v));
+            }
+        } else {
+            dependencies.add(QueryCache.dependency(keySpace, columnFamily, key, value));
+        }
+    }
+
+    private DisposableIterator<Map<String, Object>> cacheResults(QueryCache.Query query,
+            CachableDisposableIterator<Map<String, Object>> disposableIterator) {
+        if (query != null) {
             Map<String, Object> m = disposableIterator.getResultsMap();
             if (m != null) {
-                LOGGER.debug("Saved Cached Results at {} ",cacheKey);
-                queryCache.put(cacheKey, new CacheHolder(m));
+                client.getQueryCache().put(query, m);
             }
         }
         return disposableIterator;
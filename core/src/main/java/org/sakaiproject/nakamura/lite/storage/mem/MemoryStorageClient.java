@@ -44,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -74,7 +75,12 @@ public class MemoryStorageClient implements StorageClient {
             Map<String, Object> store, Map<String, Object> properties) {
         this.store = store;
         this.pool = pool;
-        contentHelper = new BlockSetContentHelper(this);
+        // the store is a concurrent map, so block sets may be fetched ahead.
+        contentHelper = new BlockSetContentHelper(this, StorageClientUtils.getSetting(
+                properties.get(BlockSetContentHelper.CONFIG_WRITE_BEHIND),
+                BlockSetContentHelper.DEFAULT_WRITE_BEHIND), StorageClientUtils.getSetting(
+                properties.get(BlockSetContentHelper.CONFIG_READ_AHEAD),
+                BlockSetContentHelper.DEFAULT_READ_AHEAD));
         blockSize = StorageClientUtils.getSetting(
                 properties.get(BlockSetContentHelper.CONFIG_BLOCK_SIZE),
                 BlockSetContentHelper.DEFAULT_BLOCK_SIZE);
@@ -96,6 +102,15 @@ public class MemoryStorageClient implements StorageClient {
         return (Map<String, Object>) getOrCreateRow(keySpace, columnFamily, key);
     }
 
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily, Collection<String> keys)
+            throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newHashMap();
+        for (String key : keys) {
+            rows.put(key, get(keySpace, columnFamily, key));
+        }
+        return rows;
+    }
+
     private Map<String, Object> getOrCreateRow(String keySpace, String columnFamily, String key) {
         String keyName = rowHash(keySpace, columnFamily, key);
 
@@ -143,6 +158,12 @@ public class MemoryStorageClient implements StorageClient {
         LOGGER.debug("Updated {} {} ", key, row);
     }
 
+    public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew,
+            Map<String, Object> currentValues) throws StorageClientException {
+        // the row is updated in place, there is no read to save.
+        insert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
 
     private void addIndex(String keySpace, String columnFamily, String key, String columnKey,
             Object value) {
@@ -206,6 +227,22 @@ public class MemoryStorageClient implements StorageClient {
         return contentHelper.hasBody(content, streamId);
     }
 
+    public Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId,
+            Map<String, Object> content) {
+        // block bodies are copied by streaming them.
+        return null;
+    }
+
+    public void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content) {
+        // block bodies are never shared.
+    }
+
+    public void removeBody(String keySpace, String columnFamily, String contentId, String contentBlockId,
+            String streamId, Map<String, Object> content) throws StorageClientException {
+        int nBlocks = toInt(content.get(StorageClientUtils.getAltField(Content.NBLOCKS_FIELD, streamId)));
+        contentHelper.removeBody(keySpace, columnFamily, contentBlockId, streamId, nBlocks);
+    }
+
     private int toInt(Object object) {
         if ( object instanceof Integer) {
             return ((Integer) object).intValue();
@@ -290,6 +327,12 @@ public class MemoryStorageClient implements StorageClient {
         return find(keySpace, columnFamily, ImmutableMap.of(Content.PARENT_HASH_FIELD, (Object)hash), cachingManager);
     }
 
+    public DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily, String key,
+            String continuation, long items, DirectCacheAccess cachingManager) throws StorageClientException {
+        // the memory store does not page, all the children are in one page.
+        return listChildren(keySpace, columnFamily, key, cachingManager);
+    }
+
     public DisposableIterator<SparseRow> listAll(String keySpace, String columnFamily) {
         final Iterator<Entry<String, Object>> entries = store.entrySet().iterator();
         final String keyMatch = keySpace+":"+columnFamily+":";
@@ -332,6 +375,30 @@ public class MemoryStorageClient implements StorageClient {
         return count;
     }
 
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties) {
+        long count = 0;
+        DisposableIterator<Map<String, Object>> rows = find(keySpace, columnFamily, properties, null);
+        while (rows.hasNext()) {
+            rows.next();
+            count++;
+        }
+        return count;
+    }
+
+    public Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties,
+            String groupBy) {
+        Map<String, Long> counts = Maps.newHashMap();
+        DisposableIterator<Map<String, Object>> rows = find(keySpace, columnFamily, properties, null);
+        while (rows.hasNext()) {
+            Object value = rows.next().get(groupBy);
+            if (value != null) {
+                Long count = counts.get(String.valueOf(value));
+                counts.put(String.valueOf(value), count == null ? 1L : count + 1);
+            }
+        }
+        return counts;
+    }
+
     public void setStorageClientListener(StorageClientListener storageClientListener) {
         // TODO Auto-generated method stub
         
@@ -72,6 +72,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     @Property(value = DEFAULT_FILE_STORE)
     public static final String FS_STORE_BASE_DIR = "store-base-dir";
 
+    /**
+     * If true, file bodies are stored once per distinct content under a digest
+     * of the bytes, and shared by reference between the content items, copies
+     * and versions that have the same body.
+     */
+    @Property(boolValue = false)
+    public static final String FS_CONTENT_ADDRESSED = "content-addressed-bodies";
+
     /**
      * Is ok to store content and long strings in the same location as they are
      * identified by sha1 hashes and so unique. If a deplorer decides they want different
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+
+/**
+ * Base class for RowHashers that hash keySpace:columnFamily:key. The key is
+ * encoded as UTF-8 into a per thread buffer rather than being concatenated and
+ * converted to bytes on every call. The bytes hashed are exactly the bytes of
+ * (keySpace + ":" + columnFamily + ":" + key).getBytes("UTF-8"), so
+ * implementations that use the same hash produce the same row ids as before.
+ */
+public abstract class AbstractRowHasher implements RowHasher {
+
+    /**
+     * Buffers larger than this are not kept for the next call on the thread.
+     */
+    private static final int MAX_RETAINED_BUFFER = 4096;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .toCharArray();
+
+    private final ThreadLocal<byte[]> keyBuffer = new ThreadLocal<byte[]>();
+
+    public String rowHash(String keySpace, String columnFamily, String key) throws StorageClientException {
+        String ks = String.valueOf(keySpace);
+        String cf = String.valueOf(columnFamily);
+        String k = String.valueOf(key);
+        // a UTF-16 char never encodes to more than 3 bytes.
+        int maxLength = (ks.length() + cf.length() + k.length()) * 3 + 2;
+        byte[] buffer = keyBuffer.get();
+        if (buffer == null || buffer.length < maxLength) {
+            buffer = new byte[Math.max(maxLength, 256)];
+            if (buffer.length <= MAX_RETAINED_BUFFER) {
+                keyBuffer.set(buffer);
+            }
+        }
+        int length = encode(ks, buffer, 0);
+        buffer[length++] = ':';
+        length = encode(cf, buffer, length);
+        buffer[length++] = ':';
+        length = encode(k, buffer, length);
+        return encodeBase64(hash(buffer, length));
+    }
+
+    /**
+     * @param data
+     *            the buffer holding the encoded row key
+     * @param length
+     *            the number of bytes in the buffer that make up the key
+     * @return the hash of the first length bytes of data.
+     * @throws StorageClientException
+     */
+    protected abstract byte[] hash(byte[] data, int length) throws StorageClientException;
+
+    /**
+     * The same encoding as {@link StorageClientUtils#encode(byte[])}, URL safe
+     * base64 without padding, without the intermediate byte arrays.
+     */
+    static String encodeBase64(byte[] hash) {
+        char[] out = new char[(hash.length * 4 + 2) / 3];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < hash.length; i += 3) {
+            int v = (hash[i] & 0xff) << 16 | (hash[i + 1] & 0xff) << 8 | (hash[i + 2] & 0xff);
+            out[o++] = BASE64[v >>> 18];
+            out[o++] = BASE64[(v >>> 12) & 0x3f];
+            out[o++] = BASE64[(v >>> 6) & 0x3f];
+            out[o++] = BASE64[v & 0x3f];
+        }
+        int remaining = hash.length - i;
+        if (remaining > 0) {
+            int v = (hash[i] & 0xff) << 16;
+            if (remaining == 2) {
+                v |= (hash[i + 1] & 0xff) << 8;
+            }
+            out[o++] = BASE64[v >>> 18];
+            out[o++] = BASE64[(v >>> 12) & 0x3f];
+            if (remaining == 2) {
+                out[o++] = BASE64[(v >>> 6) & 0x3f];
+            }
+        }
+        return new String(out);
+    }
+
+    /**
+     * Encode a string as UTF-8 in the same way as String.getBytes("UTF-8"),
+     * including the replacement of unpaired surrogates with '?'.
+     * 
+     * @return the offset after the last byte written.
+     */
+    static int encode(String s, byte[] buffer, int offset) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[offset++] = (byte) (0xc0 | (c >> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[offset++] = (byte) (0xf0 | (cp >> 18));
+                buffer[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[offset++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                buffer[offset++] = '?';
+            } else {
+                buffer[offset++] = (byte) (0xe0 | (c >> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter over row ids. A row id that has been added will
+ * always be reported as possibly present, a row id that has not been added is
+ * reported as absent with a probability set by the size of the filter. Row ids
+ * can't be removed, the filter has to be rebuilt to forget them.
+ */
+public class BloomFilter {
+
+    private static final double LN2 = Math.log(2);
+    private static final int MAX_HASHES = 16;
+
+    private final AtomicLongArray bits;
+    private final long nbits;
+    private final int nhashes;
+
+    /**
+     * Create a filter sized for a number of row ids at a false positive rate,
+     * using no more than maxBytes for the bits. If the budget is too small for
+     * the rate the filter uses the budget and the rate will be higher.
+     * 
+     * @param expectedRows
+     *            the number of row ids expected to be added.
+     * @param falsePositiveRate
+     *            the target rate of false positives, between 0 and 1.
+     * @param maxBytes
+     *            the most memory the bits may use.
+     */
+    public BloomFilter(long expectedRows, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1, was " + falsePositiveRate);
+        }
+        expectedRows = Math.max(1, expectedRows);
+        long m = (long) Math.ceil(-expectedRows * Math.log(falsePositiveRate) / (LN2 * LN2));
+        m = Math.max(64, Math.min(m, Math.max(64, maxBytes * 8)));
+        int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.nbits = words * 64L;
+        this.nhashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) nbits / expectedRows * LN2)));
+    }
+
+    public void put(String rowId) {
+        long h1 = hash(rowId, 0x9e3779b97f4a7c15L);
+        long h2 = hash(rowId, 0xc2b2ae3d27d4eb4fL);
+        for (int i = 0; i < nhashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            for (;;) {
+                long current = bits.get(word);
+                if ((current & mask) != 0 || bits.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param rowId
+     * @return false if the row id has certainly not been added.
+     */
+    public boolean mightContain(String rowId) {
+        long h1 = hash(rowId, 0x9e3779b97f4a7c15L);
+        long h2 = hash(rowId, 0xc2b2ae3d27d4eb4fL);
+        for (int i = 0; i < nhashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes used by the bits of the filter.
+     */
+    public long getSize() {
+        return nbits / 8;
+    }
+
+    public int getHashCount() {
+        return nhashes;
+    }
+
+    private static long hash(String s, long seed) {
+        long h = seed;
+        int l = s.length();
+        for (int i = 0; i < l; i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        // finalization mix from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -17,121 +17,228 @@
  */
 package org.sakaiproject.nakamura.lite.storage.spi;
 
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent LRU map bounded by weight. Keys are spread over a number of
+ * segments, each an access ordered map with its own lock and a share of the
+ * maximum weight, so eviction is constant time and only ever holds one
+ * segment's lock. The LRU order is per segment, so eviction is an approximate
+ * LRU over the whole map. Entries weighing more than a segment's share, the
+ * maximum weight divided by up to 16 segments (see {@link #getMaxEntryWeight()}),
+ * are not kept however empty the map is, and are counted by
+ * {@link #getRejectionCount()}. By default each entry weighs 1, making the bound
+ * a number of entries. The hits, misses, evictions and weight of the map are
+ * available from {@link #getStatistics()} and can be reported with the other
+ * stats using {@link #register(StatsServiceFactory, String)}.
  * 
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-    public class Holder<T> {
+    /**
+     * Gives the weight of an entry, eg its approximate size in bytes.
+     */
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
 
-        protected long last;
-        protected V value;
-        private K key;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentLRUMap.class);
+    private static final int MAX_SEGMENTS = 16;
+    /**
+     * Segments are not made smaller than this, so small maps don't evict too
+     * early from an unevenly filled segment.
+     */
+    private static final long MIN_SEGMENT_WEIGHT = 32;
 
-        public Holder(K key, V value) {
-            this.key = key;
-            this.value = value;
-            this.last = System.currentTimeMillis();
+    private final Weigher<? super K, ? super V> weigher;
+    private final Segment<K, V>[] segments;
+    private final long maxWeight;
+    private final CacheStatistics statistics = new CacheStatistics() {
+        public long getHitCount() {
+            return ConcurrentLRUMap.this.getHitCount();
         }
 
-        public int compareTo(Holder<T> o) {
-            return (int) (this.last - o.last);
+        public long getMissCount() {
+            return ConcurrentLRUMap.this.getMissCount();
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            try {
-                if (obj == null) {
-                    return false;
-                }
-                @SuppressWarnings("unchecked")
-                Holder<T> t = (Holder<T>) obj;
-                return value.equals(t.value);
-            } catch (ClassCastException e) {
-                return false;
-            }
+        public long getEvictionCount() {
+            return ConcurrentLRUMap.this.getEvictionCount();
         }
 
-        @Override
-        public int hashCode() {
-            return value.hashCode();
+        public long getWeight() {
+            return ConcurrentLRUMap.this.getWeight();
         }
 
-    }
+        public long getMaxWeight() {
+            return maxWeight;
+        }
 
-    /**
-   * 
-   */
-    private static final long serialVersionUID = 6397790801684912025L;
-    private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-    private int maxSize = 100;
+        public int size() {
+            return ConcurrentLRUMap.this.size();
+        }
+    };
 
     public ConcurrentLRUMap() {
+        this(100);
     }
 
     public ConcurrentLRUMap(int size) {
-        maxSize = size;
+        this(size, new Weigher<Object, Object>() {
+            public long weigh(Object key, Object value) {
+                return 1;
+            }
+        });
+    }
+
+    public ConcurrentLRUMap(long maxWeight, Weigher<? super K, ? super V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        int nsegments = 1;
+        while (nsegments < MAX_SEGMENTS && maxWeight / (nsegments * 2) >= MIN_SEGMENT_WEIGHT) {
+            nsegments = nsegments * 2;
+        }
+        // generic arrays can't be created, every element is a Segment<K, V>.
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Segment<K, V>[] newSegments = new Segment[nsegments];
+        for (int i = 0; i < nsegments; i++) {
+            newSegments[i] = new Segment<K, V>(Math.max(1, maxWeight / nsegments));
+        }
+        segments = newSegments;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        // spread the hash so that keys with similar hashCodes don't all land
+        // in the same segment.
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
     }
 
     public int size() {
-        return delegate.size();
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.count;
+        }
+        return size;
     }
 
     public boolean isEmpty() {
-        return delegate.isEmpty();
+        return size() == 0;
     }
 
     public boolean containsKey(Object key) {
-        return delegate.containsKey(key);
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            return s.map.containsKey(key);
+        } finally {
+            s.unlock();
+        }
     }
 
     public boolean containsValue(Object value) {
-        @SuppressWarnings("unchecked")
-        Holder<V> v = new Holder<V>(null, (V) value);
-        return delegate.containsValue(v);
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Node<V> n : s.map.values()) {
+                    if (value == null ? n.value == null : value.equals(n.value)) {
+                        return true;
+                    }
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        return false;
     }
 
-    public V put(K key, V value) {
-        if (delegate.size() > maxSize) {
-            // this is horribly slow for large sets
-            List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-            Collections.sort(l, new Comparator<Holder<V>>() {
+    public V get(Object key) {
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            Node<V> n = s.map.get(key);
+            if (n == null) {
+                s.misses++;
+                return null;
+            }
+            s.hits++;
+            return n.value;
+        } finally {
+            s.unlock();
+        }
+    }
 
-                public int compare(Holder<V> o1, Holder<V> o2) {
-                    return (int) (o1.last - o2.last);
+    public V put(K key, V value) {
+        long weight = weigher.weigh(key, value);
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            if (weight > s.maxWeight) {
+                // keeping it would evict everything else in the segment, only
+                // for it to be evicted itself. The value it replaces is stale.
+                s.rejections++;
+                LOGGER.debug("Not keeping {} weighing {}, over the entry limit of {} ", new Object[] { key,
+                        weight, s.maxWeight });
+                Node<V> old = s.map.remove(key);
+                if (old == null) {
+                    return null;
                 }
-            });
-            int i = 0;
-            while (delegate.size() > ((75*maxSize)/100) && i < l.size()) {
-                delegate.remove(l.get(i++).key);
+                s.weight -= old.weight;
+                s.count = s.map.size();
+                return old.value;
             }
+            Node<V> old = s.map.put(key, new Node<V>(value, weight));
+            s.weight += weight;
+            if (old != null) {
+                s.weight -= old.weight;
+            }
+            s.evict();
+            s.count = s.map.size();
+            if (old == null) {
+                return null;
+            }
+            return old.value;
+        } finally {
+            s.unlock();
         }
-        Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-        if (v == null) {
-            return null;
-        }
-        return v.value;
     }
 
     public V remove(Object key) {
-        Holder<V> v = delegate.remove(key);
-        if (v == null) {
-            return null;
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            Node<V> old = s.map.remove(key);
+            if (old == null) {
+                return null;
+            }
+            s.weight -= old.weight;
+            s.count = s.map.size();
+            return old.value;
+        } finally {
+            s.unlock();
         }
-        return v.value;
     }
 
     public void putAll(Map<? extends K, ? extends V> t) {
@@ -141,52 +248,196 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
     }
 
     public void clear() {
-        delegate.clear();
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                s.map.clear();
+                s.weight = 0;
+                s.count = 0;
+            } finally {
+                s.unlock();
+            }
+        }
     }
 
+    /**
+     * @return a snapshot of the keys.
+     */
     public Set<K> keySet() {
-        return delegate.keySet();
+        Set<K> keys = new HashSet<K>();
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                keys.addAll(s.map.keySet());
+            } finally {
+                s.unlock();
+            }
+        }
+        return keys;
     }
 
+    /**
+     * @return a snapshot of the values.
+     */
     public Collection<V> values() {
         List<V> values = new ArrayList<V>();
-        for (Holder<V> v : delegate.values()) {
-            values.add(v.value);
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Node<V> n : s.map.values()) {
+                    values.add(n.value);
+                }
+            } finally {
+                s.unlock();
+            }
         }
         return values;
     }
 
+    /**
+     * @return a snapshot of the entries, setting the value of an entry puts
+     *         it into the map.
+     */
     public Set<Entry<K, V>> entrySet() {
         Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-        for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-            set.add(new Entry<K, V>() {
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Entry<K, Node<V>> e : s.map.entrySet()) {
+                    set.add(new SimpleEntry<K, V>(e.getKey(), e.getValue().value) {
+                        private static final long serialVersionUID = 1L;
 
-                public K getKey() {
-                    return e.getKey();
+                        @Override
+                        public V setValue(V value) {
+                            super.setValue(value);
+                            return put(getKey(), value);
+                        }
+                    });
                 }
+            } finally {
+                s.unlock();
+            }
+        }
+        return set;
+    }
 
-                public V getValue() {
-                    return ((Holder<V>) e.getValue()).value;
-                }
+    public long getHitCount() {
+        long n = 0;
+        for (Segment<K, V> s : segments) {
+            n += s.hits;
+        }
+        return n;
+    }
 
-                public V setValue(V value) {
-                    Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-                    if (h == null) {
-                        return null;
-                    }
-                    return h.value;
-                }
-            });
+    public long getMissCount() {
+        long n = 0;
+        for (Segment<K, V> s : segments) {
+            n += s.misses;
         }
-        return set;
+        return n;
     }
 
-    public V get(Object key) {
-        Holder<V> v = delegate.get(key);
-        if (v == null) {
-            return null;
+    public long getEvictionCount() {
+        long n = 0;
+        for (Segment<K, V> s : segments) {
+            n += s.evictions;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of entries not kept because they weighed more than
+     *         {@link #getMaxEntryWeight()}.
+     */
+    public long getRejectionCount() {
+        long n = 0;
+        for (Segment<K, V> s : segments) {
+            n += s.rejections;
+        }
+        return n;
+    }
+
+    public long getWeight() {
+        long n = 0;
+        for (Segment<K, V> s : segments) {
+            n += s.weight;
+        }
+        return n;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the weight of the heaviest entry that is kept, the share of the
+     *         maximum weight given to each segment.
+     */
+    public long getMaxEntryWeight() {
+        return segments[0].maxWeight;
+    }
+
+    /**
+     * @return a live view of the counters of this map.
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Report the counters of this map with the other stats.
+     * 
+     * @param statsServiceFactory
+     * @param name
+     *            the name the counters are reported under, registering
+     *            another cache under the same name replaces it.
+     */
+    public void register(StatsServiceFactory statsServiceFactory, String name) {
+        statsServiceFactory.registerCache(name, statistics);
+    }
+
+    private static class Node<V> {
+        private final V value;
+        private final long weight;
+
+        Node(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * The fields are only written while holding the lock and are volatile so
+     * that the counters can be read without it.
+     */
+    private static class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+        private final long maxWeight;
+        private volatile long weight;
+        private volatile int count;
+        private volatile long hits;
+        private volatile long misses;
+        private volatile long evictions;
+        private volatile long rejections;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        /**
+         * Remove the least recently used entries until the segment is within
+         * its weight, must be called holding the lock.
+         */
+        void evict() {
+            Iterator<Node<V>> i = map.values().iterator();
+            while (weight > maxWeight && i.hasNext()) {
+                Node<V> n = i.next();
+                i.remove();
+                weight -= n.weight;
+                evictions++;
+            }
         }
-        v.last = System.currentTimeMillis();
-        return v.value;
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * A RowHasher using a MessageDigest (eg SHA1, MD5). Row ids are the same as
+ * those generated by earlier releases for the same algorithm, so this is the
+ * one to use with existing data. Digests are kept per thread rather than being
+ * looked up on every call.
+ */
+public class DigestRowHasher extends AbstractRowHasher {
+
+    private final String algorithm;
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
+    /**
+     * @param algorithm
+     *            the MessageDigest algorithm name.
+     * @throws NoSuchAlgorithmException
+     *             if the algorithm is not available.
+     */
+    public DigestRowHasher(String algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        digests.set(MessageDigest.getInstance(algorithm));
+    }
+
+    @Override
+    protected byte[] hash(byte[] data, int length) throws StorageClientException {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new StorageClientException("Unable to get hash algorithm " + e.getMessage(), e);
+            }
+            digests.set(digest);
+        }
+        digest.update(data, 0, length);
+        return digest.digest();
+    }
+
+}
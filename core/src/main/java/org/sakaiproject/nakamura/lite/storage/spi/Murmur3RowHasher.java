@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+/**
+ * A RowHasher using the 128 bit x64 variant of MurmurHash3 (seed 0). This is
+ * not a cryptographic hash but is much cheaper than a MessageDigest and
+ * produces shorter row ids. The row ids are not the same as those produced by
+ * {@link DigestRowHasher}, so it must only be used for new deployments, a
+ * store with existing data must keep the hash it was created with.
+ */
+public class Murmur3RowHasher extends AbstractRowHasher {
+
+    /**
+     * The rowid-hash setting that selects this hasher.
+     */
+    public static final String ALGORITHM = "MURMUR3-128";
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    @Override
+    @SuppressWarnings("fallthrough")
+    protected byte[] hash(byte[] data, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int nblocks = length >> 4;
+        for (int i = 0; i < nblocks; i++) {
+            long k1 = getLong(data, i << 4);
+            long k2 = getLong(data, (i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = nblocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        // the tail cases fall through, each adding one more byte.
+        switch (length & 15) {
+        case 15:
+            k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+        case 14:
+            k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+        case 13:
+            k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+        case 12:
+            k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+        case 11:
+            k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+        case 10:
+            k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+        case 9:
+            k2 ^= (long) (data[tail + 8] & 0xff);
+            h2 ^= mixK2(k2);
+        case 8:
+            k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+        case 7:
+            k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+        case 6:
+            k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+        case 5:
+            k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+        case 4:
+            k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+        case 3:
+            k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+        case 2:
+            k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+        case 1:
+            k1 ^= (long) (data[tail] & 0xff);
+            h1 ^= mixK1(k1);
+        default:
+            break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        putLong(result, 0, h1);
+        putLong(result, 8, h2);
+        return result;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return (b[offset] & 0xffL) | (b[offset + 1] & 0xffL) << 8 | (b[offset + 2] & 0xffL) << 16
+                | (b[offset + 3] & 0xffL) << 24 | (b[offset + 4] & 0xffL) << 32 | (b[offset + 5] & 0xffL) << 40
+                | (b[offset + 6] & 0xffL) << 48 | (b[offset + 7] & 0xffL) << 56;
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (v >>> (i * 8));
+        }
+    }
+}
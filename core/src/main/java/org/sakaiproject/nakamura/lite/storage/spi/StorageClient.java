@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.lite.storage.spi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -58,6 +59,20 @@ public interface StorageClient {
     Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException;
 
+    /**
+     * Lookup a number of objects by key in as few operations as the storage
+     * allows.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param keys the keys of the rows
+     * @return a map of key to the key value pairs in each row. Keys of rows
+     *         that don't exist map to an empty map.
+     * @throws StorageClientException
+     * @since 1.6
+     */
+    Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily, Collection<String> keys)
+            throws StorageClientException;
+
     /**
      * Insert or update a row in the store.
      * @param keySpace the keyspace to search
@@ -70,6 +85,23 @@ public interface StorageClient {
     void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException;
 
+    /**
+     * Insert or update a row in the store, where the caller already holds the
+     * full current state of the row. Implementations that would otherwise
+     * read the row before merging in the changes may merge into
+     * currentValues instead, saving a read.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row
+     * @param values the Map of column values to associate with this key
+     * @param probablyNew whether or not the row is probably new
+     * @param currentValues the full current state of the row, or null if not known.
+     * @throws StorageClientException
+     * @since 1.6
+     */
+    void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew,
+            Map<String, Object> currentValues) throws StorageClientException;
+
     /**
      * Remove a row in the store.
      * @param keySpace the keyspace to search
@@ -105,7 +137,10 @@ public interface StorageClient {
      * @param streamId the id of the correct stream for this piece of content
      * @param content the properties of the content item
      * @param in a stream pointing to the data
-     * @return the content item after the write it will be modified.
+     * @return the content item after the write it will be modified. The body
+     *         the item had before is left as it was, for the caller to release
+     *         with {@link #releaseBody(String, String, String, Map)} once the
+     *         item refers to the new body.
      * @throws StorageClientException
      * @throws AccessDeniedException
      * @throws IOException
@@ -148,6 +183,23 @@ public interface StorageClient {
     DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily,
             String key, DirectCacheAccess cachingManager) throws StorageClientException;
 
+    /**
+     * Find a page of the children of a node, seeking past the last child of
+     * the previous page.
+     * @param keySpace
+     * @param columnFamily
+     * @param key the row id
+     * @param continuation an empty string for the first page, otherwise the continuation of the previous page.
+     * @param items the most children in a page.
+     * @return an iterator of the page, a
+     *         {@link org.sakaiproject.nakamura.api.lite.util.ContinuableIterator}
+     *         if the storage can page by continuation, otherwise all the
+     *         children in one page.
+     * @throws StorageClientException
+     */
+    DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily,
+            String key, String continuation, long items, DirectCacheAccess cachingManager) throws StorageClientException;
+
     /**
      * Does this content item have a stream body by this id?
      * @param content
@@ -156,6 +208,54 @@ public interface StorageClient {
      */
     boolean hasBody( Map<String, Object> content, String streamId);
 
+    /**
+     * Share the body of a stream with another content item, rather than
+     * copying it.
+     * @param keySpace
+     * @param columnFamily
+     * @param streamId the id of the stream
+     * @param content the properties of the content item the body belongs to
+     * @return the body properties to add to the content item sharing the body,
+     *         or null if this client can't share bodies and the body has to be
+     *         streamed to copy it.
+     * @throws StorageClientException
+     * @throws IOException
+     */
+    Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws StorageClientException, IOException;
+
+    /**
+     * Remove the body of a stream from the store. Only for bodies that no
+     * content item refers to any more, such as the chunks of an upload once
+     * it has been committed; the bodies of deleted content items are kept.
+     * @param keySpace
+     * @param columnFamily
+     * @param contentId the id of the item the body was written for
+     * @param contentBlockId the block id of the body
+     * @param streamId the id of the stream
+     * @param content the properties of the item the body was written for
+     * @throws StorageClientException
+     * @throws IOException
+     */
+    void removeBody(String keySpace, String columnFamily, String contentId, String contentBlockId, String streamId,
+            Map<String, Object> content) throws StorageClientException, IOException;
+
+    /**
+     * Release the reference a content item holds on the body of a stream, if
+     * the body is shared as by {@link #shareBody(String, String, String, Map)},
+     * for instance when the item is replaced by a copy. A shared body is
+     * removed when its last reference is released; bodies that are not shared
+     * are kept, as they may still be read through the item's versions.
+     * @param keySpace
+     * @param columnFamily
+     * @param streamId the id of the stream
+     * @param content the properties of the item holding the reference
+     * @throws StorageClientException
+     * @throws IOException
+     */
+    void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws StorageClientException, IOException;
+
     /**
      * List all objects of the type
      * @param keySpace the key space
@@ -174,6 +274,30 @@ public interface StorageClient {
      */
     long allCount(String keySpace, String columnFamily) throws StorageClientException;
 
+    /**
+     * Count the objects a find would match, ignoring paging and access control.
+     * @param keySpace
+     * @param columnFamily
+     * @param properties the properties of the find.
+     * @return the number of matching objects.
+     * @throws StorageClientException
+     */
+    long count(String keySpace, String columnFamily, Map<String, Object> properties) throws StorageClientException;
+
+    /**
+     * Count the objects a find would match for each value of a property,
+     * ignoring paging and access control. Objects without a value for the
+     * property are not counted.
+     * @param keySpace
+     * @param columnFamily
+     * @param properties the properties of the find.
+     * @param groupBy an indexed property.
+     * @return the number of matching objects keyed by the value of the property.
+     * @throws StorageClientException
+     */
+    Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties, String groupBy)
+            throws StorageClientException;
+
     void setStorageClientListener(StorageClientListener storageClientListener);
 
     void setStatsService(StatsService sessionStatsService);
@@ -28,6 +28,17 @@ public interface BlockContentHelper {
 
     public static final String CONFIG_BLOCK_SIZE = "block-size";
     public static final String CONFIG_MAX_CHUNKS_PER_BLOCK = "chunks-per-block";
+    /**
+     * The most blocks of a body that may be read from the upload while earlier
+     * blocks are still being written, 0 to write each block before reading the
+     * next.
+     */
+    public static final String CONFIG_WRITE_BEHIND = "block-write-behind";
+    /**
+     * The number of block sets to fetch in the background ahead of the one
+     * being read, 0 to fetch each when it is needed.
+     */
+    public static final String CONFIG_READ_AHEAD = "block-read-ahead";
 
     Map<String, Object> writeBody(String keySpace, String contentColumnFamily, String contentId,
             String contentBlockId, String streamId, int blockSize, int maxChunksPerBlockSet, InputStream in)
@@ -38,4 +49,7 @@ public interface BlockContentHelper {
 
     boolean hasBody(Map<String, Object> content, String streamId);
 
+    void removeBody(String keySpace, String contentColumnFamily, String contentBlockId, String streamId,
+            int nBlocks) throws StorageClientException;
+
 }
@@ -19,8 +19,18 @@ package org.sakaiproject.nakamura.lite.storage.spi.content;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -28,6 +38,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.content.BlockContentInputStream;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,11 +64,62 @@ public class BlockSetContentHelper implements BlockContentHelper {
 
     public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
     public static final int DEFAULT_MAX_CHUNKS_PER_BLOCK = 64;
+    public static final int DEFAULT_WRITE_BEHIND = 2;
+    public static final int DEFAULT_READ_AHEAD = 1;
+
+    /**
+     * Threads that write blocks behind an upload and fetch block sets ahead of
+     * a reader, shared by all helpers and idle threads die off.
+     */
+    private static final ExecutorService BLOCK_IO = Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BlockIO-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     private StorageClient client;
+    private int writeBehind;
+    private int readAhead;
+    private StorageClientPool writerPool;
 
     public BlockSetContentHelper(StorageClient client) {
+        this(client, 0, 0);
+    }
+
+    public BlockSetContentHelper(StorageClient client, int writeBehind, int readAhead) {
+        this(client, writeBehind, readAhead, null);
+    }
+
+    /**
+     * @param client
+     * @param writeBehind
+     *            the most blocks read from an upload and waiting to be
+     *            written, 0 to write each block before reading the next.
+     *            Blocks are written on another thread, while the upload may be
+     *            reading from the same client, for instance when a body is
+     *            copied.
+     * @param readAhead
+     *            the number of block sets to fetch ahead of a reader, 0 for
+     *            none. The fetches use the client from another thread while
+     *            the reader's session may be using it, so this must only be
+     *            set for clients that are safe to share between threads.
+     * @param writerPool
+     *            if not null, the blocks of each upload are written with a
+     *            client of their own from this pool, for clients that must
+     *            only be used by one thread at a time. If none is available
+     *            the blocks are written before the next is read. If null,
+     *            blocks are written with this client, which must then be safe
+     *            to share between threads.
+     */
+    public BlockSetContentHelper(StorageClient client, int writeBehind, int readAhead, StorageClientPool writerPool) {
         this.client = client;
+        this.writeBehind = writeBehind;
+        this.readAhead = readAhead;
+        this.writerPool = writerPool;
     }
 
     public Map<String, Object> writeBody(String keySpace, String contentColumnFamily,
@@ -68,46 +130,76 @@ public class BlockSetContentHelper implements BlockContentHelper {
         int lastBlockWrite = 0;
         long length = 0;
         int bodyNum = 0;
-        byte[] buffer = new byte[blockSize];
-        for (;;) {
-            int offset = 0;
-            int nread = 0;
-            while (offset < buffer.length) {
-                nread = in.read(buffer, offset, buffer.length - offset);
-                if (nread < 0) {
-                    LOGGER.debug("Got to end of stream ");
-                    break; // end of input stream, in a block read
+        BlockWriter writer = null;
+        byte[] buffer = null;
+        if (writeBehind > 0) {
+            writer = newBlockWriter(keySpace, contentColumnFamily, blockSize);
+        }
+        if (writer == null) {
+            buffer = new byte[blockSize];
+        }
+        boolean finished = false;
+        try {
+            for (;;) {
+                if (writer != null) {
+                    buffer = writer.takeBuffer();
                 }
-                offset += nread;
-            }
-            LOGGER.debug("Read {} bytes ", offset);
+                int offset = 0;
+                int nread = 0;
+                while (offset < buffer.length) {
+                    nread = in.read(buffer, offset, buffer.length - offset);
+                    if (nread < 0) {
+                        LOGGER.debug("Got to end of stream ");
+                        break; // end of input stream, in a block read
+                    }
+                    offset += nread;
+                }
+                LOGGER.debug("Read {} bytes ", offset);
 
-            if (offset == 0 && nread < 0) {
-                break; // end of the input stream and the block was empty.
-            }
-            byte[] saveBuffer = buffer;
+                if (offset == 0 && nread < 0) {
+                    break; // end of the input stream and the block was empty.
+                }
+                byte[] saveBuffer = buffer;
 
-            if (offset < buffer.length) {
-                saveBuffer = new byte[offset];
-                System.arraycopy(buffer, 0, saveBuffer, 0, saveBuffer.length);
-            }
+                if (offset < buffer.length) {
+                    // only the last block of a body is short.
+                    saveBuffer = new byte[offset];
+                    System.arraycopy(buffer, 0, saveBuffer, 0, saveBuffer.length);
+                }
 
-            String key = contentBlockId + ":" + i;
-            String blockLengthKey = BLOCK_LENGTH_FIELD_STUB + bodyNum;
-            String bodyKey = BODY_FIELD_STUB + bodyNum;
-            int bufferLength = saveBuffer.length;
-            length = length + bufferLength;
-            lastBlockWrite = i;
-            client.insert(keySpace, contentColumnFamily, key, ImmutableMap.of(Content.UUID_FIELD,
-                    (Object)contentId, 
-                    CONTENT_BLOCK_ID, key,
-                    NUMBLOCKS_FIELD,
-                    bodyNum + 1, blockLengthKey,
-                    bufferLength, bodyKey, saveBuffer), false);
-            bodyNum++;
-            if (bodyNum > maxChunksPerBlockSet) {
-                bodyNum = 0;
-                i++;
+                String key = contentBlockId + ":" + i;
+                String blockLengthKey = BLOCK_LENGTH_FIELD_STUB + bodyNum;
+                String bodyKey = BODY_FIELD_STUB + bodyNum;
+                int bufferLength = saveBuffer.length;
+                length = length + bufferLength;
+                lastBlockWrite = i;
+                Map<String, Object> values = ImmutableMap.of(Content.UUID_FIELD,
+                        (Object)contentId, 
+                        CONTENT_BLOCK_ID, key,
+                        NUMBLOCKS_FIELD,
+                        bodyNum + 1, blockLengthKey,
+                        bufferLength, bodyKey, saveBuffer);
+                // the block id is new for every body, so the first block of a
+                // set starts an empty row and there is nothing to read.
+                boolean newRow = bodyNum == 0;
+                if (writer != null) {
+                    writer.write(key, values, newRow, buffer);
+                } else {
+                    insertBlock(client, keySpace, contentColumnFamily, key, values, newRow);
+                }
+                bodyNum++;
+                if (bodyNum > maxChunksPerBlockSet) {
+                    bodyNum = 0;
+                    i++;
+                }
+            }
+            if (writer != null) {
+                writer.finish();
+            }
+            finished = true;
+        } finally {
+            if (writer != null && !finished) {
+                writer.abandon();
             }
         }
         Map<String, Object> metadata = Maps.newHashMap();
@@ -128,10 +220,189 @@ public class BlockSetContentHelper implements BlockContentHelper {
             int nBlocks) throws StorageClientException, AccessDeniedException {
         // all the information is stored against the contentBlockId which is unique to the stream
         return new BlockContentInputStream(client, keySpace, contentColumnFamily, contentBlockId, 
-                nBlocks);
+                nBlocks, BLOCK_IO, readAhead);
     }
 
     public boolean hasBody(Map<String, Object> content, String streamId) {
         return content.containsKey(StorageClientUtils.getAltField(Content.BLOCKID_FIELD, streamId));
     }
+
+    public void removeBody(String keySpace, String contentColumnFamily, String contentBlockId, String streamId,
+            int nBlocks) throws StorageClientException {
+        for (int i = 0; i < nBlocks; i++) {
+            client.remove(keySpace, contentColumnFamily, contentBlockId + ":" + i);
+        }
+    }
+
+    private BlockWriter newBlockWriter(String keySpace, String contentColumnFamily, int blockSize) {
+        if (writerPool == null) {
+            return new BlockWriter(client, false, keySpace, contentColumnFamily, blockSize, writeBehind);
+        }
+        try {
+            return new BlockWriter(writerPool.getClient(), true, keySpace, contentColumnFamily, blockSize,
+                    writeBehind);
+        } catch (ClientPoolException e) {
+            LOGGER.debug("No client to write blocks behind the upload, writing them in turn {} ", e.getMessage());
+            return null;
+        }
+    }
+
+    private void insertBlock(StorageClient client, String keySpace, String contentColumnFamily, String key,
+            Map<String, Object> values, boolean newRow) throws StorageClientException {
+        Map<String, Object> currentValues = null;
+        if (newRow) {
+            currentValues = ImmutableMap.of();
+        }
+        client.insert(keySpace, contentColumnFamily, key, values, newRow, currentValues);
+    }
+
+    /**
+     * Writes the blocks of one body, in order, on a thread of its own while the
+     * next blocks are read from the upload. The number of block buffers bounds
+     * the blocks in flight; a buffer is reused once its block has been
+     * inserted, as the clients copy the body out of the buffer before insert
+     * returns.
+     */
+    private class BlockWriter implements Runnable {
+
+        private StorageClient writerClient;
+        private boolean leased;
+        private String keySpace;
+        private String contentColumnFamily;
+        private int blockSize;
+        private int maxBuffers;
+        private int nBuffers;
+        private BlockingQueue<byte[]> free = new LinkedBlockingQueue<byte[]>();
+        private BlockingQueue<Block> pending = new LinkedBlockingQueue<Block>();
+        private Future<?> future;
+        private volatile Exception failure;
+        private volatile boolean abandoned;
+
+        BlockWriter(StorageClient writerClient, boolean leased, String keySpace, String contentColumnFamily,
+                int blockSize, int writeBehind) {
+            this.writerClient = writerClient;
+            this.leased = leased;
+            this.keySpace = keySpace;
+            this.contentColumnFamily = contentColumnFamily;
+            this.blockSize = blockSize;
+            // one buffer being filled and up to writeBehind waiting or being
+            // written.
+            this.maxBuffers = writeBehind + 1;
+            future = BLOCK_IO.submit(this);
+        }
+
+        byte[] takeBuffer() throws StorageClientException, IOException {
+            checkFailure();
+            byte[] buffer = free.poll();
+            if (buffer == null) {
+                if (nBuffers < maxBuffers) {
+                    nBuffers++;
+                    return new byte[blockSize];
+                }
+                try {
+                    buffer = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a block to be written");
+                }
+                checkFailure();
+            }
+            return buffer;
+        }
+
+        void write(String key, Map<String, Object> values, boolean newRow, byte[] buffer) {
+            pending.add(new Block(key, values, newRow, buffer));
+        }
+
+        void finish() throws StorageClientException, IOException {
+            pending.add(Block.END);
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                abandon();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the last block to be written");
+            } catch (ExecutionException e) {
+                throw new StorageClientException(e.getMessage(), e.getCause());
+            }
+            checkFailure();
+        }
+
+        /**
+         * Stop writing blocks, and wait for any block being written, so none
+         * is written after the upload has failed.
+         */
+        void abandon() {
+            abandoned = true;
+            pending.add(Block.END);
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkFailure() throws StorageClientException, IOException {
+            Exception e = failure;
+            if (e instanceof StorageClientException) {
+                throw (StorageClientException) e;
+            } else if (e != null) {
+                throw new StorageClientException(e.getMessage(), e);
+            }
+        }
+
+        public void run() {
+            try {
+                for (;;) {
+                    Block block = pending.take();
+                    if (block == Block.END) {
+                        return;
+                    }
+                    // after a failure keep taking blocks and freeing their
+                    // buffers so the reader never waits, it will see the
+                    // failure when it next takes a buffer.
+                    if (failure == null && !abandoned) {
+                        try {
+                            insertBlock(writerClient, keySpace, contentColumnFamily, block.key, block.values,
+                                    block.newRow);
+                        } catch (Exception e) {
+                            LOGGER.debug("Failed to write block {} {} ", block.key, e.getMessage());
+                            failure = e;
+                        }
+                    }
+                    free.add(block.buffer);
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            } finally {
+                if (leased) {
+                    writerClient.close();
+                }
+            }
+        }
+    }
+
+    private static class Block {
+        private static final Block END = new Block(null, null, false, null);
+        private String key;
+        private Map<String, Object> values;
+        private boolean newRow;
+        private byte[] buffer;
+
+        Block(String key, Map<String, Object> values, boolean newRow, byte[] buffer) {
+            this.key = key;
+            this.values = values;
+            this.newRow = newRow;
+            this.buffer = buffer;
+        }
+    }
 }
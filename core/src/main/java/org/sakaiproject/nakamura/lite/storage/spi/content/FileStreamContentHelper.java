@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.lite.storage.spi.content;
 
 import com.google.common.collect.Maps;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -34,26 +36,57 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Map;
 
+/**
+ * Stores bodies as files. Each body is written to a new file, unless the store
+ * is content addressed, when a body is written once per distinct content to a
+ * file named by the SHA-256 digest of its bytes. Content addressed files keep
+ * a count of the content items referencing them in a .refs file alongside, and
+ * are removed when the last reference is released. Checking for a body,
+ * changing its count and removing it are done holding a lock on a .lock file
+ * in the body's directory, which is never removed, so servers sharing the
+ * store see consistent counts.
+ */
 public class FileStreamContentHelper implements StreamedContentHelper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileStreamContentHelper.class);
     private static final String STORE_LOCATION_FIELD = Repository.SYSTEM_PROP_PREFIX + "bodyLocation";
+    private static final String STORE_DIGEST_FIELD = Repository.SYSTEM_PROP_PREFIX + "bodyDigest";
+    private static final String CONTENT_ADDRESSED_DIR = "cas";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String REFERENCES_SUFFIX = ".refs";
+    private static final String LOCK_FILE = ".lock";
+    /**
+     * Guards the content addressed files within this JVM, since a JVM can not
+     * hold overlapping file locks. File locks guard them between JVMs.
+     */
+    private static final Object REFERENCE_LOCK = new Object();
     private String fileStore;
     private RowHasher rowHasher;
+    private boolean contentAddressed;
 
     public FileStreamContentHelper(RowHasher rowHasher, Map<String, Object> properties) {
         fileStore = StorageClientUtils.getSetting(properties.get(AbstractClientConnectionPool.FS_STORE_BASE_DIR),
                 AbstractClientConnectionPool.DEFAULT_FILE_STORE);
+        contentAddressed = StorageClientUtils.getSetting(
+                properties.get(AbstractClientConnectionPool.FS_CONTENT_ADDRESSED), false);
         this.rowHasher = rowHasher;
     }
 
     public Map<String, Object> writeBody(String keySpace, String columnFamily, String contentId,
             String contentBlockId, String streamId, Map<String, Object> content, InputStream in) throws IOException,
             StorageClientException {
+        if (contentAddressed) {
+            return writeAddressedBody(keySpace, columnFamily, contentBlockId, streamId, content, in);
+        }
         String path = getPath(keySpace, columnFamily, contentBlockId);
         File file = new File(fileStore + "/" + path);
         File parentFile = file.getParentFile();
@@ -74,6 +107,176 @@ public class FileStreamContentHelper implements StreamedContentHelper {
         return metadata;
     }
 
+    /**
+     * Streams the body to a temporary file while taking its digest, then
+     * moves it to the location for the digest, unless the same bytes are
+     * already stored there. The body this replaces keeps its reference until
+     * the caller releases it, once the content no longer refers to it.
+     */
+    private Map<String, Object> writeAddressedBody(String keySpace, String columnFamily, String contentBlockId,
+            String streamId, Map<String, Object> content, InputStream in) throws IOException, StorageClientException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new StorageClientException("Unable to digest bodies with " + DIGEST_ALGORITHM, e);
+        }
+        File tmpDir = new File(fileStore + "/" + CONTENT_ADDRESSED_DIR + "/tmp");
+        makeParent(new File(tmpDir, "body"));
+        File tmp = File.createTempFile("body", ".tmp", tmpDir);
+        long length;
+        try {
+            DigestOutputStream out = new DigestOutputStream(new FileOutputStream(tmp), messageDigest);
+            try {
+                length = IOUtils.copyLarge(in, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        String digest = new String(Hex.encodeHex(messageDigest.digest()));
+        String path = CONTENT_ADDRESSED_DIR + "/" + digest.substring(0, 2) + "/" + digest.substring(2, 4) + "/"
+                + digest;
+        File file = new File(fileStore + "/" + path);
+        reference(file, tmp, 1);
+        LOGGER.debug("Stored {} bytes at {} as body of {}:{}:{} stream {} ", new Object[] { length, path, keySpace,
+                columnFamily, contentBlockId, streamId });
+        Map<String, Object> metadata = Maps.newHashMap();
+        metadata.put(StorageClientUtils.getAltField(Content.LENGTH_FIELD, streamId), length);
+        metadata.put(StorageClientUtils.getAltField(Content.BLOCKID_FIELD, streamId), contentBlockId);
+        metadata.put(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId), path);
+        metadata.put(StorageClientUtils.getAltField(STORE_DIGEST_FIELD, streamId), digest);
+        return metadata;
+    }
+
+    public Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId,
+            Map<String, Object> content) throws IOException {
+        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
+        if (!isAddressed(path)) {
+            return null;
+        }
+        File file = new File(fileStore + "/" + path);
+        if (reference(file, null, 1) < 0) {
+            return null;
+        }
+        Map<String, Object> metadata = Maps.newHashMap();
+        for (String field : new String[] { Content.LENGTH_FIELD, Content.BLOCKID_FIELD, STORE_LOCATION_FIELD,
+                STORE_DIGEST_FIELD }) {
+            String name = StorageClientUtils.getAltField(field, streamId);
+            if (content.containsKey(name)) {
+                metadata.put(name, content.get(name));
+            }
+        }
+        return metadata;
+    }
+
+    public void removeBody(String keySpace, String columnFamily, String contentBlockId, String streamId,
+            Map<String, Object> content) throws IOException {
+        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
+        if (path == null) {
+            return;
+        }
+        if (isAddressed(path)) {
+            release(content, streamId);
+        } else {
+            LOGGER.debug("Removing body {} of {}:{}:{} ", new Object[] { path, keySpace, columnFamily,
+                    contentBlockId });
+            new File(fileStore + "/" + path).delete();
+        }
+    }
+
+    public void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws IOException {
+        release(content, streamId);
+    }
+
+    /**
+     * Release the reference the content holds on the body of a stream,
+     * removing the body if it was the last.
+     */
+    private void release(Map<String, Object> content, String streamId) throws IOException {
+        if (content == null) {
+            return;
+        }
+        String path = (String) content.get(StorageClientUtils.getAltField(STORE_LOCATION_FIELD, streamId));
+        if (!isAddressed(path)) {
+            return;
+        }
+        reference(new File(fileStore + "/" + path), null, -1);
+    }
+
+    /**
+     * Change the reference count of a content addressed file, holding the
+     * lock on its directory. The file is removed with its count when the count
+     * reaches 0.
+     * 
+     * @param file
+     *            the content addressed file.
+     * @param body
+     *            a new body with the same digest, moved into place if the file
+     *            does not exist and removed if it does, or null.
+     * @param delta
+     * @return the new count, or -1 if the file does not exist and there was no
+     *         body to put in its place.
+     */
+    private long reference(File file, File body, long delta) throws IOException {
+        makeParent(file);
+        synchronized (REFERENCE_LOCK) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(file.getParentFile(), LOCK_FILE), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    if (!file.exists()) {
+                        if (body == null) {
+                            return -1;
+                        }
+                        if (!body.renameTo(file)) {
+                            body.delete();
+                            throw new IOException("Unable to move body to " + file.getAbsolutePath());
+                        }
+                    } else if (body != null) {
+                        body.delete();
+                    }
+                    File references = new File(file.getPath() + REFERENCES_SUFFIX);
+                    long count = delta;
+                    if (references.exists()) {
+                        String line = FileUtils.readFileToString(references).trim();
+                        if (line.length() > 0) {
+                            count += Long.parseLong(line);
+                        }
+                    }
+                    if (count <= 0) {
+                        LOGGER.debug("Removing unreferenced body {} ", file);
+                        file.delete();
+                        references.delete();
+                    } else {
+                        FileUtils.writeStringToFile(references, String.valueOf(count));
+                    }
+                    return count;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    private boolean isAddressed(String path) {
+        return path != null && path.startsWith(CONTENT_ADDRESSED_DIR + "/");
+    }
+
+    private void makeParent(File file) throws IOException {
+        File parentFile = file.getParentFile();
+        if (!parentFile.exists()) {
+            if (!parentFile.mkdirs() && !parentFile.exists()) {
+                throw new IOException("Unable to create directory " + parentFile.getAbsolutePath());
+            }
+        }
+    }
+
     private String getPath(String keySpace, String columnFamily, String contentBlockId)
             throws StorageClientException {
         Calendar c = new GregorianCalendar();
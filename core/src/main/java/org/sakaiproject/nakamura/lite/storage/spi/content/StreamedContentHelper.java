@@ -34,5 +34,50 @@ public interface StreamedContentHelper {
 
     boolean hasStream(Map<String, Object> content, String streamId);
 
+    /**
+     * Add a reference to the body of a stream so that another content object
+     * can use it without the bytes being copied.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param streamId
+     * @param content
+     *            the content object the body belongs to.
+     * @return the body properties for the content object that now shares the
+     *         body, or null if the body can't be shared and has to be copied
+     *         by streaming it.
+     * @throws IOException
+     */
+    Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws IOException;
+
+    /**
+     * Remove the body of a stream, or the reference the content holds on it
+     * if the body is shared.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param contentBlockId
+     * @param streamId
+     * @param content
+     *            the content object the body belongs to.
+     * @throws IOException
+     */
+    void removeBody(String keySpace, String columnFamily, String contentBlockId, String streamId,
+            Map<String, Object> content) throws IOException;
+
+    /**
+     * Release the reference the content holds on the body of a stream if the
+     * body is shared, keeping bodies that are not.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param streamId
+     * @param content
+     *            the content object the body belongs to.
+     * @throws IOException
+     */
+    void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content)
+            throws IOException;
 
 }
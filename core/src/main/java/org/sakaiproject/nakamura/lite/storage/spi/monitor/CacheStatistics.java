@@ -0,0 +1,39 @@
+package org.sakaiproject.nakamura.lite.storage.spi.monitor;
+
+/**
+ * Counters exposed by a cache so that they can be reported with the other
+ * stats.
+ */
+public interface CacheStatistics {
+
+    /**
+     * @return the number of gets that found a value.
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of gets that did not find a value.
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of entries removed to keep the cache within its
+     *         bounds.
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the current total weight of the entries.
+     */
+    long getWeight();
+
+    /**
+     * @return the maximum total weight of the entries.
+     */
+    long getMaxWeight();
+
+    /**
+     * @return the number of entries.
+     */
+    int size();
+}
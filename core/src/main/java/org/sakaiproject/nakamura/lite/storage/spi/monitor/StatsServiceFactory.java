@@ -8,5 +8,13 @@ public interface StatsServiceFactory {
      */
     StatsService openSession();
 
+    /**
+     * Register a cache so that its counters are reported with the application
+     * stats. Registering a cache under an existing name replaces it.
+     * @param name
+     * @param cacheStatistics
+     */
+    void registerCache(String name, CacheStatistics cacheStatistics);
+
 
 }
@@ -61,6 +61,8 @@ public class StatsServiceFactroyImpl implements StatsServiceFactory {
 	private AtomicLong op = new AtomicLong();
 	private AtomicLong api = new AtomicLong();
 
+	private Map<String, CacheStatistics> caches = Maps.newConcurrentMap();
+
 	private ReentrantReadWriteLock sortLock = new ReentrantReadWriteLock();
 
 
@@ -84,6 +86,11 @@ public class StatsServiceFactroyImpl implements StatsServiceFactory {
         return new StatsServiceImpl(this, capture);
     }
 
+    @Override
+    public void registerCache(String name, CacheStatistics cacheStatistics) {
+        caches.put(name, cacheStatistics);
+    }
+
     protected void save(StatsServiceImpl sessionStatsService) {
         if (capture) {
         	ReadLock rl = null;
@@ -165,6 +172,12 @@ public class StatsServiceFactroyImpl implements StatsServiceFactory {
         for (Entry<String, AtomicLongArray> o : storageOps.entrySet()) {
             LOGGER.info("{}     Storage, {}, {}, {}", new Object[] { name, o.getValue().get(1), o.getValue().get(0), o.getKey() });
         }
+        LOGGER.info("{} Key Cache, hits, misses, evictions, size, weight, maxWeight, C", name);
+        for (Entry<String, CacheStatistics> o : caches.entrySet()) {
+            CacheStatistics c = o.getValue();
+            LOGGER.info("{}     Cache, {}, {}, {}, {}, {}, {}, {}", new Object[] { name, c.getHitCount(), c.getMissCount(),
+                    c.getEvictionCount(), c.size(), c.getWeight(), c.getMaxWeight(), o.getKey() });
+        }
         LOGGER.info("{} Key Api Call, T, N, M", name);
         for (Entry<String, AtomicLongArray> o : apiCalls.entrySet()) {
             LOGGER.info("{}     Api Call, {}, {}, {}", new Object[] { name, o.getValue().get(1), o.getValue().get(0), o.getKey() });
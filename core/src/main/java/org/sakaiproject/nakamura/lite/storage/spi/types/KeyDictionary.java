@@ -0,0 +1,112 @@
+package org.sakaiproject.nakamura.lite.storage.spi.types;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+
+import java.util.Map;
+
+/**
+ * A fixed list of property names that are common in a column family. The v2
+ * row format writes the index of a name in the dictionary instead of the name.
+ * The dictionary used is recorded in each row by id, so these lists are part
+ * of the storage format: never reorder or remove entries or reuse an id, only
+ * append names to the end of a list.
+ */
+public class KeyDictionary {
+
+    /**
+     * No dictionary, all names are written in full.
+     */
+    public static final KeyDictionary NONE = new KeyDictionary(0, new String[0]);
+
+    private static final KeyDictionary CONTENT = new KeyDictionary(1, new String[] { "_id", "_path",
+            "_:parenthash", "_:cid", "_:link", "_blockId", "_previousVersion", "_previousBlockId",
+            "_nextVersion", "_readOnly", "_deleted", "_blocksize", "_length", "_nblocks",
+            "_bodyLastModified", "_bodyLastModifiedBy", "_bodyCreated", "_bodyCreatedBy", "_created",
+            "_createdBy", "_lastModified", "_lastModifiedBy", "_copiedFrom", "_copiedFromId",
+            "_copiedDeep", "_mimeType", "sling:resourceType", "resourceType", "_encoding",
+            "_versionHistoryId", "_versionNumber", "_versionSavedBy", "sakai:pooled-content-manager",
+            "sakai:messagestore", "sakai:type", "sakai:marker", "sakai:tag-uuid", "sakai:contactstorepath",
+            "sakai:state", "sakai:category", "sakai:messagebox", "sakai:from", "sakai:subject" });
+
+    private static final KeyDictionary AUTHORIZABLE = new KeyDictionary(2, new String[] { "pwd", "principals",
+            "members", "id", "name", "type", "lastModified", "lastModifiedBy", "created", "createdBy",
+            "loginEnabledPeriod", "impersonators", "rep:principalName", "_deleted" });
+
+    private static final KeyDictionary ACL = new KeyDictionary(3, new String[] { "_secretKey", "_aclPath",
+            "_aclType", "_aclKey", "everyone@g", "everyone@d", "anonymous@g", "anonymous@d", "_deleted" });
+
+    private static final KeyDictionary LOCK = new KeyDictionary(4, new String[] { "p", "u", "x", "a", "e", "t",
+            "_deleted" });
+
+    private static final KeyDictionary[] BY_ID = new KeyDictionary[] { NONE, CONTENT, AUTHORIZABLE, ACL, LOCK };
+
+    private static final Map<String, KeyDictionary> BY_COLUMN_FAMILY = ImmutableMap.of("cn", CONTENT, "au",
+            AUTHORIZABLE, "ac", ACL, "ln", LOCK, "lk", LOCK);
+
+    private final int id;
+    private final String[] keys;
+    private final Map<String, Integer> index;
+
+    private KeyDictionary(int id, String[] keys) {
+        this.id = id;
+        this.keys = keys;
+        Builder<String, Integer> b = ImmutableMap.builder();
+        for (int i = 0; i < keys.length; i++) {
+            b.put(keys[i], i);
+        }
+        this.index = b.build();
+    }
+
+    /**
+     * @param columnFamily
+     * @return the dictionary for the column family, {@link #NONE} if the column
+     *         family has none.
+     */
+    public static KeyDictionary forColumnFamily(String columnFamily) {
+        KeyDictionary d = BY_COLUMN_FAMILY.get(columnFamily);
+        if (d == null) {
+            return NONE;
+        }
+        return d;
+    }
+
+    /**
+     * @param id
+     * @return the dictionary with the id or null if there is none.
+     */
+    public static KeyDictionary forId(int id) {
+        if (id < 0 || id >= BY_ID.length) {
+            return null;
+        }
+        return BY_ID[id];
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @param key
+     * @return the index of the key or -1 if its not in the dictionary.
+     */
+    public int indexOf(String key) {
+        Integer i = index.get(key);
+        if (i == null) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * @param i
+     * @return the key at the index or null if the index is not in the
+     *         dictionary.
+     */
+    public String get(int i) {
+        if (i < 0 || i >= keys.length) {
+            return null;
+        }
+        return keys[i];
+    }
+}
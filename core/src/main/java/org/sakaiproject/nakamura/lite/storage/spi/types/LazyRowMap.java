@@ -0,0 +1,195 @@
+package org.sakaiproject.nakamura.lite.storage.spi.types;
+
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.util.Weighted;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An unmodifiable Map over the bytes of a v3 row. The keys and the offsets of
+ * the values are indexed when the row is loaded, but each value is only
+ * decoded the first time it is used, so a row that is only checked for one or
+ * two properties is never fully decoded. Only v3 rows carry the value lengths
+ * this needs, v1 and v2 rows, including those written with the default
+ * row-format of 2, are decoded in full when loaded. Instances are safe to share
+ * between threads, eg in the shared cache.
+ */
+public class LazyRowMap extends AbstractMap<String, Object> implements Weighted {
+
+    /**
+     * Rows with fewer keys than this are searched rather than hashed.
+     */
+    private static final int MAX_SCAN = 8;
+
+    private final byte[] data;
+    private final String[] keys;
+    private final int[] typeIds;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final AtomicReferenceArray<Object> values;
+    private volatile Map<String, Integer> index;
+    private Set<Entry<String, Object>> entrySet;
+
+    LazyRowMap(byte[] data, String[] keys, int[] typeIds, int[] offsets, int[] lengths) {
+        this.data = data;
+        this.keys = keys;
+        this.typeIds = typeIds;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.values = new AtomicReferenceArray<Object>(keys.length);
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        return value(i);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, Object>>() {
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int i = 0;
+
+                        public boolean hasNext() {
+                            return i < keys.length;
+                        }
+
+                        public Entry<String, Object> next() {
+                            if (i >= keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            return new LazyEntry(i++);
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * The weight is based on the encoded row, allowing for the values being
+     * decoded, so it can be given without decoding anything.
+     */
+    public long getWeight() {
+        return 64 + 2L * data.length + 24L * keys.length;
+    }
+
+    private int indexOf(Object key) {
+        if (keys.length <= MAX_SCAN) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Map<String, Integer> idx = index;
+        if (idx == null) {
+            idx = Maps.newHashMapWithExpectedSize(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                idx.put(keys[i], i);
+            }
+            index = idx;
+        }
+        Integer i = idx.get(key);
+        if (i == null) {
+            return -1;
+        }
+        return i;
+    }
+
+    private Object value(int i) {
+        Object v = values.get(i);
+        if (v == null) {
+            try {
+                v = Types.lookupTypeById(typeIds[i]).load(
+                        new DataInputStream(new ByteArrayInputStream(data, offsets[i], lengths[i])));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to decode property " + keys[i] + " " + e.getMessage(), e);
+            }
+            values.compareAndSet(i, null, v);
+            v = values.get(i);
+        }
+        return v;
+    }
+
+    private class LazyEntry implements Entry<String, Object> {
+
+        private final int i;
+
+        LazyEntry(int i) {
+            this.i = i;
+        }
+
+        public String getKey() {
+            return keys[i];
+        }
+
+        public Object getValue() {
+            return value(i);
+        }
+
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object v = getValue();
+            return keys[i].equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object v = getValue();
+            return keys[i].hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return keys[i] + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.sakaiproject.nakamura.lite.storage.spi.types;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * A per thread buffer that rows are written into, so that writing a row does
+ * not grow a new buffer each time.
+ */
+class RowBuffer extends ByteArrayOutputStream {
+
+    private final DataOutputStream dos = new DataOutputStream(this);
+    private RowBuffer valueBuffer;
+
+    RowBuffer() {
+        super(1024);
+    }
+
+    DataOutputStream getDataOutputStream() {
+        return dos;
+    }
+
+    /**
+     * @return a second buffer that single values are written into so that
+     *         their length can be written before them.
+     */
+    RowBuffer getValueBuffer() {
+        if (valueBuffer == null) {
+            valueBuffer = new RowBuffer();
+        }
+        return valueBuffer;
+    }
+
+    int capacity() {
+        if (valueBuffer == null) {
+            return buf.length;
+        }
+        return Math.max(buf.length, valueBuffer.capacity());
+    }
+}
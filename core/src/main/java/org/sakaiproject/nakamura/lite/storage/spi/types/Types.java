@@ -3,8 +3,10 @@ package org.sakaiproject.nakamura.lite.storage.spi.types;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +17,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -46,6 +50,32 @@ public class Types {
         new BigIntegerArrayType(),
         new ByteArrayType()
     };
+    /**
+     * The original row format, modified UTF-8 keys and 4 byte type ids.
+     */
+    public static final int ROW_FORMAT_V1 = 1;
+    /**
+     * The compact row format, dictionary or UTF-8 keys with varint lengths and
+     * type ids.
+     */
+    public static final int ROW_FORMAT_V2 = 2;
+    /**
+     * The compact row format with each value prefixed by its length, so that
+     * rows can be indexed without decoding their values, see
+     * {@link LazyRowMap}.
+     */
+    public static final int ROW_FORMAT_V3 = 3;
+    /**
+     * The first 2 bytes of a v2 or v3 row, followed by the version byte. A v1
+     * row starts with the length of the row key which is never 0xFFFF.
+     */
+    private static final int V2_MAGIC = 0xffff;
+    /**
+     * Row buffers that have grown larger than this are not kept for reuse.
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<RowBuffer> rowBuffer = new ThreadLocal<RowBuffer>();
     private static final Type<String> UNKNOWN_TYPE = new StringType();
     private static final Logger LOGGER = LoggerFactory.getLogger(Types.class);
     private static final Type<?> NULL_TYPE = new RemovePropertyType();
@@ -116,7 +146,28 @@ public class Types {
      */
     public static void loadFromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
             throws IOException {
-        DataInputStream dis = new DataInputStream(binaryStream);
+        PushbackInputStream pin = new PushbackInputStream(binaryStream, 2);
+        DataInputStream dis = new DataInputStream(pin);
+        int b0 = pin.read();
+        int b1 = pin.read();
+        if (((b0 << 8) | b1) == V2_MAGIC) {
+            loadV2FromStream(key, output, dis, type);
+        } else {
+            if (b1 >= 0) {
+                pin.unread(b1);
+            }
+            if (b0 >= 0) {
+                pin.unread(b0);
+            }
+            loadV1FromStream(key, output, dis, type);
+        }
+        LOGGER.debug("Finished Reading");
+        dis.close();
+        binaryStream.close();
+    }
+
+    private static void loadV1FromStream(String key, Map<String, Object> output, DataInputStream dis, String type)
+            throws IOException {
         String ckey = dis.readUTF();
         if (!key.equals(ckey)) {
             throw new IOException("Body Key does not match row key, unable to read");
@@ -133,9 +184,119 @@ public class Types {
                     "Object is not of expected column family, unable to read expected [" + type
                             + "] was [" + cftype + "]");
         }
-        LOGGER.debug("Finished Reading");
-        dis.close();
-        binaryStream.close();
+    }
+
+    private static void loadV2FromStream(String key, Map<String, Object> output, DataInputStream dis, String type)
+            throws IOException {
+        int version = dis.readUnsignedByte();
+        KeyDictionary dictionary = readV2Header(key, dis, type, version);
+        int size = readVarInt(dis);
+        LOGGER.debug("Reading {} items", size);
+        for (int i = 0; i < size; i++) {
+            String k = readV2Key(dis, dictionary);
+            Type<?> t = lookupTypeById(readVarInt(dis));
+            if (version == ROW_FORMAT_V3) {
+                readVarInt(dis); // the length of the value, only needed when indexing
+            }
+            output.put(k, t.load(dis));
+        }
+    }
+
+    /**
+     * Load a row from a binary stream. Rows in the v3 format are indexed but
+     * their values are not decoded until they are used, see
+     * {@link LazyRowMap}. Rows in the v1 and v2 formats are loaded in full.
+     * 
+     * @param key
+     *            the row key
+     * @param binaryStream
+     *            the stream, which is always closed.
+     * @param type
+     *            the column family
+     * @return an unmodifiable map of the row.
+     * @throws IOException
+     */
+    public static Map<String, Object> loadRow(String key, InputStream binaryStream, String type) throws IOException {
+        try {
+            PushbackInputStream pin = new PushbackInputStream(binaryStream, 2);
+            int b0 = pin.read();
+            int b1 = pin.read();
+            Map<String, Object> output = Maps.newHashMap();
+            if (((b0 << 8) | b1) == V2_MAGIC) {
+                byte[] data = IOUtils.toByteArray(pin);
+                if (data.length > 0 && data[0] == ROW_FORMAT_V3) {
+                    return indexV3Row(key, data, type);
+                }
+                loadV2FromStream(key, output, new DataInputStream(new ByteArrayInputStream(data)), type);
+                return ImmutableMap.copyOf(output);
+            }
+            if (b1 >= 0) {
+                pin.unread(b1);
+            }
+            if (b0 >= 0) {
+                pin.unread(b0);
+            }
+            loadV1FromStream(key, output, new DataInputStream(pin), type);
+            return ImmutableMap.copyOf(output);
+        } finally {
+            binaryStream.close();
+        }
+    }
+
+    private static Map<String, Object> indexV3Row(String key, byte[] data, String type) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        DataInputStream dis = new DataInputStream(bais);
+        KeyDictionary dictionary = readV2Header(key, dis, type, dis.readUnsignedByte());
+        int size = readVarInt(dis);
+        String[] keys = new String[size];
+        int[] typeIds = new int[size];
+        int[] offsets = new int[size];
+        int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = readV2Key(dis, dictionary);
+            typeIds[i] = readVarInt(dis);
+            lengths[i] = readVarInt(dis);
+            offsets[i] = data.length - bais.available();
+            if (dis.skipBytes(lengths[i]) != lengths[i]) {
+                throw new IOException("Row " + key + " is truncated, unable to read");
+            }
+        }
+        return new LazyRowMap(data, keys, typeIds, offsets, lengths);
+    }
+
+    private static KeyDictionary readV2Header(String key, DataInputStream dis, String type, int version)
+            throws IOException {
+        if (version != ROW_FORMAT_V2 && version != ROW_FORMAT_V3) {
+            throw new IOException("Unknown row format version " + version + ", unable to read");
+        }
+        int dictionaryId = readVarInt(dis);
+        KeyDictionary dictionary = KeyDictionary.forId(dictionaryId);
+        if (dictionary == null) {
+            throw new IOException("Unknown key dictionary " + dictionaryId + ", unable to read");
+        }
+        String ckey = readString(dis);
+        if (!key.equals(ckey)) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        String cftype = readString(dis);
+        if (!cftype.equals(type)) {
+            throw new IOException(
+                    "Object is not of expected column family, unable to read expected [" + type
+                            + "] was [" + cftype + "]");
+        }
+        return dictionary;
+    }
+
+    private static String readV2Key(DataInputStream dis, KeyDictionary dictionary) throws IOException {
+        int ref = readVarInt(dis);
+        if (ref == 0) {
+            return readString(dis);
+        }
+        String k = dictionary.get(ref - 1);
+        if (k == null) {
+            throw new IOException("Key " + ref + " is not in dictionary " + dictionary.getId() + ", unable to read");
+        }
+        return k;
     }
 
     public static void readMapFromStream(Map<String, Object> output, DataInputStream dis) throws IOException {
@@ -149,7 +310,7 @@ public class Types {
     }
 
     /**
-     * Save a map to a binary stream
+     * Save a map to a binary stream in the v2 row format
      * 
      *
      * @param m
@@ -166,6 +327,100 @@ public class Types {
     // the data isnt there. See the last writeUTF for an example.
     public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
             throws IOException {
+        return storeMapToStream(key, m, type, ROW_FORMAT_V2);
+    }
+
+    /**
+     * Save a map to a binary stream in the given row format. All formats can
+     * be read by {@link #loadFromStream(String, Map, InputStream, String)}.
+     * Format 1 is only needed while releases that can't read format 2 are
+     * using the same store, and format 3 should only be written once every
+     * release using the store can read it.
+     * 
+     * @param key
+     *            the row key
+     * @param m
+     *            expected to be keyed by string, can contain any object that
+     *            has a type.
+     * @param type
+     *            the column family
+     * @param format
+     *            {@link #ROW_FORMAT_V1}, {@link #ROW_FORMAT_V2} or
+     *            {@link #ROW_FORMAT_V3}
+     * @return a stream containing the row.
+     * @throws IOException
+     */
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type, int format)
+            throws IOException {
+        if (format == ROW_FORMAT_V1) {
+            return storeMapToStreamV1(key, m, type);
+        }
+        if (format != ROW_FORMAT_V2 && format != ROW_FORMAT_V3) {
+            throw new IOException("Unknown row format version " + format + ", unable to write");
+        }
+        RowBuffer buffer = rowBuffer.get();
+        if (buffer == null) {
+            buffer = new RowBuffer();
+            rowBuffer.set(buffer);
+        }
+        buffer.reset();
+        DataOutputStream dos = buffer.getDataOutputStream();
+        dos.writeShort(V2_MAGIC);
+        dos.writeByte(format);
+        KeyDictionary dictionary = KeyDictionary.forColumnFamily(type);
+        writeVarInt(dos, dictionary.getId());
+        writeString(dos, key);
+        writeString(dos, type);
+        int size = 0;
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                size++;
+            }
+        }
+        writeVarInt(dos, size);
+        LOGGER.debug("Write {} items", size);
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                String k = e.getKey();
+                int ref = dictionary.indexOf(k);
+                writeVarInt(dos, ref + 1);
+                if (ref < 0) {
+                    writeString(dos, k);
+                }
+                Type<?> t = getTypeOfObject(o);
+                writeVarInt(dos, t.getTypeId());
+                if (format == ROW_FORMAT_V3) {
+                    // values are prefixed with their length so they can be
+                    // skipped when indexing the row.
+                    RowBuffer value = buffer.getValueBuffer();
+                    value.reset();
+                    t.save(value.getDataOutputStream(), o);
+                    value.getDataOutputStream().flush();
+                    writeVarInt(dos, value.size());
+                    value.writeTo(dos);
+                } else {
+                    t.save(dos, o);
+                }
+            }
+        }
+        dos.flush();
+        InputStream in = new ByteArrayInputStream(buffer.toByteArray());
+        if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+            rowBuffer.remove();
+        }
+        return in;
+    }
+
+    // IF you change this function you will have to change it in a way that
+    // either is self healing for all the data out there
+    // or write a migration script. Be warned, there could be billions of
+    // records out there, so be very careful
+    // Appending to record is possible, if you make the loader fail safe when
+    // the data isnt there. See the last writeUTF for an example.
+    private static InputStream storeMapToStreamV1(String key, Map<String, Object> m, String type)
+            throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
         dos.writeUTF(key);
@@ -179,8 +434,39 @@ public class Types {
         dos.close();
         return new ByteArrayInputStream(b);
     }
-    
-    
+
+    private static void writeVarInt(DataOutputStream dos, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            dos.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream dis) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = dis.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint, unable to read");
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVarInt(dos, b.length);
+        dos.write(b);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] b = new byte[readVarInt(dis)];
+        dis.readFully(b);
+        return new String(b, UTF8);
+    }
+
     // IF you change this function you will have to change it in a way that
     // either is self healing for all the data out there
     // or write a migration script. Be warned, there could be billions of
@@ -214,7 +500,7 @@ public class Types {
 
     }    
     
-    private static Type<?> lookupTypeById(int typeId) {
+    static Type<?> lookupTypeById(int typeId) {
         Type<?> t = (Type<?>) typeByIdMap.get(typeId);
         if ( t == null ) {
             LOGGER.warn("Unknown Type ID {} found ",typeId);
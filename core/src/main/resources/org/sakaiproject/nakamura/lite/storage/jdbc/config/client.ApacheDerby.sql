@@ -31,43 +31,58 @@ find.n.ac = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMB
 find.n.cn = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMBER() OVER () AS R from cn_css a {0} where {1} 1 = 1 {2}) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 find.n.lk = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROW_NUMBER() OVER () AS R from lk_css a {0} where {1} 1 = 1 {2}) as TR where TR.R > {4,number,#} and TR.R <= {3,number,#}+{4,number,#};, lk_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 validate = values(1)
+# rowid-hash is a MessageDigest name, or MURMUR3-128 for a faster non cryptographic hash.
+# Changing it changes every row id, so a store with existing data must keep the hash it was created with.
 rowid-hash = SHA1
 
 
 
+# Derby 10.6 has no MERGE statement so there are no block-upsert-row statements, rows are saved with an insert falling back to an update.
 block-select-row = select b from css_b where rid = ?
+# block-select-rows loads many rows in one statement, {0} is replaced with up to select-rows-batch-size (default 100) ? markers.
+# Rows of a column family with block-select-row statements for shards of rowID (block-select-row..._X) are loaded one at a time.
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
 list-all = select rid, b from css_b
+list-all-rids = select rid from css_b
 list-all-count = select count(*) from css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 list-all.n.au = select rid, b from au_css_b
+list-all-rids.n.au = select rid from au_css_b
 list-all-count.n.au = select count(*) from au_css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 list-all.n.ac = select rid, b from ac_css_b
+list-all-rids.n.ac = select rid from ac_css_b
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
 list-all.n.cn = select rid, b from cn_css_b
+list-all-rids.n.cn = select rid from cn_css_b
 list-all-count.n.cn = select count(*) from cn_css_b
 
 block-select-row.n.lk = select b from lk_css_b where rid = ?
+block-select-rows.n.lk = select rid, b from lk_css_b where rid in ({0})
 block-delete-row.n.lk = delete from lk_css_b where rid = ?
 block-insert-row.n.lk = insert into lk_css_b (rid,b) values (?, ?)
 block-update-row.n.lk = update lk_css_b set b = ? where rid = ?
 list-all.n.lk = select rid, b from lk_css_b
+list-all-rids.n.lk = select rid from lk_css_b
 list-all-count.n.lk = select count(*) from lk_css_b
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause; sort field column( if needed)
@@ -95,11 +110,27 @@ countestimate.n.lk = select count(*) from (select distinct a.rid  {5} from lk_cs
 
 use-batch-inserts = 0
 
+# Merge on write. If 1, when a manager already holds the current state of a row it is passed to the storage client
+# which merges the changes into that state rather than reading the row again before writing it. Only enable where the
+# shared cache is reliably invalidated across the cluster, otherwise concurrent updates from other nodes may be lost.
+merge-on-write = 0
+
+# Row format written to the body column, 2 is the compact format, 1 the original. Both are always readable, so 1 is
+# only needed while older releases that can only read format 1 share the database. 3 adds value lengths so rows can be
+# decoded lazily, only set it once every release sharing the database can read format 3.
+row-format = 2
+
 # Queries that take longer than these times to execute will be logged with warn and error respectively.
 # Logging is performed against org.sakaiproject.nakamura.lite.storage.spi.jdbc.JDBCStorageClient.SlowQueryLogger
 slow-query-time = 50
 very-slow-query-time = 100
 
+# Statements that capture the plan of a very slow find when explain-slow-queries is set on the pool, separated by ;
+# {0} is replaced by the find, which has its parameters bound. The plan is the rows of the last statement returning any.
+explain-plan = CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1);{0};VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()
+# Statements run after explain-plan, even when it fails, separated by ;
+explain-plan-reset = CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)
+
 index-column-name-select = select cf, cid, cname from css_wr
 index-column-name-insert = insert into css_wr ( cf, cid, cname ) values ( ? , ? , ? )
 alter-widestring-table = ALTER TABLE {0}_css_w ADD {1} varchar(780)
@@ -151,6 +182,12 @@ wide-block-find.n.ac = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS
 wide-block-find.n.au = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from au_css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-block-find.n.lk = select TR.rid from (select s.rid, ROW_NUMBER() OVER () AS R from (select a.rid from lk_css_w a where {0} {1} ) as s) as TR where TR.R > {3,number,#} and TR.R <= {2,number,#}+{3,number,#};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 
+wide-keyset-find = select a.rid, {3} sortvalue from css_w a where {0} {1} fetch first {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.cn = select a.rid, {3} sortvalue from cn_css_w a where {0} {1} fetch first {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.ac = select a.rid, {3} sortvalue from ac_css_w a where {0} {1} fetch first {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.au = select a.rid, {3} sortvalue from au_css_w a where {0} {1} fetch first {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.lk = select a.rid, {3} sortvalue from lk_css_w a where {0} {1} fetch first {2,number,#} rows only;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+
 wide-listchildren = select a.rid from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-listchildren.n.cn = select a.rid from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-listchildren.n.ac = select a.rid from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
@@ -162,4 +199,9 @@ wide-countestimate.n.cn = select count(*) from cn_css_w a where {0} {1} ;a.{0} =
 wide-countestimate.n.ac = select count(*) from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-countestimate.n.au = select count(*) from au_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
 wide-countestimate.n.lk = select count(*) from lk_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;sort by {0};{0} {1}
+wide-count-by = select {1}, count(*) from css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.cn = select {1}, count(*) from cn_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.ac = select {1}, count(*) from ac_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.au = select {1}, count(*) from au_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.lk = select {1}, count(*) from lk_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?
 
@@ -35,6 +35,8 @@ find.n.au = select a.rid, a.cid, a.v from au_css a {0} where {1} 1 = 1 ;, au_css
 find.n.ac = select a.rid, a.cid, a.v from ac_css a {0} where {1} 1 = 1 ;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 find.n.cn = select a.rid, a.cid, a.v from cn_css a {0} where {1} 1 = 1 ;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 validate = values(1)
+# rowid-hash is a MessageDigest name, or MURMUR3-128 for a faster non cryptographic hash.
+# Changing it changes every row id, so a store with existing data must keep the hash it was created with.
 rowid-hash = SHA1
 
 
@@ -42,28 +44,38 @@ select-index-columns = select cid from index_cols
 
 
 block-select-row = select b from css_b where rid = ?
+# block-select-rows loads many rows in one statement, {0} is replaced with up to select-rows-batch-size (default 100) ? markers.
+# Rows of a column family with block-select-row statements for shards of rowID (block-select-row..._X) are loaded one at a time.
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
 list-all = select rid, b from css_b
+list-all-rids = select rid from css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 list-all.n.au = select rid, b from au_css_b
+list-all-rids.n.au = select rid from au_css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 list-all.n.ac = select rid, b from ac_css_b
+list-all-rids.n.ac = select rid from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
 list-all.n.cn = select rid, b from cn_css_b
+list-all-rids.n.cn = select rid from cn_css_b
 
 # 0: base statement
 # 1: table join
@@ -77,6 +89,16 @@ block-find.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1;, cn_c
 
 use-batch-inserts = 0
 
+# Merge on write. If 1, when a manager already holds the current state of a row it is passed to the storage client
+# which merges the changes into that state rather than reading the row again before writing it. Only enable where the
+# shared cache is reliably invalidated across the cluster, otherwise concurrent updates from other nodes may be lost.
+merge-on-write = 0
+
+# Row format written to the body column, 2 is the compact format, 1 the original. Both are always readable, so 1 is
+# only needed while older releases that can only read format 1 share the database. 3 adds value lengths so rows can be
+# decoded lazily, only set it once every release sharing the database can read format 3.
+row-format = 2
+
 # Queries that take longer than these times to execute will be logged with warn and error respectively.
 # Logging is performed against org.sakaiproject.nakamura.lite.storage.spi.jdbc.JDBCStorageClient.SlowQueryLogger
 slow-query-time = 50
@@ -0,0 +1,76 @@
+package org.sakaiproject.nakamura.api.lite.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BodyStreamsTest {
+
+    private static final String BODY = "0123456789abcdefghij";
+
+    @Test
+    public void testFileRanges() throws IOException {
+        File file = new File("target/bodystreams-" + System.currentTimeMillis());
+        FileUtils.writeStringToFile(file, BODY, "UTF-8");
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                Assert.assertNotNull(BodyStreams.getChannel(in));
+                Assert.assertEquals(20, BodyStreams.length(in));
+                assertRanges(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStreamRanges() throws IOException {
+        Assert.assertNull(BodyStreams.getChannel(new ByteArrayInputStream(BODY.getBytes("UTF-8"))));
+        Assert.assertEquals(-1, BodyStreams.length(new ByteArrayInputStream(BODY.getBytes("UTF-8"))));
+        assertRanges(null);
+    }
+
+    @Test
+    public void testGetRange() {
+        Assert.assertNull(BodyStreams.getRange(null, 20));
+        Assert.assertArrayEquals(new long[] { 5, 9 }, BodyStreams.getRange("bytes=5-9", 20));
+        Assert.assertArrayEquals(new long[] { 15, 19 }, BodyStreams.getRange("bytes=15-", 20));
+        Assert.assertArrayEquals(new long[] { 15, 19 }, BodyStreams.getRange("bytes=-5", 20));
+        Assert.assertArrayEquals(new long[] { 18, 19 }, BodyStreams.getRange("bytes=18-30", 20));
+        // past the end can't be satisfied.
+        Assert.assertEquals(0, BodyStreams.getRange("bytes=20-", 20).length);
+        Assert.assertEquals(0, BodyStreams.getRange("bytes=-0", 20).length);
+        // several ranges, and ranges that can't be read, get the whole body.
+        Assert.assertNull(BodyStreams.getRange("bytes=0-1,5-6", 20));
+        Assert.assertNull(BodyStreams.getRange("bytes=9-5", 20));
+        Assert.assertNull(BodyStreams.getRange("bytes=x-", 20));
+        Assert.assertNull(BodyStreams.getRange("lines=1-2", 20));
+    }
+
+    private void assertRanges(InputStream fileIn) throws IOException {
+        Assert.assertEquals("56789", copyRange(fileIn, 5, 5));
+        Assert.assertEquals("fghij", copyRange(fileIn, 15, -1));
+        Assert.assertEquals("ij", copyRange(fileIn, 18, 10));
+        Assert.assertEquals("", copyRange(fileIn, 25, 10));
+        Assert.assertEquals(BODY, copyRange(fileIn, 0, -1));
+    }
+
+    private String copyRange(InputStream fileIn, long position, long count) throws IOException {
+        // file bodies are read by position, so one stream serves every range.
+        InputStream in = fileIn == null ? new ByteArrayInputStream(BODY.getBytes("UTF-8")) : fileIn;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sent = BodyStreams.copyRange(in, position, count, out);
+        Assert.assertEquals(out.size(), sent);
+        return out.toString("UTF-8");
+    }
+}
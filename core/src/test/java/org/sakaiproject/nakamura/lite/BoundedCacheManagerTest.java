@@ -0,0 +1,69 @@
+package org.sakaiproject.nakamura.lite;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.content.InternalContentAccess;
+import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class BoundedCacheManagerTest {
+
+    @Test
+    public void testCacheHolderWeight() {
+        CacheHolder small = new CacheHolder(ImmutableMap.of("a", (Object) "b"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("x");
+        }
+        CacheHolder large = new CacheHolder(ImmutableMap.of("a", (Object) sb.toString(), "b",
+                new String[] { "x", "y" }, "c", 1L));
+        Assert.assertTrue(small.getWeight() > 0);
+        Assert.assertTrue(large.getWeight() > 2000);
+        Assert.assertTrue(new CacheHolder(null).getWeight() > 0);
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        InternalContentAccess.resetInternalContent();
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of(ConfigurationImpl.CACHE_BUDGETS, (Object) "au=100000");
+        configuration.activate(properties);
+        Assert.assertEquals(100000L, configuration.getCacheBudget("au"));
+        Assert.assertTrue(configuration.getCacheBudget("somecache") > 0);
+
+        final Map<String, CacheStatistics> registered = Maps.newHashMap();
+        BoundedCacheManager cacheManager = new BoundedCacheManager(configuration, new StatsServiceFactory() {
+            public StatsService openSession() {
+                return null;
+            }
+
+            public void registerCache(String name, CacheStatistics cacheStatistics) {
+                registered.put(name, cacheStatistics);
+            }
+        });
+        Map<String, CacheHolder> cache = cacheManager.getAuthorizableCache();
+        Assert.assertSame(cache, cacheManager.getCache("au"));
+        Assert.assertSame(((ConcurrentLRUMap<String, CacheHolder>) cache).getStatistics(), registered.get("au"));
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("x");
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put("large" + i, new CacheHolder(ImmutableMap.of("a", (Object) sb.toString())));
+        }
+        CacheStatistics stats = registered.get("au");
+        Assert.assertTrue(stats.getWeight() <= 100000L);
+        Assert.assertTrue(stats.getEvictionCount() > 0);
+        Assert.assertTrue(stats.size() < 100);
+    }
+}
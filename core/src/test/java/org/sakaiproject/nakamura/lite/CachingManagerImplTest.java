@@ -0,0 +1,291 @@
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+public class CachingManagerImplTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingManagerImplTest.class);
+
+    private static class TestCachingManager extends CachingManagerImpl {
+
+        public TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache,
+                StatsService statsService) {
+            super(client, sharedCache, statsService);
+        }
+
+        public Map<String, Object> get(String key) throws StorageClientException {
+            return getCached("n", "cn", key);
+        }
+
+        public void put(String key, Map<String, Object> properties) throws StorageClientException {
+            putCached("n", "cn", key, properties, false);
+        }
+
+        public void prefetch(String... keys) throws StorageClientException {
+            prefetchCached("n", "cn", Arrays.asList(keys));
+        }
+
+        public void markStale(String key) throws StorageClientException {
+            markStaleCached("n", "cn", key);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cn", "key")).thenReturn(ImmutableMap.of("v", (Object) "loaded"));
+        ConcurrentLRUMap<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        TestCachingManager manager = new TestCachingManager(client, cache, null);
+        Assert.assertEquals("loaded", manager.get("key").get("v"));
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals("loaded", manager.get("key").get("v"));
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testWriteDuringPrefetch() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StorageClient client = mock(StorageClient.class);
+        when(client.getMany(eq("n"), eq("cn"), anyCollectionOf(String.class))).thenAnswer(
+                new Answer<Map<String, Map<String, Object>>>() {
+                    public Map<String, Map<String, Object>> answer(InvocationOnMock invocation) throws Throwable {
+                        loading.countDown();
+                        release.await();
+                        Map<String, Object> before = ImmutableMap.of("v", (Object) "before");
+                        return ImmutableMap.of("a", before, "b", before);
+                    }
+                });
+        when(client.get("n", "cn", "a")).thenReturn(ImmutableMap.of("v", (Object) "after"));
+        Map<String, CacheHolder> cache = new ConcurrentHashMap<String, CacheHolder>();
+        final TestCachingManager prefetcher = new TestCachingManager(client, cache, null);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    prefetcher.prefetch("a", "b");
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+        t.start();
+        loading.await();
+
+        // a row written while the prefetch is reading it must not be cached
+        // from what the prefetch read.
+        TestCachingManager writer = new TestCachingManager(client, cache, null);
+        writer.put("a", ImmutableMap.of("v", (Object) "after"));
+        release.countDown();
+        t.join();
+        Assert.assertEquals("after", writer.get("a").get("v"));
+        // the other row was cached by the prefetch, it is never got alone.
+        Assert.assertEquals("before", writer.get("b").get("v"));
+        verify(client, times(0)).get("n", "cn", "b");
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cn", "key")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                loads.incrementAndGet();
+                release.await();
+                return ImmutableMap.of("v", (Object) "loaded");
+            }
+        });
+        StatsService statsService = mock(StatsService.class);
+        Map<String, CacheHolder> cache = new ConcurrentHashMap<String, CacheHolder>();
+
+        int nthreads = 8;
+        final CountDownLatch finished = new CountDownLatch(nthreads);
+        final AtomicInteger found = new AtomicInteger();
+        for (int i = 0; i < nthreads; i++) {
+            final TestCachingManager manager = new TestCachingManager(client, cache, statsService);
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if ("loaded".equals(manager.get("key").get("v"))) {
+                            found.incrementAndGet();
+                        }
+                    } catch (StorageClientException e) {
+                        LOGGER.error(e.getMessage(), e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+        // give the readers time to queue up behind the first load.
+        Thread.sleep(200);
+        release.countDown();
+        finished.await();
+        Assert.assertEquals(nthreads, found.get());
+        Assert.assertEquals(1, loads.get());
+        verify(statsService, times(nthreads - 1)).storageOp(eq("cn"), eq("coalesced-get"), anyLong());
+    }
+
+    @Test
+    public void testWriteDuringLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // mockito answers one call at a time, so the blocked load needs a
+        // client of its own.
+        StorageClient client = (StorageClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StorageClient.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!"get".equals(method.getName())) {
+                            return null;
+                        }
+                        if (loads.incrementAndGet() == 1) {
+                            // the first load reads the row before the write.
+                            loading.countDown();
+                            release.await();
+                            return ImmutableMap.of("v", (Object) "before");
+                        }
+                        return ImmutableMap.of("v", (Object) "after");
+                    }
+                });
+        Map<String, CacheHolder> cache = new ConcurrentHashMap<String, CacheHolder>();
+        final TestCachingManager reader = new TestCachingManager(client, cache, null);
+        final Map<String, Object> read = new ConcurrentHashMap<String, Object>();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    read.putAll(reader.get("key"));
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+        t.start();
+        loading.await();
+
+        // the writer reads back what it wrote while the first load is still
+        // in progress, and must not be given what that load read.
+        TestCachingManager writer = new TestCachingManager(client, cache, null);
+        writer.put("key", ImmutableMap.of("v", (Object) "after"));
+        Assert.assertEquals("after", writer.get("key").get("v"));
+        release.countDown();
+        t.join();
+        Assert.assertEquals("before", read.get("v"));
+        Assert.assertEquals("after", writer.get("key").get("v"));
+        Assert.assertEquals("after", reader.get("key").get("v"));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StorageClient client = (StorageClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StorageClient.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!"get".equals(method.getName())) {
+                            return null;
+                        }
+                        if (loads.incrementAndGet() == 1) {
+                            return ImmutableMap.of("v", (Object) "first");
+                        }
+                        // the reload blocks until released.
+                        loading.countDown();
+                        release.await();
+                        return ImmutableMap.of("v", (Object) "second");
+                    }
+                });
+        StatsService statsService = mock(StatsService.class);
+        Map<String, CacheHolder> cache = new ConcurrentHashMap<String, CacheHolder>();
+        final TestCachingManager reloader = new TestCachingManager(client, cache, statsService);
+        Assert.assertEquals("first", reloader.get("key").get("v"));
+        Assert.assertEquals("first", reloader.get("key").get("v"));
+        Assert.assertEquals(1, loads.get());
+
+        reloader.markStale("key");
+        final Map<String, Object> read = new ConcurrentHashMap<String, Object>();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    read.putAll(reloader.get("key"));
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        });
+        t.start();
+        loading.await();
+
+        // while the first reader reloads, others get the stale copy without
+        // waiting.
+        TestCachingManager other = new TestCachingManager(client, cache, statsService);
+        Assert.assertEquals("first", other.get("key").get("v"));
+        verify(statsService, times(1)).storageOp(eq("cn"), eq("stale-get"), anyLong());
+        release.countDown();
+        t.join();
+        Assert.assertEquals("second", read.get("v"));
+        Assert.assertEquals("second", other.get("key").get("v"));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testWriteWhileStale() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cn", "key")).thenReturn(ImmutableMap.of("v", (Object) "first"))
+                .thenReturn(ImmutableMap.of("v", (Object) "second"));
+        Map<String, CacheHolder> cache = new ConcurrentHashMap<String, CacheHolder>();
+        TestCachingManager manager = new TestCachingManager(client, cache, null);
+        Assert.assertEquals("first", manager.get("key").get("v"));
+        manager.markStale("key");
+        // a write removes the stale copy, so it is never served after it.
+        manager.put("key", ImmutableMap.of("v", (Object) "second"));
+        Assert.assertNull(cache.get("n:cn:key"));
+        Assert.assertEquals("second", manager.get("key").get("v"));
+        Assert.assertFalse(cache.get("n:cn:key").isStale());
+    }
+
+    @Test
+    public void testNoCache() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        when(client.get("n", "cn", "key")).thenReturn(ImmutableMap.of("v", (Object) "first"));
+        TestCachingManager manager = new TestCachingManager(client, null, null);
+        Assert.assertEquals("first", manager.get("key").get("v"));
+        Assert.assertEquals("first", manager.get("key").get("v"));
+        verify(client, times(2)).get("n", "cn", "key");
+    }
+}
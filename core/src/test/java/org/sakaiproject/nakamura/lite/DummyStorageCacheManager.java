@@ -4,11 +4,10 @@ import java.util.Map;
 
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
-import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
 
 public class DummyStorageCacheManager implements StorageCacheManager {
 
-    private Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>();
+    private Map<String, CacheHolder> cache = new UnscannableCache();
 
     @Override
     public Map<String, CacheHolder> getAccessControlCache() {
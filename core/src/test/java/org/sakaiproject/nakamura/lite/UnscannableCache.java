@@ -0,0 +1,40 @@
+package org.sakaiproject.nakamura.lite;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+
+import com.google.common.collect.ForwardingMap;
+
+/**
+ * A cache that, like the ehcache backed caches from the StorageCacheManager,
+ * can be read and written by key but not scanned.
+ */
+public class UnscannableCache extends ForwardingMap<String, CacheHolder> {
+
+    private Map<String, CacheHolder> delegate = new ConcurrentLRUMap<String, CacheHolder>();
+
+    @Override
+    protected Map<String, CacheHolder> delegate() {
+        return delegate;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Set<Entry<String, CacheHolder>> entrySet() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Collection<CacheHolder> values() {
+        throw new UnsupportedOperationException();
+    }
+
+}
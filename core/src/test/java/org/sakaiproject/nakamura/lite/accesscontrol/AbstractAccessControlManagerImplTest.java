@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.lite.accesscontrol;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -62,6 +64,7 @@ import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactroyImp
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -167,6 +170,32 @@ public abstract class AbstractAccessControlManagerImplTest {
                 Security.ZONE_CONTENT, basepath + "/zach", Permissions.CAN_READ));
     }
 
+    @Test
+    public void testRevoke() throws Exception {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration, null, statsService);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client, currentUser, configuration, null,
+                new LoggingStorageListener(), principalValidatorResolver, statsService);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser, null, client, configuration,
+                accessControlManagerImpl, null, new LoggingStorageListener(), statsService);
+        authorizableManager.createUser(u1, "User 1", "test", ImmutableMap.of("test", (Object) "test"));
+        Authorizable user1 = authorizableManager.findAuthorizable(u1);
+
+        accessControlManagerImpl.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] { new AclModification(
+                AclModification.grantKey(u1), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertTrue(new AccessControlManagerImpl(client, currentUser, configuration, null, new LoggingStorageListener(),
+                principalValidatorResolver, statsService).can(user1, Security.ZONE_CONTENT, basepath, Permissions.CAN_READ));
+
+        accessControlManagerImpl.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] {
+                new AclModification(AclModification.grantKey(u1), 0, Operation.OP_DEL),
+                new AclModification(AclModification.denyKey(u1), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertFalse(new AccessControlManagerImpl(client, currentUser, configuration, null, new LoggingStorageListener(),
+                principalValidatorResolver, statsService).can(user1, Security.ZONE_CONTENT, basepath, Permissions.CAN_READ));
+    }
+
     @Test
     public void testPrivileges() throws StorageClientException, AccessDeniedException {
         AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration, null, statsService);
@@ -521,4 +550,56 @@ public abstract class AbstractAccessControlManagerImplTest {
         Assert.assertTrue(normalAccessControlManager.can(normalSuzy, Security.ZONE_AUTHORIZABLES, "wrapper", Permissions.CAN_READ));
     }
 
+    @Test
+    public void testCanAll() throws Exception {
+        Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+        Session adminSession = repository.loginAdministrative();
+        AuthorizableManager adminAuthorizableManager = adminSession.getAuthorizableManager();
+        ContentManager adminContentManager = adminSession.getContentManager();
+        AccessControlManager adminAccessControlManager = adminSession.getAccessControlManager();
+        Assert.assertTrue(adminAuthorizableManager.createUser("canall", "canall", "secret", null));
+
+        String basepath = "canall" + System.currentTimeMillis();
+        List<String> paths = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            String path = basepath + "/child" + i;
+            adminContentManager.update(new Content(path, null));
+            paths.add(path);
+        }
+        paths.add(basepath + "/child1/missing");
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] { new AclModification(
+                AclModification.grantKey("canall"), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/child1", new AclModification[] { new AclModification(
+                AclModification.denyKey("canall"), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/child3", new AclModification[] { new AclModification(
+                AclModification.denyKey(Group.EVERYONE), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+
+        boolean[] adminCan = adminAccessControlManager.canAll(Security.ZONE_CONTENT, paths, Permissions.CAN_READ);
+        for (boolean can : adminCan) {
+            Assert.assertTrue(can);
+        }
+        adminSession.logout();
+
+        Session session = repository.loginAdministrative("canall");
+        AccessControlManager accessControlManager = session.getAccessControlManager();
+        Authorizable user = session.getAuthorizableManager().findAuthorizable("canall");
+        boolean[] canRead = accessControlManager.canAll(Security.ZONE_CONTENT, paths, Permissions.CAN_READ);
+        Assert.assertEquals(paths.size(), canRead.length);
+        Assert.assertEquals(Arrays.toString(new boolean[] { true, false, true, false, true, false }), Arrays.toString(canRead));
+        for (int i = 0; i < paths.size(); i++) {
+            Assert.assertEquals(paths.get(i),
+                    accessControlManager.can(user, Security.ZONE_CONTENT, paths.get(i), Permissions.CAN_READ), canRead[i]);
+        }
+        boolean[] canWrite = accessControlManager.canAll(Security.ZONE_CONTENT, paths, Permissions.CAN_WRITE);
+        Assert.assertEquals(Arrays.toString(new boolean[6]), Arrays.toString(canWrite));
+
+        List<String> children = Lists.newArrayList();
+        for (Iterator<Content> i = session.getContentManager().listChildren(basepath); i.hasNext();) {
+            children.add(i.next().getPath());
+        }
+        Collections.sort(children);
+        Assert.assertEquals(ImmutableList.of(basepath + "/child0", basepath + "/child2", basepath + "/child4"), children);
+        session.logout();
+    }
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class CompiledAclTest {
+
+    @Test
+    public void testCompile() {
+        Map<String, Object> acl = ImmutableMap.of("ieb@g", (Object) 0x3, "ieb@d", 0x4, "group1@g", 0x10,
+                Group.EVERYONE + "@g", 0x1, "_aclKey", "n;ac;/x");
+        CompiledAcl compiled = CompiledAcl.get(acl);
+        Assert.assertSame(compiled, CompiledAcl.get(acl));
+        Assert.assertEquals(0x3, compiled.getGranted(CompiledAcl.toPrincipalSet("ieb")));
+        Assert.assertEquals(0x4, compiled.getDenied(CompiledAcl.toPrincipalSet("ieb")));
+        Assert.assertEquals(0x13, compiled.getGranted(CompiledAcl.toPrincipalSet("ieb", "group1", "group2")));
+        Assert.assertEquals(0, compiled.getGranted(CompiledAcl.toPrincipalSet("other")));
+        Assert.assertEquals(0x1, compiled.getEveryoneGranted());
+        Assert.assertEquals(0, compiled.getEveryoneDenied());
+    }
+
+    @Test
+    public void testStringValues() {
+        // only Integer bitmaps grant or deny anything.
+        Map<String, Object> acl = ImmutableMap.of("ieb@g", (Object) "3", "ieb@d", 0x4, Group.EVERYONE + "@g", "",
+                "group1@g", 0x10);
+        CompiledAcl compiled = CompiledAcl.get(acl);
+        Assert.assertEquals(0x10, compiled.getGranted(CompiledAcl.toPrincipalSet("ieb", "group1")));
+        Assert.assertEquals(0x4, compiled.getDenied(CompiledAcl.toPrincipalSet("ieb")));
+        Assert.assertEquals(0, compiled.getEveryoneGranted());
+        Assert.assertEquals(0, CompiledAcl.toBitmap("not a bitmap"));
+        Assert.assertEquals(0, CompiledAcl.toBitmap("3"));
+        Assert.assertEquals(0, CompiledAcl.toBitmap(null));
+    }
+
+    @Test
+    public void testChangedInPlace() {
+        Map<String, Object> acl = Maps.newHashMap();
+        acl.put("ieb@g", 0x1);
+        Assert.assertEquals(0x1, CompiledAcl.get(acl).getGranted(CompiledAcl.toPrincipalSet("ieb")));
+        acl.remove("ieb@g");
+        acl.put("ieb@d", 0x1);
+        CompiledAcl compiled = CompiledAcl.get(acl);
+        Assert.assertEquals(0, compiled.getGranted(CompiledAcl.toPrincipalSet("ieb")));
+        Assert.assertEquals(0x1, compiled.getDenied(CompiledAcl.toPrincipalSet("ieb")));
+        Assert.assertSame(compiled, CompiledAcl.get(acl));
+    }
+
+    @Test
+    public void testHashCollision() {
+        // "Aa" and "BB" have the same hash code.
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Map<String, Object> acl = ImmutableMap.of("Aa@g", (Object) 0x1, "BB@g", 0x2, "BB@d", 0x4);
+        CompiledAcl compiled = CompiledAcl.get(acl);
+        Assert.assertEquals(0x1, compiled.getGranted(CompiledAcl.toPrincipalSet("Aa", "other")));
+        Assert.assertEquals(0, compiled.getDenied(CompiledAcl.toPrincipalSet("Aa", "other")));
+        Assert.assertEquals(0x2, compiled.getGranted(CompiledAcl.toPrincipalSet("BB")));
+        Assert.assertEquals(0x3, compiled.getGranted(CompiledAcl.toPrincipalSet("BB", "Aa")));
+    }
+
+    @Test
+    public void testSameAsLookup() {
+        Random r = new Random(1);
+        List<String> principals = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            principals.add("principal-" + i);
+        }
+        for (int n = 0; n < 100; n++) {
+            Map<String, Object> acl = Maps.newHashMap();
+            for (int i = 0; i < 20; i++) {
+                String p = principals.get(r.nextInt(principals.size()));
+                acl.put(p + (r.nextBoolean() ? AclModification.GRANTED_MARKER : AclModification.DENIED_MARKER),
+                        r.nextInt(0xffff));
+            }
+            String[] userPrincipals = new String[50];
+            for (int i = 0; i < userPrincipals.length; i++) {
+                userPrincipals[i] = principals.get(r.nextInt(principals.size()));
+            }
+            int grants = 0;
+            int denies = 0;
+            for (String p : userPrincipals) {
+                Object g = acl.get(p + AclModification.GRANTED_MARKER);
+                Object d = acl.get(p + AclModification.DENIED_MARKER);
+                grants = grants | (g == null ? 0 : (Integer) g);
+                denies = denies | (d == null ? 0 : (Integer) d);
+            }
+            CompiledAcl compiled = CompiledAcl.get(acl);
+            CompiledAcl.PrincipalSet principalSet = CompiledAcl.toPrincipalSet(userPrincipals);
+            Assert.assertEquals(grants, compiled.getGranted(principalSet));
+            Assert.assertEquals(denies, compiled.getDenied(principalSet));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.UnscannableCache;
+
+import com.google.common.collect.ImmutableList;
+
+public class CompiledPermissionCacheTest {
+
+    @Test
+    public void testFingerprint() {
+        Assert.assertEquals(CompiledPermissionCache.fingerprint("ieb", new String[] { "a", "b" }),
+                CompiledPermissionCache.fingerprint("ieb", new String[] { "b", "a" }));
+        Assert.assertFalse(CompiledPermissionCache.fingerprint("ieb", new String[] { "a" }).equals(
+                CompiledPermissionCache.fingerprint("ieb", new String[] { "a", "b" })));
+        Assert.assertFalse(CompiledPermissionCache.fingerprint("ieb", new String[] { "a" }).equals(
+                CompiledPermissionCache.fingerprint("other", new String[] { "a" })));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        // the caches from the StorageCacheManager can not be scanned.
+        Map<String, CacheHolder> map = new UnscannableCache();
+        CompiledPermissionCache cache = new CompiledPermissionCache(map, null);
+        List<String> a = ImmutableList.of("n:CO:/a", "n:CO:/");
+        List<String> ab = ImmutableList.of("n:CO:/a/b", "n:CO:/a", "n:CO:/");
+        List<String> c = ImmutableList.of("n:CO:/c", "n:CO:/");
+        String versionA = cache.version(a);
+        String versionAB = cache.version(ab);
+        String versionC = cache.version(c);
+        Assert.assertEquals(versionAB, cache.version(ab));
+        cache.put("f", "n:CO:/a", versionA, new int[] { 1, 2 });
+        cache.put("f", "n:CO:/a/b", versionAB, new int[] { 3, 4 });
+        cache.put("f", "n:CO:/c", versionC, new int[] { 5, 6 });
+        Assert.assertArrayEquals(new int[] { 3, 4 }, cache.get("f", "n:CO:/a/b", versionAB));
+        Assert.assertNull(cache.get("g", "n:CO:/a/b", versionAB));
+        Assert.assertEquals(1, cache.getStatistics().getHitCount());
+        Assert.assertEquals(1, cache.getStatistics().getMissCount());
+
+        // a change to /a drops /a and below, but not /c.
+        cache.invalidate("n:CO:/a");
+        String nextAB = cache.version(ab);
+        Assert.assertFalse(versionAB.equals(nextAB));
+        Assert.assertNull(cache.get("f", "n:CO:/a", cache.version(a)));
+        Assert.assertNull(cache.get("f", "n:CO:/a/b", nextAB));
+        Assert.assertEquals(versionC, cache.version(c));
+        Assert.assertArrayEquals(new int[] { 5, 6 }, cache.get("f", "n:CO:/c", cache.version(c)));
+
+        // compiled before the invalidation, so might be from the old ACL.
+        cache.put("f", "n:CO:/a/b", versionAB, new int[] { 3, 4 });
+        Assert.assertNull(cache.get("f", "n:CO:/a/b", cache.version(ab)));
+        cache.put("f", "n:CO:/a/b", nextAB, new int[] { 7, 8 });
+        Assert.assertArrayEquals(new int[] { 7, 8 }, cache.get("f", "n:CO:/a/b", cache.version(ab)));
+
+        // a change to the root drops everything.
+        cache.invalidate("n:CO:/");
+        Assert.assertNull(cache.get("f", "n:CO:/c", cache.version(c)));
+    }
+}
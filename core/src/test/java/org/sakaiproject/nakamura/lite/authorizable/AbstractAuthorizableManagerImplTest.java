@@ -24,13 +24,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -44,6 +48,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.lite.SessionImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
@@ -56,6 +61,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -332,6 +338,169 @@ public abstract class AbstractAuthorizableManagerImplTest {
 
     }
 
+    @Test
+    public void testEffectivePrincipals() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, null, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client, currentUser, configuration,
+                sharedCache, new LoggingStorageListener(), principalValidatorResolver, statsService);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser, null, client, configuration,
+                accessControlManagerImpl, sharedCache, new LoggingStorageListener(), statsService);
+        authorizableManager.setPrincipalClosureCache(sharedCache);
+
+        for (String id : new String[] { "ep-user", "ep-inner", "ep-outer", "ep-top" }) {
+            authorizableManager.delete(id);
+        }
+        Assert.assertTrue(authorizableManager.createUser("ep-user", "Effective User", null,
+                ImmutableMap.of(Authorizable.PRINCIPALS_FIELD, (Object) "testers")));
+        for (String id : new String[] { "ep-inner", "ep-outer", "ep-top" }) {
+            Assert.assertTrue(authorizableManager.createGroup(id, id, null));
+        }
+        Group inner = (Group) authorizableManager.findAuthorizable("ep-inner");
+        inner.addMember("ep-user");
+        authorizableManager.updateAuthorizable(inner);
+        Group outer = (Group) authorizableManager.findAuthorizable("ep-outer");
+        outer.addMember("ep-inner");
+        authorizableManager.updateAuthorizable(outer);
+
+        Assert.assertArrayEquals(new String[] { "ep-inner", "ep-outer", "testers" },
+                sorted(authorizableManager.getEffectivePrincipals("ep-user")));
+        Assert.assertArrayEquals(new String[] { "ep-outer" },
+                sorted(authorizableManager.getEffectivePrincipals("ep-inner")));
+
+        // membership added above the cached closures reaches them.
+        Group top = (Group) authorizableManager.findAuthorizable("ep-top");
+        top.addMember("ep-outer");
+        authorizableManager.updateAuthorizable(top);
+        Assert.assertArrayEquals(new String[] { "ep-inner", "ep-outer", "ep-top", "testers" },
+                sorted(authorizableManager.getEffectivePrincipals("ep-user")));
+
+        // another session sharing the cache sees the same closure.
+        AuthorizableManagerImpl otherAuthorizableManager = new AuthorizableManagerImpl(currentUser, null, client,
+                configuration, accessControlManagerImpl, sharedCache, new LoggingStorageListener(), statsService);
+        otherAuthorizableManager.setPrincipalClosureCache(sharedCache);
+        Assert.assertArrayEquals(new String[] { "ep-inner", "ep-outer", "ep-top", "testers" },
+                sorted(otherAuthorizableManager.getEffectivePrincipals("ep-user")));
+
+        outer = (Group) otherAuthorizableManager.findAuthorizable("ep-outer");
+        outer.removeMember("ep-inner");
+        otherAuthorizableManager.updateAuthorizable(outer);
+        Assert.assertArrayEquals(new String[] { "ep-inner", "testers" },
+                sorted(authorizableManager.getEffectivePrincipals("ep-user")));
+        Assert.assertArrayEquals(new String[] { "ep-top" }, authorizableManager.getEffectivePrincipals("ep-outer"));
+    }
+
+    @Test
+    public void testLargeGroup() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, null, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client, currentUser, configuration,
+                sharedCache, new LoggingStorageListener(), principalValidatorResolver, statsService);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser, null, client, configuration,
+                accessControlManagerImpl, sharedCache, new LoggingStorageListener(), statsService);
+
+        authorizableManager.delete("large-group");
+        authorizableManager.delete("large-member");
+        List<String> members = Lists.newArrayList();
+        for (int i = 0; i < 1200; i++) {
+            members.add("m-" + i);
+        }
+        Assert.assertTrue(authorizableManager.createGroup("large-group", "Large Group",
+                ImmutableMap.of(Authorizable.MEMBERS_FIELD, (Object) StringUtils.join(members, ';'))));
+        Assert.assertTrue(authorizableManager.createUser("large-member", "Large Member", null, null));
+
+        // saving a group with many members moves them into pages.
+        Group g = (Group) authorizableManager.findAuthorizable("large-group");
+        Assert.assertEquals(0, g.getMemberPages());
+        g.setProperty("touched", "yes");
+        authorizableManager.updateAuthorizable(g);
+        g = (Group) authorizableManager.findAuthorizable("large-group");
+        Assert.assertTrue(g.getMemberPages() > 0);
+        Assert.assertNull(g.getProperty(Authorizable.MEMBERS_FIELD));
+        Assert.assertEquals(1200, Iterators.size(g.getMemberIterator()));
+
+        g.addMember("large-member");
+        g.removeMember("m-5");
+        g.removeMember("not-a-member");
+        Assert.assertArrayEquals(new String[] { "large-member" }, g.getMembersAdded());
+        Assert.assertArrayEquals(new String[] { "m-5" }, g.getMembersRemoved());
+        authorizableManager.updateAuthorizable(g);
+
+        g = (Group) authorizableManager.findAuthorizable("large-group");
+        List<String> loaded = Lists.newArrayList(g.getMemberIterator());
+        Assert.assertEquals(1200, loaded.size());
+        Assert.assertTrue(loaded.contains("large-member"));
+        Assert.assertFalse(loaded.contains("m-5"));
+        Assert.assertEquals(1200, g.getMembers().length);
+        Assert.assertTrue(Arrays.asList(authorizableManager.findAuthorizable("large-member").getPrincipals()).contains(
+                "large-group"));
+
+        authorizableManager.delete("large-group");
+        Assert.assertNull(authorizableManager.findAuthorizable("large-group"));
+    }
+
+    @Test
+    public void testMemberPagesSplit() throws StorageClientException {
+        GroupMemberPages memberPages = new GroupMemberPages(client, configuration, sharedCache, statsService);
+        List<String> members = Lists.newArrayList();
+        for (int i = 0; i < 600; i++) {
+            members.add("s-" + i);
+        }
+        Assert.assertEquals(2, memberPages.write("split-group", members));
+        List<String> added = Lists.newArrayList();
+        for (int i = 600; i < 2100; i++) {
+            added.add("s-" + i);
+        }
+        int pages = memberPages.update("split-group", 2, added.toArray(new String[added.size()]), new String[] { "s-0" });
+        Assert.assertEquals(4, pages);
+        for (int page = 0; page < pages; page++) {
+            Assert.assertTrue(memberPages.getMembers("split-group", page).size() <= 2 * GroupMemberPages.PAGE_SIZE);
+        }
+        Assert.assertEquals(2099, Iterators.size(memberPages.iterator("split-group", pages)));
+        Assert.assertTrue(memberPages.isMember("split-group", pages, "s-2000"));
+        Assert.assertFalse(memberPages.isMember("split-group", pages, "s-0"));
+        memberPages.delete("split-group", pages);
+        Assert.assertEquals(0, Iterators.size(memberPages.iterator("split-group", pages)));
+    }
+
+    @Test
+    public void testMemberPagesMigrator() throws Exception {
+        SessionImpl session = Mockito.mock(SessionImpl.class);
+        Mockito.when(session.getClient()).thenReturn(client);
+        Mockito.when(session.getCache("au")).thenReturn(sharedCache);
+        Repository repository = Mockito.mock(Repository.class);
+        Mockito.when(repository.loginAdministrative()).thenReturn(session);
+        GroupMemberPagesMigrator migrator = new GroupMemberPagesMigrator(repository, configuration,
+                new StatsServiceFactroyImpl());
+
+        List<String> members = Lists.newArrayList();
+        for (int i = 0; i < 1100; i++) {
+            members.add("g-" + i);
+        }
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put(Authorizable.ID_FIELD, "migrated-group");
+        properties.put(Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.GROUP_VALUE);
+        properties.put(Authorizable.MEMBERS_FIELD, StringUtils.join(members, ';'));
+        Assert.assertTrue(migrator.migrate("rid", properties));
+        Assert.assertTrue(properties.get(Authorizable.MEMBERS_FIELD) instanceof RemoveProperty);
+        int pages = (Integer) properties.get(Authorizable.MEMBER_PAGES_FIELD);
+        Assert.assertEquals(1100, Iterators.size(new GroupMemberPages(client, configuration, sharedCache, statsService)
+                .iterator("migrated-group", pages)));
+        Mockito.verify(session).logout();
+
+        // already migrated, or small.
+        Assert.assertFalse(migrator.migrate("rid", properties));
+        Assert.assertFalse(migrator.migrate("rid", ImmutableMap.of(Authorizable.ID_FIELD, (Object) "small",
+                Authorizable.AUTHORIZABLE_TYPE_FIELD, Authorizable.GROUP_VALUE, Authorizable.MEMBERS_FIELD, "a;b")));
+    }
+
+    private String[] sorted(String[] a) {
+        Arrays.sort(a);
+        return a;
+    }
+
     @Test
     public void testFindAuthorizable() throws StorageClientException, AccessDeniedException {
         try {
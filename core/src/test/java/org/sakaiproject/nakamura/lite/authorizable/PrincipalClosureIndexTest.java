@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.UnscannableCache;
+import org.sakaiproject.nakamura.lite.authorizable.PrincipalClosureIndex.PrincipalSource;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+public class PrincipalClosureIndexTest {
+
+    private Map<String, String[]> principals = Maps.newHashMap();
+    private Map<String, String[]> groups = Maps.newHashMap();
+    private int reads;
+    private PrincipalSource source = new PrincipalSource() {
+
+        public String[] getPrincipals(String authorizableId) throws StorageClientException {
+            reads++;
+            String[] p = principals.get(authorizableId);
+            return p == null ? groups.get(authorizableId) : p;
+        }
+
+        public String[] getGroupPrincipals(String authorizableId) throws StorageClientException {
+            reads++;
+            return groups.get(authorizableId);
+        }
+    };
+
+    @Test
+    public void testClosure() throws Exception {
+        // the caches from the StorageCacheManager can not be scanned.
+        PrincipalClosureIndex index = new PrincipalClosureIndex(new UnscannableCache());
+        principals.put("ieb", new String[] { "g1", "everyone" });
+        groups.put("g1", new String[] { "g2" });
+        groups.put("g2", new String[] {});
+        groups.put("g3", new String[] {});
+        Assert.assertEquals(ImmutableSet.of("g1", "g2"), index.getClosure("ieb", source));
+        reads = 0;
+        Assert.assertEquals(ImmutableSet.of("g1", "g2"), index.getClosure("ieb", source));
+        Assert.assertEquals(ImmutableSet.of("g2"), index.getClosure("g1", source));
+        Assert.assertEquals(0, reads);
+
+        // g2 is added to g3, so everything that reaches g2 reaches g3.
+        groups.put("g2", new String[] { "g3" });
+        index.invalidate("g2");
+        Assert.assertEquals(ImmutableSet.of("g1", "g2", "g3"), index.getClosure("ieb", source));
+        Assert.assertEquals(ImmutableSet.of("g2", "g3"), index.getClosure("g1", source));
+
+        // g1 is removed from ieb.
+        principals.put("ieb", new String[] { "everyone" });
+        index.invalidate("ieb");
+        Assert.assertEquals(ImmutableSet.of(), index.getClosure("ieb", source));
+        Assert.assertEquals(ImmutableSet.of("g2", "g3"), index.getClosure("g1", source));
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        PrincipalClosureIndex index = new PrincipalClosureIndex(new UnscannableCache());
+        principals.put("ieb", new String[] { "g1" });
+        groups.put("g1", new String[] { "g2" });
+        groups.put("g2", new String[] { "g1" });
+        Assert.assertEquals(ImmutableSet.of("g1", "g2"), index.getClosure("ieb", source));
+        Assert.assertEquals(ImmutableSet.of("g1", "g2"), index.getClosure("g1", source));
+    }
+}
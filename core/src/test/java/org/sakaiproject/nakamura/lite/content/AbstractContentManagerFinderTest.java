@@ -1232,4 +1232,30 @@ public abstract class AbstractContentManagerFinderTest {
 
   }
 
+  @Test
+  public void testCountByTest() throws StorageClientException, AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, null, statsService);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver, statsService);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener(), statsService);
+      String type = "testCountBy" + System.currentTimeMillis();
+      contentManager.update(new Content("/countBy", ImmutableMap.of("sakai:type", (Object) type,
+              "sakai:marker", "testCountByvalue1")));
+      contentManager.update(new Content("/countBy/item2", ImmutableMap.of("sakai:type", (Object) type,
+              "sakai:marker", "testCountByvalue1")));
+      contentManager.update(new Content("/countBy/test", ImmutableMap.of("sakai:type", (Object) type,
+              "sakai:marker", "testCountByvalue3")));
+      contentManager.update(new Content("/countBy/test/ing", ImmutableMap.of("sakai:type", (Object) type)));
+
+      Assert.assertEquals(4, contentManager.count(ImmutableMap.of("sakai:type", (Object) type)));
+      Assert.assertEquals(ImmutableMap.of("testCountByvalue1", 2L, "testCountByvalue3", 1L),
+              contentManager.countBy(ImmutableMap.of("sakai:type", (Object) type), "sakai:marker"));
+
+  }
+
 }
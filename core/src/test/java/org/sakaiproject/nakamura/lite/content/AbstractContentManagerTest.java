@@ -21,12 +21,18 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -34,12 +40,18 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.util.ContinuableIterator;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
@@ -47,6 +59,8 @@ import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
 import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
@@ -54,8 +68,11 @@ import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactroyImp
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -78,6 +95,7 @@ public abstract class AbstractContentManagerTest {
         properties.put("acl-column-family", "ac");
         properties.put("authorizable-column-family", "au");
         properties.put("content-column-family", "cn");
+        properties.put("body-compression", "text/*=gzip,application/json=deflate");
         configuration = new ConfigurationImpl();
         configuration.activate(properties);
         clientPool = getClientPool(configuration);
@@ -801,6 +819,304 @@ public abstract class AbstractContentManagerTest {
 
     }
 
+    @Test
+    public void testListChildrenPages() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration,  sharedCache, new LoggingStorageListener(), statsService);
+        String parent = "/testListChildrenPages" + System.currentTimeMillis();
+        contentManager.update(new Content(parent, ImmutableMap.of("prop1", (Object) "value1")));
+        Set<String> expected = Sets.newHashSet();
+        for (int i = 0; i < 7; i++) {
+            contentManager.update(new Content(parent + "/child" + i, ImmutableMap.of("prop1", (Object) "value1")));
+            expected.add(parent + "/child" + i);
+        }
+        List<String> children = Lists.newArrayList();
+        String continuation = "";
+        int pages = 0;
+        while (continuation != null) {
+            ContinuableIterator<Content> page = contentManager.listChildren(parent, continuation, 3);
+            int n = 0;
+            while (page.hasNext()) {
+                children.add(page.next().getPath());
+                n++;
+            }
+            // stores that can't page give every child in one page.
+            Assert.assertTrue(n <= 3 || page.getContinuation() == null);
+            continuation = page.getContinuation();
+            pages++;
+            Assert.assertTrue(pages < 10);
+        }
+        Assert.assertEquals(expected.size(), children.size());
+        Assert.assertEquals(expected, Sets.newHashSet(children));
+    }
+
+    @Test
+    public void testResumableUpload() throws StorageClientException, AccessDeniedException, IOException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration,  sharedCache, new LoggingStorageListener(), statsService);
+        String path = "/testResumableUpload/file.bin";
+        byte[] b = new byte[300 * 1024 + 17];
+        new Random().nextBytes(b);
+
+        String uploadId = contentManager.beginUpload(path, null);
+        Assert.assertEquals(0, contentManager.getUploadLength(uploadId));
+        // the last chunk arrives first, as it would in parallel.
+        Assert.assertEquals(0, contentManager.appendUpload(uploadId, 200 * 1024, chunk(b, 200 * 1024, b.length)));
+        Assert.assertEquals(100 * 1024, contentManager.appendUpload(uploadId, 0, chunk(b, 0, 100 * 1024)));
+        try {
+            contentManager.commitUpload(uploadId, b.length);
+            Assert.fail();
+        } catch (StorageClientException e) {
+            // a chunk is missing
+        }
+        // a chunk sent again replaces the first attempt.
+        contentManager.appendUpload(uploadId, 100 * 1024, chunk(b, 0, 100 * 1024));
+        Assert.assertEquals(b.length, contentManager.appendUpload(uploadId, 100 * 1024,
+                chunk(b, 100 * 1024, 200 * 1024)));
+        // an overlapping chunk is kept off the chain.
+        Assert.assertEquals(b.length, contentManager.appendUpload(uploadId, 50 * 1024,
+                chunk(b, 50 * 1024, 150 * 1024)));
+        List<String> chunkKeys = getUploadChunkKeys(uploadId);
+        Assert.assertEquals(4, chunkKeys.size());
+        Assert.assertEquals(b.length, contentManager.commitUpload(uploadId, b.length));
+        for (String chunkKey : chunkKeys) {
+            Assert.assertFalse(rowExists(chunkKey));
+        }
+        InputStream in = contentManager.getInputStream(path);
+        try {
+            Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+        try {
+            contentManager.getUploadLength(uploadId);
+            Assert.fail();
+        } catch (StorageClientException e) {
+            // the upload has gone.
+        }
+
+        uploadId = contentManager.beginUpload(path, "alt");
+        contentManager.appendUpload(uploadId, 0, chunk(b, 0, 10));
+        chunkKeys = getUploadChunkKeys(uploadId);
+        Assert.assertEquals(1, chunkKeys.size());
+        contentManager.cancelUpload(uploadId);
+        Assert.assertFalse(contentManager.hasBody(path, "alt"));
+        Assert.assertFalse(rowExists(chunkKeys.get(0)));
+
+        // an upload that is left is removed once it expires, by the expiry
+        // task rather than by the next upload.
+        contentManager.setUploadExpiry(-1000L);
+        uploadId = contentManager.beginUpload(path, null);
+        contentManager.setUploadExpiry(60000L);
+        Assert.assertTrue(rowExists(getUploadKey(uploadId)));
+        String liveUploadId = contentManager.beginUpload(path, null);
+        Assert.assertTrue(rowExists(getUploadKey(uploadId)));
+        contentManager.expireUploads();
+        Assert.assertFalse(rowExists(getUploadKey(uploadId)));
+        Assert.assertTrue(rowExists(getUploadKey(liveUploadId)));
+        try {
+            contentManager.getUploadLength(uploadId);
+            Assert.fail();
+        } catch (StorageClientException e) {
+            // the upload has gone.
+        }
+    }
+
+    @Test
+    public void testUploadResentChunk() throws StorageClientException, AccessDeniedException, IOException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration,  sharedCache, new LoggingStorageListener(), statsService);
+        String path = "/testUploadResentChunk/file.bin";
+        byte[] b = new byte[64];
+        Random random = new Random();
+
+        // a chunk sent again in the millisecond of the last, here one that
+        // looks to have been sent later, still replaces it.
+        String uploadId = contentManager.beginUpload(path, null);
+        random.nextBytes(b);
+        contentManager.appendUpload(uploadId, 0, chunk(b, 0, b.length));
+        String chunkKey = getUploadChunkKeys(uploadId).get(0);
+        client.insert(configuration.getKeySpace(), configuration.getContentColumnFamily(), chunkKey,
+                ImmutableMap.of(Content.CREATED_FIELD, (Object) (System.currentTimeMillis() + 60000L)), false);
+        sharedCache.clear();
+        for (int i = 0; i < 5; i++) {
+            random.nextBytes(b);
+            Assert.assertEquals(b.length, contentManager.appendUpload(uploadId, 0, chunk(b, 0, b.length)));
+        }
+        Assert.assertEquals(1, getUploadChunkKeys(uploadId).size());
+        Assert.assertEquals(b.length, contentManager.commitUpload(uploadId, b.length));
+        InputStream in = contentManager.getInputStream(path);
+        try {
+            Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testParallelUpload() throws Exception {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration,  sharedCache, new LoggingStorageListener(), statsService);
+        String path = "/testParallelUpload/file.bin";
+        final int nthreads = 4;
+        final int nchunks = 8;
+        final int chunkSize = 1024;
+        final byte[] b = new byte[nthreads * nchunks * chunkSize];
+        new Random().nextBytes(b);
+
+        // each request appends its chunks through a session of its own, and
+        // a second upload is begun alongside each.
+        final String uploadId = contentManager.beginUpload(path, null);
+        final List<String> otherUploadIds = Collections.synchronizedList(Lists.<String> newArrayList());
+        final CountDownLatch finished = new CountDownLatch(nthreads);
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < nthreads; i++) {
+            final int thread = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    StorageClient threadClient = null;
+                    try {
+                        threadClient = clientPool.getClient();
+                        User threadUser = new AuthenticatorImpl(threadClient, configuration, sharedCache,
+                                statsService).authenticate("admin", "admin");
+                        AccessControlManagerImpl threadAccessControlManager = new AccessControlManagerImpl(
+                                threadClient, threadUser, configuration, sharedCache, new LoggingStorageListener(),
+                                principalValidatorResolver, statsService);
+                        ContentManagerImpl threadContentManager = new ContentManagerImpl(threadClient,
+                                threadAccessControlManager, configuration, sharedCache,
+                                new LoggingStorageListener(), statsService);
+                        otherUploadIds.add(threadContentManager.beginUpload("/testParallelUpload/other.bin", null));
+                        for (int j = thread; j < nthreads * nchunks; j += nthreads) {
+                            threadContentManager.appendUpload(uploadId, j * chunkSize,
+                                    chunk(b, j * chunkSize, (j + 1) * chunkSize));
+                        }
+                    } catch (Exception e) {
+                        LOGGER.error(e.getMessage(), e);
+                        failed.incrementAndGet();
+                    } finally {
+                        if (threadClient != null) {
+                            threadClient.close();
+                        }
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+        finished.await();
+        Assert.assertEquals(0, failed.get());
+        Assert.assertEquals(nthreads * nchunks, getUploadChunkKeys(uploadId).size());
+        Assert.assertEquals(b.length, contentManager.commitUpload(uploadId, b.length));
+        InputStream in = contentManager.getInputStream(path);
+        try {
+            Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(in)));
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(nthreads, otherUploadIds.size());
+        for (String otherUploadId : otherUploadIds) {
+            Assert.assertEquals(0, contentManager.getUploadLength(otherUploadId));
+        }
+    }
+
+    private List<String> getUploadChunkKeys(String uploadId) throws StorageClientException {
+        List<String> chunkKeys = Lists.newArrayList();
+        DisposableIterator<Map<String, Object>> chunks = client.listChildren(configuration.getKeySpace(),
+                configuration.getContentColumnFamily(), getUploadKey(uploadId), null);
+        try {
+            while (chunks.hasNext()) {
+                Map<String, Object> chunk = chunks.next();
+                if (chunk != null && chunk.containsKey(Repository.SYSTEM_PROP_PREFIX + "uploadKey")) {
+                    chunkKeys.add((String) chunk.get(Repository.SYSTEM_PROP_PREFIX + "uploadKey"));
+                }
+            }
+        } finally {
+            chunks.close();
+        }
+        return chunkKeys;
+    }
+
+    private String getUploadKey(String uploadId) {
+        return StorageClientUtils.newPath("uploads+", uploadId);
+    }
+
+    private boolean rowExists(String key) throws StorageClientException {
+        Map<String, Object> row = client.get(configuration.getKeySpace(), configuration.getContentColumnFamily(), key);
+        return row != null && !row.isEmpty();
+    }
+
+    private InputStream chunk(byte[] b, int from, int to) {
+        return new ByteArrayInputStream(b, from, to - from);
+    }
+
+    @Test
+    public void testCompressedBody() throws StorageClientException, AccessDeniedException, IOException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration,  sharedCache, new LoggingStorageListener(), statsService);
+        String path = "/testCompressedBody/page.html";
+        contentManager.update(new Content(path, ImmutableMap.of(Content.MIMETYPE_FIELD,
+                (Object) "text/html; charset=utf-8", StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, "json"),
+                "application/json")));
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            page.append("<p>Paragraph ").append(i).append(" of a page that compresses well</p>\n");
+        }
+        byte[] b = page.toString().getBytes("UTF-8");
+        Assert.assertEquals(b.length, contentManager.writeBody(path, new ByteArrayInputStream(b)));
+        Content content = contentManager.get(path);
+        Assert.assertEquals("gzip", content.getProperty(Content.BODY_CONTENT_ENCODING_FIELD));
+        Assert.assertEquals((long) b.length, content.getProperty(Content.LENGTH_FIELD));
+        Assert.assertTrue(StorageClientUtils.toLong(content.getProperty(Content.BODY_ENCODED_LENGTH_FIELD)) < b.length / 4);
+        Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(contentManager.getInputStream(path))));
+        Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(new GZIPInputStream(contentManager.getRawInputStream(
+                path, null)))));
+
+        contentManager.writeBody(path, new ByteArrayInputStream(b), "json");
+        Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(contentManager.getInputStream(path, "json"))));
+        Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(new InflaterInputStream(contentManager
+                .getRawInputStream(path, "json")))));
+
+        // a body of a type that is not compressed replaces a compressed one.
+        content = contentManager.get(path);
+        content.setProperty(Content.MIMETYPE_FIELD, "image/png");
+        contentManager.update(content);
+        contentManager.writeBody(path, new ByteArrayInputStream(b));
+        content = contentManager.get(path);
+        Assert.assertNull(content.getProperty(Content.BODY_CONTENT_ENCODING_FIELD));
+        Assert.assertTrue(Arrays.equals(b, IOUtils.toByteArray(contentManager.getRawInputStream(path, null))));
+        Assert.assertEquals("deflate", content.getProperty(StorageClientUtils.getAltField(
+                Content.BODY_CONTENT_ENCODING_FIELD, "json")));
+    }
+
   @Test
   public void testMoveWithChildren() throws StorageClientException, AccessDeniedException {
     AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
@@ -909,6 +1225,94 @@ public abstract class AbstractContentManagerTest {
 	    Assert.assertEquals(3, childCount);
   }
 
+  @Test
+  public void testListManyChildrenCached() throws StorageClientException, AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+          currentUser, configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client,
+          accessControlManager, configuration, sharedCache, new LoggingStorageListener(), statsService);
+
+      StorageClientUtils.deleteTree(contentManager, "/testListManyChildrenCached");
+      contentManager.update(new Content("/testListManyChildrenCached", ImmutableMap.of("prop1", (Object) "parent")));
+      Set<String> expected = Sets.newHashSet();
+      for (int i = 0; i < 60; i++) {
+          contentManager.update(new Content("/testListManyChildrenCached/child" + i, ImmutableMap.of("someprop1", (Object) ("value" + i))));
+          expected.add("value" + i);
+      }
+      // reading through twice checks the content prefetched into the cache as well as
+      // the content loaded from storage.
+      for (int pass = 0; pass < 2; pass++) {
+          Set<String> found = Sets.newHashSet();
+          Iterator<Content> children = contentManager.listChildren("/testListManyChildrenCached");
+          while (children.hasNext()) {
+              found.add((String) children.next().getProperty("someprop1"));
+          }
+          Assert.assertEquals(expected, found);
+      }
+  }
+
+  @Test
+  public void testListChildrenPrefetchesReadable() throws StorageClientException, AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, sharedCache, statsService);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+          currentUser, configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver, statsService);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client,
+          accessControlManager, configuration, sharedCache, new LoggingStorageListener(), statsService);
+
+      StorageClientUtils.deleteTree(contentManager, "/testListChildrenPrefetch");
+      contentManager.update(new Content("/testListChildrenPrefetch", ImmutableMap.of("prop1", (Object) "parent")));
+      List<String> contentIds = Lists.newArrayList();
+      for (int i = 0; i < 6; i++) {
+          String path = "/testListChildrenPrefetch/child" + i;
+          contentManager.update(new Content(path, ImmutableMap.of("someprop1", (Object) ("value" + i))));
+          if (i % 2 == 1) {
+              accessControlManager.setAcl(Security.ZONE_CONTENT, path, new AclModification[] { new AclModification(
+                      AclModification.denyKey(User.ANON_USER), Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+          }
+          contentIds.add((String) client.get("n", "cn", path).get(InternalContent.STRUCTURE_UUID_FIELD));
+      }
+      sharedCache.clear();
+
+      User anonUser = AuthenticatorImpl.systemAuthenticate(User.ANON_USER);
+      AccessControlManagerImpl anonAccessControlManager = new AccessControlManagerImpl(client,
+          anonUser, configuration, sharedCache, new LoggingStorageListener(), principalValidatorResolver, statsService);
+      ContentManagerImpl anonContentManager = new ContentManagerImpl(client,
+          anonAccessControlManager, configuration, sharedCache, new LoggingStorageListener(), statsService);
+      Set<String> found = Sets.newHashSet();
+      Iterator<Content> children = anonContentManager.listChildren("/testListChildrenPrefetch");
+      while (children.hasNext()) {
+          found.add((String) children.next().getProperty("someprop1"));
+      }
+      Assert.assertEquals(ImmutableSet.of("value0", "value2", "value4"), found);
+      // the content of the children that can't be read was not loaded.
+      for (int i = 0; i < 6; i++) {
+          String cacheKey = "n:cn:" + contentIds.get(i);
+          if (client instanceof RowHasher) {
+              cacheKey = ((RowHasher) client).rowHash("n", "cn", contentIds.get(i));
+          }
+          Assert.assertEquals(contentIds.get(i), i % 2 == 0, sharedCache.containsKey(cacheKey));
+      }
+  }
+
+  @Test
+  public void testGetMany() throws StorageClientException, AccessDeniedException {
+      client.insert("n", "cn", "testGetMany1", ImmutableMap.of("prop1", (Object) "value1"), true);
+      client.insert("n", "cn", "testGetMany2", ImmutableMap.of("prop1", (Object) "value2"), true);
+      Map<String, Map<String, Object>> rows = client.getMany("n", "cn",
+              ImmutableList.of("testGetMany1", "testGetMany2", "testGetManyDoesNotExist"));
+      Assert.assertEquals(3, rows.size());
+      Assert.assertEquals("value1", rows.get("testGetMany1").get("prop1"));
+      Assert.assertEquals("value2", rows.get("testGetMany2").get("prop1"));
+      Assert.assertEquals(0, rows.get("testGetManyDoesNotExist").size());
+  }
+
   // @Test This Test runs forever and tests for OOM on disposables.
   public void testOOM() throws StorageClientException, AccessDeniedException {
       AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration, null, statsService);
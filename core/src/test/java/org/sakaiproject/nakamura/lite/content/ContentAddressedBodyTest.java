@@ -0,0 +1,117 @@
+package org.sakaiproject.nakamura.lite.content;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.spi.AbstractClientConnectionPool;
+import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactroyImpl;
+
+import com.google.common.collect.ImmutableMap;
+
+public class ContentAddressedBodyTest {
+
+    private String store;
+    private JDBCStorageClientPool clientPool;
+    private StorageClient client;
+    private ContentManagerImpl contentManager;
+
+    @Before
+    public void before() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn"));
+        store = "target/cas-content-" + System.currentTimeMillis();
+        clientPool = DerbySetup.createClientPool(configuration, "jdbc:derby:memory:ContentAddressedDB;create=true",
+                ImmutableMap.of(AbstractClientConnectionPool.FS_STORE_BASE_DIR, (Object) store,
+                        AbstractClientConnectionPool.FS_CONTENT_ADDRESSED, "true"));
+        client = clientPool.getClient();
+        new AuthorizableActivator(client, configuration).setup();
+
+        Map<String, CacheHolder> sharedCache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+        StatsService statsService = new StatsServiceFactroyImpl().openSession();
+        User currentUser = new AuthenticatorImpl(client, configuration, sharedCache, statsService).authenticate(
+                "admin", "admin");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client, currentUser,
+                configuration, sharedCache, new LoggingStorageListener(), new PrincipalValidatorResolverImpl(),
+                statsService);
+        contentManager = new ContentManagerImpl(client, accessControlManager, configuration, sharedCache,
+                new LoggingStorageListener(), statsService);
+    }
+
+    @After
+    public void after() throws IOException {
+        client.close();
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+        FileUtils.deleteDirectory(new File(store));
+    }
+
+    @Test
+    public void testShallowCopyHoldsItsBody() throws Exception {
+        contentManager.update(new Content("/cas/source", null));
+        contentManager.writeBody("/cas/source", body("shared bytes"));
+        contentManager.copy("/cas/source", "/cas/copy", false);
+
+        // a new body for the source leaves the copy with the old one.
+        contentManager.writeBody("/cas/source", body("new bytes"));
+        Assert.assertEquals("new bytes", read("/cas/source"));
+        Assert.assertEquals("shared bytes", read("/cas/copy"));
+
+        // as does copying over the shallow copy's own shallow copy.
+        contentManager.copy("/cas/copy", "/cas/copy2", false);
+        contentManager.copy("/cas/source", "/cas/copy2", false);
+        Assert.assertEquals("shared bytes", read("/cas/copy"));
+        Assert.assertEquals("new bytes", read("/cas/copy2"));
+
+        // and writing to the copy itself.
+        contentManager.writeBody("/cas/copy", body("new bytes"));
+        Assert.assertEquals("new bytes", read("/cas/source"));
+        Assert.assertEquals("new bytes", read("/cas/copy2"));
+    }
+
+    @Test
+    public void testRewriteSameBody() throws Exception {
+        contentManager.update(new Content("/cas/same", null));
+        contentManager.writeBody("/cas/same", body("same bytes"));
+        contentManager.writeBody("/cas/same", body("same bytes"));
+        Assert.assertEquals("same bytes", read("/cas/same"));
+    }
+
+    private InputStream body(String body) throws IOException {
+        return new ByteArrayInputStream(body.getBytes("UTF-8"));
+    }
+
+    private String read(String path) throws StorageClientException, AccessDeniedException, IOException {
+        InputStream in = contentManager.getInputStream(path);
+        Assert.assertNotNull(in);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
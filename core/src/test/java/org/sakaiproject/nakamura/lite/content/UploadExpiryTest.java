@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.lite.SessionImpl;
+
+public class UploadExpiryTest {
+
+    @Test
+    public void testRun() throws Exception {
+        BaseMemoryRepository baseMemoryRepository = new BaseMemoryRepository();
+        RepositoryImpl repository = baseMemoryRepository.getRepository();
+        SessionImpl session = (SessionImpl) repository.loginAdministrative();
+        ContentManagerImpl contentManager = session.getContentManager();
+        contentManager.setUploadExpiry(-1000L);
+        String expired = contentManager.beginUpload("/testUploadExpiry/file.bin", null);
+        contentManager.setUploadExpiry(60000L);
+        String live = contentManager.beginUpload("/testUploadExpiry/file.bin", null);
+        contentManager.appendUpload(live, 0, new ByteArrayInputStream(new byte[10]));
+        Assert.assertTrue(uploadExists(session, expired));
+        session.logout();
+
+        new UploadExpiry(repository).run();
+
+        session = (SessionImpl) repository.loginAdministrative();
+        Assert.assertFalse(uploadExists(session, expired));
+        Assert.assertTrue(uploadExists(session, live));
+        Assert.assertEquals(10, session.getContentManager().getUploadLength(live));
+        session.logout();
+        repository.deactivate(null);
+        baseMemoryRepository.close();
+    }
+
+    private boolean uploadExists(SessionImpl session, String uploadId) throws StorageClientException {
+        Map<String, Object> upload = session.getClient().get("n", "cn",
+                StorageClientUtils.newPath("uploads+", uploadId));
+        return upload != null && upload.size() > 0;
+    }
+
+}
@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.lite.jdbc;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -45,6 +47,7 @@ import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsService;
 import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactroyImpl;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
@@ -395,4 +398,52 @@ public class JDBCStorageClientTest {
     String sql = sqlCaptor.getValue();
     Assert.assertEquals(expectedSql, sql);
   }
+
+  @Test
+  @SuppressWarnings(value="ODR_OPEN_DATABASE_RESOURCE", justification="Mock objects")
+  public void testUpsertMergeOnWrite() throws Exception {
+    Map<String, Object> upsertConfig = Maps.newHashMap(sqlConfig);
+    upsertConfig.put("merge-on-write", "1");
+    upsertConfig.put("block-upsert-row", "upsert into css_b (rid, b) values (?, ?)");
+    JDBCStorageClient upsertClient = new JDBCStorageClient(connPool, properties, upsertConfig,
+        ImmutableSet.of("cn:notindexed"), null, null, false, statsService);
+
+    Map<String, Object> current = ImmutableMap.of("key1", (Object) "val1");
+    Map<String, Object> props = ImmutableMap.of("key2", (Object) "val2");
+    upsertClient.insert("n", "cn", "/", props, false, current);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    // the row was not read before being written, and was written once.
+    Assert.assertEquals(ImmutableList.of("upsert into css_b (rid, b) values (?, ?)"), sqlCaptor.getAllValues());
+    verify(ps2, never()).executeQuery();
+    verify(ps2, times(1)).executeUpdate();
+  }
+
+  @Test
+  @SuppressWarnings(value="ODR_OPEN_DATABASE_RESOURCE", justification="Mock objects")
+  public void testGetManyBatched() throws Exception {
+    client.getMany("n", "cn", ImmutableList.of("/a", "/b"));
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    Assert.assertEquals(ImmutableList.of("select rid, b from cn_css_b where rid in (?, ?)"), sqlCaptor.getAllValues());
+  }
+
+  @Test
+  @SuppressWarnings(value="ODR_OPEN_DATABASE_RESOURCE", justification="Mock objects")
+  public void testGetManySharded() throws Exception {
+    // with single row selects sharded by rowID, rows are not loaded together.
+    Map<String, Object> shardedConfig = Maps.newHashMap(sqlConfig);
+    shardedConfig.put("block-select-row.n.cn._0", "select b from cn_css_b_0 where rid = ?");
+    JDBCStorageClient shardedClient = new JDBCStorageClient(connPool, properties, shardedConfig,
+        ImmutableSet.of("cn:notindexed"), null, null, false, statsService);
+    shardedClient.getMany("n", "cn", ImmutableList.of("/a", "/b"));
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(2)).prepareStatement(sqlCaptor.capture());
+    for (String sql : sqlCaptor.getAllValues()) {
+      Assert.assertFalse(sql, sql.contains(" in ("));
+    }
+  }
 }
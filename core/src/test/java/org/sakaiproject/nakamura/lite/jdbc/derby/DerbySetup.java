@@ -17,33 +17,51 @@
  */
 package org.sakaiproject.nakamura.lite.jdbc.derby;
 
+import java.util.Map;
+
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.lite.DummyStorageCacheManager;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
 import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactroyImpl;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 
 public class DerbySetup {
 
     private static JDBCStorageClientPool clientPool = null;
 
     private synchronized static JDBCStorageClientPool createClientPool(Configuration configuration, String location) {
+        if ( location == null ) {
+            location = "jdbc:derby:memory:MyDB;create=true";
+        }
+        return createClientPool(configuration, location, ImmutableMap.<String, Object> of());
+    }
+
+    /**
+     * Create a pool of its own, on a database of its own, for a test that
+     * needs the pool configured differently or needs to close it.
+     * 
+     * @param configuration
+     * @param url
+     *            the JDBC url of the Derby database.
+     * @param extraProperties
+     *            properties of the pool, added to or replacing the defaults.
+     * @return an activated pool, that the caller deactivates.
+     */
+    public static JDBCStorageClientPool createClientPool(Configuration configuration, String url,
+            Map<String, Object> extraProperties) {
         try {
             JDBCStorageClientPool connectionPool = new JDBCStorageClientPool();
             connectionPool.statsServiceFactroy = new StatsServiceFactroyImpl();
             connectionPool.storageManagerCache = new DummyStorageCacheManager();
-            Builder<String, Object> configBuilder = ImmutableMap.builder();
-            if ( location == null ) {
-                location = "jdbc:derby:memory:MyDB;create=true";
-            }
-            configBuilder.put(JDBCStorageClientPool.CONNECTION_URL,
-            location);
-            configBuilder.put(JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver");
-            configBuilder.put("store-base-dir", "target/store");
-            configBuilder.put(Configuration.class.getName(), configuration);
-            connectionPool.activate(configBuilder.build());
+            Map<String, Object> properties = Maps.newHashMap();
+            properties.put(JDBCStorageClientPool.CONNECTION_URL, url);
+            properties.put(JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver");
+            properties.put("store-base-dir", "target/store");
+            properties.put(Configuration.class.getName(), configuration);
+            properties.putAll(extraProperties);
+            connectionPool.activate(properties);
             return connectionPool;
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -0,0 +1,260 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+
+import com.google.common.collect.ImmutableMap;
+
+public class ConnectionManagerTest {
+
+    private JDBCStorageClientPool mockPool() throws SQLException {
+        JDBCStorageClientPool pool = mock(JDBCStorageClientPool.class);
+        when(pool.createConnection()).thenAnswer(new Answer<Connection>() {
+            public Connection answer(InvocationOnMock invocation) throws Throwable {
+                Connection connection = mock(Connection.class);
+                when(connection.getAutoCommit()).thenReturn(true);
+                return connection;
+            }
+        });
+        return pool;
+    }
+
+    /**
+     * Lease a connection on a thread of its own, as a thread that already
+     * holds a connection would be given one from the reserve.
+     */
+    private Connection leaseOnOtherThread(final ConnectionManager connectionManager) throws Exception {
+        final Connection[] leased = new Connection[1];
+        final SQLException[] failed = new SQLException[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    leased[0] = connectionManager.lease();
+                } catch (SQLException e) {
+                    failed[0] = e;
+                }
+            }
+        });
+        t.start();
+        t.join();
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+        return leased[0];
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(mockPool(), 2, 0, 100L, 60000L);
+        Connection c1 = connectionManager.lease();
+        Connection c2 = leaseOnOtherThread(connectionManager);
+        Assert.assertNotSame(c1, c2);
+        Assert.assertEquals(2, connectionManager.getLeasedCount());
+        try {
+            leaseOnOtherThread(connectionManager);
+            Assert.fail("Should have timed out waiting for a connection");
+        } catch (SQLException e) {
+            Assert.assertEquals(1, connectionManager.getTimeoutCount());
+        }
+        connectionManager.release(c1, false);
+        Assert.assertEquals(1, connectionManager.getIdleCount());
+        Assert.assertSame(c1, connectionManager.lease());
+        connectionManager.close();
+    }
+
+    @Test
+    public void testDiscard() throws SQLException {
+        ConnectionManager connectionManager = new ConnectionManager(mockPool(), 1, 0, 100L, 60000L);
+        Connection c1 = connectionManager.lease();
+        connectionManager.release(c1, true);
+        verify(c1, times(1)).close();
+        Assert.assertEquals(0, connectionManager.getIdleCount());
+        Connection c2 = connectionManager.lease();
+        Assert.assertNotSame(c1, c2);
+        connectionManager.close();
+    }
+
+    @Test
+    public void testWaitForRelease() throws Exception {
+        final ConnectionManager connectionManager = new ConnectionManager(mockPool(), 1, 0, 10000L, 60000L);
+        final Connection c1 = leaseOnOtherThread(connectionManager);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connectionManager.release(c1, false);
+            }
+        }).start();
+        Assert.assertSame(c1, connectionManager.lease());
+        Assert.assertEquals(1, connectionManager.getWaitCount());
+        connectionManager.close();
+    }
+
+    @Test
+    public void testNestedLease() throws Exception {
+        final ConnectionManager connectionManager = new ConnectionManager(mockPool(), 1, 1, 100L, 60000L);
+        Connection outer = connectionManager.lease();
+        // a nested lease takes a connection of its own from the reserve
+        // rather than waiting for the only one there is.
+        Connection inner = connectionManager.lease();
+        Assert.assertNotSame(outer, inner);
+        Assert.assertEquals(1, connectionManager.getReservedCount());
+        Assert.assertEquals(2, connectionManager.getLeasedCount());
+        try {
+            connectionManager.lease();
+            Assert.fail("Should have timed out waiting for the reserve");
+        } catch (SQLException e) {
+            Assert.assertEquals(1, connectionManager.getTimeoutCount());
+        }
+        connectionManager.release(inner, false);
+        Assert.assertEquals(1, connectionManager.getLeasedCount());
+        Assert.assertEquals(1, connectionManager.getIdleCount());
+
+        // other threads don't use the reserve.
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    connectionManager.lease();
+                } catch (SQLException e) {
+                    timedOut.set(true);
+                }
+            }
+        });
+        t.start();
+        t.join();
+        Assert.assertTrue(timedOut.get());
+
+        connectionManager.release(outer, false);
+        Assert.assertEquals(0, connectionManager.getLeasedCount());
+        Assert.assertEquals(2, connectionManager.getIdleCount());
+        connectionManager.close();
+    }
+
+    @Test
+    public void testReleaseOnOtherThread() throws Exception {
+        final ConnectionManager connectionManager = new ConnectionManager(mockPool(), 1, 1, 100L, 60000L);
+        final Connection c1 = connectionManager.lease();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                connectionManager.release(c1, false);
+            }
+        });
+        t.start();
+        t.join();
+        // this thread no longer holds a lease, so takes the free connection
+        // rather than one from the reserve.
+        Assert.assertSame(c1, connectionManager.lease());
+        Assert.assertEquals(0, connectionManager.getReservedCount());
+        connectionManager.close();
+    }
+
+    private JDBCStorageClientPool derbyPool(String database) throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn"));
+        return DerbySetup.createClientPool(configuration, "jdbc:derby:memory:" + database + ";create=true",
+                ImmutableMap.of(JDBCStorageClientPool.MAX_CONNECTIONS, (Object) "1",
+                        JDBCStorageClientPool.CONNECTION_WAIT, "1000"));
+    }
+
+    @Test
+    public void testFailedInsertReleasesConnection() throws Exception {
+        final JDBCStorageClientPool clientPool = derbyPool("FailedInsertDB");
+        try {
+            StorageClient client = clientPool.getClient();
+            try {
+                try {
+                    client.insert("n", "cn", "/failed/a", ImmutableMap.of("body", (Object) new byte[] { 1 }), true);
+                    Assert.fail("Should not store a byte[]");
+                } catch (RuntimeException e) {
+                    // expected
+                }
+                // the only connection must have gone back to the pool.
+                final Exception[] failed = new Exception[1];
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            StorageClient other = clientPool.getClient();
+                            try {
+                                other.insert("n", "cn", "/failed/b", ImmutableMap.of("sakai:marker", (Object) "b"), true);
+                            } finally {
+                                other.close();
+                            }
+                        } catch (Exception e) {
+                            failed[0] = e;
+                        }
+                    }
+                });
+                t.start();
+                t.join();
+                Assert.assertNull(failed[0]);
+                Assert.assertNull(client.get("n", "cn", "/failed/a").get("body"));
+            } finally {
+                client.close();
+            }
+        } finally {
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    @Test
+    public void testNestedSessions() throws Exception {
+        JDBCStorageClientPool clientPool = derbyPool("ConnectionManagerDB");
+        try {
+            StorageClient outer = clientPool.getClient();
+            outer.insert("n", "cn", "/nested/a", ImmutableMap.of("sakai:marker", (Object) "nested"), true);
+            outer.insert("n", "cn", "/nested/b", ImmutableMap.of("sakai:marker", (Object) "nested"), true);
+            // the open iterator holds the outer session's connection.
+            DisposableIterator<Map<String, Object>> i = outer.find("n", "cn",
+                    ImmutableMap.of("sakai:marker", (Object) "nested"), null);
+            try {
+                Assert.assertTrue(i.hasNext());
+                StorageClient inner = clientPool.getClient();
+                try {
+                    Assert.assertNotNull(inner.get("n", "cn", "/nested/a"));
+                    inner.insert("n", "cn", "/nested/c", ImmutableMap.of("sakai:marker", (Object) "other"), true);
+                } finally {
+                    inner.close();
+                }
+                i.next();
+                Assert.assertTrue(i.hasNext());
+            } finally {
+                i.close();
+                outer.close();
+            }
+        } finally {
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    @Test
+    public void testLeak() throws SQLException {
+        ConnectionManager connectionManager = new ConnectionManager(mockPool(), 2, 0, 100L, -1L);
+        connectionManager.lease();
+        connectionManager.run();
+        connectionManager.run();
+        Assert.assertEquals(1, connectionManager.getLeakCount());
+        connectionManager.close();
+    }
+
+}
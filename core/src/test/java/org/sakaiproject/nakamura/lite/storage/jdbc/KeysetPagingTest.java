@@ -0,0 +1,114 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.api.lite.util.ContinuableIterator;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
+
+public class KeysetPagingTest {
+
+    private JDBCStorageClientPool clientPool;
+    private JDBCStorageClient client;
+    private String type;
+
+    @Before
+    public void before() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        clientPool = DerbySetup.createClientPool(configuration, "jdbc:derby:memory:KeysetPagingDB;create=true",
+                ImmutableMap.<String, Object> of());
+        client = (JDBCStorageClient) clientPool.getClient();
+        type = "keyset" + System.currentTimeMillis();
+        for (String marker : new String[] { "d", "a", "g", "c", "f", "b", "e" }) {
+            client.insert("n", "cn", "/keyset/" + marker, ImmutableMap.of("sakai:type", (Object) type, "sakai:marker",
+                    marker), true);
+        }
+        // no sort value, so never in a page sorted by marker.
+        client.insert("n", "cn", "/keyset/x", ImmutableMap.of("sakai:type", (Object) type), true);
+    }
+
+    @After
+    public void after() {
+        client.close();
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+    }
+
+    @Test
+    public void testSortedPages() throws Exception {
+        List<String> expected = Lists.newArrayList();
+        for (String marker : new String[] { "a", "b", "c", "d", "e", "f", "g" }) {
+            expected.add(client.rowHash("n", "cn", "/keyset/" + marker));
+        }
+        Assert.assertEquals(expected, findAll("sakai:marker", false));
+        Assert.assertEquals(expected, findAll("sakai:marker", true));
+        Assert.assertEquals(Lists.reverse(expected), findAll("sakai:marker desc", false));
+    }
+
+    @Test
+    public void testRowIdPages() throws Exception {
+        List<String> rids = findAll(null, false);
+        Assert.assertEquals(8, rids.size());
+        List<String> sorted = Lists.newArrayList(rids);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, rids);
+    }
+
+    @Test(expected = StorageClientException.class)
+    public void testInvalidContinuation() throws Exception {
+        page("sakai:marker", WideColumnIndexer.toContinuation("rid", null), false, Lists.<String> newArrayList());
+    }
+
+    private List<String> findAll(String sort, boolean cacheable) throws StorageClientException {
+        List<String> rids = Lists.newArrayList();
+        String continuation = "";
+        int pages = 0;
+        while (continuation != null) {
+            continuation = page(sort, continuation, cacheable, rids);
+            pages++;
+            Assert.assertTrue(pages < 10);
+        }
+        return rids;
+    }
+
+    private String page(String sort, String continuation, boolean cacheable, List<String> rids)
+            throws StorageClientException {
+        Builder<String, Object> b = ImmutableMap.builder();
+        b.put("sakai:type", type).put(StorageConstants.ITEMS, 3).put(StorageConstants.CONTINUATION, continuation)
+                .put(StorageConstants.RAWRESULTS, true);
+        if (sort != null) {
+            b.put(StorageConstants.SORT, sort);
+        }
+        if (cacheable) {
+            b.put(StorageConstants.CACHEABLE, true);
+        }
+        DisposableIterator<Map<String, Object>> i = client.find("n", "cn", b.build(), null);
+        try {
+            int n = 0;
+            while (i.hasNext()) {
+                rids.add((String) i.next().get("1"));
+                n++;
+            }
+            Assert.assertTrue(n <= 3);
+            Assert.assertTrue(i instanceof ContinuableIterator<?>);
+            return ((ContinuableIterator<?>) i).getContinuation();
+        } finally {
+            i.close();
+        }
+    }
+}
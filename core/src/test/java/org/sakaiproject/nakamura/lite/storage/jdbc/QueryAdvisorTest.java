@@ -0,0 +1,184 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class QueryAdvisorTest {
+
+    @Test
+    public void testNormalize() {
+        Assert.assertEquals("select rid from cn_css_w a where a.v1 = ? and a.v2 = ? fetch first ? rows only",
+                QueryAdvisor.normalize("select rid from cn_css_w a\n  where a.v1 = 'it''s' and a.v2 = ?  fetch first 25 rows only "));
+    }
+
+    @Test
+    public void testAdvice() throws Exception {
+        QueryAdvisor advisor = new QueryAdvisor(null, 2);
+        WideColumnIndexer indexer = slowIndexer(advisor);
+        find(indexer, "cn", ImmutableMap.of("sakai:type", (Object) "x", "sakai:title", "t", StorageConstants.SORT,
+                "sakai:marker"));
+        find(indexer, "cn", ImmutableMap.of("sakai:type", (Object) "y", "sakai:title", "t", StorageConstants.SORT,
+                "sakai:marker"));
+        find(indexer, "cn", ImmutableMap.of("sakai:marker", (Object) "z", "sakai:title", "t"));
+        List<QueryAdvisor.Shape> shapes = advisor.getShapes();
+        Assert.assertEquals(2, shapes.size());
+        QueryAdvisor.Shape sorted = shapes.get(0).getCount() == 2 ? shapes.get(0) : shapes.get(1);
+        Assert.assertEquals(ImmutableList.of("v1"), sorted.getColumns());
+        // the sort property is reported as the column it is indexed in.
+        Assert.assertEquals("v2", sorted.getSortColumn());
+        Assert.assertEquals("cn_css_w", sorted.getTable());
+
+        List<QueryAdvisor.Advice> advice = advisor.getAdvice();
+        Assert.assertEquals(2, advice.size());
+        Assert.assertEquals("Add cn:sakai:title to index-column-names", advice.get(0).getSuggestion());
+        Assert.assertEquals(3, advice.get(0).getCount());
+        Assert.assertEquals("Create a composite index on cn_css_w (v1, v2)", advice.get(1).getSuggestion());
+        Assert.assertEquals(2, advice.get(1).getCount());
+        Assert.assertTrue(advisor.getReport().contains("cn_css_w (v1, v2)"));
+
+        // column families without statements of their own use the shared
+        // table.
+        advisor.clear();
+        find(indexer, "zz", ImmutableMap.of("sakai:type", (Object) "x", StorageConstants.SORT, "sakai:marker"));
+        Assert.assertEquals("css_w", advisor.getShapes().get(0).getTable());
+        Assert.assertEquals("Create a composite index on css_w (v3, v4)", advisor.getAdvice().get(0).getSuggestion());
+
+        // the shape with the least time makes room for a new one.
+        advisor.slowQuery("cn", "cn_css_w", "select rid from cn_css_w a where a.v4 = ?", ImmutableList.of((Object) "z"),
+                ImmutableList.of("v4"), null, ImmutableList.<String> of(), 400);
+        advisor.slowQuery("cn", "cn_css_w", "select rid from cn_css_w a where a.v5 = ?", ImmutableList.of((Object) "z"),
+                ImmutableList.of("v5"), null, ImmutableList.<String> of(), 500);
+        Assert.assertEquals(2, advisor.getShapes().size());
+        Assert.assertEquals(400, advisor.getShapes().get(1).getTotalTime());
+    }
+
+    /**
+     * @return an indexer whose every find is very slow.
+     */
+    private WideColumnIndexer slowIndexer(QueryAdvisor advisor) throws Exception {
+        final Properties sql = new Properties();
+        InputStream in = getClass().getClassLoader().getResourceAsStream(
+                "org/sakaiproject/nakamura/lite/storage/jdbc/config/client.ApacheDerby.sql");
+        try {
+            sql.load(in);
+        } finally {
+            in.close();
+        }
+        JDBCStorageClient client = mock(JDBCStorageClient.class);
+        when(client.getSql(any(String[].class))).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                for (Object key : (Object[]) invocation.getArguments()[0]) {
+                    if (sql.containsKey(key)) {
+                        return sql.getProperty((String) key);
+                    }
+                }
+                return null;
+            }
+        });
+        PreparedStatement pst = mock(PreparedStatement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(pst.executeQuery()).thenReturn(rs);
+        when(client.prepare(anyString())).thenReturn(pst);
+        when(client.getQueryAdvisor()).thenReturn(advisor);
+        when(client.checkSlow(anyString(), anyString(), anyLong(), anyString())).thenReturn(1L);
+        when(client.getVerySlowQueryThreshold()).thenReturn(0L);
+        Map<String, String> columns = ImmutableMap.of("cn:sakai:type", "v1", "cn:sakai:marker", "v2", "zz:sakai:type",
+                "v3", "zz:sakai:marker", "v4");
+        return new WideColumnIndexer(client, columns, ImmutableSet.<String> of(), ImmutableMap.<String, Object> of(),
+                null);
+    }
+
+    private void find(WideColumnIndexer indexer, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        indexer.find("n", columnFamily, properties, null);
+    }
+
+    @Test
+    public void testCapturePlan() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        JDBCStorageClientPool clientPool = DerbySetup.createClientPool(configuration,
+                "jdbc:derby:memory:QueryAdvisorDB;create=true",
+                ImmutableMap.of(JDBCStorageClientPool.EXPLAIN_SLOW_QUERIES, (Object) "true"));
+        try {
+            QueryAdvisor advisor = clientPool.getQueryAdvisor();
+            Assert.assertNotNull(advisor);
+            advisor.slowQuery("cn", "cn_css_w", "select rid from cn_css_w where rid = ?", ImmutableList.of((Object) "x"),
+                    ImmutableList.<String> of(), null, ImmutableList.<String> of(), 200);
+            advisor.capturePlans();
+            String plan = advisor.getShapes().get(0).getPlan();
+            Assert.assertNotNull(plan);
+            Assert.assertTrue(plan, plan.contains("select rid from cn_css_w where rid = ?"));
+        } finally {
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    @Test
+    public void testResetAfterFailedPlan() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        JDBCStorageClientPool clientPool = DerbySetup.createClientPool(configuration,
+                "jdbc:derby:memory:QueryAdvisorDB;create=true", ImmutableMap.<String, Object> of());
+        try {
+            JDBCStorageClient client = (JDBCStorageClient) clientPool.getClient();
+            try {
+                try {
+                    client.explain("select rid from no_such_table where rid = ?", ImmutableList.of((Object) "x"));
+                    Assert.fail();
+                } catch (StorageClientException e) {
+                    // Ok
+                }
+                // the runtime statistics were switched off again, so none are
+                // captured for the next statement.
+                PreparedStatement pst = client.prepare("VALUES 'after explain'");
+                try {
+                    pst.executeQuery().close();
+                } finally {
+                    pst.close();
+                }
+                pst = client.prepare("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+                try {
+                    ResultSet rs = pst.executeQuery();
+                    Assert.assertTrue(rs.next());
+                    String statistics = rs.getString(1);
+                    Assert.assertFalse(statistics, statistics != null && statistics.contains("after explain"));
+                    rs.close();
+                } finally {
+                    pst.close();
+                }
+            } finally {
+                client.close();
+            }
+        } finally {
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+}
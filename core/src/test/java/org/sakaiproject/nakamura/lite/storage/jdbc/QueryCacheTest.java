@@ -0,0 +1,118 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.DummyStorageCacheManager;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class QueryCacheTest {
+
+    private JDBCStorageClientPool clientPool;
+    private JDBCStorageClient client;
+
+    @Before
+    public void before() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        clientPool = DerbySetup.createClientPool(configuration, "jdbc:derby:memory:QueryCacheDB;create=true",
+                ImmutableMap.<String, Object> of());
+        client = (JDBCStorageClient) clientPool.getClient();
+    }
+
+    @After
+    public void after() {
+        client.close();
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        String type = "querycache" + System.currentTimeMillis();
+        client.insert("n", "cn", "/querycache/a", ImmutableMap.of("sakai:type", (Object) type, "sakai:marker", "a"), true);
+        client.insert("n", "cn", "/querycache/b", ImmutableMap.of("sakai:type", (Object) type, "sakai:marker", "b"), true);
+        Map<String, Object> query = ImmutableMap.of("sakai:type", (Object) type, StorageConstants.CACHEABLE, true,
+                StorageConstants.ITEMS, 10, StorageConstants.PAGE, 0, StorageConstants.SORT, "sakai:marker");
+        QueryCache.ShapeStatistics statistics = null;
+
+        Assert.assertEquals(2, find(query).size());
+        Assert.assertEquals(2, find(query).size());
+        for (Map.Entry<String, QueryCache.ShapeStatistics> e : clientPool.getQueryCache().getShapeStatistics().entrySet()) {
+            if (e.getKey().contains(StorageConstants.SORT)) {
+                statistics = e.getValue();
+            }
+        }
+        Assert.assertNotNull(statistics);
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(1, statistics.getMissCount());
+
+        // a row gaining the value
+        client.insert("n", "cn", "/querycache/c", ImmutableMap.of("sakai:type", (Object) type, "sakai:marker", "c"), true);
+        Assert.assertEquals(3, find(query).size());
+        Assert.assertEquals(1, statistics.getEvictionCount());
+
+        // a change to an unrelated column leaves the query cached.
+        client.insert("n", "cn", "/querycache/c", ImmutableMap.of("sakai:state", (Object) "x"), false);
+        Assert.assertEquals(3, find(query).size());
+        Assert.assertEquals(2, statistics.getHitCount());
+
+        // a change to the sort column
+        client.insert("n", "cn", "/querycache/c", ImmutableMap.of("sakai:marker", (Object) "0"), false);
+        Assert.assertEquals(3, find(query).size());
+        Assert.assertEquals(2, statistics.getEvictionCount());
+
+        // a row losing the value
+        client.insert("n", "cn", "/querycache/a", ImmutableMap.of("sakai:type", (Object) new RemoveProperty()), false);
+        Assert.assertEquals(2, find(query).size());
+        client.insert("n", "cn", "/querycache/b", ImmutableMap.of("sakai:type", (Object) "other"), false);
+        Assert.assertEquals(ImmutableList.of(client.rowHash("n", "cn", "/querycache/c")), find(query));
+        Assert.assertEquals(4, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testSharedVersions() throws Exception {
+        // two servers, each with its own QueryCache, sharing one cache.
+        DummyStorageCacheManager storageCacheManager = new DummyStorageCacheManager();
+        QueryCache first = new QueryCache(storageCacheManager, null);
+        QueryCache second = new QueryCache(storageCacheManager, null);
+        List<String> dependencies = ImmutableList.of(QueryCache.dependency("n", "cn", "sakai:type", "shared"));
+        Map<String, Object> results = ImmutableMap.of("rows", (Object) ImmutableList.of("a"));
+
+        QueryCache.Query query = first.start("shared", "shape", dependencies);
+        first.put(query, results);
+        Assert.assertNotNull(second.get(second.start("shared", "shape", dependencies)));
+
+        // a write seen by the second server invalidates what the first cached.
+        second.changed(dependencies);
+        Assert.assertNull(first.get(first.start("shared", "shape", dependencies)));
+    }
+
+    private List<String> find(Map<String, Object> query) throws StorageClientException {
+        List<String> rids = Lists.newArrayList();
+        DisposableIterator<Map<String, Object>> i = client.find("n", "cn", ImmutableMap.<String, Object> builder()
+                .putAll(query).put(StorageConstants.RAWRESULTS, true).build(), null);
+        try {
+            while (i.hasNext()) {
+                rids.add((String) i.next().get("1"));
+            }
+        } finally {
+            i.close();
+        }
+        return rids;
+    }
+}
@@ -0,0 +1,64 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+
+import com.google.common.collect.ImmutableMap;
+
+public class RowExistenceFilterTest {
+
+    private JDBCStorageClientPool clientPool;
+    private JDBCStorageClient client;
+
+    @Before
+    public void before() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        clientPool = DerbySetup.createClientPool(configuration, "jdbc:derby:memory:RowFilterDB;create=true",
+                ImmutableMap.of(JDBCStorageClientPool.ROW_FILTER, (Object) "n.cn",
+                        JDBCStorageClientPool.ROW_FILTER_REBUILD_INTERVAL, "86400"));
+        client = (JDBCStorageClient) clientPool.getClient();
+    }
+
+    @After
+    public void after() {
+        client.close();
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        RowExistenceFilter filter = clientPool.getRowExistenceFilter();
+        Assert.assertNotNull(filter);
+        client.insert("n", "cn", "/rowfilter/before", ImmutableMap.of("a", (Object) "b"), true);
+        String before = client.rowHash("n", "cn", "/rowfilter/before");
+        String missing = client.rowHash("n", "cn", "/rowfilter/missing");
+        String after = client.rowHash("n", "cn", "/rowfilter/after");
+
+        // until built, every row might exist.
+        Assert.assertTrue(filter.mightExist("n", "cn", missing));
+
+        filter.rebuild("n", "cn");
+        Assert.assertTrue(filter.mightExist("n", "cn", before));
+        Assert.assertFalse(filter.mightExist("n", "cn", missing));
+        Assert.assertFalse(filter.mightExist("n", "cn", after));
+        Assert.assertEquals("b", client.get("n", "cn", "/rowfilter/before").get("a"));
+        Assert.assertEquals(0, client.get("n", "cn", "/rowfilter/missing").size());
+
+        client.insert("n", "cn", "/rowfilter/after", ImmutableMap.of("a", (Object) "c"), true);
+        Assert.assertTrue(filter.mightExist("n", "cn", after));
+        Assert.assertEquals("c", client.get("n", "cn", "/rowfilter/after").get("a"));
+
+        // column families that are not filtered always go to the database.
+        Assert.assertTrue(filter.mightExist("n", "au", client.rowHash("n", "au", "missing")));
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+
+import com.google.common.collect.ImmutableMap;
+
+public class StatementCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsed() throws SQLException {
+        StatementCache.Statistics statistics = new StatementCache.Statistics(2);
+        StatementCache cache = new StatementCache(2, statistics);
+        PreparedStatement a = mock(PreparedStatement.class);
+        PreparedStatement b = mock(PreparedStatement.class);
+        PreparedStatement c = mock(PreparedStatement.class);
+        Assert.assertNull(cache.take("a"));
+        cache.put("a", a);
+        cache.put("b", b);
+        Assert.assertSame(a, cache.take("a"));
+        // in use, so not shared.
+        Assert.assertNull(cache.take("a"));
+        cache.put("a", a);
+        cache.put("c", c);
+        verify(b, times(1)).close();
+        verify(a, never()).close();
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(2, statistics.getMissCount());
+        Assert.assertEquals(1, statistics.getEvictionCount());
+        Assert.assertEquals(2, statistics.size());
+
+        // a second statement for the same sql is closed when given back.
+        PreparedStatement a2 = mock(PreparedStatement.class);
+        cache.put("a", a2);
+        verify(a2, times(1)).close();
+
+        cache.close();
+        verify(a, times(1)).close();
+        verify(c, times(1)).close();
+        Assert.assertEquals(0, statistics.size());
+    }
+
+    @Test
+    public void testPagedFindsShareStatements() throws Exception {
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        Map<String, Object> properties = ImmutableMap.of("keyspace", (Object) "n", "acl-column-family", "ac",
+                "authorizable-column-family", "au", "content-column-family", "cn");
+        configuration.activate(properties);
+        JDBCStorageClientPool clientPool = DerbySetup.createClientPool(configuration,
+                "jdbc:derby:memory:StatementCacheDB;create=true", ImmutableMap.<String, Object> of());
+        JDBCStorageClient client = (JDBCStorageClient) clientPool.getClient();
+        try {
+            String type = "statementcache" + System.currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                client.insert("n", "cn", "/statementcache/" + i, ImmutableMap.of("sakai:type", (Object) type), true);
+            }
+            long hits = clientPool.getStatementCacheStatistics().getHitCount();
+            Assert.assertEquals(2, find(client, type, 0));
+            Assert.assertEquals(2, find(client, type, 1));
+            Assert.assertEquals(1, find(client, type, 2));
+            Assert.assertTrue(clientPool.getStatementCacheStatistics().getHitCount() >= hits + 2);
+        } finally {
+            client.close();
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    private int find(JDBCStorageClient client, String type, int page) throws Exception {
+        DisposableIterator<Map<String, Object>> i = client.find("n", "cn", ImmutableMap.of("sakai:type", (Object) type,
+                StorageConstants.ITEMS, 2, StorageConstants.PAGE, page, StorageConstants.RAWRESULTS, true), null);
+        try {
+            int n = 0;
+            while (i.hasNext()) {
+                i.next();
+                n++;
+            }
+            return n;
+        } finally {
+            i.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10000, 0.01, 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("row" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain("row" + i));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01, 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("row" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("False positives " + falsePositives, falsePositives < 2000);
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        BloomFilter filter = new BloomFilter(1000000, 0.001, 1024);
+        Assert.assertEquals(1024, filter.getSize());
+        Assert.assertTrue(filter.getHashCount() >= 1);
+        filter.put("row");
+        Assert.assertTrue(filter.mightContain("row"));
+    }
+
+}
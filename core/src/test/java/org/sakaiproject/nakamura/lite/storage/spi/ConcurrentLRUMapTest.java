@@ -0,0 +1,145 @@
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.CacheStatistics;
+import org.sakaiproject.nakamura.lite.storage.spi.monitor.StatsServiceFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class ConcurrentLRUMapTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // small enough to be a single segment, so the LRU order is exact.
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+        for (int i = 0; i < 10; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Assert.assertEquals("value0", map.get("key0"));
+        map.put("key10", "value10");
+        Assert.assertEquals(10, map.size());
+        Assert.assertTrue(map.containsKey("key0"));
+        Assert.assertFalse(map.containsKey("key1"));
+        Assert.assertTrue(map.containsValue("value10"));
+        Assert.assertEquals(1, map.getEvictionCount());
+        Assert.assertEquals(1, map.getHitCount());
+        Assert.assertNull(map.get("key1"));
+        Assert.assertEquals(1, map.getMissCount());
+        Assert.assertEquals("value0", map.remove("key0"));
+        Assert.assertEquals(9, map.size());
+        Assert.assertEquals(9, map.getWeight());
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertEquals(0, map.getWeight());
+    }
+
+    @Test
+    public void testWeightBound() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10000,
+                new ConcurrentLRUMap.Weigher<String, String>() {
+                    public long weigh(String key, String value) {
+                        return key.length() + value.length();
+                    }
+                });
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, "value" + i);
+            Assert.assertTrue(map.getWeight() <= map.getMaxWeight());
+        }
+        Assert.assertTrue(map.getEvictionCount() > 0);
+        Assert.assertEquals(map.size(), map.keySet().size());
+        Assert.assertEquals(map.size(), map.values().size());
+        Assert.assertEquals(map.size(), map.entrySet().size());
+        // too heavy for any segment, so it is not kept.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("x");
+        }
+        Map<String, String> before = Maps.newHashMap();
+        for (int i = 0; i < 10000; i++) {
+            String value = map.get("key" + i);
+            if (value != null) {
+                before.put("key" + i, value);
+            }
+        }
+        long evictions = map.getEvictionCount();
+        Assert.assertEquals(10000 / 16, map.getMaxEntryWeight());
+        map.put("big", sb.toString());
+        Assert.assertNull(map.get("big"));
+        Assert.assertEquals(1, map.getRejectionCount());
+        // and it does not push out the entries already there.
+        Assert.assertEquals(evictions, map.getEvictionCount());
+        Assert.assertEquals(before.size(), map.size());
+        for (Map.Entry<String, String> e : before.entrySet()) {
+            Assert.assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        // a value too heavy to keep replaces the one that was.
+        map.put("key9999", sb.toString());
+        Assert.assertNull(map.get("key9999"));
+        Assert.assertEquals(2, map.getRejectionCount());
+    }
+
+    @Test
+    public void testStatistics() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100,
+                new ConcurrentLRUMap.Weigher<String, String>() {
+                    public long weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        StatsServiceFactory statsServiceFactory = Mockito.mock(StatsServiceFactory.class);
+        map.register(statsServiceFactory, "test");
+        Mockito.verify(statsServiceFactory).registerCache("test", map.getStatistics());
+        CacheStatistics stats = map.getStatistics();
+        map.put("a", "12345");
+        map.put("b", "123");
+        map.get("a");
+        map.get("c");
+        Assert.assertEquals(1, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(0, stats.getEvictionCount());
+        Assert.assertEquals(2, stats.size());
+        Assert.assertEquals(8, stats.getWeight());
+        Assert.assertEquals(100, stats.getMaxWeight());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(1000);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            Integer k = (i * 31 + seed) % 5000;
+                            map.put(k, k);
+                            Integer v = map.get(k);
+                            if (v != null && !v.equals(k)) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertTrue(map.size() <= 1000);
+        Assert.assertEquals(map.size(), map.getWeight());
+    }
+}
@@ -0,0 +1,55 @@
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.CheckRowHash;
+
+/**
+ * Compares the cost of generating row ids with the original per call
+ * MessageDigest, the DigestRowHasher and the Murmur3RowHasher.
+ * 
+ * java RowHasherMain [iterations (default 1000000)]
+ */
+public class RowHasherMain {
+
+    private static final int WARMUP = 3;
+
+    public static void main(String[] argv) throws NoSuchAlgorithmException, StorageClientException {
+        int iterations = 1000000;
+        if (argv.length > 0) {
+            iterations = Integer.parseInt(argv[0]);
+        }
+        String[] keys = new String[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "/a/path/to/some/content/item" + i;
+        }
+        RowHasher digest = new DigestRowHasher("SHA1");
+        RowHasher murmur = new Murmur3RowHasher();
+        for (int run = 0; run <= WARMUP; run++) {
+            boolean report = run == WARMUP;
+            long t = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                CheckRowHash.rowHash("n", "cn", keys[i % keys.length], "SHA1");
+            }
+            report(report, "MessageDigest per call SHA1", t, iterations);
+            t = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                digest.rowHash("n", "cn", keys[i % keys.length]);
+            }
+            report(report, "DigestRowHasher SHA1", t, iterations);
+            t = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                murmur.rowHash("n", "cn", keys[i % keys.length]);
+            }
+            report(report, "Murmur3RowHasher", t, iterations);
+        }
+    }
+
+    private static void report(boolean report, String name, long start, int iterations) {
+        if (report) {
+            long t = System.nanoTime() - start;
+            System.out.println(name + " " + (t / iterations) + " ns/op");
+        }
+    }
+}
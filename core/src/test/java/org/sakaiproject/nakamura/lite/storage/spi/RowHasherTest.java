@@ -0,0 +1,67 @@
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CheckRowHash;
+
+public class RowHasherTest {
+
+    private static final String[] KEYS = new String[] { "", "a:ae6782", "/a/path/to/some/content",
+            "caf\u00e9/\u65e5\u672c\u8a9e", "\ud83d\ude00 pair", "unpaired \ud83d", "unpaired \ude00 low",
+            null };
+
+    @Test
+    public void testDigestCompatible() throws NoSuchAlgorithmException, StorageClientException {
+        for (String alg : new String[] { "SHA1", "MD5" }) {
+            RowHasher hasher = new DigestRowHasher(alg);
+            for (String key : KEYS) {
+                Assert.assertEquals(CheckRowHash.rowHash("n", "cn", key, alg), hasher.rowHash("n", "cn", key));
+            }
+        }
+    }
+
+    @Test
+    public void testDigestLongKey() throws NoSuchAlgorithmException, StorageClientException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u00e9");
+        }
+        RowHasher hasher = new DigestRowHasher("SHA1");
+        Assert.assertEquals(CheckRowHash.rowHash("n", "cn", sb.toString(), "SHA1"), hasher.rowHash("n", "cn", sb.toString()));
+        Assert.assertEquals(CheckRowHash.rowHash("n", "cn", "short", "SHA1"), hasher.rowHash("n", "cn", "short"));
+    }
+
+    @Test
+    public void testEncodeBase64() {
+        for (int len = 0; len < 32; len++) {
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) {
+                b[i] = (byte) (i * 37 - 120);
+            }
+            Assert.assertEquals(StorageClientUtils.encode(b), AbstractRowHasher.encodeBase64(b));
+        }
+    }
+
+    @Test
+    public void testMurmur3() {
+        Murmur3RowHasher hasher = new Murmur3RowHasher();
+        Assert.assertEquals("00000000000000000000000000000000", new String(Hex.encodeHex(hasher.hash(new byte[0], 0))));
+        byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes();
+        Assert.assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", new String(Hex.encodeHex(hasher.hash(fox, fox.length))));
+    }
+
+    @Test
+    public void testMurmur3RowHash() throws StorageClientException {
+        Murmur3RowHasher hasher = new Murmur3RowHasher();
+        String hash = hasher.rowHash("n", "cn", "/a/path");
+        Assert.assertEquals(22, hash.length());
+        Assert.assertEquals(hash, hasher.rowHash("n", "cn", "/a/path"));
+        Assert.assertFalse(hash.equals(hasher.rowHash("n", "cn", "/a/path2")));
+        Assert.assertFalse(hash.equals(hasher.rowHash("n", "ac", "/a/path")));
+    }
+}
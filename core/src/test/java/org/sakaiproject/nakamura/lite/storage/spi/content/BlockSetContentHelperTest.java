@@ -0,0 +1,146 @@
+package org.sakaiproject.nakamura.lite.storage.spi.content;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.storage.mem.MemoryStorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
+
+import com.google.common.collect.ImmutableMap;
+
+public class BlockSetContentHelperTest {
+
+    @Test
+    public void testPipelinedBlocks() throws Exception {
+        MemoryStorageClient client = new MemoryStorageClient(null, new ConcurrentHashMap<String, Object>(),
+                ImmutableMap.<String, Object> of());
+        byte[] body = new byte[10050];
+        new Random().nextBytes(body);
+        assertRoundTrip(new BlockSetContentHelper(client, 2, 2), body, "pipelined");
+        assertRoundTrip(new BlockSetContentHelper(client), body, "serial");
+    }
+
+    private void assertRoundTrip(BlockSetContentHelper helper, byte[] body, String blockId) throws Exception {
+        // 100 byte blocks, 4 to a set, so 101 blocks in 26 sets.
+        Map<String, Object> metadata = helper.writeBody("n", "cn", "content", blockId, null, 100, 3,
+                new ByteArrayInputStream(body));
+        Assert.assertEquals(26, metadata.get(Content.NBLOCKS_FIELD));
+        Assert.assertEquals(10050L, metadata.get(Content.LENGTH_FIELD));
+        InputStream in = helper.readBody("n", "cn", blockId, null, 26);
+        try {
+            Assert.assertArrayEquals(body, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+        in = helper.readBody("n", "cn", blockId, null, 26);
+        try {
+            Assert.assertEquals(9000, in.skip(9000));
+            Assert.assertEquals(body[9000] & 0xff, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriterPool() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        StorageClient writerClient = mock(StorageClient.class);
+        StorageClientPool pool = mock(StorageClientPool.class);
+        when(pool.getClient()).thenReturn(writerClient);
+        BlockSetContentHelper helper = new BlockSetContentHelper(client, 2, 0, pool);
+        helper.writeBody("n", "cn", "content", "pooled", null, 100, 3, new ByteArrayInputStream(new byte[1000]));
+        // the upload may read from its own client, so the blocks are written
+        // with another.
+        verify(writerClient, times(10)).insert(anyString(), anyString(), anyString(), any(Map.class),
+                anyBoolean(), any(Map.class));
+        verify(writerClient).close();
+        verify(client, never()).insert(anyString(), anyString(), anyString(), any(Map.class), anyBoolean(),
+                any(Map.class));
+
+        // with no client to spare, blocks are written in turn.
+        when(pool.getClient()).thenThrow(new ClientPoolException("Pool exhausted", null));
+        helper.writeBody("n", "cn", "content", "serial", null, 100, 3, new ByteArrayInputStream(new byte[1000]));
+        verify(client, times(10)).insert(anyString(), anyString(), anyString(), any(Map.class), anyBoolean(),
+                any(Map.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAbandon() throws Exception {
+        final CountDownLatch inserting = new CountDownLatch(1);
+        final AtomicBoolean inserted = new AtomicBoolean();
+        StorageClient client = mock(StorageClient.class);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                inserting.countDown();
+                Thread.sleep(200);
+                inserted.set(true);
+                return null;
+            }
+        }).when(client).insert(anyString(), anyString(), anyString(), any(Map.class), anyBoolean(), any(Map.class));
+        BlockSetContentHelper helper = new BlockSetContentHelper(client, 2, 0);
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[100]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    inserting.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Upload failed");
+            }
+        });
+        try {
+            helper.writeBody("n", "cn", "content", "abandoned", null, 100, 3, in);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Upload failed", e.getMessage());
+        }
+        // the block being written when the upload failed has been written.
+        Assert.assertTrue(inserted.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteFailure() throws Exception {
+        StorageClient client = mock(StorageClient.class);
+        doThrow(new StorageClientException("Store is down")).when(client).insert(anyString(), anyString(),
+                anyString(), any(Map.class), anyBoolean(), any(Map.class));
+        BlockSetContentHelper helper = new BlockSetContentHelper(client, 2, 0);
+        try {
+            helper.writeBody("n", "cn", "content", "failing", null, 100, 3, new ByteArrayInputStream(new byte[1000]));
+            Assert.fail();
+        } catch (StorageClientException e) {
+            Assert.assertEquals("Store is down", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.sakaiproject.nakamura.lite.storage.spi.content;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.spi.AbstractClientConnectionPool;
+import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class FileStreamContentHelperTest {
+
+    private static final String LOCATION = "_bodyLocation";
+
+    @Test
+    public void testContentAddressedBodies() throws Exception {
+        String store = "target/cas-store-" + System.currentTimeMillis();
+        FileStreamContentHelper helper = new FileStreamContentHelper(mock(RowHasher.class), ImmutableMap.of(
+                AbstractClientConnectionPool.FS_STORE_BASE_DIR, (Object) store,
+                AbstractClientConnectionPool.FS_CONTENT_ADDRESSED, true));
+        Map<String, Object> a = write(helper, "a", Maps.<String, Object> newHashMap(), "same bytes");
+        Map<String, Object> b = write(helper, "b", Maps.<String, Object> newHashMap(), "same bytes");
+        String location = (String) a.get(LOCATION);
+        Assert.assertNotNull(location);
+        Assert.assertEquals(location, b.get(LOCATION));
+        Assert.assertEquals("2", references(store, location));
+        Assert.assertEquals("same bytes", read(helper, b));
+
+        Map<String, Object> copy = helper.shareBody("n", "cn", null, a);
+        Assert.assertEquals(location, copy.get(LOCATION));
+        Assert.assertEquals(10L, copy.get("_length"));
+        Assert.assertEquals("3", references(store, location));
+
+        // writing a body leaves the one it replaces to the caller.
+        Map<String, Object> unreleased = helper.writeBody("n", "cn", "contenta", "a", null, a,
+                new ByteArrayInputStream("same bytes".getBytes("UTF-8")));
+        Assert.assertEquals("4", references(store, location));
+        helper.releaseBody("n", "cn", null, unreleased);
+        Assert.assertEquals("3", references(store, location));
+
+        // replacing a body gives up its reference, the last removes the file.
+        Map<String, Object> a2 = write(helper, "a", a, "other bytes");
+        Assert.assertFalse(location.equals(a2.get(LOCATION)));
+        Assert.assertEquals("2", references(store, location));
+        write(helper, "b", b, "other bytes");
+        Assert.assertEquals("1", references(store, location));
+        Map<String, Object> copy2 = write(helper, "c", copy, "other bytes");
+        Assert.assertEquals("other bytes", read(helper, copy2));
+        Assert.assertEquals("3", references(store, (String) a2.get(LOCATION)));
+        Assert.assertFalse(new File(store + "/" + location).exists());
+        Assert.assertFalse(helper.hasStream(a, null));
+        // a removed body can no longer be shared.
+        Assert.assertNull(helper.shareBody("n", "cn", null, a));
+
+        helper.releaseBody("n", "cn", null, a2);
+        Assert.assertEquals("2", references(store, (String) a2.get(LOCATION)));
+        helper.releaseBody("n", "cn", null, copy2);
+        helper.releaseBody("n", "cn", null, a2);
+        Assert.assertFalse(new File(store + "/" + a2.get(LOCATION)).exists());
+        Assert.assertFalse(new File(store + "/" + a2.get(LOCATION) + ".refs").exists());
+        FileUtils.deleteDirectory(new File(store));
+    }
+
+    @Test
+    public void testFileBodiesAreNotShared() throws Exception {
+        String store = "target/file-store-" + System.currentTimeMillis();
+        RowHasher rowHasher = new RowHasher() {
+            public String rowHash(String keySpace, String columnFamily, String key) throws StorageClientException {
+                return "abcdef" + key;
+            }
+        };
+        FileStreamContentHelper helper = new FileStreamContentHelper(rowHasher, ImmutableMap.of(
+                AbstractClientConnectionPool.FS_STORE_BASE_DIR, (Object) store));
+        Map<String, Object> a = write(helper, "a", Maps.<String, Object> newHashMap(), "bytes");
+        Assert.assertEquals("bytes", read(helper, a));
+        Assert.assertNull(helper.shareBody("n", "cn", null, a));
+        // bodies that are not shared are kept for the versions reading them.
+        helper.releaseBody("n", "cn", null, a);
+        Assert.assertEquals("bytes", read(helper, a));
+        FileUtils.deleteDirectory(new File(store));
+    }
+
+    /**
+     * Write a body, then release the one it replaces as the content manager
+     * does once the content refers to the new body.
+     */
+    private Map<String, Object> write(FileStreamContentHelper helper, String blockId, Map<String, Object> content,
+            String body) throws IOException, StorageClientException {
+        Map<String, Object> metadata = helper.writeBody("n", "cn", "content" + blockId, blockId, null, content,
+                new ByteArrayInputStream(body.getBytes("UTF-8")));
+        helper.releaseBody("n", "cn", null, content);
+        return metadata;
+    }
+
+    private String read(FileStreamContentHelper helper, Map<String, Object> content) throws IOException {
+        InputStream in = helper.readBody("n", "cn", (String) content.get("_blockId"), null, content);
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private String references(String store, String location) throws IOException {
+        return FileUtils.readFileToString(new File(store + "/" + location + ".refs"));
+    }
+}
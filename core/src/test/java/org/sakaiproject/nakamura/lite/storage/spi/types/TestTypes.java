@@ -1,11 +1,14 @@
 package org.sakaiproject.nakamura.lite.storage.spi.types;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.storage.spi.types.LongString;
 import org.sakaiproject.nakamura.lite.storage.spi.types.StringType;
 import org.sakaiproject.nakamura.lite.storage.spi.types.Type;
@@ -283,4 +286,86 @@ public class TestTypes {
 
     }
 
+    @Test
+    public void testRowFormats() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "/a/path");
+        map.put("_lastModified", Long.MAX_VALUE);
+        map.put("sling:resourceType", "sakai/pooled-content");
+        map.put("caf\u00e9", "value");
+        map.put("B", new String[]{"StringA","StringB"});
+        for (int format : new int[] { Types.ROW_FORMAT_V1, Types.ROW_FORMAT_V2, Types.ROW_FORMAT_V3 }) {
+            InputStream in = Types.storeMapToStream("testkey", map, "cn", format);
+            Map<String, Object> output = Maps.newHashMap();
+            Types.loadFromStream("testkey", output, in, "cn");
+            Assert.assertEquals(5, output.size());
+            Assert.assertEquals("/a/path", output.get("_path"));
+            Assert.assertEquals(Long.MAX_VALUE, output.get("_lastModified"));
+            Assert.assertEquals("sakai/pooled-content", output.get("sling:resourceType"));
+            Assert.assertEquals("value", output.get("caf\u00e9"));
+            Assert.assertArrayEquals(new String[]{"StringA","StringB"}, (String[]) output.get("B"));
+        }
+        int v1 = Types.storeMapToStream("testkey", map, "cn", Types.ROW_FORMAT_V1).available();
+        int v2 = Types.storeMapToStream("testkey", map, "cn", Types.ROW_FORMAT_V2).available();
+        Assert.assertTrue("v2 " + v2 + " should be smaller than v1 " + v1, v2 < v1);
+
+        // the default stays at v2 until every node can read v3
+        Assert.assertEquals(v2, Types.storeMapToStream("testkey", map, "cn").available());
+        Assert.assertTrue(Types.loadRow("testkey", Types.storeMapToStream("testkey", map, "cn"), "cn") instanceof ImmutableMap);
+        try {
+            Types.storeMapToStream("testkey", map, "cn", 4);
+            Assert.fail();
+        } catch ( IOException e ) {
+            // Ok
+        }
+        
+        InputStream in = Types.storeMapToStream("testkey", map, "cn");
+        try {
+            Types.loadFromStream("not-testkey", Maps.<String, Object>newHashMap(), in, "cn");
+            Assert.fail();
+        } catch ( IOException e ) {
+            // Ok
+        }
+    }
+
+    @Test
+    public void testLoadRow() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        for (int i = 0; i < 200; i++) {
+            map.put("prop" + i, "value" + i);
+        }
+        map.put("_path", "/a/path");
+        map.put("_length", 100L);
+        map.put("B", new String[]{"StringA","StringB"});
+        for (int format : new int[] { Types.ROW_FORMAT_V1, Types.ROW_FORMAT_V2, Types.ROW_FORMAT_V3 }) {
+            Map<String, Object> eager = Maps.newHashMap();
+            Types.loadFromStream("testkey", eager, Types.storeMapToStream("testkey", map, "cn", format), "cn");
+            Map<String, Object> row = Types.loadRow("testkey", Types.storeMapToStream("testkey", map, "cn", format), "cn");
+            if (format == Types.ROW_FORMAT_V3) {
+                Assert.assertEquals(LazyRowMap.class, row.getClass());
+                // content made from the row keeps it rather than decoding a copy.
+                Assert.assertSame(row, StorageClientUtils.getFilterMap(row, null, null, null, false));
+                Assert.assertSame(row, new Content("/a/path", row).getOriginalProperties());
+            }
+            Assert.assertEquals(203, row.size());
+            Assert.assertEquals("/a/path", row.get("_path"));
+            Assert.assertEquals(100L, row.get("_length"));
+            Assert.assertEquals("value150", row.get("prop150"));
+            Assert.assertTrue(row.containsKey("prop3"));
+            Assert.assertFalse(row.containsKey("prop300"));
+            Assert.assertNull(row.get("prop300"));
+            Assert.assertArrayEquals(new String[]{"StringA","StringB"}, (String[]) row.get("B"));
+            eager.remove("B");
+            Map<String, Object> copy = Maps.newHashMap(row);
+            copy.remove("B");
+            Assert.assertEquals(eager, copy);
+            try {
+                row.put("x", "y");
+                Assert.fail();
+            } catch ( UnsupportedOperationException e ) {
+                // Ok
+            }
+        }
+    }
+
 }
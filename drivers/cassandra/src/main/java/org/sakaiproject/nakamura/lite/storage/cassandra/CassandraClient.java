@@ -62,6 +62,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -100,7 +101,14 @@ public class CassandraClient extends Client implements StorageClient {
         this.indexColumns = indexColums;
         this.tSocket = tSocket;
         this.pool = pool;
-        contentHelper = new BlockSetContentHelper(this);
+        // the thrift connection must only be used by one thread at a time,
+        // and an upload may read from this client while its blocks are
+        // written, when a body is copied or uploaded in chunks, so blocks
+        // are written behind the upload with a connection of their own from
+        // the pool, and never fetched ahead of a reader.
+        contentHelper = new BlockSetContentHelper(this, StorageClientUtils.getSetting(
+                properties.get(BlockContentHelper.CONFIG_WRITE_BEHIND),
+                BlockSetContentHelper.DEFAULT_WRITE_BEHIND), 0, pool);
         blockSize = StorageClientUtils.getSetting(properties.get(CONFIG_BLOCK_SIZE),
                 DEFAULT_BLOCK_SIZE);
         maxChunksPerBlockSet = StorageClientUtils.getSetting(
@@ -136,30 +144,41 @@ public class CassandraClient extends Client implements StorageClient {
         throws StorageClientException {
         Map<String, Object> row = new HashMap<String, Object>();
         try {
-            SlicePredicate predicate = new SlicePredicate();
-            SliceRange sliceRange = new SliceRange();
-            sliceRange.setStart(new byte[0]);
-            sliceRange.setFinish(new byte[0]);
-            predicate.setSlice_range(sliceRange);
-
             ColumnParent parent = new ColumnParent(columnFamily);
-            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, predicate,ConsistencyLevel.ONE);
-
-            for (ColumnOrSuperColumn result : results) {
-                if (result.isSetSuper_column()) {
-                    Map<String, Object> sc = new HashMap<String, Object>();
+            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, getAllColumnsPredicate(),ConsistencyLevel.ONE);
+            loadRow(row, results);
+        } catch (InvalidRequestException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (UnavailableException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TimedOutException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage());
+        }
+        return row;
+    }
 
-                    for (Column column : result.super_column.columns) {
-                        Object columnValue = Types.toObject(column.value);
-                        sc.put(new String(column.name, "UTF-8"), columnValue);
-                    }
-                    row.put(new String(result.super_column.name, "UTF-8"), sc);
-                } else {
-                    row.put(new String(result.column.name, "UTF-8"),
-                            Types.toObject(result.column.value));
+    public Map<String, Map<String, Object>> getMany(String keySpace, String columnFamily, Collection<String> keys)
+        throws StorageClientException {
+        Map<String, Map<String, Object>> rows = new HashMap<String, Map<String, Object>>();
+        if (keys.isEmpty()) {
+            return rows;
+        }
+        try {
+            ColumnParent parent = new ColumnParent(columnFamily);
+            Map<String, List<ColumnOrSuperColumn>> results = multiget_slice(keySpace, new ArrayList<String>(keys), parent,
+                    getAllColumnsPredicate(), ConsistencyLevel.ONE);
+            for (String key : keys) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                List<ColumnOrSuperColumn> columns = results.get(key);
+                if (columns != null) {
+                    loadRow(row, columns);
                 }
+                rows.put(key, row);
             }
-
         } catch (InvalidRequestException e) {
             throw new StorageClientException(e.getMessage(), e);
         } catch (UnavailableException e) {
@@ -171,7 +190,33 @@ public class CassandraClient extends Client implements StorageClient {
         } catch (IOException e) {
             LOGGER.debug(e.getMessage());
         }
-        return row;
+        return rows;
+    }
+
+    private SlicePredicate getAllColumnsPredicate() {
+        SlicePredicate predicate = new SlicePredicate();
+        SliceRange sliceRange = new SliceRange();
+        sliceRange.setStart(new byte[0]);
+        sliceRange.setFinish(new byte[0]);
+        predicate.setSlice_range(sliceRange);
+        return predicate;
+    }
+
+    private void loadRow(Map<String, Object> row, List<ColumnOrSuperColumn> results) throws IOException {
+        for (ColumnOrSuperColumn result : results) {
+            if (result.isSetSuper_column()) {
+                Map<String, Object> sc = new HashMap<String, Object>();
+
+                for (Column column : result.super_column.columns) {
+                    Object columnValue = Types.toObject(column.value);
+                    sc.put(new String(column.name, "UTF-8"), columnValue);
+                }
+                row.put(new String(result.super_column.name, "UTF-8"), sc);
+            } else {
+                row.put(new String(result.column.name, "UTF-8"),
+                        Types.toObject(result.column.value));
+            }
+        }
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
@@ -238,6 +283,12 @@ public class CassandraClient extends Client implements StorageClient {
         }
     }
 
+    public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew,
+            Map<String, Object> currentValues) throws StorageClientException {
+        // Cassandra merges columns on write, there is no read to save.
+        insert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
       if(!columnFamily.equals(INDEX_COLUMN_FAMILY)){
@@ -451,9 +502,31 @@ public class CassandraClient extends Client implements StorageClient {
         throw new UnsupportedOperationException();
     }
 
+    public DisposableIterator<Map<String, Object>> listChildren(String keySpace, String columnFamily, String key,
+            String continuation, long items, DirectCacheAccess cachingManager) throws StorageClientException {
+        throw new UnsupportedOperationException();
+    }
+
     public boolean hasBody(Map<String, Object> content, String streamId) {
         return contentHelper.hasBody(content, streamId);
     }
+
+    public Map<String, Object> shareBody(String keySpace, String columnFamily, String streamId,
+            Map<String, Object> content) {
+        // block bodies are copied by streaming them.
+        return null;
+    }
+
+    public void releaseBody(String keySpace, String columnFamily, String streamId, Map<String, Object> content) {
+        // block bodies are never shared.
+    }
+
+    public void removeBody(String keySpace, String columnFamily, String contentId, String contentBlockId,
+            String streamId, Map<String, Object> content) throws StorageClientException {
+        int nBlocks = StorageClientUtils.toInt(content.get(StorageClientUtils.getAltField(Content.NBLOCKS_FIELD,
+                streamId)));
+        contentHelper.removeBody(keySpace, columnFamily, contentBlockId, streamId, nBlocks);
+    }
     
     private void addIndex(String keySpace, String columnFamily, String key, byte[] bname, byte[] b)
             throws StorageClientException {
@@ -502,6 +575,39 @@ public class CassandraClient extends Client implements StorageClient {
         return 0;
     }
 
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        long count = 0;
+        DisposableIterator<Map<String, Object>> rows = find(keySpace, columnFamily, properties, null);
+        try {
+            while (rows.hasNext()) {
+                rows.next();
+                count++;
+            }
+        } finally {
+            rows.close();
+        }
+        return count;
+    }
+
+    public Map<String, Long> countBy(String keySpace, String columnFamily, Map<String, Object> properties,
+            String groupBy) throws StorageClientException {
+        Map<String, Long> counts = Maps.newHashMap();
+        DisposableIterator<Map<String, Object>> rows = find(keySpace, columnFamily, properties, null);
+        try {
+            while (rows.hasNext()) {
+                Object value = rows.next().get(groupBy);
+                if (value != null) {
+                    Long count = counts.get(String.valueOf(value));
+                    counts.put(String.valueOf(value), count == null ? 1L : count + 1);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return counts;
+    }
+
     public void setStorageClientListener(StorageClientListener storageClientListener) {
         // TODO Auto-generated method stub
         
@@ -39,38 +39,50 @@ find.n.cn = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROWNUM r
 find.n.lk = select TR.rid, TR.cid, TR.v from (select a.rid, a.cid, a.v, ROWNUM rnum from lk_css where {1} 1 = 1 {2}) TR where rnum > {4,number,#} and rnum <= {3,number,#}+{4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
 block-select-row = select b from css_b where rid = ?
+# block-select-rows loads many rows in one statement, {0} is replaced with up to select-rows-batch-size (default 100) ? markers.
+# Remove these statements if block rows are sharded by rowID, rows will then be loaded one at a time.
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
 list-all = select rid, b from css_b
+list-all-rids = select rid from css_b
 list-all-count = select count(*) from css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 list-all.n.ac = select rid, b from ac_css_b
+list-all-rids.n.ac = select rid from ac_css_b
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
 list-all.n.cn = select rid, b from cn_css_b
+list-all-rids.n.cn = select rid from cn_css_b
 list-all-count.n.cn = select count(*) from cn_css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 list-all.n.au = select rid, b from au_css_b
+list-all-rids.n.au = select rid from au_css_b
 list-all-count.n.au = select count(*) from au_css_b
 
 block-select-row.n.lk = select b from lk_css_b where rid = ?
+block-select-rows.n.lk = select rid, b from lk_css_b where rid in ({0})
 block-delete-row.n.lk = delete from lk_css_b where rid = ?
 block-insert-row.n.lk = insert into lk_css_b (rid,b) values (?, ?)
 block-update-row.n.lk = update lk_css_b set b = ? where rid = ?
 list-all.n.lk = select rid, b from lk_css_b
+list-all-rids.n.lk = select rid from lk_css_b
 list-all-count.n.lk = select count(*) from lk_css_b
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause; sort field column( if needed)
@@ -99,6 +111,8 @@ validate = select 1 from DUAL
 
 # What type of rowID has should be used. Must be non colliding (reasonable probability), cant be changed once set without data migration.
 # SHA-1 has a 1:10E14 probability of collision, so IMVHO is Ok here. Do not use MD5, it will collide.
+# rowid-hash is a MessageDigest name, or MURMUR3-128 for a faster non cryptographic hash.
+# Changing it changes every row id, so a store with existing data must keep the hash it was created with.
 rowid-hash = SHA1
 
 # statement to check that the schema exists
@@ -154,6 +168,12 @@ wide-block-find.n.ac = select TR.rid from ( select s.rid, ROWNUM rnum from (sele
 wide-block-find.n.au = select TR.rid from ( select s.rid, ROWNUM rnum from (select a.rid from au_css_w a where {0} {1} ) s where ROWNUM <= {2,number,#}+{3,number,#}) TR where rnum  >= {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-block-find.n.lk = select TR.rid from ( select s.rid, ROWNUM rnum from (select a.rid from lk_css_w a where {0} {1} ) s where ROWNUM <= {2,number,#}+{3,number,#}) TR where rnum  >= {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 
+wide-keyset-find = select rid, sortvalue from ( select a.rid, {3} sortvalue from css_w a where {0} {1} ) where ROWNUM <= {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.cn = select rid, sortvalue from ( select a.rid, {3} sortvalue from cn_css_w a where {0} {1} ) where ROWNUM <= {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.ac = select rid, sortvalue from ( select a.rid, {3} sortvalue from ac_css_w a where {0} {1} ) where ROWNUM <= {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.au = select rid, sortvalue from ( select a.rid, {3} sortvalue from au_css_w a where {0} {1} ) where ROWNUM <= {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.lk = select rid, sortvalue from ( select a.rid, {3} sortvalue from lk_css_w a where {0} {1} ) where ROWNUM <= {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+
 wide-listchildren = select a.rid from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.cn = select a.rid from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.ac = select a.rid from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
@@ -165,6 +185,11 @@ wide-countestimate.n.cn = select count(*) from cn_css_w a where {0} {1} ;a.{0} =
 wide-countestimate.n.ac = select count(*) from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-countestimate.n.au = select count(*) from au_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-countestimate.n.lk = select count(*) from lk_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
+wide-count-by = select {1}, count(*) from css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.cn = select {1}, count(*) from cn_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.ac = select {1}, count(*) from ac_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.au = select {1}, count(*) from au_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.lk = select {1}, count(*) from lk_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?
 
 
 
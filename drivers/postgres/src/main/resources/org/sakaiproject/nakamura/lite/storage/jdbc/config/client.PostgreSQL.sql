@@ -33,31 +33,45 @@ find.n.ac = select a.rid, a.cid, a.v from ac_css where {1} 1 = 1 {2} limit {3,nu
 find.n.cn = select a.rid, a.cid, a.v from cn_css where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
 block-select-row = select b from css_b where rid = ?
+# block-select-rows loads many rows in one statement, {0} is replaced with up to select-rows-batch-size (default 100) ? markers.
+# Remove these statements if block rows are sharded by rowID, rows will then be loaded one at a time.
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
+# block-upsert-row = insert into css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 block-update-row = update css_b set b = ? where rid = ?
 list-all = select rid, b from css_b
+list-all-rids = select rid from css_b
 list-all-count = select count(*) from css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
+# block-upsert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 list-all.n.ac = select rid, b from ac_css_b
+list-all-rids.n.ac = select rid from ac_css_b
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
+# block-upsert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
 list-all.n.cn = select rid, b from cn_css_b
+list-all-rids.n.cn = select rid from cn_css_b
 list-all-count.n.cn = select count(*) from cn_css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
+# block-upsert-row.n.au = insert into au_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 list-all.n.au = select rid, b from au_css_b
+list-all-rids.n.au = select rid from au_css_b
 list-all-count.n.au = select count(*) from au_css_b
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause; sort field column( if needed)
@@ -83,6 +97,8 @@ validate = select 1
 
 # What type of rowID has should be used. Must be non colliding (reasonable probability), cant be changed once set without data migration.
 # SHA-1 has a 1:10E14 probability of collision, so IMVHO is Ok here. Do not use MD5, it will collide.
+# rowid-hash is a MessageDigest name, or MURMUR3-128 for a faster non cryptographic hash.
+# Changing it changes every row id, so a store with existing data must keep the hash it was created with.
 rowid-hash = SHA1
 
 # statement to check that the schema exists
@@ -92,6 +108,16 @@ check-schema = select count(*) from css
 # Index tables and not the content store but it will reduce the number of SQL operations where more than one field is indexed per content item.
 use-batch-inserts = 1
 
+# Merge on write. If 1, when a manager already holds the current state of a row it is passed to the storage client
+# which merges the changes into that state rather than reading the row again before writing it. Only enable where the
+# shared cache is reliably invalidated across the cluster, otherwise concurrent updates from other nodes may be lost.
+merge-on-write = 0
+
+# Row format written to the body column, 2 is the compact format, 1 the original. Both are always readable, so 1 is
+# only needed while older releases that can only read format 1 share the database. 3 adds value lengths so rows can be
+# decoded lazily, only set it once every release sharing the database can read format 3.
+row-format = 2
+
 # this property indicates which version of the JRE your JDBC driver targets
 # e.g. the driver for Postgres 9 does not support JDBC methods introduced in JRE 1.6
 jdbc-support-level = 1.5
@@ -99,6 +125,7 @@ jdbc-support-level = 1.5
 #
 # PostgreSQL does not like to perform insert, fail, update operations. It wants update if missing insert.
 sql-statement-sequence = updateFirst
+# On PostgreSQL 9.5 and later uncomment the block-upsert-row statements to save or update rows in a single statement.
 
 
 index-column-name-select = select cf, cid, cname from css_wr
@@ -138,6 +165,12 @@ wide-block-find.n.ac = select a.rid from ac_css_w a where {0} {1} limit {2,numbe
 wide-block-find.n.au = select a.rid from au_css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-block-find.n.lk = select a.rid from lk_css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 
+wide-keyset-find = select a.rid, {3} sortvalue from css_w a where {0} {1} limit {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.cn = select a.rid, {3} sortvalue from cn_css_w a where {0} {1} limit {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.ac = select a.rid, {3} sortvalue from ac_css_w a where {0} {1} limit {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.au = select a.rid, {3} sortvalue from au_css_w a where {0} {1} limit {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+wide-keyset-find.n.lk = select a.rid, {3} sortvalue from lk_css_w a where {0} {1} limit {2,number,#};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1};( {0} {1} ? or ( {0} = ? and a.rid {1} ? ) );a.rid {0} ?;{0} is not null
+
 wide-listchildren = select a.rid from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.cn = select a.rid from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.ac = select a.rid from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
@@ -149,4 +182,12 @@ wide-countestimate.n.cn = select count(*) from cn_css_w a where {0} {1} ;a.{0} =
 wide-countestimate.n.ac = select count(*) from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-countestimate.n.au = select count(*) from au_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-countestimate.n.lk = select count(*) from lk_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
-
+wide-count-by = select {1}, count(*) from css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.cn = select {1}, count(*) from cn_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.ac = select {1}, count(*) from ac_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.au = select {1}, count(*) from au_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+wide-count-by.n.lk = select {1}, count(*) from lk_css_w a where {0} group by {1};a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?
+
+# Statements that capture the plan of a very slow find when explain-slow-queries is set on the pool, separated by ;
+# {0} is replaced by the find, which has its parameters bound. The plan is the rows of the last statement returning any.
+explain-plan = EXPLAIN {0}
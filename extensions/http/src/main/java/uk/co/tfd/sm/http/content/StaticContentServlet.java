@@ -3,17 +3,16 @@ package uk.co.tfd.sm.http.content;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.sakaiproject.nakamura.api.lite.util.BodyStreams;
+
 public class StaticContentServlet extends HttpServlet {
 
 	/**
@@ -25,11 +24,6 @@ public class StaticContentServlet extends HttpServlet {
 	private String alias;
 	private String baseAbsolutePath;
 	private boolean debugAllowed;
-	private ThreadLocal<ByteBuffer> copyBuffer = new ThreadLocal<ByteBuffer>(){
-		protected ByteBuffer initialValue() {
-			return ByteBuffer.allocate(100*1024);
-		};
-	};
 
 	public StaticContentServlet(String alias, String path,
 			Map<String, String> mimeTypes) {
@@ -81,17 +75,38 @@ public class StaticContentServlet extends HttpServlet {
 			return;
 		}
 		if (f.exists() && f.isFile()) {
+			response.setHeader("Accept-Ranges", "bytes");
 			File gzfile = new File(f.getAbsolutePath() + ".gz");
 			if (acceptsGz && gzfile.exists() && f.isFile()) {
 				response.setHeader("Content-Encoding", "gzip");
 				FileInputStream in = new FileInputStream(gzfile);
-				
-				copy(in, response.getOutputStream());
-				in.close();
+				try {
+					BodyStreams.copy(in, response.getOutputStream());
+				} finally {
+					in.close();
+				}
 			} else {
+				long length = f.length();
+				long[] range = BodyStreams.getRange(request.getHeader("Range"), length);
+				if (range != null && range.length == 0) {
+					response.setHeader("Content-Range", "bytes */" + length);
+					response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
 				FileInputStream in = new FileInputStream(f);
-				copy(in, response.getOutputStream());
-				in.close();
+				try {
+					if (range == null) {
+						response.setHeader("Content-Length", String.valueOf(length));
+						BodyStreams.copy(in, response.getOutputStream());
+					} else {
+						response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+						response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+						response.setHeader("Content-Length", String.valueOf(range[1] - range[0] + 1));
+						BodyStreams.copyRange(in, range[0], range[1] - range[0] + 1, response.getOutputStream());
+					}
+				} finally {
+					in.close();
+				}
 			}
 		} else {
 			if (debugAllowed
@@ -105,20 +120,6 @@ public class StaticContentServlet extends HttpServlet {
 		}
 	}
 
-	private void copy(FileInputStream in, ServletOutputStream outputStream) throws IOException {
-		ByteBuffer bb = copyBuffer.get();
-		FileChannel inc = in.getChannel();
-		bb.rewind();
-		while(inc.read(bb) >= 0 ) {
-			if ( bb.position() > 0 ) {
-				outputStream.write(bb.array(), 0, bb.position());
-				bb.rewind();
-			} else {
-				Thread.yield();
-			}
-		}
-	}
-
 	public String getMimeType(String fileName) {
 		int i = fileName.lastIndexOf('.');
 		String m = null;
@@ -15,16 +15,17 @@ import javax.ws.rs.POST;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.util.BodyStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,20 +89,80 @@ public class DefaultResponse implements Adaptable {
 				Session session = adaptTo(Session.class);
 				final ContentManager contentManager = session
 						.getContentManager();
-				final InputStream in = contentManager.getInputStream(content
-						.getPath());
-
-				return Response
-						.ok(new StreamingOutput() {
-							@Override
-							public void write(OutputStream output)
-									throws IOException, WebApplicationException {
-								IOUtils.copy(in, output);
-								in.close();
+				// a body stored compressed is sent as it is to clients that
+				// accept its encoding.
+				String encoding = (String) content
+						.getProperty(Content.BODY_CONTENT_ENCODING_FIELD);
+				boolean sendEncoded = encoding != null
+						&& acceptsEncoding(request, encoding);
+				final InputStream in;
+				if (sendEncoded) {
+					in = contentManager.getRawInputStream(content.getPath(),
+							null);
+				} else {
+					in = contentManager.getInputStream(content.getPath());
+				}
 
+				// ranges are of the body as it is sent, encoded or not.
+				long length = BodyStreams.length(in);
+				if (length < 0) {
+					length = toLength(content
+							.getProperty(sendEncoded ? Content.BODY_ENCODED_LENGTH_FIELD
+									: Content.LENGTH_FIELD));
+				}
+				final long[] range = length < 0 ? null : BodyStreams.getRange(
+						request == null ? null : request.getHeader("Range"),
+						length);
+				if (range != null && range.length == 0) {
+					in.close();
+					return Response
+							.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+							.header("Content-Range", "bytes */" + length)
+							.build();
+				}
+				ResponseBuilder builder;
+				StreamingOutput body = new StreamingOutput() {
+					@Override
+					public void write(OutputStream output)
+							throws IOException, WebApplicationException {
+						try {
+							if (range == null) {
+								BodyStreams.copy(in, output);
+							} else {
+								BodyStreams.copyRange(in, range[0], range[1]
+										- range[0] + 1, output);
 							}
-						}).type(adaptTo(MediaType.class))
-						.lastModified(adaptTo(Date.class)).build();
+						} finally {
+							in.close();
+						}
+					}
+				};
+				if (range == null) {
+					builder = Response.ok(body);
+					if (length >= 0) {
+						builder.header("Content-Length", length);
+					}
+				} else {
+					builder = Response
+							.status(HttpServletResponse.SC_PARTIAL_CONTENT)
+							.entity(body)
+							.header("Content-Range",
+									"bytes " + range[0] + "-" + range[1] + "/"
+											+ length)
+							.header("Content-Length", range[1] - range[0] + 1);
+				}
+				builder.type(adaptTo(MediaType.class)).lastModified(
+						adaptTo(Date.class));
+				if (length >= 0) {
+					builder.header("Accept-Ranges", "bytes");
+				}
+				if (encoding != null) {
+					builder.header("Vary", "Accept-Encoding");
+				}
+				if (sendEncoded) {
+					builder.header("Content-Encoding", encoding);
+				}
+				return builder.build();
 			} else if ("json".equals(requestExt)) {
 
 				return Response
@@ -137,6 +198,65 @@ public class DefaultResponse implements Adaptable {
 		}
 	}
 
+	/**
+	 * @return a length stored in the content, or -1 if there is none.
+	 */
+	private static long toLength(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the Accept-Encoding header of the request lists the
+	 *         encoding without a zero quality, or doesn't list it but lists *
+	 *         without a zero quality. A quality that is not a number is
+	 *         ignored.
+	 */
+	static boolean acceptsEncoding(HttpServletRequest request, String encoding) {
+		if (request == null) {
+			return false;
+		}
+		String header = request.getHeader("Accept-Encoding");
+		if (header == null) {
+			return false;
+		}
+		// an explicit entry for the encoding takes precedence over *
+		// wherever they are in the header (RFC 7231 5.3.4).
+		boolean wildcard = false;
+		for (String accepted : header.split(",")) {
+			String[] parts = accepted.split(";");
+			String name = parts[0].trim();
+			if (name.equalsIgnoreCase(encoding)) {
+				return hasQuality(parts);
+			} else if ("*".equals(name)) {
+				wildcard = hasQuality(parts);
+			}
+		}
+		return wildcard;
+	}
+
+	/**
+	 * @return false if the parameters of an Accept-Encoding entry give it a
+	 *         zero quality.
+	 */
+	private static boolean hasQuality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					if (Double.parseDouble(param.substring(2)) == 0) {
+						return false;
+					}
+				} catch (NumberFormatException e) {
+					LOGGER.debug("Ignoring quality of {} ", parts[0]);
+				}
+			}
+		}
+		return true;
+	}
+
 	@POST
 	public Response doPost() throws IOException {
 		if (debug) {
@@ -99,6 +99,53 @@ public class DefaultResponseFactoryTest {
 
 	}
 
+	@Test
+	public void testGetResourceRange() throws IOException, StorageClientException, AccessDeniedException, URISyntaxException {
+		DefaultResponseFactory fac = new DefaultResponseFactory();
+		DefaultResponse dg = (DefaultResponse) fac.getResponse(adaptable);
+		Mockito.when(adaptable.adaptTo(Resource.class)).thenReturn(resource);
+		Mockito.when(adaptable.adaptTo(Session.class)).thenReturn(session);
+		Mockito.when(adaptable.adaptTo(Content.class)).thenReturn(content);
+		Mockito.when(content.getPath()).thenReturn("/test/path");
+		Mockito.when(content.getProperty(Content.LENGTH_FIELD)).thenReturn(4L);
+		Mockito.when(resource.getToCreatePath()).thenReturn("/test/path");
+		Mockito.when(adaptable.adaptTo(Date.class)).thenReturn(new Date());
+		Mockito.when(resource.getRequestExt()).thenReturn(null);
+		Mockito.when(session.getContentManager()).thenReturn(contentManager);
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(adaptable.adaptTo(HttpServletRequest.class)).thenReturn(request);
+		byte[] data = "TEST".getBytes("UTF-8");
+		Mockito.when(contentManager.getInputStream(Mockito.anyString())).thenReturn(
+				new ByteArrayInputStream(data));
+
+		Mockito.when(request.getHeader("Range")).thenReturn("bytes=1-2");
+		Response response = dg.doGet();
+		Assert.assertEquals(206, response.getStatus());
+		Assert.assertEquals("bytes 1-2/4", response.getMetadata().getFirst("Content-Range").toString());
+		Assert.assertEquals("bytes", response.getMetadata().getFirst("Accept-Ranges").toString());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(output);
+		Assert.assertEquals("ES", new String(output.toByteArray(), "UTF-8"));
+
+		// a range past the end of the body can't be satisfied.
+		Mockito.when(contentManager.getInputStream(Mockito.anyString())).thenReturn(
+				new ByteArrayInputStream(data));
+		Mockito.when(request.getHeader("Range")).thenReturn("bytes=4-");
+		response = dg.doGet();
+		Assert.assertEquals(416, response.getStatus());
+		Assert.assertEquals("bytes */4", response.getMetadata().getFirst("Content-Range").toString());
+
+		// without a range the whole body is sent.
+		Mockito.when(contentManager.getInputStream(Mockito.anyString())).thenReturn(
+				new ByteArrayInputStream(data));
+		Mockito.when(request.getHeader("Range")).thenReturn(null);
+		response = dg.doGet();
+		Assert.assertEquals(200, response.getStatus());
+		output = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(output);
+		Assert.assertArrayEquals(data, output.toByteArray());
+	}
+
 	@Test
 	public void testGetResourceJson() throws IOException, StorageClientException, AccessDeniedException, URISyntaxException {
 		DefaultResponseFactory fac = new DefaultResponseFactory();
@@ -261,5 +308,26 @@ public class DefaultResponseFactoryTest {
 
 	}
 
+	@Test
+	public void testAcceptsEncoding() {
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		Mockito.when(request.getHeader("Accept-Encoding")).thenReturn(
+				"deflate;q=0, gzip;q=0.5");
+		Assert.assertTrue(DefaultResponse.acceptsEncoding(request, "gzip"));
+		Assert.assertFalse(DefaultResponse.acceptsEncoding(request, "deflate"));
+		// a quality that is not a number is ignored.
+		Mockito.when(request.getHeader("Accept-Encoding")).thenReturn(
+				"gzip;q=high");
+		Assert.assertTrue(DefaultResponse.acceptsEncoding(request, "gzip"));
+		// an explicit entry takes precedence over *, in either order.
+		Mockito.when(request.getHeader("Accept-Encoding")).thenReturn(
+				"*, gzip;q=0");
+		Assert.assertFalse(DefaultResponse.acceptsEncoding(request, "gzip"));
+		Assert.assertTrue(DefaultResponse.acceptsEncoding(request, "deflate"));
+		Mockito.when(request.getHeader("Accept-Encoding")).thenReturn(
+				"*;q=0, gzip");
+		Assert.assertTrue(DefaultResponse.acceptsEncoding(request, "gzip"));
+		Assert.assertFalse(DefaultResponse.acceptsEncoding(request, "deflate"));
+	}
 
 }
@@ -28,6 +28,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.lock.AlreadyLockedException;
 import org.sakaiproject.nakamura.api.lite.lock.LockState;
+import org.sakaiproject.nakamura.api.lite.util.BodyStreams;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -345,25 +346,23 @@ public class SparseMiltonContentResource implements FileResource, FolderResource
 			if (in == null) {
 				return;
 			}
-			byte[] buffer = new byte[10240];
-			if (range != null) {
-				try {
-					in.skip(range.getStart());
-				} catch (IOException e) {
-					throw new BadRequestException(this, e.getMessage());
+			try {
+				// file bodies are sent from their channel at the range
+				// position, rather than skipped to through a buffer.
+				if (range != null) {
+					BodyStreams.copyRange(in, range.getStart(),
+							range.getFinish() - range.getStart() + 1, out);
+				} else {
+					BodyStreams.copy(in, out);
 				}
-			}
-			for (;;) {
-				int nr;
+			} catch (IOException e) {
+				throw new BadRequestException(this, e.getMessage());
+			} finally {
 				try {
-					nr = in.read(buffer);
+					in.close();
 				} catch (IOException e) {
-					throw new BadRequestException(this, e.getMessage());
-				}
-				if (nr == -1) {
-					break;
+					LOGGER.debug(e.getMessage(), e);
 				}
-				out.write(buffer, 0, nr);
 			}
 		} catch (StorageClientException e) {
 			throw new BadRequestException(this, e.getMessage());